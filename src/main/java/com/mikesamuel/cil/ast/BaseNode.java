@@ -12,6 +12,7 @@ import com.google.common.base.Predicates;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.mikesamuel.cil.ast.meta.MetadataBridge;
+import com.mikesamuel.cil.parser.LineStarts;
 import com.mikesamuel.cil.parser.SourcePosition;
 
 /**
@@ -43,7 +44,17 @@ public abstract class BaseNode<
     NODE_VARIANT extends NodeVariant<BASE_NODE, NODE_TYPE>>
 implements NodeI<BASE_NODE, NODE_TYPE, NODE_VARIANT> {
   private NODE_VARIANT variant;
-  private @Nullable SourcePosition sourcePosition;
+  /**
+   * The line structure of the file containing the source position or null if
+   * the node has no source position.
+   * Positions are stored unboxed since most are never inspected.
+   */
+  private @Nullable LineStarts positionLineStarts;
+  /**
+   * The start char in file of the source position in the high 32 bits and the
+   * end char in file in the low 32 bits.
+   */
+  private long packedPosition;
 
   protected BaseNode(NODE_VARIANT variant) {
     setVariant(variant);
@@ -80,7 +91,10 @@ implements NodeI<BASE_NODE, NODE_TYPE, NODE_VARIANT> {
   /** The source position.  Non-normative. */
   @Override
   public final @Nullable SourcePosition getSourcePosition() {
-    return sourcePosition;
+    LineStarts starts = positionLineStarts;
+    if (starts == null) { return null; }
+    return new SourcePosition(
+        starts, (int) (packedPosition >>> 32), (int) packedPosition);
   }
 
   /**
@@ -88,15 +102,44 @@ implements NodeI<BASE_NODE, NODE_TYPE, NODE_VARIANT> {
    */
   @Override
   public final void setSourcePosition(SourcePosition newSourcePosition) {
-    this.sourcePosition = newSourcePosition;
+    if (newSourcePosition == null) {
+      this.positionLineStarts = null;
+      this.packedPosition = 0;
+    } else {
+      setSourcePosition(
+          newSourcePosition.getLineStarts(),
+          newSourcePosition.startCharInFile(),
+          newSourcePosition.endCharInFile());
+    }
+  }
+
+  /**
+   * Like {@link #setSourcePosition(SourcePosition)} but does not require
+   * allocating a position.
+   *
+   * @see SourcePosition#SourcePosition(LineStarts, int, int)
+   */
+  public final void setSourcePosition(
+      LineStarts starts, int startCharInFile, int endCharInFile) {
+    this.positionLineStarts = Preconditions.checkNotNull(starts);
+    this.packedPosition = (((long) startCharInFile) << 32)
+        | (endCharInFile & 0xffffffffL);
   }
 
   /** Copies all parse and mixin metadata from the given node. */
   @Override
   public void copyMetadataFrom(NodeI<?, ?, ?> source, MetadataBridge bridge) {
-    SourcePosition pos = source.getSourcePosition();
-    if (pos != null) {
-      setSourcePosition(pos);
+    if (source instanceof BaseNode) {
+      BaseNode<?, ?, ?> sourceNode = (BaseNode<?, ?, ?>) source;
+      if (sourceNode.positionLineStarts != null) {
+        this.positionLineStarts = sourceNode.positionLineStarts;
+        this.packedPosition = sourceNode.packedPosition;
+      }
+    } else {
+      SourcePosition pos = source.getSourcePosition();
+      if (pos != null) {
+        setSourcePosition(pos);
+      }
     }
   }
 
@@ -11,6 +11,7 @@ import com.mikesamuel.cil.ast.j8.Java8Comments;
 import com.mikesamuel.cil.event.Event;
 import com.mikesamuel.cil.parser.Ignorables;
 import com.mikesamuel.cil.parser.Input;
+import com.mikesamuel.cil.parser.LineStarts;
 import com.mikesamuel.cil.parser.ParSer;
 import com.mikesamuel.cil.parser.ParseState;
 import com.mikesamuel.cil.parser.SList;
@@ -98,7 +99,7 @@ public final class Trees<BASE_NODE extends BaseNode<BASE_NODE, ?, ?>> {
       @Nullable NodeVariant<BASE_NODE, ?> variant,
       Input input, Iterator<? extends Event> events) {
     @SuppressWarnings("synthetic-access")
-    Tier<BASE_NODE> tier = new Tier<>();
+    Tier<BASE_NODE> tier = new Tier<>(input);
 
     ImmutableList.Builder<BASE_NODE> nodes = null;
     event_loop:
@@ -129,26 +130,16 @@ public final class Trees<BASE_NODE extends BaseNode<BASE_NODE, ?, ?>> {
               if (!nodeContent.nodes.isEmpty()) {
                 throw new IllegalArgumentException(
                     "Leaf node " + pushVariant
-                    + " parsed from " + tier.startPosition
+                    + " parsed from " + tier.describeStart()
                     + " should not have children");
               }
             } else {
               nodeBuilt = g.cast(pushVariant.buildNode(nodeContent.nodes));
             }
-            if (nodeContent.content != null) {
-              nodeBuilt.setSourcePosition(nodeContent.contentPosition);
-            } else if (nodeContent.startPosition != null) {
-              nodeBuilt.setSourcePosition(SourcePosition.spanning(
-                  nodeContent.startPosition, nodeContent.lastPosition));
-            }
+            nodeContent.setPositionOf(nodeBuilt);
             nodes.add(nodeBuilt);
           }
-          if (tier.startPosition == null) {
-            tier.startPosition = nodeContent.startPosition;
-          }
-          if (nodeContent.lastPosition != null) {
-            tier.lastPosition = nodeContent.lastPosition;
-          }
+          tier.updatePosition(nodeContent);
           break;
         case CONTENT: {
           if (tier.content != null) {
@@ -157,33 +148,20 @@ public final class Trees<BASE_NODE extends BaseNode<BASE_NODE, ?, ?>> {
                 + "` and `" + e.getContent() + "`");
           }
           tier.content = e.getContent();
-          SourcePosition pos = makeSourcePosition(
-              e.getContentIndex(), e.nCharsConsumed(), input);
-          if (pos != null) {
-            tier.contentPosition = pos;
-            tier.updatePosition(pos);
-          }
+          tier.consume(e.getContentIndex(), e.nCharsConsumed(), true);
           break;
         }
-        case TOKEN: {
-          SourcePosition pos = makeSourcePosition(
-              e.getContentIndex(), e.nCharsConsumed(), input);
-          if (pos != null) {
-            tier.updatePosition(pos);
-          }
+        case TOKEN:
+          tier.consume(e.getContentIndex(), e.nCharsConsumed(), false);
           break;
-        }
         case IGNORABLE: {
-          SourcePosition pos = makeSourcePosition(
-              e.getContentIndex(), e.getContent().length(), input);
-          if (variant.isIgnorable()) {
+          boolean isContent = variant.isIgnorable();
+          if (isContent) {
             // Treat the comment as content.
             tier.content = e.getContent();
-            tier.contentPosition = pos;
-          }
-          if (pos != null) {
-            tier.updatePosition(pos);
           }
+          tier.consume(
+              e.getContentIndex(), e.getContent().length(), isContent);
           break;
         }
         case DELAYED_CHECK:
@@ -205,26 +183,117 @@ public final class Trees<BASE_NODE extends BaseNode<BASE_NODE, ?, ?>> {
     return tier;
   }
 
-  private static SourcePosition makeSourcePosition(
-      int decodedStartIndex, int nDecodedChars, Input input) {
-    return input.getSourcePosition(
-        decodedStartIndex, decodedStartIndex + nDecodedChars);
-  }
-
   private static final class Tier<BASE_NODE extends BaseNode<BASE_NODE, ?, ?>> {
+    final Input input;
+    /**
+     * Non-null when positions can be computed from the first and last indices
+     * into the input's content, so we need not allocate a position per token.
+     */
+    final @Nullable LineStarts lineStarts;
     ImmutableList<BASE_NODE> nodes = ImmutableList.of();
+    String content = null;
+    boolean sawPop;
+
+    // Indices into the input's content used when lineStarts is non-null.
+    boolean hasPosition;
+    int startIndex;
+    int lastIndex;
+    boolean hasContentPosition;
+    int contentStartIndex;
+    int contentEndIndex;
+
+    // Used when lineStarts is null.
     SourcePosition startPosition;
     SourcePosition lastPosition;
-    String content = null;
     SourcePosition contentPosition;
-    boolean sawPop;
 
+    Tier(Input input) {
+      this.input = input;
+      this.lineStarts = input.getLineStarts();
+    }
+
+    /** Called for each run of characters consumed by an event. */
+    void consume(int decodedStartIndex, int nDecodedChars, boolean isContent) {
+      int decodedEndIndex = decodedStartIndex + nDecodedChars;
+      if (lineStarts != null) {
+        if (!hasPosition) {
+          hasPosition = true;
+          startIndex = decodedStartIndex;
+        }
+        lastIndex = decodedEndIndex;
+        if (isContent) {
+          hasContentPosition = true;
+          contentStartIndex = decodedStartIndex;
+          contentEndIndex = decodedEndIndex;
+        }
+      } else {
+        SourcePosition pos = input.getSourcePosition(
+            decodedStartIndex, decodedEndIndex);
+        if (isContent) {
+          contentPosition = pos;
+        }
+        if (pos != null) {
+          if (startPosition == null) {
+            startPosition = pos.start();
+          }
+          lastPosition = pos.end();
+        }
+      }
+    }
+
+    /** Called after each child tier is complete. */
+    void updatePosition(Tier<?> child) {
+      if (lineStarts != null) {
+        if (child.hasPosition) {
+          if (!hasPosition) {
+            hasPosition = true;
+            startIndex = child.startIndex;
+          }
+          lastIndex = child.lastIndex;
+        }
+      } else {
+        if (startPosition == null) {
+          startPosition = child.startPosition;
+        }
+        if (child.lastPosition != null) {
+          lastPosition = child.lastPosition;
+        }
+      }
+    }
+
+    /** Sets the position of the node built from this tier. */
+    void setPositionOf(BASE_NODE node) {
+      if (lineStarts != null) {
+        if (content != null) {
+          if (hasContentPosition) {
+            node.setSourcePosition(
+                lineStarts,
+                input.indexInSource(contentStartIndex),
+                input.indexInSource(contentEndIndex));
+          }
+        } else if (hasPosition) {
+          // Mapping into the source preserves order, so this is equivalent
+          // to spanning the start of the first and end of the last positions.
+          node.setSourcePosition(
+              lineStarts,
+              input.indexInSource(Math.min(startIndex, lastIndex)),
+              input.indexInSource(Math.max(startIndex, lastIndex)));
+        }
+      } else {
+        if (content != null) {
+          node.setSourcePosition(contentPosition);
+        } else if (startPosition != null) {
+          node.setSourcePosition(
+              SourcePosition.spanning(startPosition, lastPosition));
+        }
+      }
+    }
 
-    void updatePosition(SourcePosition pos) {
-      if (startPosition == null) {
-        startPosition = pos.start();
+    @Nullable SourcePosition describeStart() {
+      if (lineStarts != null) {
+        return hasPosition ? input.getSourcePosition(startIndex) : null;
       }
-      lastPosition = pos.end();
+      return startPosition;
     }
   }
 
@@ -0,0 +1,321 @@
+package com.mikesamuel.cil.ast.j8.ti;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.mikesamuel.cil.ast.meta.JavaLang;
+import com.mikesamuel.cil.ast.meta.StaticType;
+import com.mikesamuel.cil.ast.meta.StaticType.PrimitiveType;
+import com.mikesamuel.cil.ast.meta.StaticType.TypePool;
+import com.mikesamuel.cil.ast.meta.StaticType.TypePool.ReferenceType;
+import com.mikesamuel.cil.ast.meta.TypeSpecification;
+import com.mikesamuel.cil.util.LogUtils;
+
+/**
+ * A mutable working copy of a {@link BoundSet} used during resolution.
+ * <p>
+ * Inference variables are assigned dense indices on first mention, and each
+ * variable maps to the set of bound slots that mention it.
+ * When variables are instantiated, only the bounds that mention them are
+ * substituted, and the substituted bounds go onto a work-list to be
+ * re-indexed instead of rebuilding the whole bound set.
+ * <p>
+ * Bounds occupy slots in the same order that an immutable bound set would
+ * list them so that candidate instantiations see lower and upper bounds in
+ * the same order that they would in a freshly built {@link BoundSet}.
+ */
+final class MutableBoundSet {
+  /** Bounds by slot.  A slot is null when its bound was subsumed. */
+  private final List<Bound> bounds = new ArrayList<>();
+  private final Map<Bound, Integer> slotOf = new HashMap<>();
+  private final Map<InferenceVariable, Integer> varIndex = new HashMap<>();
+  private final List<InferenceVariable> vars = new ArrayList<>();
+  /**
+   * For each variable index, the slots of non-resolution bounds that mention
+   * that variable.
+   */
+  private final List<BitSet> mentionedBy = new ArrayList<>();
+  /** Slots of capture relations. */
+  private final BitSet captureRelations = new BitSet();
+  /** Indices of variables that have a {@link Resolution} bound. */
+  private final BitSet resolved = new BitSet();
+  /** Slots of bounds that have been added but not yet indexed. */
+  private final Deque<Integer> unincorporated = new ArrayDeque<>();
+  private final boolean isBoundable;
+  private final ImmutableSet<InferenceVariable> thrown;
+
+  MutableBoundSet(BoundSet bs) {
+    this.isBoundable = bs.isBoundable;
+    this.thrown = bs.thrown;
+    for (Bound b : bs.bounds) {
+      add(b);
+    }
+    incorporate();
+  }
+
+  BoundSet toBoundSet() {
+    ImmutableList.Builder<Bound> b = ImmutableList.builder();
+    for (Bound bound : bounds) {
+      if (bound != null) {
+        b.add(bound);
+      }
+    }
+    return new BoundSet(b.build(), isBoundable, thrown);
+  }
+
+  private int indexOf(InferenceVariable v) {
+    Integer index = varIndex.get(v);
+    if (index == null) {
+      index = vars.size();
+      varIndex.put(v, index);
+      vars.add(v);
+      mentionedBy.add(new BitSet());
+    }
+    return index;
+  }
+
+  private void add(Bound b) {
+    if (slotOf.containsKey(b)) { return; }
+    int slot = bounds.size();
+    bounds.add(b);
+    slotOf.put(b, slot);
+    unincorporated.add(slot);
+  }
+
+  /**
+   * Puts b in the given slot, or if b is already present, keeps whichever
+   * copy occupies the earlier slot.
+   */
+  private void replace(int slot, Bound b) {
+    Integer existing = slotOf.get(b);
+    if (existing != null) {
+      int other = existing;
+      if (other < slot) {
+        bounds.set(slot, null);
+        return;
+      }
+      unindex(other);
+      bounds.set(other, null);
+    }
+    bounds.set(slot, b);
+    slotOf.put(b, slot);
+    unincorporated.add(slot);
+  }
+
+  private void unindex(int slot) {
+    Bound b = bounds.get(slot);
+    slotOf.remove(b);
+    captureRelations.clear(slot);
+    for (InferenceVariable v : b.mentioned()) {
+      mentionedBy.get(indexOf(v)).clear(slot);
+    }
+  }
+
+  /** Indexes bounds added since the last call. */
+  private void incorporate() {
+    for (Integer slot; (slot = unincorporated.poll()) != null;) {
+      Bound b = bounds.get(slot);
+      if (b == null) { continue; }
+      if (b instanceof Resolution) {
+        resolved.set(indexOf(((Resolution) b).var));
+      } else if (b instanceof CaptureRelation) {
+        captureRelations.set(slot);
+      } else {
+        for (InferenceVariable v : b.mentioned()) {
+          mentionedBy.get(indexOf(v)).set(slot);
+        }
+      }
+    }
+  }
+
+  /**
+   * Substitutes the instantiations into the bounds that mention them and
+   * records resolutions.
+   */
+  private void instantiate(ImmutableMap<InferenceVariable, ReferenceType> m) {
+    BitSet affected = new BitSet();
+    for (InferenceVariable v : m.keySet()) {
+      affected.or(mentionedBy.get(indexOf(v)));
+    }
+    for (int slot = affected.nextSetBit(0); slot >= 0;
+         slot = affected.nextSetBit(slot + 1)) {
+      Bound b = bounds.get(slot);
+      if (b == null) { continue; }
+      Bound substituted = b.subst(m);
+      if (substituted != b) {
+        unindex(slot);
+        replace(slot, substituted);
+      }
+    }
+    for (Map.Entry<InferenceVariable, ReferenceType> e : m.entrySet()) {
+      add(new Resolution(e.getKey(), e.getValue()));
+    }
+    incorporate();
+  }
+
+  /**
+   * Resolves variables clique by clique.
+   *
+   * @see BoundSet#resolve
+   */
+  void resolve(Theta theta) {
+    if (!isBoundable) { return; }
+
+    // Dependencies between unresolved variables do not change when resolved
+    // variables are substituted out, so we can compute the order once.
+    ResolutionOrder order;
+    {
+      BoundSet initial = toBoundSet();
+      ResolutionOrder.Builder orderBuilder = ResolutionOrder.builder(initial);
+      for (Bound b : initial.bounds) {
+        b.buildResolutionOrderGraph(orderBuilder);
+      }
+      order = orderBuilder.build();
+    }
+
+    for (ResolutionOrder.Clique clique : order.cliquesInResolutionOrder) {
+      ImmutableSet<InferenceVariable> cliqueVars = clique.vars();
+      for (;;) {
+        // Otherwise, let { α1, ..., αn } be a non-empty subset of
+        // uninstantiated variables in V.
+        ImmutableSet.Builder<InferenceVariable> unresolvedBuilder =
+            ImmutableSet.builder();
+        for (InferenceVariable v : cliqueVars) {
+          if (!resolved.get(indexOf(v))) {
+            unresolvedBuilder.add(v);
+          }
+        }
+        ImmutableSet<InferenceVariable> unresolved = unresolvedBuilder.build();
+        if (unresolved.isEmpty()) { break; }
+
+        ImmutableMap<InferenceVariable, ReferenceType> insts =
+            candidateInstantiations(unresolved, theta);
+        if (insts.isEmpty()) {
+          // No progress can be made.
+          return;
+        }
+        instantiate(insts);
+      }
+    }
+  }
+
+  private ImmutableMap<InferenceVariable, ReferenceType>
+      candidateInstantiations(
+          ImmutableSet<InferenceVariable> unresolved, Theta theta) {
+    for (int slot = captureRelations.nextSetBit(0); slot >= 0;
+         slot = captureRelations.nextSetBit(slot + 1)) {
+      CaptureRelation cr = (CaptureRelation) bounds.get(slot);
+      if (cr.alphas.containsAll(unresolved)) {
+        throw new Error("TODO resolve");
+      }
+    }
+
+    TypePool thetaTypePool = theta.thetaTypePool;
+
+    ImmutableMap.Builder<InferenceVariable, ReferenceType> instantiations =
+        ImmutableMap.builder();
+
+    // If the bound set does not contain a bound of the form
+    // G<..., αi, ...> = capture(G<...>) for all i (1 ≤ i ≤ n), then a
+    // candidate instantiation Ti is defined for each αi:
+    for (InferenceVariable var : unresolved) {
+      List<ReferenceType> lowerBounds = new ArrayList<>();
+      List<ReferenceType> upperBounds = new ArrayList<>();
+      BitSet mentioning = mentionedBy.get(indexOf(var));
+      for (int slot = mentioning.nextSetBit(0); slot >= 0;
+           slot = mentioning.nextSetBit(slot + 1)) {
+        Bound b = bounds.get(slot);
+        if (b instanceof SimpleBound) {
+          SimpleBound sb = (SimpleBound) b;
+          if (sb.right.equals(var) && sb.left instanceof NominalType) {
+            StaticType t = ((NominalType) sb.left).t;
+            if (InferenceVariable.isProperType(t)
+                && !thetaTypePool.T_NULL.equals(t)) {
+              lowerBounds.add(maybeBox(t, thetaTypePool));
+            }
+          } else if (sb.left.equals(var)
+                     && sb.right instanceof NominalType) {
+            StaticType t = ((NominalType) sb.right).t;
+            if (InferenceVariable.isProperType(t)
+                && !thetaTypePool.T_NULL.equals(t)) {
+              upperBounds.add(maybeBox(t, thetaTypePool));
+            }
+          }
+        }
+      }
+
+      StaticType r;
+      if (!lowerBounds.isEmpty()) {
+        // If αi has one or more proper lower bounds, L1, ..., Lk, then
+        // Ti = lub(L1, ..., Lk) (§4.10.4).
+        r = thetaTypePool.leastUpperBound(lowerBounds);
+      }
+      // Otherwise, if the bound set contains throws αi, and the proper
+      // upper bounds of αi are, at most, Exception, Throwable, and
+      // Object, then Ti = RuntimeException.
+      else if (thrown.contains(var)
+               && onlyContainsExceptionOrSuperTypes(upperBounds)) {
+        r = thetaTypePool.type(
+            JavaLang.JAVA_LANG_RUNTIMEEXCEPTION, theta.pos, theta.logger);
+      }
+      // Otherwise, where αi has proper upper bounds U1, ..., Uk,
+      // Ti = glb(U1, ..., Uk) (§5.1.10).
+      else if (!upperBounds.isEmpty()) {
+        TypeSpecification ts = upperBounds.get(0).typeSpecification;
+        for (int i = 1, n = upperBounds.size(); i < n; ++i) {
+          ts = thetaTypePool.glb(ts, upperBounds.get(i).typeSpecification);
+        }
+        r = thetaTypePool.type(ts, theta.pos, theta.logger);
+      } else {
+        LogUtils.log(
+            theta.logger, Level.SEVERE, theta.pos,
+            "Cannot compute bounds for " + var + " : "
+            + theta.reverse.get(var), null);
+        continue;
+      }
+      if (r instanceof ReferenceType) {
+        instantiations.put(var, (ReferenceType) r);
+      } else {
+        LogUtils.log(
+            theta.logger, Level.SEVERE, theta.pos,
+            "Cannot bind " + var + " : " + theta.reverse.get(var)
+            + " to non reference type " + r, null);
+      }
+    }
+    return instantiations.build();
+  }
+
+  private static ReferenceType maybeBox(StaticType t, TypePool typePool) {
+    if (t instanceof PrimitiveType) {
+      return (ReferenceType) typePool.type(
+          TypeSpecification.unparameterized(((PrimitiveType) t).wrapperType),
+          null, null);
+    }
+    return (ReferenceType) t;
+  }
+
+  private static final ImmutableSet<TypeSpecification> EXCEPTION_AND_SUPERS =
+      ImmutableSet.<TypeSpecification>of(
+          JavaLang.JAVA_LANG_OBJECT,
+          JavaLang.JAVA_LANG_THROWABLE,
+          JavaLang.JAVA_LANG_EXCEPTION);
+
+  private static boolean onlyContainsExceptionOrSuperTypes(
+      Iterable<? extends ReferenceType> ts) {
+    for (ReferenceType t : ts) {
+      if (!EXCEPTION_AND_SUPERS.contains(t.typeSpecification)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
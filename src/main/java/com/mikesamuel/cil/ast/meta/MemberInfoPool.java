@@ -121,7 +121,7 @@ public final class MemberInfoPool {
     for (TypeSpecification superType
         // Even if the start type is a concrete type we still need to walk
         // interfaces to get default methods and static methods.
-        : typePool.r.superTypesTransitiveOf(typeSpec)) {
+        : typePool.superTypesTransitiveOf(typeSpec)) {
       if (typeSpec.rawName.equals(superType.rawName)) {
         continue;
       }
@@ -161,7 +161,7 @@ public final class MemberInfoPool {
           for (TypeSpecification superType
               // Even if the start type is a concrete type we still need to
               // walk interfaces to get default methods and static methods.
-              : typePool.r.superTypesTransitiveOf(typeSpec)) {
+              : typePool.superTypesTransitiveOf(typeSpec)) {
             if (superType.rawName.equals(typeSpec.rawName)) {
               continue;
             }
@@ -263,7 +263,7 @@ public final class MemberInfoPool {
         for (TypeSpecification superType
             // Even if the start type is a concrete type we still need to walk
             // interfaces to get default methods and static methods.
-            : typePool.r.superTypesTransitiveOf(declaringType)) {
+            : typePool.superTypesTransitiveOf(declaringType)) {
           search(superType);
         }
       }
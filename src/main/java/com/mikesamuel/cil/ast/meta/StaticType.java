@@ -4,8 +4,10 @@ import java.lang.reflect.Modifier;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
@@ -14,12 +16,17 @@ import com.google.common.base.Functions;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
-import com.google.common.collect.Maps;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.mikesamuel.cil.ast.j8.AssignmentNode;
 import com.mikesamuel.cil.ast.j8.AssignmentOperatorNode;
@@ -492,6 +499,22 @@ public abstract class StaticType {
    * This is roughly analogous to a class loader but we need not handle
    * parent loaders since {@code javac} assumes (until {@code -source 9}) that
    * all classes compiled together can address one another modulo visibility.
+   * <p>
+   * A pool may be used by many threads at once, as when a prepared template
+   * bundle renders inputs in parallel:
+   * <ul>
+   *   <li>{@link #type} reads pooled types without locking, and creates a
+   *     missing type while holding this pool's lock, so each canonical type
+   *     specification maps to exactly one type, and pool indices are
+   *     dense and unique.</li>
+   *   <li>The memo tables used by {@link ReferenceType#assignableFrom} and
+   *     {@link #superTypesTransitiveOf} are thread-safe caches.</li>
+   *   <li>Types lazily compute sets of super-types without locking.
+   *     Threads that race compute equal values.  The sets are immutable, or
+   *     published via a volatile field when mutable, so a thread that sees a
+   *     set sees it fully built.</li>
+   * </ul>
+   * The {@link TypeInfoResolver} must be safe to use concurrently too.
    */
   public static final class TypePool {
     /** Used to resolve names to type info. */
@@ -502,13 +525,81 @@ public abstract class StaticType {
       this.r = r;
     }
 
+    /**
+     * The count of reference types added to the pool so that
+     * {@link ReferenceType#poolIndex} can serve as a dense identifier.
+     * Reference types are only created while holding this pool's lock or
+     * while constructing the pool.
+     */
+    private int nReferenceTypes;
+
     /**
      * Special type for the {@code null} value which is a reference bottom type.
      */
     public final ReferenceType T_NULL = new NullType();
 
+    /**
+     * Bounds the number of (left, right) pairs for which we memoize
+     * {@link ReferenceType#assignableFrom} results.
+     */
+    private static final int ASSIGNABILITY_CACHE_SIZE = 1 << 14;
+
+    /**
+     * Maps pairs of pool indices to the result of the left type's
+     * assignableFrom(rightType).
+     * Keyed by index since pooled types are interned, and hashing type
+     * specifications is recursive.
+     */
+    private final Cache<Long, Cast> assignabilityCache = CacheBuilder
+        .newBuilder()
+        .maximumSize(ASSIGNABILITY_CACHE_SIZE)
+        .recordStats()
+        .build();
+
+    private final
+    LoadingCache<TypeSpecification, ImmutableList<TypeSpecification>>
+        superTypesTransitive = CacheBuilder.newBuilder()
+        .recordStats()
+        .build(
+            new CacheLoader<
+                TypeSpecification, ImmutableList<TypeSpecification>>() {
+              @Override
+              public ImmutableList<TypeSpecification> load(
+                  TypeSpecification ts) {
+                return ImmutableList.copyOf(r.superTypesTransitiveOf(ts));
+              }
+            });
+
+    /**
+     * A memoizing version of {@link TypeInfoResolver#superTypesTransitiveOf}.
+     */
+    public ImmutableList<TypeSpecification> superTypesTransitiveOf(
+        TypeSpecification ts) {
+      return superTypesTransitive.getUnchecked(ts);
+    }
+
+    /**
+     * Hit rates for the memo table used by
+     * {@link ReferenceType#assignableFrom}.
+     */
+    public CacheStats getAssignabilityCacheStats() {
+      return assignabilityCache.stats();
+    }
+
+    /**
+     * Hit rates for the memo table used by {@link #superTypesTransitiveOf}.
+     */
+    public CacheStats getSuperTypeCacheStats() {
+      return superTypesTransitive.stats();
+    }
+
+    /**
+     * Read without locking so that pooled types can be looked up concurrently,
+     * e.g. by templates applied in parallel.
+     * Misses are computed while holding this pool's lock.
+     */
     private final Map<TypeSpecification, StaticType> pool =
-        Maps.newHashMap();
+        new ConcurrentHashMap<>();
     {
       // Seed the pool so that type(spec) works.
       pool.put(T_VOID.typeSpecification,     T_VOID);
@@ -535,8 +626,13 @@ public abstract class StaticType {
       TypeSpecification ts = tspec.canon(r);
       StaticType t = pool.get(ts);
       if (t == null) {
-        t = computeType(ts, pos, logger);
-        pool.put(ts, t);
+        synchronized (this) {
+          t = pool.get(ts);
+          if (t == null) {
+            t = computeType(ts, pos, logger);
+            pool.put(ts, t);
+          }
+        }
       }
       return t;
     }
@@ -663,42 +759,36 @@ public abstract class StaticType {
       ///   Let EST(Ui), the set of erased supertypes of Ui, be:
       ///   EST(Ui) = { |W| | W in ST(Ui) } where |W| is the erasure of W.
       ImmutableList<ImmutableSet<ReferenceType>> st;
-      ImmutableList<ImmutableSet<ReferenceType>> est;
       {
         ImmutableList.Builder<ImmutableSet<ReferenceType>> stb =
             ImmutableList.builder();
-        ImmutableList.Builder<ImmutableSet<ReferenceType>> estb =
-            ImmutableList.builder();
         for (ReferenceType ui : u) {
-          ImmutableSet<ReferenceType> sti = ui.getSuperTypes();
-          stb.add(sti);
-
-          ImmutableSet.Builder<ReferenceType> estib = ImmutableSet.builder();
-          for (ReferenceType w : sti) {
-            // The null type is not a super-type of any type.
-            Preconditions.checkState(
-                !(w instanceof NullType)
-                && w.getPool() == TypePool.this);
-            estib.add(w.toErasedType());
-          }
-          estb.add(estib.build());
+          stb.add(ui.getSuperTypes());
         }
         st = stb.build();
-        est = estb.build();
       }
       if (DEBUG_LUB) {
-        System.err.println("st=" + st + "\nest=" + est);
+        System.err.println("st=" + st);
       }
 
       /// Let EC, the erased candidate set for U1 ... Uk, be the intersection of
       /// all the sets EST(Ui) (1 ≤ i ≤ k).
       ImmutableList<ReferenceType> ec;
       {
-        Set<ReferenceType> inter = Sets.newLinkedHashSet(est.get(0));
+        // The erased super-type sets are memoized as bit sets over pool
+        // indices so intersection does not require hashing types.
+        BitSet inter = (BitSet) u.get(0).getErasedSuperTypeIndices().clone();
         for (int i = 1; i < nTypes; ++i) {
-          inter.retainAll(est.get(i));
+          inter.and(u.get(i).getErasedSuperTypeIndices());
+        }
+        ImmutableList.Builder<ReferenceType> b = ImmutableList.builder();
+        // Preserve the order of EST(U1).
+        for (ReferenceType w : u.get(0).getErasedSuperTypes()) {
+          if (inter.get(w.poolIndex)) {
+            b.add(w);
+          }
         }
-        ec = ImmutableList.copyOf(inter);
+        ec = b.build();
       }
       if (DEBUG_LUB) {
         System.err.println("ec=" + ec);
@@ -1027,8 +1117,18 @@ public abstract class StaticType {
 
     /** Base type for primitive types. */
     public abstract class ReferenceType extends StaticType {
+      /**
+       * A dense identifier for this type, unique within its pool, allocated
+       * when the type is added to the pool.
+       */
+      final int poolIndex;
+
       private ReferenceType(TypeSpecification spec) {
         super(spec);
+        // Assignability cache keys pack two indices into a long.
+        Preconditions.checkState(
+            nReferenceTypes < Integer.MAX_VALUE, "type pool is full");
+        this.poolIndex = nReferenceTypes++;
       }
 
       /**
@@ -1042,6 +1142,9 @@ public abstract class StaticType {
       public abstract ReferenceType toErasedType();
 
       private ImmutableSet<ReferenceType> superTypes;
+      private ImmutableSet<ReferenceType> erasedSuperTypes;
+      /** Volatile since, unlike the immutable sets, BitSets are mutable. */
+      private volatile BitSet erasedSuperTypeIndices;
 
       final ImmutableSet<ReferenceType> getSuperTypes() {
         if (superTypes == null) {
@@ -1052,6 +1155,59 @@ public abstract class StaticType {
 
       abstract ImmutableSet<ReferenceType> buildSuperTypeSet();
 
+      /**
+       * The erasures of the super-types, EST(this) in JLS 4.10.4 parlance.
+       */
+      final ImmutableSet<ReferenceType> getErasedSuperTypes() {
+        if (erasedSuperTypes == null) {
+          ImmutableSet.Builder<ReferenceType> b = ImmutableSet.builder();
+          for (ReferenceType w : getSuperTypes()) {
+            // The null type is not a super-type of any type.
+            Preconditions.checkState(
+                !(w instanceof NullType)
+                && w.getPool() == TypePool.this);
+            b.add(w.toErasedType());
+          }
+          erasedSuperTypes = b.build();
+        }
+        return erasedSuperTypes;
+      }
+
+      /**
+       * The pool indices of {@link #getErasedSuperTypes}.
+       * Callers must not modify the result.
+       */
+      final BitSet getErasedSuperTypeIndices() {
+        if (erasedSuperTypeIndices == null) {
+          BitSet b = new BitSet();
+          for (ReferenceType w : getErasedSuperTypes()) {
+            b.set(w.poolIndex);
+          }
+          erasedSuperTypeIndices = b;
+        }
+        return erasedSuperTypeIndices;
+      }
+
+      @Override
+      public final Cast assignableFrom(StaticType t) {
+        if (!(t instanceof ReferenceType)
+            || ((ReferenceType) t).getPool() != TypePool.this) {
+          return computeAssignableFrom(t);
+        }
+        // Pool indices are non-negative ints so each fits in 32 bits.
+        Long key = (((long) poolIndex) << 32)
+            | (((ReferenceType) t).poolIndex & 0xFFFFFFFFL);
+        Cast c = assignabilityCache.getIfPresent(key);
+        if (c == null) {
+          c = computeAssignableFrom(t);
+          assignabilityCache.put(key, c);
+        }
+        return c;
+      }
+
+      /** Computes {@link #assignableFrom} without consulting the memo table. */
+      abstract Cast computeAssignableFrom(StaticType t);
+
       /** The lower bound of the type */
       public abstract StaticType lowerBound();
     }
@@ -1072,7 +1228,7 @@ public abstract class StaticType {
       }
 
       @Override
-      public Cast assignableFrom(StaticType t) {
+      Cast computeAssignableFrom(StaticType t) {
         if (t == this) {
           return Cast.SAME;
         }
@@ -1197,7 +1353,7 @@ public abstract class StaticType {
       }
 
       @Override
-      public Cast assignableFrom(StaticType t) {
+      Cast computeAssignableFrom(StaticType t) {
         if (ERROR_TYPE.equals(t)) {
           return Cast.CONFIRM_UNCHECKED;
         }
@@ -1473,7 +1629,7 @@ public abstract class StaticType {
       }
 
       @Override
-      public Cast assignableFrom(StaticType t) {
+      Cast computeAssignableFrom(StaticType t) {
         if (ERROR_TYPE.equals(t)) {
           return Cast.CONFIRM_UNCHECKED;
         }
@@ -10,6 +10,7 @@ import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.lang.reflect.TypeVariable;
 import java.lang.reflect.WildcardType;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Deque;
 import java.util.Set;
@@ -24,7 +25,6 @@ import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
 /**
@@ -494,7 +494,7 @@ public interface TypeInfoResolver {
   public default Iterable<TypeSpecification> superTypesTransitiveOf(
       TypeSpecification ts) {
     Set<Name> seen = Sets.newHashSet();
-    Deque<TypeSpecification> unprocessed = Lists.newLinkedList();
+    Deque<TypeSpecification> unprocessed = new ArrayDeque<>();
     unprocessed.add(ts);
     seen.add(ts.rawName);
 
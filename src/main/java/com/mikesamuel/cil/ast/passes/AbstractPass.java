@@ -6,6 +6,7 @@ import java.util.logging.Logger;
 import javax.annotation.Nullable;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
 import com.mikesamuel.cil.ast.j8.J8FileNode;
 import com.mikesamuel.cil.parser.Positioned;
 import com.mikesamuel.cil.util.LogUtils;
@@ -15,6 +16,17 @@ public abstract class AbstractPass<T> {
 
   protected final Logger logger;
   private Level errorLevel = Level.SEVERE;
+  private PassListener passListener = PassListener.NONE;
+  private long nodesVisited;
+  private long nodesReplaced;
+  private @Nullable AbstractPass<?> countsParent;
+  /**
+   * Whether this pass or a {@linkplain #setCountsParent counts parent} has a
+   * listener that would see counts, so that passes nobody observes skip
+   * counting.  Recomputed when listeners or counts parents change and at the
+   * start of each run.
+   */
+  private boolean counting;
 
   protected AbstractPass(Logger logger) {
     this.logger = logger;
@@ -31,6 +43,126 @@ public abstract class AbstractPass<T> {
   /** Applies the pass to the given compilation units. */
   public abstract T run(Iterable<? extends J8FileNode> fileNodes);
 
+  /**
+   * Like {@link #run} but reports start and finish to the
+   * {@linkplain #getPassListener pass listener}.
+   */
+  public final T runObserved(Iterable<? extends J8FileNode> fileNodes) {
+    updateCounting();
+    if (passListener == PassListener.NONE) {
+      return run(fileNodes);
+    }
+    String passName = getPassName();
+    long visitedBefore = nodesVisited;
+    long replacedBefore = nodesReplaced;
+    passListener.passStarting(passName);
+    try {
+      return run(fileNodes);
+    } finally {
+      passListener.passFinished(
+          passName,
+          nodesVisited - visitedBefore, nodesReplaced - replacedBefore);
+    }
+  }
+
+  /** A short name used to identify the pass in metrics. */
+  protected String getPassName() {
+    Class<?> cl = getClass();
+    while (cl.isAnonymousClass()) {
+      cl = cl.getSuperclass();
+    }
+    return cl.getSimpleName();
+  }
+
+  /** Notes that the pass visited a node so that listeners can report it. */
+  protected final void countVisit() {
+    if (counting) {
+      for (AbstractPass<?> p = this; p != null; p = p.countsParent) {
+        ++p.nodesVisited;
+      }
+    }
+  }
+
+  /** Notes that the pass replaced a node so that listeners can report it. */
+  protected final void countReplacement() {
+    if (counting) {
+      for (AbstractPass<?> p = this; p != null; p = p.countsParent) {
+        ++p.nodesReplaced;
+      }
+    }
+  }
+
+  /**
+   * Called at the start of a run so that {@link #countVisit} and
+   * {@link #countReplacement} see listeners that were attached to a
+   * {@linkplain #setCountsParent counts parent} after this pass was
+   * attached to it.
+   */
+  protected final void updateCounting() {
+    boolean c = false;
+    for (AbstractPass<?> p = this; p != null; p = p.countsParent) {
+      if (p.passListener != PassListener.NONE) {
+        c = true;
+        break;
+      }
+    }
+    this.counting = c;
+  }
+
+  /**
+   * Makes the nodes that this pass visits and replaces count towards parent's
+   * totals too, so that a pass that delegates to helper passes can report
+   * their work.
+   */
+  public final AbstractPass<T> setCountsParent(
+      @Nullable AbstractPass<?> parent) {
+    for (AbstractPass<?> p = parent; p != null; p = p.countsParent) {
+      Preconditions.checkArgument(p != this);
+    }
+    this.countsParent = parent;
+    updateCounting();
+    return this;
+  }
+
+  /**
+   * Runs a step of this pass that is not itself an {@code AbstractPass},
+   * reporting it to the listener as a nested pass with the nodes counted by
+   * this pass, including those counted by passes whose
+   * {@linkplain #setCountsParent counts parent} it is, while it runs.
+   * Mini-passes do not nest.
+   */
+  protected final void runMiniPass(String miniPassName, Runnable body) {
+    runMiniPass(
+        miniPassName,
+        new Supplier<Void>() {
+          @Override
+          public Void get() {
+            body.run();
+            return null;
+          }
+        });
+  }
+
+  /**
+   * Like {@link #runMiniPass(String, Runnable)} but for a step that
+   * produces a result.
+   */
+  protected final <R> R runMiniPass(String miniPassName, Supplier<R> body) {
+    if (passListener == PassListener.NONE) {
+      return body.get();
+    }
+    long visitedBefore = nodesVisited;
+    long replacedBefore = nodesReplaced;
+    passListener.passStarting(miniPassName);
+    try {
+      return body.get();
+    } finally {
+      passListener.passFinished(
+          miniPassName,
+          nodesVisited - visitedBefore, nodesReplaced - replacedBefore);
+    }
+  }
+
   /** The logger used to log errors and warnings. */
   public Logger getLogger() {
     return logger;
@@ -50,4 +182,16 @@ public abstract class AbstractPass<T> {
     this.errorLevel = Preconditions.checkNotNull(newErrorLevel);
     return this;
   }
+
+  /** Receives notifications from {@link #runObserved}. */
+  public PassListener getPassListener() {
+    return passListener;
+  }
+
+  /** @see #getPassListener */
+  public AbstractPass<T> setPassListener(PassListener newPassListener) {
+    this.passListener = Preconditions.checkNotNull(newPassListener);
+    updateCounting();
+    return this;
+  }
 }
@@ -149,6 +149,7 @@ extends AbstractPass<ImmutableList<J8FileNode>> {
 
   protected final ProcessingStatus visit(
       J8BaseNode node, @Nullable SList<Parent> pathFromRoot) {
+    countVisit();
     ProcessingStatus status = previsit(node, pathFromRoot);
     if (status == ProcessingStatus.CONTINUE) {
       if (node instanceof J8BaseInnerNode) {
@@ -177,6 +178,9 @@ extends AbstractPass<ImmutableList<J8FileNode>> {
       Preconditions.checkState(node.getChild(j) == child);
 
       ImmutableList<J8BaseNode> replacements = childStatus.replacements;
+      if (replacements.size() != 1 || replacements.get(0) != child) {
+        countReplacement();
+      }
       if (replacements.isEmpty()) {
         node.remove(j);
         --j;
@@ -194,6 +198,7 @@ extends AbstractPass<ImmutableList<J8FileNode>> {
   @Override
   public ImmutableList<J8FileNode> run(
       Iterable<? extends J8FileNode> fileNodes) {
+    updateCounting();
     ImmutableList.Builder<J8FileNode> b = ImmutableList.builder();
     for (J8FileNode fileNode : fileNodes) {
       ProcessingStatus status = visit((J8BaseNode) fileNode, null);
@@ -25,11 +25,16 @@ import com.mikesamuel.cil.ptree.PTree;
 
 /**
  * Runs the common passes.
+ *
+ * @see IncrementalPassRunner
  */
 public final class CommonPassRunner {
+  private static final String PASS_NAME = "CommonPassRunner";
+
   /** Receives warnings about passes. */
   public final Logger logger;
   private Level errorLevel = Level.SEVERE;
+  private PassListener passListener = PassListener.NONE;
 
   private boolean useLongNames;
   private boolean injectCasts;
@@ -48,8 +53,19 @@ public final class CommonPassRunner {
    */
   public ImmutableList<J8FileNode> run(
       Iterable<? extends J8FileNode> unprocessed) {
+    passListener.passStarting(PASS_NAME);
+    try {
+      return runPasses(unprocessed);
+    } finally {
+      passListener.passFinished(PASS_NAME, 0, 0);
+    }
+  }
+
+  private ImmutableList<J8FileNode> runPasses(
+      Iterable<? extends J8FileNode> unprocessed) {
     ImmutableList<J8FileNode> cus = ImmutableList.copyOf(unprocessed);
-    cus = new DefragmentTypesPass(logger).setErrorLevel(errorLevel).run(cus);
+    cus = new DefragmentTypesPass(logger).setErrorLevel(errorLevel)
+        .setPassListener(passListener).runObserved(cus);
 
     DeclarationPass dp = new DeclarationPass(logger) {
       @SuppressWarnings("synthetic-access")
@@ -63,31 +79,37 @@ public final class CommonPassRunner {
       }
     };
     dp.setErrorLevel(errorLevel);
-    DeclarationPass.Result dpResult = dp.run(cus);
+    dp.setPassListener(passListener);
+    DeclarationPass.Result dpResult = dp.runObserved(cus);
     typeInfoResolver = dpResult.typeInfoResolver;
     methodVariantPool = dpResult.methodVariantPool;
 
     ExpressionScopePass scopePass = new ExpressionScopePass(
         typeInfoResolver, logger);
     scopePass.setErrorLevel(errorLevel);
-    scopePass.run(cus);
+    scopePass.setPassListener(passListener);
+    scopePass.runObserved(cus);
 
     DisambiguationPass disambigPass = new DisambiguationPass(
         typeInfoResolver, logger, useLongNames);
     disambigPass.setErrorLevel(errorLevel);
-    cus = disambigPass.run(cus);
+    disambigPass.setPassListener(passListener);
+    cus = disambigPass.runObserved(cus);
 
     // TODO: should the type pool be linked to any previous type pool?
     typePool = new TypePool(typeInfoResolver);
+    passListener.typePoolCreated(typePool);
     ClassMemberPass classMemberPass = new ClassMemberPass(
         logger, typePool);
     classMemberPass.setErrorLevel(errorLevel);
-    classMemberPass.run(cus);
+    classMemberPass.setPassListener(passListener);
+    classMemberPass.runObserved(cus);
 
     TypingPass tp = new TypingPass(logger, typePool, injectCasts);
     tp.setErrorLevel(errorLevel);
+    tp.setPassListener(passListener);
     this.memberInfoPool = tp.memberInfoPool;
-    return tp.run(cus);
+    return tp.runObserved(cus);
   }
 
   /**
@@ -182,6 +204,16 @@ public final class CommonPassRunner {
     this.errorLevel = Preconditions.checkNotNull(newErrorLevel);
   }
 
+  /** Receives notifications as each pass starts and finishes. */
+  public PassListener getPassListener() {
+    return passListener;
+  }
+
+  /** @see #getPassListener */
+  public void setPassListener(PassListener newPassListener) {
+    this.passListener = Preconditions.checkNotNull(newPassListener);
+  }
+
 
   private static CompilationUnitNode createEnvelope() {
     Input input = Input.builder()
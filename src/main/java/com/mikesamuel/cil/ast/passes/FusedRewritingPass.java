@@ -0,0 +1,286 @@
+package com.mikesamuel.cil.ast.passes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.mikesamuel.cil.ast.j8.J8BaseInnerNode;
+import com.mikesamuel.cil.ast.j8.J8BaseNode;
+import com.mikesamuel.cil.ast.j8.J8FileNode;
+import com.mikesamuel.cil.parser.SList;
+
+/**
+ * Runs several rewriting passes in one walk of the tree.
+ * <p>
+ * Each node is previsited by each constituent pass in order, then its
+ * children are visited, and then each constituent postvisits it in order.
+ * This is equivalent to running the constituents one after another when
+ * each constituent's decisions depend only on the node being visited and
+ * its ancestors, and not on parts of the tree that a later constituent
+ * would have rewritten by then.
+ * <p>
+ * Replacements interact with later constituents thus:
+ * <ul>
+ *   <li>A constituent that {@link ProcessingStatus#BREAK breaks} during
+ *     previsit does not see the node's descendants or postvisit it, but
+ *     the other constituents still do.</li>
+ *   <li>When a constituent replaces a node during previsit, the earlier
+ *     constituents that previsited the node still visit its children and
+ *     postvisit it, and then the later constituents walk the replacements
+ *     instead of the node.  Since the replacing constituent decided before
+ *     the earlier ones finished with the node, its replacements should
+ *     reuse the node instead of copying it, and it is an error for an
+ *     earlier constituent to replace the node in postvisit.</li>
+ *   <li>When a constituent replaces a node during postvisit, the later
+ *     constituents postvisit the replacements instead of the node.</li>
+ * </ul>
+ * <p>
+ * Passes that do work before or after their walk by overriding
+ * {@link #run} are not good candidates for fusion since only their
+ * {@link #previsit} and {@link #postvisit} methods are called.
+ */
+public final class FusedRewritingPass extends AbstractRewritingPass {
+  private final ImmutableList<AbstractRewritingPass> constituents;
+  private final long allConstituents;
+  /**
+   * activeStack[i] is the set of constituents, as a bit-mask, which are
+   * interested in nodes at depth i.
+   */
+  private long[] activeStack = new long[16];
+  private int depth;
+
+  private FusedRewritingPass(
+      Logger logger, ImmutableList<AbstractRewritingPass> constituents) {
+    super(logger);
+    int n = constituents.size();
+    Preconditions.checkArgument(n <= Long.SIZE);
+    this.constituents = constituents;
+    this.allConstituents = n == Long.SIZE ? -1L : (1L << n) - 1;
+  }
+
+  /** The fused passes in the order they are applied. */
+  public ImmutableList<AbstractRewritingPass> getConstituents() {
+    return constituents;
+  }
+
+  @Override
+  protected String getPassName() {
+    List<String> names = new ArrayList<>();
+    for (AbstractRewritingPass p : constituents) {
+      names.add(p.getPassName());
+    }
+    return Joiner.on('+').join(names);
+  }
+
+  @Override
+  public ImmutableList<J8FileNode> run(
+      Iterable<? extends J8FileNode> fileNodes) {
+    depth = 0;
+    return super.run(fileNodes);
+  }
+
+  /**
+   * Rewrites the subtree rooted at node.
+   *
+   * @param pathFromRoot the path to node as described at {@link #previsit}.
+   * @return the nodes that replace node.
+   */
+  public ImmutableList<J8BaseNode> rewrite(
+      J8BaseNode node, @Nullable SList<Parent> pathFromRoot) {
+    depth = 0;
+    updateCounting();
+    return visit(node, pathFromRoot).replacements;
+  }
+
+  @Override
+  protected ProcessingStatus previsit(
+      J8BaseNode node, @Nullable SList<Parent> pathFromRoot) {
+    long active = depth == 0 ? allConstituents : activeStack[depth - 1];
+    long continuing = 0;
+    for (long bits = active; bits != 0; bits &= bits - 1) {
+      int i = Long.numberOfTrailingZeros(bits);
+      ProcessingStatus status = constituents.get(i)
+          .previsit(node, pathFromRoot);
+      if (status == ProcessingStatus.CONTINUE) {
+        continuing |= 1L << i;
+      } else if (status != ProcessingStatus.BREAK) {
+        if (continuing != 0) {
+          finishWalk(continuing, node, pathFromRoot, i);
+        }
+        // Later constituents walk the replacements.
+        long later = (bits & (bits - 1));
+        return walkWith(later, status.replacements, pathFromRoot);
+      }
+    }
+    if (continuing == 0) {
+      return ProcessingStatus.BREAK;
+    }
+    push(continuing);
+    return ProcessingStatus.CONTINUE;
+  }
+
+  @Override
+  protected ProcessingStatus postvisit(
+      J8BaseNode node, @Nullable SList<Parent> pathFromRoot) {
+    long continuing = pop();
+    List<J8BaseNode> current = ImmutableList.of(node);
+    for (long bits = continuing; bits != 0; bits &= bits - 1) {
+      AbstractRewritingPass constituent = constituents.get(
+          Long.numberOfTrailingZeros(bits));
+      List<J8BaseNode> next = null;
+      for (int j = 0, n = current.size(); j < n; ++j) {
+        J8BaseNode c = current.get(j);
+        ProcessingStatus status = constituent.postvisit(c, pathFromRoot);
+        if (status == ProcessingStatus.CONTINUE
+            || status == ProcessingStatus.BREAK) {
+          if (next != null) { next.add(c); }
+        } else {
+          if (next == null) {
+            next = new ArrayList<>(current.subList(0, j));
+          }
+          next.addAll(status.replacements);
+        }
+      }
+      if (next != null) {
+        current = next;
+      }
+    }
+    if (current.size() == 1 && current.get(0) == node) {
+      return ProcessingStatus.CONTINUE;
+    }
+    return ProcessingStatus.replace(current);
+  }
+
+  /**
+   * Lets the constituents that previsited node before constituent
+   * {@code replacer} replaced it visit its children and postvisit it, as
+   * they would have had they run first.
+   */
+  private void finishWalk(
+      long continuing, J8BaseNode node, @Nullable SList<Parent> pathFromRoot,
+      int replacer) {
+    push(continuing);
+    if (node instanceof J8BaseInnerNode) {
+      visitChildren((J8BaseInnerNode) node, pathFromRoot);
+    }
+    ProcessingStatus status = postvisit(node, pathFromRoot);
+    if (status != ProcessingStatus.CONTINUE) {
+      throw new IllegalStateException(
+          "Cannot fuse passes: a pass replaced in postvisit a node that "
+          + constituents.get(replacer).getPassName()
+          + " replaced in previsit");
+    }
+  }
+
+  private ProcessingStatus walkWith(
+      long active, ImmutableList<J8BaseNode> replacements,
+      @Nullable SList<Parent> pathFromRoot) {
+    if (active == 0 || replacements.isEmpty()) {
+      return ProcessingStatus.replace(replacements);
+    }
+    ImmutableList.Builder<J8BaseNode> b = ImmutableList.builder();
+    push(active);
+    try {
+      for (J8BaseNode replacement : replacements) {
+        b.addAll(visit(replacement, pathFromRoot).replacements);
+      }
+    } finally {
+      pop();
+    }
+    return ProcessingStatus.replace(b.build());
+  }
+
+  private void push(long active) {
+    if (depth == activeStack.length) {
+      activeStack = Arrays.copyOf(activeStack, depth * 2);
+    }
+    activeStack[depth++] = active;
+  }
+
+  private long pop() {
+    Preconditions.checkState(depth != 0);
+    return activeStack[--depth];
+  }
+
+
+  /** A builder for a fused pass. */
+  public static Builder builder(Logger logger) {
+    return new Builder(logger);
+  }
+
+  /** A builder for a fused pass. */
+  public static final class Builder {
+    private final Logger logger;
+    private final Set<AbstractRewritingPass> passes = new LinkedHashSet<>();
+    private final Map<AbstractRewritingPass, Set<AbstractRewritingPass>>
+        mustFollow = new LinkedHashMap<>();
+
+    Builder(Logger logger) {
+      this.logger = logger;
+    }
+
+    /**
+     * Adds a constituent pass.
+     * Absent ordering constraints, passes are applied in the order added.
+     */
+    public Builder add(AbstractRewritingPass pass) {
+      Preconditions.checkArgument(!(pass instanceof FusedRewritingPass));
+      passes.add(pass);
+      return this;
+    }
+
+    /**
+     * Requires that {@code before} see each node before {@code after} does.
+     * Both are added if they have not been already.
+     */
+    public Builder order(
+        AbstractRewritingPass before, AbstractRewritingPass after) {
+      Preconditions.checkArgument(before != after);
+      add(before);
+      add(after);
+      Set<AbstractRewritingPass> preds = mustFollow.get(after);
+      if (preds == null) {
+        preds = new LinkedHashSet<>();
+        mustFollow.put(after, preds);
+      }
+      preds.add(before);
+      return this;
+    }
+
+    /**
+     * A fused pass whose constituents are in the order added except where
+     * that would violate an {@linkplain #order ordering constraint}.
+     *
+     * @throws IllegalStateException if the ordering constraints are cyclic.
+     */
+    public FusedRewritingPass build() {
+      List<AbstractRewritingPass> remaining = new ArrayList<>(passes);
+      Set<AbstractRewritingPass> placed = new LinkedHashSet<>();
+      while (!remaining.isEmpty()) {
+        AbstractRewritingPass next = null;
+        for (AbstractRewritingPass p : remaining) {
+          Set<AbstractRewritingPass> preds = mustFollow.get(p);
+          if (preds == null || placed.containsAll(preds)) {
+            next = p;
+            break;
+          }
+        }
+        Preconditions.checkState(
+            next != null, "Cyclic ordering constraints among %s", remaining);
+        remaining.remove(next);
+        placed.add(next);
+      }
+      return new FusedRewritingPass(logger, ImmutableList.copyOf(placed));
+    }
+  }
+}
@@ -0,0 +1,447 @@
+package com.mikesamuel.cil.ast.passes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.mikesamuel.cil.ast.j8.J8BaseNode;
+import com.mikesamuel.cil.ast.j8.J8ExpressionNameReference;
+import com.mikesamuel.cil.ast.j8.J8FileNode;
+import com.mikesamuel.cil.ast.j8.J8MethodDescriptorReference;
+import com.mikesamuel.cil.ast.j8.J8TypeDeclaration;
+import com.mikesamuel.cil.ast.j8.J8TypeReference;
+import com.mikesamuel.cil.ast.j8.J8Typed;
+import com.mikesamuel.cil.ast.j8.J8WholeType;
+import com.mikesamuel.cil.ast.meta.CallableInfo;
+import com.mikesamuel.cil.ast.meta.MemberInfoPool;
+import com.mikesamuel.cil.ast.meta.Name;
+import com.mikesamuel.cil.ast.meta.StaticType;
+import com.mikesamuel.cil.ast.meta.StaticType.TypePool;
+import com.mikesamuel.cil.ast.meta.TypeInfo;
+import com.mikesamuel.cil.ast.meta.TypeInfoResolver;
+import com.mikesamuel.cil.ast.meta.TypeSpecification;
+import com.mikesamuel.cil.parser.SourcePosition;
+
+/**
+ * Runs the {@linkplain CommonPassRunner common passes} over a set of
+ * compilation units that changes over time, only re-running passes on
+ * compilation units that changed or that depend on ones that changed.
+ * <p>
+ * For each compilation unit, this records the type names it declares,
+ * and the declared type names it references via type, field and method
+ * resolution along with the super-types of those, since member lookup
+ * walks super-types.
+ * When a compilation unit changes, any unit that referenced a name
+ * the changed unit used to declare is re-run alongside it.
+ * Other units' processed trees and metadata are reused, but their static
+ * types are re-interned in the {@linkplain #getTypePool type pool} from the
+ * latest update so that consumers of the processed trees see types from one
+ * pool.
+ * <p>
+ * A new top-level type can shadow a name that some unit resolved elsewhere
+ * via its package or a wildcard import, so when a re-run declares a
+ * top-level type that was not previously declared, all units are re-run.
+ * <p>
+ * Compilation units are identified by their
+ * {@linkplain SourcePosition#getSource source}.
+ */
+public final class IncrementalPassRunner {
+  private final CommonPassRunner runner;
+  private final TypeInfoResolver externalTypeInfoResolver;
+  private final Map<String, Unit> units = new LinkedHashMap<>();
+  private MethodVariantPool methodVariantPool = new MethodVariantPool();
+  private ImmutableSet<String> lastRerun = ImmutableSet.of();
+
+  /**
+   * @param runner used to run passes.  Any type info resolver set on it
+   *     is used to resolve types not declared in the compilation units.
+   */
+  public IncrementalPassRunner(CommonPassRunner runner) {
+    this.runner = runner;
+    TypeInfoResolver fallback = runner.getTypeInfoResolver();
+    if (fallback == null) {
+      ClassLoader cl = CommonPassRunner.class.getClassLoader();
+      if (cl == null) { cl = ClassLoader.getSystemClassLoader(); }
+      fallback = TypeInfoResolver.Resolvers.forClassLoader(cl);
+    }
+    this.externalTypeInfoResolver = fallback;
+  }
+
+  /**
+   * Adds or replaces the given compilation units, removes those with the
+   * given sources, and brings the processed trees up to date.
+   *
+   * @param changed unprocessed compilation units.  Those whose source
+   *     matches a previously processed unit replace it.
+   *     These trees are not modified.
+   * @param removedSources the sources of previously processed units to drop.
+   * @return all processed compilation units, in the order first added.
+   */
+  public ImmutableList<J8FileNode> update(
+      Iterable<? extends J8FileNode> changed,
+      Iterable<? extends String> removedSources) {
+    Map<String, J8FileNode> changedBySource = new LinkedHashMap<>();
+    for (J8FileNode fn : changed) {
+      String source = sourceOf(fn);
+      Preconditions.checkArgument(
+          changedBySource.put(source, fn) == null,
+          "Duplicate source %s", source);
+    }
+    Set<String> removed = new LinkedHashSet<>();
+    for (String source : removedSources) {
+      Preconditions.checkArgument(
+          units.containsKey(source) && !changedBySource.containsKey(source),
+          source);
+      removed.add(source);
+    }
+
+    // Names whose meaning may have changed.
+    Set<Name> invalidated = new LinkedHashSet<>();
+    Set<Name> topLevelBefore = new LinkedHashSet<>();
+    for (Unit u : units.values()) {
+      if (changedBySource.containsKey(u.source)
+          || removed.contains(u.source)) {
+        invalidated.addAll(u.declarations.keySet());
+      }
+      for (Name declared : u.declarations.keySet()) {
+        if (declared.parent.type == Name.Type.PACKAGE) {
+          topLevelBefore.add(declared);
+        }
+      }
+    }
+
+    Map<String, J8FileNode> pristine = new LinkedHashMap<>();
+    for (Unit u : units.values()) {
+      if (!removed.contains(u.source)) {
+        pristine.put(u.source, u.pristine);
+      }
+    }
+    for (Map.Entry<String, J8FileNode> e : changedBySource.entrySet()) {
+      pristine.put(
+          e.getKey(),
+          (J8FileNode) ((J8BaseNode) e.getValue()).deepClone());
+    }
+
+    Set<String> rerun = new LinkedHashSet<>(changedBySource.keySet());
+    for (Unit u : units.values()) {
+      if (!removed.contains(u.source)
+          && !Collections.disjoint(u.references, invalidated)) {
+        rerun.add(u.source);
+      }
+    }
+
+    Map<String, Unit> updated = process(pristine, rerun);
+    if (rerun.size() != pristine.size()) {
+      boolean shadowsNames = false;
+      check_shadowing:
+      for (String source : rerun) {
+        for (Name declared : updated.get(source).declarations.keySet()) {
+          if (declared.parent.type == Name.Type.PACKAGE
+              && !topLevelBefore.contains(declared)) {
+            shadowsNames = true;
+            break check_shadowing;
+          }
+        }
+      }
+      if (shadowsNames) {
+        rerun = pristine.keySet();
+        updated = process(pristine, rerun);
+      }
+    }
+
+    units.clear();
+    units.putAll(updated);
+    lastRerun = ImmutableSet.copyOf(rerun);
+    return getProcessed();
+  }
+
+  private Map<String, Unit> process(
+      Map<String, J8FileNode> pristine, Set<String> rerun) {
+    Map<Name, TypeInfo> reusedDeclarations = new HashMap<>();
+    for (Unit u : units.values()) {
+      if (pristine.containsKey(u.source) && !rerun.contains(u.source)) {
+        reusedDeclarations.putAll(u.declarations);
+      }
+    }
+    final ImmutableMap<Name, TypeInfo> reused =
+        ImmutableMap.copyOf(reusedDeclarations);
+
+    List<J8FileNode> inputs = new ArrayList<>();
+    for (String source : rerun) {
+      inputs.add((J8FileNode) ((J8BaseNode) pristine.get(source)).deepClone());
+    }
+    runner.setTypeInfoResolver(TypeInfoResolver.Resolvers.eitherOr(
+        new TypeInfoResolver() {
+          @Override
+          public Optional<TypeInfo> resolve(Name typeName) {
+            return Optional.fromNullable(reused.get(typeName));
+          }
+        },
+        externalTypeInfoResolver));
+    ImmutableList<J8FileNode> outputs = runner.run(inputs);
+    Preconditions.checkState(outputs.size() == inputs.size());
+
+    TypeInfoResolver r = runner.getTypeInfoResolver();
+    Map<String, J8FileNode> outputsBySource = new HashMap<>();
+    Map<String, ImmutableMap<Name, TypeInfo>> rerunDeclarations =
+        new HashMap<>();
+    Set<Name> rerunTypes = new LinkedHashSet<>();
+    int i = 0;
+    for (String source : rerun) {
+      J8FileNode output = outputs.get(i++);
+      ImmutableMap<Name, TypeInfo> declarations = declarationsIn(
+          (J8BaseNode) output);
+      outputsBySource.put(source, output);
+      rerunDeclarations.put(source, declarations);
+      rerunTypes.addAll(declarations.keySet());
+    }
+    Set<Name> allDeclared = new LinkedHashSet<>(reused.keySet());
+    allDeclared.addAll(rerunTypes);
+
+    TypePool typePool = runner.getTypePool();
+    Map<Name, ImmutableSet<Name>> superTypeCache = new HashMap<>();
+    Map<String, Unit> updated = new LinkedHashMap<>();
+    for (String source : pristine.keySet()) {
+      Unit u;
+      if (rerun.contains(source)) {
+        J8FileNode processed = outputsBySource.get(source);
+        Set<Name> referenced = new LinkedHashSet<>();
+        collectReferences((J8BaseNode) processed, referenced);
+        Set<Name> dependencies = new LinkedHashSet<>();
+        for (Name nm : referenced) {
+          for (Name t : withSuperTypes(nm, r, superTypeCache)) {
+            if (allDeclared.contains(t)) {
+              dependencies.add(t);
+            }
+          }
+        }
+        u = new Unit(
+            source, pristine.get(source), processed,
+            rerunDeclarations.get(source), ImmutableSet.copyOf(dependencies));
+      } else {
+        u = units.get(source);
+        // Reused units do not depend on rerun declarations, so their types'
+        // specifications resolve the same way in the new pool.
+        retype((J8BaseNode) u.processed, typePool);
+      }
+      updated.put(source, u);
+    }
+
+    MethodVariantPool variants = new MethodVariantPool();
+    variants.copyCountersFrom(methodVariantPool, reused.keySet());
+    variants.copyCountersFrom(runner.getMethodVariantPool(), rerunTypes);
+    this.methodVariantPool = variants;
+    return updated;
+  }
+
+  private static void retype(J8BaseNode node, TypePool typePool) {
+    if (node instanceof J8Typed) {
+      J8Typed typed = (J8Typed) node;
+      StaticType t = typed.getStaticType();
+      if (t != null) {
+        typed.setStaticType(typePool.type(t.typeSpecification, null, null));
+      }
+    }
+    if (node instanceof J8WholeType) {
+      J8WholeType wholeType = (J8WholeType) node;
+      StaticType t = wholeType.getStaticType();
+      if (t != null) {
+        wholeType.setStaticType(
+            typePool.type(t.typeSpecification, null, null));
+      }
+    }
+    for (int i = 0, n = node.getNChildren(); i < n; ++i) {
+      retype(node.getChild(i), typePool);
+    }
+  }
+
+  private static ImmutableSet<Name> withSuperTypes(
+      Name nm, TypeInfoResolver r, Map<Name, ImmutableSet<Name>> cache) {
+    ImmutableSet<Name> names = cache.get(nm);
+    if (names == null) {
+      ImmutableSet.Builder<Name> b = ImmutableSet.builder();
+      // Lookups of names inside a type also search its outer types.
+      for (Name t = nm; t != null; t = t.getOuterType()) {
+        for (TypeSpecification st
+             : r.superTypesTransitiveOf(TypeSpecification.unparameterized(t))) {
+          b.add(st.rawName);
+        }
+      }
+      names = b.build();
+      cache.put(nm, names);
+    }
+    return names;
+  }
+
+  private static ImmutableMap<Name, TypeInfo> declarationsIn(J8BaseNode root) {
+    ImmutableMap.Builder<Name, TypeInfo> b = ImmutableMap.builder();
+    for (J8TypeDeclaration d
+         : root.finder(J8TypeDeclaration.class).allowNonStandard(true).find()) {
+      TypeInfo ti = d.getDeclaredTypeInfo();
+      if (ti != null) {
+        b.put(ti.canonName, ti);
+      }
+    }
+    return b.build();
+  }
+
+  private static void collectReferences(J8BaseNode node, Set<Name> out) {
+    if (node instanceof J8TypeReference) {
+      TypeInfo ti = ((J8TypeReference) node).getReferencedTypeInfo();
+      if (ti != null) {
+        out.add(ti.canonName);
+      }
+    }
+    if (node instanceof J8ExpressionNameReference) {
+      Name nm = ((J8ExpressionNameReference) node)
+          .getReferencedExpressionName();
+      if (nm != null) {
+        addContainingType(nm, out);
+      }
+    }
+    if (node instanceof J8Typed) {
+      addType(((J8Typed) node).getStaticType(), out);
+    }
+    if (node instanceof J8WholeType) {
+      addType(((J8WholeType) node).getStaticType(), out);
+    }
+    if (node instanceof J8MethodDescriptorReference) {
+      J8MethodDescriptorReference ref = (J8MethodDescriptorReference) node;
+      addTypeSpecification(ref.getMethodDeclaringType(), out);
+      CallableInfo ci = ref.getCallableInfo();
+      if (ci != null) {
+        addContainingType(ci.canonName, out);
+      }
+    }
+    if (node instanceof J8TypeDeclaration) {
+      TypeInfo ti = ((J8TypeDeclaration) node).getDeclaredTypeInfo();
+      if (ti != null) {
+        for (TypeSpecification st : ti.superType.asSet()) {
+          addTypeSpecification(st, out);
+        }
+        for (TypeSpecification st : ti.interfaces) {
+          addTypeSpecification(st, out);
+        }
+      }
+    }
+    for (int i = 0, n = node.getNChildren(); i < n; ++i) {
+      collectReferences(node.getChild(i), out);
+    }
+  }
+
+  private static void addContainingType(Name nm, Set<Name> out) {
+    switch (nm.type) {
+      case CLASS:
+        out.add(nm);
+        return;
+      case FIELD:
+      case METHOD:
+        out.add(nm.getContainingClass());
+        return;
+      case AMBIGUOUS:
+      case LOCAL:
+      case PACKAGE:
+      case TYPE_PARAMETER:
+        return;
+    }
+    throw new AssertionError(nm.type);
+  }
+
+  private static void addType(StaticType t, Set<Name> out) {
+    if (t != null) {
+      addTypeSpecification(t.typeSpecification, out);
+    }
+  }
+
+  private static void addTypeSpecification(
+      TypeSpecification ts, Set<Name> out) {
+    if (ts == null) { return; }
+    if (ts.rawName.type == Name.Type.CLASS) {
+      out.add(ts.rawName);
+    }
+    for (TypeSpecification.TypeBinding b : ts.bindings) {
+      addTypeSpecification(b.typeSpec, out);
+    }
+  }
+
+  private static String sourceOf(J8FileNode fn) {
+    SourcePosition pos = ((J8BaseNode) fn).getSourcePosition();
+    Preconditions.checkArgument(pos != null, "Compilation unit lacks source");
+    return pos.getSource();
+  }
+
+  /** All processed compilation units in the order first added. */
+  public ImmutableList<J8FileNode> getProcessed() {
+    ImmutableList.Builder<J8FileNode> b = ImmutableList.builder();
+    for (Unit u : units.values()) {
+      b.add(u.processed);
+    }
+    return b.build();
+  }
+
+  /** The sources of the compilation units re-run by the last update. */
+  public ImmutableSet<String> getLastRerunSources() {
+    return lastRerun;
+  }
+
+  /**
+   * The type info resolver that resolves all types declared in the
+   * compilation units and falls back to the external resolver.
+   */
+  public TypeInfoResolver getTypeInfoResolver() {
+    return runner.getTypeInfoResolver();
+  }
+
+  /**
+   * The type pool from the last update which all processed units' static
+   * types belong to.
+   */
+  public TypePool getTypePool() {
+    return runner.getTypePool();
+  }
+
+  /**
+   * The pool used to allocate method variants with counters for all
+   * processed compilation units.
+   */
+  public MethodVariantPool getMethodVariantPool() {
+    return methodVariantPool;
+  }
+
+  /** A pool of member info for the type pool from the last update. */
+  public MemberInfoPool getMemberInfoPool() {
+    return runner.getMemberInfoPool();
+  }
+
+
+  private static final class Unit {
+    final String source;
+    /** A copy of the unprocessed tree so that we can re-run passes. */
+    final J8FileNode pristine;
+    final J8FileNode processed;
+    final ImmutableMap<Name, TypeInfo> declarations;
+    /** Types declared in compilation units that processing looked at. */
+    final ImmutableSet<Name> references;
+
+    Unit(
+        String source, J8FileNode pristine, J8FileNode processed,
+        ImmutableMap<Name, TypeInfo> declarations,
+        ImmutableSet<Name> references) {
+      this.source = source;
+      this.pristine = pristine;
+      this.processed = processed;
+      this.declarations = declarations;
+      this.references = references;
+    }
+  }
+}
@@ -2,6 +2,7 @@ package com.mikesamuel.cil.ast.passes;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
 import com.mikesamuel.cil.ast.meta.Name;
 
@@ -22,4 +23,17 @@ public final class MethodVariantPool {
     methodCounters.put(nameWithoutVariant, ordinal);
     return containingTypeName.method(methodName, ordinal);
   }
+
+  /**
+   * Copies counters for methods in the given types from other so that
+   * variants allocated after a partial re-run do not collide with those
+   * allocated for compilation units that were not re-run.
+   */
+  void copyCountersFrom(MethodVariantPool other, Set<Name> containingTypes) {
+    for (Map.Entry<Name, Integer> e : other.methodCounters.entrySet()) {
+      if (containingTypes.contains(e.getKey().getContainingClass())) {
+        methodCounters.put(e.getKey(), e.getValue());
+      }
+    }
+  }
 }
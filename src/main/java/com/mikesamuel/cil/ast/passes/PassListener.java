@@ -0,0 +1,54 @@
+package com.mikesamuel.cil.ast.passes;
+
+import com.mikesamuel.cil.ast.meta.StaticType.TypePool;
+
+/**
+ * Receives notifications as passes and mini-passes start and finish so that
+ * pipelines can be profiled.
+ * <p>
+ * Passes nest: a pass like
+ * {@link com.mikesamuel.cil.ast.passes.flatten.FlattenPass} reports each of
+ * its mini-passes between its own start and finish notifications.
+ *
+ * @see PassMetrics
+ */
+public interface PassListener {
+  /** Called just before the named pass runs. */
+  void passStarting(String passName);
+
+  /**
+   * Called after the named pass finishes, normally or abruptly.
+   *
+   * @param nodesVisited the count of nodes the pass visited or zero if the
+   *     pass does not count visits.
+   * @param nodesReplaced the count of nodes the pass replaced or removed.
+   */
+  void passFinished(String passName, long nodesVisited, long nodesReplaced);
+
+  /**
+   * Called when a pass runner allocates a type pool so that the listener
+   * can attribute changes in the pool's cache statistics to passes.
+   */
+  default void typePoolCreated(TypePool typePool) {
+    // By default, not interested.
+  }
+
+  /** A listener that ignores all notifications. */
+  public static final PassListener NONE = new PassListener() {
+    @Override
+    public void passStarting(String passName) {
+      // Ignore
+    }
+
+    @Override
+    public void passFinished(
+        String passName, long nodesVisited, long nodesReplaced) {
+      // Ignore
+    }
+
+    @Override
+    public String toString() {
+      return "(PassListener.NONE)";
+    }
+  };
+}
@@ -0,0 +1,204 @@
+package com.mikesamuel.cil.ast.passes;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.mikesamuel.cil.ast.meta.StaticType.TypePool;
+
+/**
+ * A pass listener that measures time, allocation, and tree-walk work for each
+ * pass and mini-pass.
+ * <p>
+ * Not thread-safe.  Times are measured for the thread that runs the passes.
+ */
+public final class PassMetrics implements PassListener {
+  private static final CacheStats ZERO_STATS = new CacheStats(0, 0, 0, 0, 0, 0);
+
+  private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+  private final List<Frame> open = new ArrayList<>();
+  private final ImmutableList.Builder<Measurement> measurements =
+      ImmutableList.builder();
+  private final List<TypePool> typePools = new ArrayList<>();
+
+  @Override
+  public void passStarting(String passName) {
+    String path = open.isEmpty()
+        ? passName
+        : open.get(open.size() - 1).path + "/" + passName;
+    open.add(new Frame(
+        passName, path, System.nanoTime(), cpuNanos(), allocatedBytes(),
+        assignabilityStats(), superTypeStats()));
+  }
+
+  @Override
+  public void passFinished(
+      String passName, long nodesVisited, long nodesReplaced) {
+    long wallEnd = System.nanoTime();
+    long cpuEnd = cpuNanos();
+    long allocEnd = allocatedBytes();
+    // Recover from mini-passes that failed before reporting their end.
+    int index = open.size();
+    while (--index >= 0) {
+      if (open.get(index).passName.equals(passName)) { break; }
+    }
+    Preconditions.checkState(index >= 0, passName);
+    Frame f = open.get(index);
+    open.subList(index, open.size()).clear();
+
+    measurements.add(new Measurement(
+        f.path,
+        wallEnd - f.wallStart,
+        f.cpuStart >= 0 && cpuEnd >= 0 ? cpuEnd - f.cpuStart : -1,
+        f.allocStart >= 0 && allocEnd >= 0 ? allocEnd - f.allocStart : -1,
+        nodesVisited, nodesReplaced,
+        assignabilityStats().minus(f.assignabilityStart),
+        superTypeStats().minus(f.superTypeStart)));
+  }
+
+  @Override
+  public void typePoolCreated(TypePool typePool) {
+    typePools.add(typePool);
+  }
+
+  /** Measurements for finished passes in the order they finished. */
+  public ImmutableList<Measurement> getMeasurements() {
+    return measurements.build();
+  }
+
+  /**
+   * A JSON array with one object per finished pass suitable for consumption
+   * by scripts that compare runs.
+   */
+  public String toJson() {
+    JSONArray arr = new JSONArray();
+    for (Measurement m : getMeasurements()) {
+      arr.put(m.toJson());
+    }
+    return arr.toString();
+  }
+
+  private long cpuNanos() {
+    return threads.isCurrentThreadCpuTimeSupported()
+        ? threads.getCurrentThreadCpuTime()
+        : -1;
+  }
+
+  private long allocatedBytes() {
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean sunThreads =
+          (com.sun.management.ThreadMXBean) threads;
+      if (sunThreads.isThreadAllocatedMemorySupported()
+          && sunThreads.isThreadAllocatedMemoryEnabled()) {
+        return sunThreads.getThreadAllocatedBytes(
+            Thread.currentThread().getId());
+      }
+    }
+    return -1;
+  }
+
+  private CacheStats assignabilityStats() {
+    CacheStats total = ZERO_STATS;
+    for (TypePool p : typePools) {
+      total = total.plus(p.getAssignabilityCacheStats());
+    }
+    return total;
+  }
+
+  private CacheStats superTypeStats() {
+    CacheStats total = ZERO_STATS;
+    for (TypePool p : typePools) {
+      total = total.plus(p.getSuperTypeCacheStats());
+    }
+    return total;
+  }
+
+
+  private static final class Frame {
+    final String passName;
+    final String path;
+    final long wallStart;
+    final long cpuStart;
+    final long allocStart;
+    final CacheStats assignabilityStart;
+    final CacheStats superTypeStart;
+
+    Frame(
+        String passName, String path,
+        long wallStart, long cpuStart, long allocStart,
+        CacheStats assignabilityStart, CacheStats superTypeStart) {
+      this.passName = passName;
+      this.path = path;
+      this.wallStart = wallStart;
+      this.cpuStart = cpuStart;
+      this.allocStart = allocStart;
+      this.assignabilityStart = assignabilityStart;
+      this.superTypeStart = superTypeStart;
+    }
+  }
+
+
+  /** Costs attributed to one run of one pass. */
+  public static final class Measurement {
+    /**
+     * Slash separated names of the pass and the passes that contain it.
+     * E.g. {@code "FlattenPass/FlattenNamesMiniPass"}.
+     */
+    public final String path;
+    /** Elapsed wall-clock time. */
+    public final long wallNanos;
+    /** CPU time used by the running thread or -1 if unavailable. */
+    public final long cpuNanos;
+    /** Bytes allocated by the running thread or -1 if unavailable. */
+    public final long allocatedBytes;
+    /** Nodes visited, zero if the pass does not count them. */
+    public final long nodesVisited;
+    /** Nodes replaced or removed, zero if the pass does not count them. */
+    public final long nodesReplaced;
+    /** Use of type pools' sub-type check caches during the pass. */
+    public final CacheStats assignabilityCacheStats;
+    /** Use of type pools' super-type closure caches during the pass. */
+    public final CacheStats superTypeCacheStats;
+
+    Measurement(
+        String path, long wallNanos, long cpuNanos, long allocatedBytes,
+        long nodesVisited, long nodesReplaced,
+        CacheStats assignabilityCacheStats, CacheStats superTypeCacheStats) {
+      this.path = path;
+      this.wallNanos = wallNanos;
+      this.cpuNanos = cpuNanos;
+      this.allocatedBytes = allocatedBytes;
+      this.nodesVisited = nodesVisited;
+      this.nodesReplaced = nodesReplaced;
+      this.assignabilityCacheStats = assignabilityCacheStats;
+      this.superTypeCacheStats = superTypeCacheStats;
+    }
+
+    JSONObject toJson() {
+      JSONObject o = new JSONObject();
+      o.put("path", path);
+      o.put("wallNanos", wallNanos);
+      o.put("cpuNanos", cpuNanos);
+      o.put("allocatedBytes", allocatedBytes);
+      o.put("nodesVisited", nodesVisited);
+      o.put("nodesReplaced", nodesReplaced);
+      o.put("assignabilityCacheHits", assignabilityCacheStats.hitCount());
+      o.put("assignabilityCacheMisses", assignabilityCacheStats.missCount());
+      o.put("superTypeCacheHits", superTypeCacheStats.hitCount());
+      o.put("superTypeCacheMisses", superTypeCacheStats.missCount());
+      return o;
+    }
+
+    @Override
+    public String toString() {
+      return toJson().toString();
+    }
+  }
+}
@@ -66,6 +66,11 @@ final class FlattenNamesMiniPass {
     }
   }
 
+  /** The rewriter for a single type so that its walk can be fused. */
+  SingleTypeRewriter rewriterFor(PassState ps, PassState.FlatteningType ft) {
+    return new TypeArgumentsRewriter(ps, ft);
+  }
+
   private final Map<BName, ImmutableMap<BName, TypeBinding>>
       typeBindingsFromScope = new LinkedHashMap<>();
   private Map<BName, TypeBinding> typeBindingsFromScope(
@@ -3,6 +3,8 @@ package com.mikesamuel.cil.ast.passes.flatten;
 import java.util.logging.Logger;
 
 import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.mikesamuel.cil.ast.j8.J8BaseNode;
@@ -11,6 +13,7 @@ import com.mikesamuel.cil.ast.meta.MetadataBridge;
 import com.mikesamuel.cil.ast.meta.StaticType.TypePool;
 import com.mikesamuel.cil.ast.meta.TypeInfoResolver;
 import com.mikesamuel.cil.ast.passes.AbstractPass;
+import com.mikesamuel.cil.ast.passes.FusedRewritingPass;
 
 /**
  * Converts a hierarchy of nested types into one without.
@@ -373,9 +376,14 @@ extends AbstractPass<ImmutableList<J8FileNode>> {
       Iterable<? extends J8FileNode> fileNodes) {
     ForwardingTypeInfoResolver resolver = new ForwardingTypeInfoResolver(r);
     TypePool pool = new TypePool(resolver);
+    getPassListener().typePoolCreated(pool);
 
-    PassState ps = new CollectTypeDeclarationsMiniPass(logger, pool, resolver)
-        .run(ImmutableList.copyOf(Iterables.transform(
+    CollectTypeDeclarationsMiniPass collectPass =
+        new CollectTypeDeclarationsMiniPass(logger, pool, resolver);
+    collectPass.setPassListener(getPassListener());
+    collectPass.setCountsParent(this);
+    PassState ps = collectPass.runObserved(ImmutableList.copyOf(
+        Iterables.transform(
             fileNodes,
             new Function<J8FileNode, J8FileNode>() {
               @Override
@@ -384,15 +392,58 @@ extends AbstractPass<ImmutableList<J8FileNode>> {
               }
             })));
 
-    ImmutableList<J8FileNode> flatFileNodes =
-        new FlattenTypeHierarchyMiniPass(logger, resolver)
-        .run(ps);
-    new InheritTypeParametersMiniPass(logger, pool).run(ps);
-    new CaptureClosedOverStateMiniPass(logger, pool).run(ps);
-    new InitializeClosedOverStateMiniPass(logger, pool).run(ps);
-    new RewriteUsesOfClosedOverStateMiniPass(logger, pool).run(ps);
-    new FlattenNamesMiniPass(logger, pool).run(ps);
-    new ForwardClosedOverStateToConstructorsMiniPass(logger, pool).run(ps);
+    ImmutableList<J8FileNode> flatFileNodes = runMiniPass(
+        "FlattenTypeHierarchyMiniPass",
+        new Supplier<ImmutableList<J8FileNode>>() {
+          @Override
+          public ImmutableList<J8FileNode> get() {
+            return new FlattenTypeHierarchyMiniPass(logger, resolver).run(ps);
+          }
+        });
+    runMiniPass(
+        "InheritTypeParametersMiniPass",
+        new Runnable() {
+          @Override
+          public void run() {
+            new InheritTypeParametersMiniPass(logger, pool).run(ps);
+          }
+        });
+    runMiniPass(
+        "CaptureClosedOverStateMiniPass",
+        new Runnable() {
+          @Override
+          public void run() {
+            new CaptureClosedOverStateMiniPass(logger, pool).run(ps);
+          }
+        });
+    runMiniPass(
+        "InitializeClosedOverStateMiniPass",
+        new Runnable() {
+          @Override
+          public void run() {
+            new InitializeClosedOverStateMiniPass(logger, pool).run(ps);
+          }
+        });
+    // Rewriting uses of closed-over state only introduces bumpy type names
+    // inside the expressions it replaces, which the name flattener then
+    // walks, so we do both in one walk per type.
+    runMiniPass(
+        "RewriteUsesOfClosedOverStateMiniPass+FlattenNamesMiniPass",
+        new Runnable() {
+          @Override
+          public void run() {
+            rewriteUsesAndFlattenNames(ps, pool);
+          }
+        });
+    runMiniPass(
+        "ForwardClosedOverStateToConstructorsMiniPass",
+        new Runnable() {
+          @Override
+          public void run() {
+            new ForwardClosedOverStateToConstructorsMiniPass(logger, pool)
+                .run(ps);
+          }
+        });
     // TODO: add private accessors
 
     // Scrub type metadata which refers to bumpy types so that
@@ -403,4 +454,22 @@ extends AbstractPass<ImmutableList<J8FileNode>> {
     return flatFileNodes;
   }
 
+  private void rewriteUsesAndFlattenNames(PassState ps, TypePool pool) {
+    RewriteUsesOfClosedOverStateMiniPass rewriteUses =
+        new RewriteUsesOfClosedOverStateMiniPass(logger, pool);
+    FlattenNamesMiniPass flattenNames =
+        new FlattenNamesMiniPass(logger, pool);
+    for (PassState.FlatteningType ft : ps.inProcessOrder) {
+      SingleTypeRewriter rewriteUsesOfFt = rewriteUses.rewriterFor(ps, ft);
+      FusedRewritingPass fused = FusedRewritingPass.builder(logger)
+          .order(rewriteUsesOfFt, flattenNames.rewriterFor(ps, ft))
+          .build();
+      fused.setCountsParent(this);
+      J8BaseNode root = (J8BaseNode) ft.root;
+      ImmutableList<J8BaseNode> after = fused.rewrite(root, null);
+      Preconditions.checkState(after.size() == 1 && after.get(0) == root);
+    }
+    rewriteUses.doubleCheck(ps);
+  }
+
 }
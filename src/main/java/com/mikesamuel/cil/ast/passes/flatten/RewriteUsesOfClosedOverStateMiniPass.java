@@ -46,6 +46,19 @@ final class RewriteUsesOfClosedOverStateMiniPass {
     for (PassState.FlatteningType ft : ps.inProcessOrder) {
       new Rewriter(ps, ft).visit();
     }
+    doubleCheck(ps);
+  }
+
+  /**
+   * The rewriter for a single type so that its walk can be fused with
+   * others'.  {@link #doubleCheck(PassState)} should be called after all
+   * have been applied.
+   */
+  SingleTypeRewriter rewriterFor(PassState ps, PassState.FlatteningType ft) {
+    return new Rewriter(ps, ft);
+  }
+
+  void doubleCheck(PassState ps) {
     for (PassState.FlatteningType ft : ps.inProcessOrder) {
       doubleCheck(ps, ft, (J8BaseNode) ft.root);
     }
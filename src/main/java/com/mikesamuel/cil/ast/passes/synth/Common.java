@@ -27,6 +27,7 @@ import com.mikesamuel.cil.parser.Positioned;
 import com.mikesamuel.cil.util.LogUtils;
 
 final class Common {
+  final SyntheticMemberPass pass;
   final Logger logger;
   final TypePool typePool;
   final MemberInfoPool memberInfoPool;
@@ -37,9 +38,11 @@ final class Common {
   final NameAllocator nameAllocator;
 
   Common(
+      SyntheticMemberPass pass,
       Logger logger, TypePool typePool, MemberInfoPool memberInfoPool,
       TypeNodeFactory factory,
       Iterable<? extends J8FileNode> roots) {
+    this.pass = pass;
     this.logger = logger;
     this.typePool = typePool;
     this.memberInfoPool = memberInfoPool;
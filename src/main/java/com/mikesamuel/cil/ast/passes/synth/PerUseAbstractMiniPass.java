@@ -75,6 +75,7 @@ abstract class PerUseAbstractMiniPass {
 
   private void findUses(
       J8BaseNode node, SList<Parent> pathFromRoot, UserDefinedType udt) {
+    c.pass.noteVisit();
     UserDefinedType cudt = udt;
     if (node instanceof J8TypeDeclaration) {
       J8TypeDeclaration d = (J8TypeDeclaration) node;
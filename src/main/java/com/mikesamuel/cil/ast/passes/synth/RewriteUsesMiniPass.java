@@ -79,7 +79,9 @@ final class RewriteUsesMiniPass extends PerUseAbstractMiniPass {
     // first.
     Collections.sort(usesInContext);
     for (UseInContext uic : usesInContext) {
-      if (!rewriteUse(uic)) {
+      if (rewriteUse(uic)) {
+        c.pass.noteReplacement();
+      } else {
         c.error(uic.node, "Failed to rewrite " + uic.used + " to use accessor");
       }
     }
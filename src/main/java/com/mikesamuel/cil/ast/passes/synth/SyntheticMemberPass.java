@@ -162,12 +162,58 @@ extends AbstractPass<ImmutableList<J8FileNode>> {
   @Override
   public ImmutableList<J8FileNode> run(Iterable<? extends J8FileNode> files) {
     ImmutableList<J8FileNode> fs = ImmutableList.copyOf(files);
-    Common c = new Common(logger, typePool, memberInfoPool, factory, fs);
-    new AnalyzeMiniPass(c).run(fs);
-    new BridgeBuilderMiniPass(c).addBridgeMethods();
-    new AccessorMiniPass(c).addPrivateAccessors();
-    new SuperAccessorsMiniPass(c).addSuperAccessors();
-    new RewriteUsesMiniPass(c).run(fs);
+    Common c = new Common(
+        this, logger, typePool, memberInfoPool, factory, fs);
+    runMiniPass(
+        "AnalyzeMiniPass",
+        new Runnable() {
+          @Override
+          public void run() {
+            new AnalyzeMiniPass(c).run(fs);
+          }
+        });
+    runMiniPass(
+        "BridgeBuilderMiniPass",
+        new Runnable() {
+          @Override
+          public void run() {
+            new BridgeBuilderMiniPass(c).addBridgeMethods();
+          }
+        });
+    runMiniPass(
+        "AccessorMiniPass",
+        new Runnable() {
+          @Override
+          public void run() {
+            new AccessorMiniPass(c).addPrivateAccessors();
+          }
+        });
+    runMiniPass(
+        "SuperAccessorsMiniPass",
+        new Runnable() {
+          @Override
+          public void run() {
+            new SuperAccessorsMiniPass(c).addSuperAccessors();
+          }
+        });
+    runMiniPass(
+        "RewriteUsesMiniPass",
+        new Runnable() {
+          @Override
+          public void run() {
+            new RewriteUsesMiniPass(c).run(fs);
+          }
+        });
     return fs;
   }
+
+  /** Lets mini-passes, which are not themselves passes, report their work. */
+  void noteVisit() {
+    countVisit();
+  }
+
+  /** @see #noteVisit */
+  void noteReplacement() {
+    countReplacement();
+  }
 }
\ No newline at end of file
@@ -10,4 +10,15 @@ import com.mikesamuel.cil.parser.Unparse;
 public interface DelayedCheckPredicate {
   /** The problem with the suffix if any. */
   Optional<String> problem(Unparse.Suffix suffix);
+
+  /**
+   * The most tokens at the start of the suffix that {@link #problem} needs to
+   * look at, or -1 if it may need the whole suffix.
+   * When non-negative, the suffix may be cut short after a few more tokens
+   * than this, which lets the check be run before the rest of the output is
+   * known.
+   */
+  default int maxTokens() {
+    return -1;
+  }
 }
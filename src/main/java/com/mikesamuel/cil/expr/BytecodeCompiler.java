@@ -0,0 +1,632 @@
+package com.mikesamuel.cil.expr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Modifier;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Primitives;
+import com.mikesamuel.cil.ast.j8.ArgumentListNode;
+import com.mikesamuel.cil.ast.j8.BooleanLiteralNode;
+import com.mikesamuel.cil.ast.j8.ExpressionAtomNode;
+import com.mikesamuel.cil.ast.j8.IdentifierNode;
+import com.mikesamuel.cil.ast.j8.J8BaseNode;
+import com.mikesamuel.cil.ast.j8.J8NodeType;
+import com.mikesamuel.cil.ast.j8.J8Typed;
+import com.mikesamuel.cil.ast.j8.MethodNameNode;
+import com.mikesamuel.cil.ast.j8.PrimaryNode;
+import com.mikesamuel.cil.ast.j8.TypeNameNode;
+import com.mikesamuel.cil.ast.meta.Name;
+import com.mikesamuel.cil.ast.meta.StaticType;
+import com.mikesamuel.cil.ast.meta.StaticType.TypePool.ClassOrInterfaceType;
+import com.mikesamuel.cil.ast.meta.TypeInfo;
+import com.mikesamuel.cil.util.LogUtils;
+
+/**
+ * Compiles typed expressions to JVM classes so that expressions that are
+ * evaluated many times, like template instructions in loops, run as bytecode
+ * instead of being interpreted.
+ * <p>
+ * An expression is translated to Java source which is compiled in-process by
+ * the {@linkplain ToolProvider#getSystemJavaCompiler system Java compiler}.
+ * Only a subset of expressions is supported: literals; locals of primitive
+ * type or of a public, non-generic class type; unary, binary, and
+ * conditional operators other than shifts; casts to primitive types; and
+ * calls to methods that the typing pass resolved.
+ * Anything else, including expressions that assign, read fields, or depend
+ * on the interpretation context, is left to the {@link Interpreter}, as is
+ * everything when the system Java compiler is not available.
+ * <p>
+ * Compiled classes are cached by their source so compiling a copy of an
+ * expression, like one in a template function body, reuses the class.
+ * <p>
+ * Instances may be shared between threads.  Only one expression is compiled
+ * at a time, but cache hits do not wait for a compile in progress.
+ */
+public final class BytecodeCompiler {
+  private final Logger logger;
+  private final ClassLoader loader;
+  private final @Nullable JavaCompiler javac;
+  /** Keyed by generated source sans class name. */
+  private final Map<String, Optional<CompiledCode>> cache =
+      new ConcurrentHashMap<>();
+  /** Guards compilation and the fields below. */
+  private final Object compileLock = new Object();
+  private @Nullable GeneratedClassLoader generatedClassLoader;
+  private int classCounter;
+
+  /**
+   * @param logger receives compiler diagnostics at {@link Level#FINE}.
+   * @param loader resolves classes referenced by compiled code.
+   */
+  public BytecodeCompiler(Logger logger, ClassLoader loader) {
+    this.logger = logger;
+    this.loader = loader;
+    this.javac = ToolProvider.getSystemJavaCompiler();
+  }
+
+  /**
+   * True if the system Java compiler is available, as when running on a JDK
+   * instead of a JRE.  If not, {@link #compile} always returns absent.
+   */
+  public boolean isAvailable() {
+    return javac != null;
+  }
+
+  /**
+   * Compiles expr to bytecode.
+   *
+   * @param interpreter evaluates expr when the compiled code cannot because
+   *     a local's value does not match the local's static type.
+   * @return absent if expr is not supported or failed to compile.
+   */
+  public Optional<CompiledExpression> compile(
+      Interpreter<Object> interpreter, J8BaseNode expr) {
+    if (javac == null) { return Optional.absent(); }
+    SourceEmitter emitter = new SourceEmitter();
+    if (!emitter.emit(expr) || !emitter.computes) {
+      return Optional.absent();
+    }
+    String body = emitter.body();
+    Optional<CompiledCode> code = cache.get(body);
+    if (code == null) {
+      synchronized (compileLock) {
+        // Another thread may have compiled it while we waited.
+        code = cache.get(body);
+        if (code == null) {
+          code = compileBody(body, emitter.localTypes);
+          cache.put(body, code);
+        }
+      }
+    }
+    if (!code.isPresent()) { return Optional.absent(); }
+    return Optional.of(new CompiledExpression(
+        interpreter, expr, ImmutableList.copyOf(emitter.locals.keySet()),
+        code.get()));
+  }
+
+  private Optional<CompiledCode> compileBody(
+      String body, List<Class<?>> localTypes) {
+    String className = "CompiledExpression" + (classCounter++);
+    String source = "public final class " + className + " {\n"
+        + "  public static Object eval(Object[] actuals) {\n"
+        + body
+        + "  }\n"
+        + "}\n";
+
+    DiagnosticCollector<JavaFileObject> diagnostics =
+        new DiagnosticCollector<>();
+    JavaFileObject sourceFile = new SimpleJavaFileObject(
+        URI.create("string:///" + className + ".java"),
+        JavaFileObject.Kind.SOURCE) {
+      @Override
+      public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+        return source;
+      }
+    };
+    boolean ok;
+    Map<String, ByteArrayOutputStream> classBytes;
+    // Closing the file manager releases any jar files javac opened.
+    try (InMemoryFileManager fileManager = new InMemoryFileManager(
+             javac.getStandardFileManager(
+                 null, null, StandardCharsets.UTF_8))) {
+      ok = javac.getTask(
+          null, fileManager, diagnostics,
+          ImmutableList.of(
+              "-classpath", classPath(), "-g:none", "-proc:none", "-nowarn"),
+          null, ImmutableList.of(sourceFile))
+          .call();
+      classBytes = fileManager.classBytes;
+    } catch (IOException | RuntimeException ex) {
+      LogUtils.log(
+          logger, Level.FINE, null, "Failed to compile " + source, ex);
+      return Optional.absent();
+    }
+    if (!ok) {
+      StringBuilder sb = new StringBuilder("Failed to compile ")
+          .append(source);
+      for (Diagnostic<? extends JavaFileObject> d
+           : diagnostics.getDiagnostics()) {
+        sb.append('\n').append(d.getMessage(null));
+      }
+      LogUtils.log(logger, Level.FINE, null, sb.toString(), null);
+      return Optional.absent();
+    }
+
+    if (generatedClassLoader == null) {
+      generatedClassLoader = new GeneratedClassLoader(loader);
+    }
+    try {
+      Class<?> cl = null;
+      for (Map.Entry<String, ByteArrayOutputStream> e
+           : classBytes.entrySet()) {
+        byte[] bytes = e.getValue().toByteArray();
+        Class<?> defined = generatedClassLoader.define(e.getKey(), bytes);
+        if (className.equals(e.getKey())) {
+          cl = defined;
+        }
+      }
+      if (cl == null) { return Optional.absent(); }
+      MethodHandle handle = MethodHandles.publicLookup().findStatic(
+          cl, "eval", EVAL_TYPE);
+      return Optional.of(new CompiledCode(
+          handle, ImmutableList.copyOf(localTypes)));
+    } catch (LinkageError | ReflectiveOperationException ex) {
+      LogUtils.log(
+          logger, Level.FINE, null, "Failed to load " + source, ex);
+      return Optional.absent();
+    }
+  }
+
+  private static final MethodType EVAL_TYPE = MethodType.methodType(
+      Object.class, Object[].class);
+
+  /** A class path that lets the Java compiler see classes loader sees. */
+  private String classPath() {
+    Set<String> entries = new LinkedHashSet<>();
+    for (ClassLoader cl = loader; cl != null; cl = cl.getParent()) {
+      if (cl instanceof URLClassLoader) {
+        for (URL url : ((URLClassLoader) cl).getURLs()) {
+          if ("file".equals(url.getProtocol())) {
+            try {
+              entries.add(new File(url.toURI()).getPath());
+            } catch (@SuppressWarnings("unused")
+                     java.net.URISyntaxException ex) {
+              // Skip it.
+            }
+          }
+        }
+      }
+    }
+    String javaClassPath = System.getProperty("java.class.path");
+    if (javaClassPath != null && !javaClassPath.isEmpty()) {
+      entries.add(javaClassPath);
+    }
+    return Joiner.on(File.pathSeparatorChar).join(entries);
+  }
+
+
+  /** An expression compiled to bytecode. */
+  public static final class CompiledExpression {
+    private final Interpreter<Object> interpreter;
+    private final J8BaseNode expr;
+    /** The locals read, in the order the compiled code takes them. */
+    private final ImmutableList<Name> localNames;
+    private final CompiledCode code;
+
+    CompiledExpression(
+        Interpreter<Object> interpreter, J8BaseNode expr,
+        ImmutableList<Name> localNames, CompiledCode code) {
+      this.interpreter = interpreter;
+      this.expr = expr;
+      this.localNames = localNames;
+      this.code = code;
+    }
+
+    /** The compiled expression. */
+    public J8BaseNode getExpression() {
+      return expr;
+    }
+
+    /**
+     * Evaluates the expression, producing the same completion as
+     * {@link Interpreter#interpret(J8BaseNode, Locals)}.
+     */
+    public Completion<Object> execute(Locals<Object> locals) {
+      InterpretationContext<Object> context = interpreter.context;
+      int n = localNames.size();
+      Object[] actuals = new Object[n];
+      for (int i = 0; i < n; ++i) {
+        Object value = locals.get(localNames.get(i), context.errorValue());
+        if (context.isErrorValue(value)
+            || !MemberHandles.isAssignable(code.localTypes.get(i), value)) {
+          // The interpreter is not bound by static types.
+          return interpreter.interpret(expr, locals);
+        }
+        actuals[i] = value;
+      }
+      try {
+        return Completion.normal((Object) code.handle.invokeExact(actuals));
+      } catch (Throwable th) {
+        // As for failures in methods called by the interpreter.
+        LogUtils.log(
+            context.getLogger(), Level.SEVERE, expr,
+            "Failure in compiled expression", th);
+        return Completion.normal(context.errorValue());
+      }
+    }
+  }
+
+
+  private static final class CompiledCode {
+    final MethodHandle handle;
+    final ImmutableList<Class<?>> localTypes;
+
+    CompiledCode(MethodHandle handle, ImmutableList<Class<?>> localTypes) {
+      this.handle = handle;
+      this.localTypes = localTypes;
+    }
+  }
+
+
+  private static final ImmutableMap<StaticType, Class<?>> PRIMITIVE_CLASSES =
+      ImmutableMap.<StaticType, Class<?>>builder()
+      .put(StaticType.T_BOOLEAN, boolean.class)
+      .put(StaticType.T_BYTE, byte.class)
+      .put(StaticType.T_SHORT, short.class)
+      .put(StaticType.T_CHAR, char.class)
+      .put(StaticType.T_INT, int.class)
+      .put(StaticType.T_LONG, long.class)
+      .put(StaticType.T_FLOAT, float.class)
+      .put(StaticType.T_DOUBLE, double.class)
+      .build();
+
+  private static final ImmutableMap<String, String> OPERATORS =
+      ImmutableMap.<String, String>builder()
+      .put("Pls", "+")
+      .put("Dsh", "-")
+      .put("Str", "*")
+      .put("Fwd", "/")
+      .put("Pct", "%")
+      .put("EqEq", "==")
+      .put("BngEq", "!=")
+      .put("Lt", "<")
+      .put("Gt", ">")
+      .put("LtEq", "<=")
+      .put("GtEq", ">=")
+      .put("Bng", "!")
+      .put("Tld", "~")
+      .build();
+
+  private static final ImmutableSet<J8NodeType> LITERALS =
+      Sets.immutableEnumSet(
+          J8NodeType.BooleanLiteral,
+          J8NodeType.CharacterLiteral,
+          J8NodeType.FloatingPointLiteral,
+          J8NodeType.IntegerLiteral,
+          J8NodeType.NullLiteral,
+          J8NodeType.StringLiteral);
+
+  /**
+   * Translates an expression to the body of a method that takes the values
+   * of locals in an array.
+   */
+  private final class SourceEmitter {
+    final StringBuilder sb = new StringBuilder();
+    /** Maps locals to the names of Java locals that hold their values. */
+    final Map<Name, String> locals = new LinkedHashMap<>();
+    final List<Class<?>> localTypes = new ArrayList<>();
+    final StringBuilder declarations = new StringBuilder();
+    /**
+     * False for a lone literal or local which the interpreter handles as
+     * well.
+     */
+    boolean computes;
+
+    String body() {
+      return declarations + "    return " + sb + ";\n";
+    }
+
+    boolean emit(J8BaseNode nodei) {
+      J8BaseNode node = Interpreter.unwrapDelegates(nodei);
+      int n = node.getNChildren();
+      J8NodeType nodeType = node.getNodeType();
+      if (nodeType != J8NodeType.ExpressionAtom
+          && nodeType != J8NodeType.Literal
+          && !LITERALS.contains(nodeType)) {
+        computes = true;
+      }
+      switch (nodeType) {
+        case ConditionalExpression:
+          if (n != 3) { return false; }
+          sb.append('(');
+          if (!emit(node.getChild(0))) { return false; }
+          sb.append(" ? ");
+          if (!emit(node.getChild(1))) { return false; }
+          sb.append(" : ");
+          if (!emit(node.getChild(2))) { return false; }
+          sb.append(')');
+          return true;
+        case ConditionalOrExpression:
+          return emitBinary(node, "||");
+        case ConditionalAndExpression:
+          return emitBinary(node, "&&");
+        case InclusiveOrExpression:
+          return emitBinary(node, "|");
+        case ExclusiveOrExpression:
+          return emitBinary(node, "^");
+        case AndExpression:
+          return emitBinary(node, "&");
+        case EqualityExpression:
+        case RelationalExpression:
+        case AdditiveExpression:
+        case MultiplicativeExpression:
+          // instanceof has no operator node.
+          return n == 3 && emitBinary(node, operator(node.getChild(1)));
+        case UnaryExpression: {
+          if (n != 2) { return false; }
+          String op = operator(node.getChild(0));
+          if (op == null) { return false; }
+          sb.append('(').append(op).append(' ');
+          if (!emit(node.getChild(1))) { return false; }
+          sb.append(')');
+          return true;
+        }
+        case CastExpression: {
+          if (n != 2
+              || node.getChild(0).getNodeType() != J8NodeType.ConvertCast) {
+            return false;
+          }
+          StaticType t = ((J8Typed) node).getStaticType();
+          if (!PRIMITIVE_CLASSES.containsKey(t)) { return false; }
+          sb.append("((").append(t).append(") ");
+          if (!emit(node.getChild(1))) { return false; }
+          sb.append(')');
+          return true;
+        }
+        case ExpressionAtom:
+          switch (((ExpressionAtomNode) node).getVariant()) {
+            case Literal:
+              return n == 1 && emit(node.getChild(0));
+            case Parenthesized:
+              if (n != 1) { return false; }
+              sb.append('(');
+              if (!emit(node.getChild(0))) { return false; }
+              sb.append(')');
+              return true;
+            case Local:
+              return emitLocal((ExpressionAtomNode) node);
+            default:
+              return false;
+          }
+        case Literal:
+          return n == 1 && emit(node.getChild(0));
+        case CharacterLiteral:
+        case FloatingPointLiteral:
+        case IntegerLiteral:
+        case StringLiteral:
+          sb.append(node.getValue());
+          return true;
+        case BooleanLiteral:
+          sb.append(
+              ((BooleanLiteralNode) node).getVariant()
+              == BooleanLiteralNode.Variant.True);
+          return true;
+        case NullLiteral:
+          sb.append("null");
+          return true;
+        case Primary:
+          return ((PrimaryNode) node).getVariant()
+              == PrimaryNode.Variant.MethodInvocation
+              && emitMethodInvocation(node);
+        default:
+          return false;
+      }
+    }
+
+    private boolean emitBinary(J8BaseNode node, @Nullable String op) {
+      int n = node.getNChildren();
+      if (op == null || n < 2) { return false; }
+      sb.append('(');
+      if (!emit(node.getChild(0))) { return false; }
+      sb.append(' ').append(op).append(' ');
+      if (!emit(node.getChild(n - 1))) { return false; }
+      sb.append(')');
+      return true;
+    }
+
+    private @Nullable String operator(J8BaseNode operatorNode) {
+      switch (operatorNode.getNodeType()) {
+        case AdditiveOperator:
+        case EqualityOperator:
+        case MultiplicativeOperator:
+        case PrefixOperator:
+        case RelationalOperator:
+          return OPERATORS.get(operatorNode.getVariant().name());
+        default:
+          // Shifts are not supported by the interpreter.
+          return null;
+      }
+    }
+
+    private boolean emitLocal(ExpressionAtomNode e) {
+      Name name = ClosureCompiler.localName(e);
+      if (name == null) { return false; }
+      String javaName = locals.get(name);
+      if (javaName == null) {
+        Class<?> type = classFor(e.getStaticType());
+        if (type == null) { return false; }
+        int index = locals.size();
+        javaName = "v" + index;
+        locals.put(name, javaName);
+        localTypes.add(Primitives.wrap(type));
+        String typeName = type.getCanonicalName();
+        declarations.append("    ").append(typeName).append(' ')
+            .append(javaName).append(" = (")
+            .append(Primitives.wrap(type).getCanonicalName())
+            .append(") actuals[").append(index).append("];\n");
+      }
+      sb.append(javaName);
+      return true;
+    }
+
+    private boolean emitMethodInvocation(J8BaseNode node) {
+      J8BaseNode receiver = null;
+      MethodNameNode methodName = null;
+      ArgumentListNode args = null;
+      for (J8BaseNode child : node.getChildren()) {
+        switch (child.getNodeType()) {
+          case MethodName:
+            methodName = (MethodNameNode) child;
+            break;
+          case ArgumentList:
+            args = (ArgumentListNode) child;
+            break;
+          case TypeArguments:
+            // Explicit type arguments may refer to type parameters.
+            return false;
+          default:
+            if (methodName != null || receiver != null) { return false; }
+            receiver = child;
+        }
+      }
+      if (receiver == null || methodName == null
+          || methodName.getMethodDeclaringType() == null
+          || methodName.getMethodDescriptor() == null) {
+        // Calls without receivers may be to template functions.
+        return false;
+      }
+      IdentifierNode ident = methodName.firstChildWithType(
+          IdentifierNode.class);
+      if (ident == null) { return false; }
+
+      J8BaseNode receiverAtom = Interpreter.unwrapDelegates(receiver);
+      if (receiverAtom instanceof ExpressionAtomNode
+          && ((ExpressionAtomNode) receiverAtom).getVariant()
+             == ExpressionAtomNode.Variant.StaticMember) {
+        TypeNameNode typeName = receiverAtom.firstChildWithType(
+            TypeNameNode.class);
+        TypeInfo ti = typeName != null
+            ? typeName.getReferencedTypeInfo() : null;
+        Class<?> cl = ti != null ? loadPublicClass(ti.canonName) : null;
+        if (cl == null) { return false; }
+        sb.append(cl.getCanonicalName());
+      } else if (!emit(receiver)) {
+        return false;
+      }
+      sb.append('.').append(ident.getValue()).append('(');
+      if (args != null) {
+        for (int i = 0, n = args.getNChildren(); i < n; ++i) {
+          if (i != 0) { sb.append(", "); }
+          if (!emit(args.getChild(i))) { return false; }
+        }
+      }
+      sb.append(')');
+      return true;
+    }
+  }
+
+  private @Nullable Class<?> classFor(@Nullable StaticType t) {
+    if (t == null) { return null; }
+    Class<?> primitive = PRIMITIVE_CLASSES.get(t);
+    if (primitive != null) { return primitive; }
+    if (!(t instanceof ClassOrInterfaceType)) { return null; }
+    ClassOrInterfaceType ct = (ClassOrInterfaceType) t;
+    if (!ct.typeSpecification.bindings.isEmpty()
+        || !ct.info.parameters.isEmpty()) {
+      // Raw types would type check differently.
+      return null;
+    }
+    return loadPublicClass(ct.info.canonName);
+  }
+
+  private @Nullable Class<?> loadPublicClass(Name className) {
+    Class<?> cl;
+    try {
+      cl = Class.forName(className.toBinaryName(), false, loader);
+    } catch (@SuppressWarnings("unused") ClassNotFoundException ex) {
+      return null;
+    }
+    for (Class<?> c = cl; c != null; c = c.getDeclaringClass()) {
+      if (!Modifier.isPublic(c.getModifiers())) { return null; }
+    }
+    return cl.getCanonicalName() != null ? cl : null;
+  }
+
+
+  private static final class GeneratedClassLoader extends ClassLoader {
+    GeneratedClassLoader(ClassLoader parent) {
+      super(parent);
+    }
+
+    Class<?> define(String name, byte[] bytes) {
+      return defineClass(name, bytes, 0, bytes.length);
+    }
+  }
+
+
+  /** Captures class files in memory. */
+  private static final class InMemoryFileManager
+  extends ForwardingJavaFileManager<StandardJavaFileManager> {
+    final Map<String, ByteArrayOutputStream> classBytes =
+        new LinkedHashMap<>();
+
+    InMemoryFileManager(StandardJavaFileManager delegate) {
+      super(delegate);
+    }
+
+    @Override
+    public JavaFileObject getJavaFileForOutput(
+        Location location, String className, JavaFileObject.Kind kind,
+        FileObject sibling)
+    throws IOException {
+      if (kind != JavaFileObject.Kind.CLASS) {
+        return super.getJavaFileForOutput(location, className, kind, sibling);
+      }
+      return new SimpleJavaFileObject(
+          URI.create("mem:///" + className.replace('.', '/') + kind.extension),
+          kind) {
+        @Override
+        public OutputStream openOutputStream() {
+          ByteArrayOutputStream out = new ByteArrayOutputStream();
+          classBytes.put(className, out);
+          return out;
+        }
+      };
+    }
+  }
+}
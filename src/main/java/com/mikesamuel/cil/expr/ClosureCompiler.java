@@ -0,0 +1,1832 @@
+package com.mikesamuel.cil.expr;
+
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Function;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.mikesamuel.cil.ast.j8.AdditiveExpressionNode;
+import com.mikesamuel.cil.ast.j8.AdditiveOperatorNode;
+import com.mikesamuel.cil.ast.j8.ArgumentListNode;
+import com.mikesamuel.cil.ast.j8.AssignmentNode;
+import com.mikesamuel.cil.ast.j8.AssignmentOperatorNode;
+import com.mikesamuel.cil.ast.j8.BlockNode;
+import com.mikesamuel.cil.ast.j8.BlockStatementsNode;
+import com.mikesamuel.cil.ast.j8.EnhancedForStatementNode;
+import com.mikesamuel.cil.ast.j8.EqualityOperatorNode;
+import com.mikesamuel.cil.ast.j8.ExpressionAtomNode;
+import com.mikesamuel.cil.ast.j8.ExpressionNode;
+import com.mikesamuel.cil.ast.j8.FieldNameNode;
+import com.mikesamuel.cil.ast.j8.IdentifierNode;
+import com.mikesamuel.cil.ast.j8.IncrDecrOperatorNode;
+import com.mikesamuel.cil.ast.j8.J8BaseNode;
+import com.mikesamuel.cil.ast.j8.J8NodeType;
+import com.mikesamuel.cil.ast.j8.J8Typed;
+import com.mikesamuel.cil.ast.j8.J8WholeType;
+import com.mikesamuel.cil.ast.j8.LabelNode;
+import com.mikesamuel.cil.ast.j8.LeftHandSideNode;
+import com.mikesamuel.cil.ast.j8.LocalNameNode;
+import com.mikesamuel.cil.ast.j8.LocalVariableDeclarationNode;
+import com.mikesamuel.cil.ast.j8.MethodNameNode;
+import com.mikesamuel.cil.ast.j8.Mixins;
+import com.mikesamuel.cil.ast.j8.MultiplicativeOperatorNode;
+import com.mikesamuel.cil.ast.j8.PrefixOperatorNode;
+import com.mikesamuel.cil.ast.j8.PrimaryNode;
+import com.mikesamuel.cil.ast.j8.RelationalOperatorNode;
+import com.mikesamuel.cil.ast.j8.StatementNode;
+import com.mikesamuel.cil.ast.j8.UnannTypeNode;
+import com.mikesamuel.cil.ast.j8.UnaryExpressionNode;
+import com.mikesamuel.cil.ast.j8.VariableDeclaratorIdNode;
+import com.mikesamuel.cil.ast.j8.VariableDeclaratorNode;
+import com.mikesamuel.cil.ast.j8.VariableInitializerNode;
+import com.mikesamuel.cil.ast.meta.CallableInfo;
+import com.mikesamuel.cil.ast.meta.FieldInfo;
+import com.mikesamuel.cil.ast.meta.JavaLang;
+import com.mikesamuel.cil.ast.meta.MethodDescriptor;
+import com.mikesamuel.cil.ast.meta.Name;
+import com.mikesamuel.cil.ast.meta.StaticType;
+import com.mikesamuel.cil.ast.meta.StaticType.NumericType;
+import com.mikesamuel.cil.ast.meta.StaticType.TypePool.ArrayType;
+import com.mikesamuel.cil.ast.meta.StaticType.TypePool.ReferenceType;
+import com.mikesamuel.cil.ast.meta.TypeInfo;
+import com.mikesamuel.cil.ast.meta.TypeSpecification;
+import com.mikesamuel.cil.parser.SourcePosition;
+import com.mikesamuel.cil.util.TriState;
+
+import static com.mikesamuel.cil.expr.Completion.normal;
+
+/**
+ * Compiles statements and expressions to trees of closures.
+ * <p>
+ * The {@link Interpreter} re-derives operator kinds, operands, resolved
+ * members, coercions and local names from the AST each time it evaluates a
+ * node.  Compiled closures do that work once so that loop bodies only pay
+ * for the operations they perform.
+ * <p>
+ * Expressions compile to closures that produce values instead of
+ * {@link Completion}s since expressions always complete normally;
+ * an error is signalled by the context's {@linkplain
+ * InterpretationContext#errorValue error value}.
+ * <p>
+ * Nodes that do not have a closure form, or which are malformed, are compiled
+ * to a closure that delegates to the interpreter, so compiled code completes
+ * the same way and logs the same errors as interpreted code.
+ * <p>
+ * Compiled code creates a {@link Locals} scope wherever the interpreter
+ * would, and the compiler tracks which locals are declared in each, so uses
+ * of locals declared by compiled code are resolved to slots.
+ * Other uses, including of ambiguous names in template contexts, fall back
+ * to lookup by name.
+ */
+final class ClosureCompiler<VALUE> {
+  private final Interpreter<VALUE> interpreter;
+  private final InterpretationContext<VALUE> context;
+  private final Completion<VALUE> nullCompletion;
+  private final Completion<VALUE> errorCompletion;
+  /** Null if the context cannot unbox primitive values. */
+  private final @Nullable PrimitiveCompiler<VALUE> primitives;
+  /** The scope for the code being compiled. */
+  private Scope scope = new Scope(null, true);
+
+  ClosureCompiler(Interpreter<VALUE> interpreter) {
+    this.interpreter = interpreter;
+    this.context = interpreter.context;
+    this.nullCompletion = interpreter.nullCompletion;
+    this.errorCompletion = interpreter.errorCompletion;
+    Optional<PrimitiveValues<VALUE>> primitiveValues =
+        context.getPrimitiveValues();
+    this.primitives = primitiveValues.isPresent()
+        ? new PrimitiveCompiler<>(this, interpreter, primitiveValues.get())
+        : null;
+  }
+
+  /** A compiled statement or expression. */
+  abstract class Step {
+    private final @Nullable SourcePosition pos;
+
+    Step(@Nullable J8BaseNode node) {
+      this.pos = node != null ? node.getSourcePosition() : null;
+    }
+
+    /** Tracks the source position as the interpreter would for logging. */
+    final void enter() {
+      if (pos != null) {
+        interpreter.setCurrentSourcePosition(pos);
+      }
+    }
+  }
+
+  /** A compiled expression. */
+  abstract class Expr extends Step {
+    Expr(@Nullable J8BaseNode node) {
+      super(node);
+    }
+
+    final VALUE eval(Locals<VALUE> locals) {
+      enter();
+      return evaluate(locals);
+    }
+
+    /** The result value, or the error value on failure. */
+    abstract VALUE evaluate(Locals<VALUE> locals);
+
+    /**
+     * Evaluates an expression whose result is only checked for errors, as
+     * for an expression statement.
+     */
+    final VALUE effect(Locals<VALUE> locals) {
+      enter();
+      return evaluateForEffect(locals);
+    }
+
+    /**
+     * May be overridden to avoid computing a result.
+     *
+     * @return the error value on failure, or any other value.
+     */
+    VALUE evaluateForEffect(Locals<VALUE> locals) {
+      return evaluate(locals);
+    }
+  }
+
+  /** A compiled statement. */
+  abstract class Stmt extends Step {
+    Stmt(@Nullable J8BaseNode node) {
+      super(node);
+    }
+
+    final Completion<VALUE> exec(Locals<VALUE> locals) {
+      enter();
+      return execute(locals);
+    }
+
+    abstract Completion<VALUE> execute(Locals<VALUE> locals);
+  }
+
+  /** A compile-time model of a runtime {@link Locals} scope. */
+  private static final class Scope {
+    final @Nullable Scope outer;
+    /**
+     * True if the runtime scope may contain locals that were not declared by
+     * compiled code, so slots cannot be known ahead of time.
+     */
+    boolean opaque;
+    /** Names declared by compiled code in slot order. */
+    final List<Name> declared = new ArrayList<>();
+    /**
+     * Parallel to declared.  The type of values stored unboxed in the slot
+     * or null if the slot holds boxed values.
+     */
+    final List<PrimitiveCompiler.Kind> unboxedKinds = new ArrayList<>();
+
+    Scope(@Nullable Scope outer, boolean opaque) {
+      this.outer = outer;
+      this.opaque = opaque;
+    }
+  }
+
+  private void pushScope() {
+    scope = new Scope(scope, false);
+  }
+
+  private void popScope() {
+    scope = scope.outer;
+  }
+
+  private void declareInScope(Name name) {
+    declareInScope(name, null);
+  }
+
+  private void declareInScope(
+      Name name, @Nullable PrimitiveCompiler.Kind unboxedKind) {
+    if (!scope.opaque) {
+      scope.declared.add(name);
+      scope.unboxedKinds.add(unboxedKind);
+    }
+  }
+
+  /**
+   * Where a local may be found.
+   * The scope is found by going {@code depth} scopes out, and if slot is
+   * non-negative, the value is in that slot.  Otherwise, the name must be
+   * looked up starting at that scope.
+   */
+  static final class LocalRef {
+    final int depth;
+    final int slot;
+    /** Non-null if the slot holds values of this type unboxed. */
+    final @Nullable PrimitiveCompiler.Kind unboxedKind;
+
+    LocalRef(
+        int depth, int slot, @Nullable PrimitiveCompiler.Kind unboxedKind) {
+      this.depth = depth;
+      this.slot = slot;
+      this.unboxedKind = unboxedKind;
+    }
+  }
+
+  /**
+   * Resolves a use of a local as {@link Locals} would have, given that the
+   * innermost declaration with a matching identifier wins.
+   */
+  private LocalRef resolve(Name name) {
+    int depth = 0;
+    for (Scope s = scope; s != null; s = s.outer, ++depth) {
+      if (s.opaque) {
+        return new LocalRef(depth, -1, null);
+      }
+      for (int i = s.declared.size(); --i >= 0;) {
+        Name declared = s.declared.get(i);
+        if (name.type == Name.Type.AMBIGUOUS
+            ? name.identifier.equals(declared.identifier)
+            : name.equals(declared)) {
+          return new LocalRef(depth, i, s.unboxedKinds.get(i));
+        }
+      }
+    }
+    throw new AssertionError(name);  // The root scope is opaque.
+  }
+
+  /** Compiles a node that will be executed as the root of a computation. */
+  Stmt compile(J8BaseNode node) {
+    return asStmt(compile(node, null));
+  }
+
+  private Stmt asStmt(Step step) {
+    if (step instanceof ClosureCompiler.Stmt) {
+      @SuppressWarnings("unchecked")
+      Stmt stmt = (Stmt) step;
+      return stmt;
+    }
+    @SuppressWarnings("unchecked")
+    Expr e = (Expr) step;
+    return new Stmt(null) {
+      @Override
+      Completion<VALUE> execute(Locals<VALUE> locals) {
+        return normal(e.eval(locals));
+      }
+    };
+  }
+
+  Expr compileExpr(@Nullable J8BaseNode node) {
+    Step step = compile(node, null);
+    if (step instanceof ClosureCompiler.Expr) {
+      @SuppressWarnings("unchecked")
+      Expr e = (Expr) step;
+      return e;
+    }
+    @SuppressWarnings("unchecked")
+    Stmt s = (Stmt) step;
+    return new Expr(null) {
+      @Override
+      VALUE evaluate(Locals<VALUE> locals) {
+        Completion<VALUE> c = s.exec(locals);
+        if (c.kind == Completion.Kind.NORMAL) {
+          return c.value;
+        }
+        interpreter.error(node, "Expression completed abruptly: " + c);
+        return context.errorValue();
+      }
+    };
+  }
+
+  private Stmt interpreted(
+      @Nullable J8BaseNode node, @Nullable String parentLabel) {
+    if (node != null) {
+      switch (node.getNodeType()) {
+        case BlockStatement:
+        case BlockStatements:
+        case LabeledStatement:
+        case LocalVariableDeclaration:
+        case LocalVariableDeclarationStatement:
+          // The interpreter may declare locals in the current scope, so the
+          // compiler cannot know what slots later declarations occupy.
+          scope.opaque = true;
+          break;
+        default:
+          break;
+      }
+    }
+    // The interpreter tracks source positions itself.
+    return new Stmt(null) {
+      @Override
+      Completion<VALUE> execute(Locals<VALUE> locals) {
+        return interpreter.interpret(node, locals, parentLabel);
+      }
+    };
+  }
+
+  private Expr constant(@Nullable J8BaseNode node, VALUE value) {
+    return new Expr(node) {
+      @Override
+      VALUE evaluate(Locals<VALUE> locals) {
+        return value;
+      }
+    };
+  }
+
+  private Stmt constantCompletion(
+      @Nullable J8BaseNode node, Completion<VALUE> completion) {
+    return new Stmt(node) {
+      @Override
+      Completion<VALUE> execute(Locals<VALUE> locals) {
+        return completion;
+      }
+    };
+  }
+
+  /**
+   * @param parentLabel as for
+   *     {@link Interpreter#interpret(J8BaseNode, Locals, String)}.
+   */
+  private Step compile(
+      @Nullable J8BaseNode nodei, @Nullable String parentLabel) {
+    if (nodei == null) {
+      return constantCompletion(null, errorCompletion);
+    }
+    J8BaseNode node = Interpreter.unwrapDelegates(nodei);
+
+    if (primitives != null) {
+      PrimitiveCompiler<VALUE>.Prim p = primitives.compileOperation(node);
+      if (p != null) {
+        return boxed(node, p);
+      }
+    }
+
+    switch (node.getNodeType()) {
+      case BooleanLiteral:
+      case CharacterLiteral:
+      case FloatingPointLiteral:
+      case IntegerLiteral:
+      case NullLiteral:
+      case StringLiteral: {
+        // Literals do not depend on locals or context state.
+        Completion<VALUE> result = interpreter.interpret(
+            node, new Locals<>(), null);
+        if (context.completedNormallyWithoutError(result)) {
+          return constant(node, result.value);
+        }
+        break;
+      }
+
+      case AdditiveExpression:
+        return compileAdditive((AdditiveExpressionNode) node);
+      case AndExpression:
+        return binary(node, null, new BinaryOperator() {
+          @Override
+          VALUE apply(VALUE left, VALUE right) {
+            return context.primitiveAnd(left, right);
+          }
+        });
+      case ExclusiveOrExpression:
+        return binary(node, null, new BinaryOperator() {
+          @Override
+          VALUE apply(VALUE left, VALUE right) {
+            return context.primitiveXor(left, right);
+          }
+        });
+      case InclusiveOrExpression:
+        return binary(node, null, new BinaryOperator() {
+          @Override
+          VALUE apply(VALUE left, VALUE right) {
+            return context.primitiveOr(left, right);
+          }
+        });
+      case MultiplicativeExpression:
+        return compileMultiplicative(node);
+      case RelationalExpression:
+        return compileRelational(node);
+      case EqualityExpression:
+        return compileEquality(node);
+
+      case ConditionalAndExpression:
+      case ConditionalOrExpression:
+        return compileShortCircuit(node);
+      case ConditionalExpression:
+      case IfStatement:
+        return compileConditional(node);
+
+      case CastExpression:
+        return compileCast(node);
+      case UnaryExpression:
+        if (((UnaryExpressionNode) node).getVariant()
+            == UnaryExpressionNode.Variant.PrefixOperatorUnaryExpression) {
+          return compilePrefixOperator(node);
+        }
+        break;
+
+      case Assignment:
+        return compileAssignment((AssignmentNode) node);
+      case PostExpression:
+      case PreExpression:
+        return compileIncrDecr(node);
+
+      case ExpressionAtom: {
+        ExpressionAtomNode e = (ExpressionAtomNode) node;
+        switch (e.getVariant()) {
+          case Local: {
+            Lhs lhs = compileLhs(e);
+            if (lhs != null) { return read(e, lhs); }
+            break;
+          }
+          case MethodInvocation:
+            return compileInvocation(null, e);
+          case StaticMember:
+            return constant(e, context.nullValue());
+          default:
+            break;
+        }
+        break;
+      }
+      case Primary: {
+        PrimaryNode e = (PrimaryNode) node;
+        switch (e.getVariant()) {
+          case ArrayAccess:
+          case FieldAccess: {
+            Lhs lhs = compileLhs(e);
+            if (lhs != null) { return read(e, lhs); }
+            break;
+          }
+          case MethodInvocation:
+            if (e.getNChildren() == 0) { break; }
+            return compileInvocation(e.getChild(0), e);
+          default:
+            break;
+        }
+        break;
+      }
+
+      case Block: {
+        pushScope();
+        Stmt body = asStmt(compile(
+            node.firstChildWithType(BlockStatementsNode.class), null));
+        popScope();
+        return new Stmt(node) {
+          @Override
+          Completion<VALUE> execute(Locals<VALUE> locals) {
+            return body.exec(new Locals<>(locals));
+          }
+        };
+      }
+      case BlockStatements:
+        return compileBlockStatements(node, parentLabel);
+      case BlockTypeScope: {
+        J8BaseNode stmts = node.firstChildWithType(BlockStatementsNode.class);
+        if (stmts == null) { return constantCompletion(node, nullCompletion); }
+        return compile(stmts, parentLabel);
+      }
+      case BreakStatement:
+      case ContinueStatement: {
+        String label = null;
+        LabelNode labelNode = node.firstChildWithType(LabelNode.class);
+        if (labelNode != null) {
+          IdentifierNode ident = labelNode.firstChildWithType(
+              IdentifierNode.class);
+          if (ident == null) { break; }
+          label = ident.getValue();
+        }
+        return constantCompletion(
+            node,
+            J8NodeType.BreakStatement == node.getNodeType()
+            ? Completion.breakTo(label)
+            : Completion.continueTo(label));
+      }
+      case EmptyStatement:
+        return constantCompletion(node, nullCompletion);
+      case LabeledStatement:
+        return compileLabeled(node);
+      case LocalVariableDeclaration:
+        return compileLocalVariableDeclaration(node);
+      case LocalVariableDeclarationStatement:
+        return compile(
+            node.firstChildWithType(LocalVariableDeclarationNode.class), null);
+      case ReturnStatement: {
+        ExpressionNode expr = node.firstChildWithType(ExpressionNode.class);
+        if (expr == null) {
+          return constantCompletion(node, Completion.returnValue(null));
+        }
+        Expr e = compileExpr(expr);
+        return new Stmt(node) {
+          @Override
+          Completion<VALUE> execute(Locals<VALUE> locals) {
+            VALUE v = e.eval(locals);
+            return context.isErrorValue(v)
+                ? normal(v)
+                : Completion.returnValue(v);
+          }
+        };
+      }
+      case StatementExpressionList: {
+        int n = node.getNChildren();
+        Expr[] exprs = newExprArray(n);
+        for (int i = 0; i < n; ++i) {
+          exprs[i] = compileExpr(node.getChild(i));
+        }
+        return new Stmt(node) {
+          @Override
+          Completion<VALUE> execute(Locals<VALUE> locals) {
+            for (Expr e : exprs) {
+              VALUE v = e.effect(locals);
+              if (context.isErrorValue(v)) { return normal(v); }
+            }
+            return nullCompletion;
+          }
+        };
+      }
+
+      case BasicForStatement: {
+        J8BaseNode forInit = null;
+        J8BaseNode expression = null;
+        J8BaseNode forUpdate = null;
+        J8BaseNode statement = null;
+        for (int i = 0, n = node.getNChildren(); i < n; ++i) {
+          J8BaseNode child = node.getChild(i);
+          switch (child.getNodeType()) {
+            case ForInit: forInit = child; break;
+            case Expression: expression = child; break;
+            case ForUpdate: forUpdate = child; break;
+            case Statement: statement = child; break;
+            default:
+              return interpreted(node, parentLabel);
+          }
+        }
+        pushScope();
+        Stmt loop = loop(
+            forInit != null ? asStmt(compile(forInit, null)) : null,
+            expression,
+            expression != null ? compileExpr(expression) : null,
+            forUpdate != null ? asStmt(compile(forUpdate, null)) : null,
+            statement != null ? asStmt(compile(statement, null)) : null,
+            parentLabel);
+        popScope();
+        return new Stmt(node) {
+          @Override
+          Completion<VALUE> execute(Locals<VALUE> locals) {
+            return loop.exec(new Locals<>(locals));
+          }
+        };
+      }
+      case WhileStatement:
+        if (node.getNChildren() != 2) { break; }
+        return loop(
+            null,
+            node.getChild(0), compileExpr(node.getChild(0)),
+            null,
+            asStmt(compile(node.getChild(1), null)),
+            parentLabel);
+      case DoStatement:
+        return compileDo(node, parentLabel);
+      case EnhancedForStatement:
+        return compileEnhancedFor((EnhancedForStatementNode) node, parentLabel);
+
+      default:
+        break;
+    }
+    return interpreted(node, parentLabel);
+  }
+
+  private Expr read(J8BaseNode node, Lhs lhs) {
+    return new Expr(node) {
+      @Override
+      VALUE evaluate(Locals<VALUE> locals) {
+        return lhs.read(locals);
+      }
+    };
+  }
+
+
+  /**
+   * Computes a result from already evaluated operands.
+   * Operations pick one per operator when compiled so that evaluation need
+   * not dispatch on the operator.
+   */
+  abstract class BinaryOperator {
+    abstract VALUE apply(VALUE left, VALUE right);
+  }
+
+  /**
+   * The operator node between the operands of a binary operation, or null if
+   * the operation is malformed.
+   */
+  private static @Nullable <OP extends J8BaseNode> OP operatorOf(
+      J8BaseNode operation, Class<OP> operatorType) {
+    if (operation.getNChildren() != 3) { return null; }
+    J8BaseNode opNode = operation.getChild(1);
+    return operatorType.isInstance(opNode) ? operatorType.cast(opNode) : null;
+  }
+
+  /**
+   * @param op the operator node between the operands, or null for operations
+   *     like {@code &} that have no operator node.
+   */
+  private Step binary(
+      J8BaseNode operation, @Nullable J8BaseNode op, BinaryOperator operator) {
+    int nChildrenRequired = op == null ? 2 : 3;
+    if (operation.getNChildren() != nChildrenRequired) {
+      return interpreted(operation, null);
+    }
+    Expr left = compileExpr(operation.getChild(0));
+    Expr right = compileExpr(operation.getChild(nChildrenRequired - 1));
+    return new Expr(operation) {
+      @Override
+      VALUE evaluate(Locals<VALUE> locals) {
+        VALUE leftValue = left.eval(locals);
+        if (context.isErrorValue(leftValue)) { return leftValue; }
+        VALUE rightValue = right.eval(locals);
+        if (context.isErrorValue(rightValue)) { return rightValue; }
+        return operator.apply(leftValue, rightValue);
+      }
+    };
+  }
+
+  private Step compileMultiplicative(J8BaseNode e) {
+    MultiplicativeOperatorNode op = operatorOf(
+        e, MultiplicativeOperatorNode.class);
+    if (op == null) { return interpreted(e, null); }
+    switch (op.getVariant()) {
+      case Str:
+        return binary(e, op, new BinaryOperator() {
+          @Override
+          VALUE apply(VALUE left, VALUE right) {
+            return context.primitiveMultiplication(left, right);
+          }
+        });
+      case Fwd:
+        return binary(e, op, new BinaryOperator() {
+          @Override
+          VALUE apply(VALUE left, VALUE right) {
+            return context.primitiveDivision(left, right);
+          }
+        });
+      case Pct:
+        return binary(e, op, new BinaryOperator() {
+          @Override
+          VALUE apply(VALUE left, VALUE right) {
+            return context.primitiveModulus(left, right);
+          }
+        });
+    }
+    throw new AssertionError(op);
+  }
+
+  private Step compileRelational(J8BaseNode e) {
+    RelationalOperatorNode op = operatorOf(e, RelationalOperatorNode.class);
+    if (op == null) { return interpreted(e, null); }
+    switch (op.getVariant()) {
+      case Gt:
+        return binary(e, op, new BinaryOperator() {
+          @Override
+          VALUE apply(VALUE left, VALUE right) {
+            return context.primitiveLessThan(right, left);
+          }
+        });
+      case GtEq:
+        return binary(e, op, new BinaryOperator() {
+          @Override
+          VALUE apply(VALUE left, VALUE right) {
+            return context.primitiveLogicalNot(
+                context.primitiveLessThan(left, right));
+          }
+        });
+      case Lt:
+        return binary(e, op, new BinaryOperator() {
+          @Override
+          VALUE apply(VALUE left, VALUE right) {
+            return context.primitiveLessThan(left, right);
+          }
+        });
+      case LtEq:
+        return binary(e, op, new BinaryOperator() {
+          @Override
+          VALUE apply(VALUE left, VALUE right) {
+            return context.primitiveLogicalNot(
+                context.primitiveLessThan(right, left));
+          }
+        });
+    }
+    throw new AssertionError(op);
+  }
+
+  private Step compileAdditive(AdditiveExpressionNode e) {
+    AdditiveOperatorNode op = operatorOf(e, AdditiveOperatorNode.class);
+    if (op == null) { return interpreted(e, null); }
+    switch (op.getVariant()) {
+      case Dsh:
+        return binary(e, op, new BinaryOperator() {
+          @Override
+          VALUE apply(VALUE left, VALUE right) {
+            return context.primitiveSubtraction(left, right);
+          }
+        });
+      case Pls:
+        // Numeric addition when the static type says so.  Otherwise the
+        // interpreter's rules for choosing between concatenation and
+        // addition apply.
+        if (e.getStaticType() instanceof NumericType) {
+          return binary(e, op, new BinaryOperator() {
+            @Override
+            VALUE apply(VALUE left, VALUE right) {
+              return context.primitiveAddition(left, right);
+            }
+          });
+        }
+        return binary(e, op, new BinaryOperator() {
+          @Override
+          VALUE apply(VALUE left, VALUE right) {
+            if (interpreter.ambiguousPlusShouldConcatenate(
+                    e.getChild(0), left, e.getChild(1), right)) {
+              return context.stringConcatenation(left, right);
+            } else {
+              return context.primitiveAddition(left, right);
+            }
+          }
+        });
+    }
+    throw new AssertionError(op);
+  }
+
+  private Step compileEquality(J8BaseNode e) {
+    EqualityOperatorNode op = operatorOf(e, EqualityOperatorNode.class);
+    if (op == null
+        || !(e.getChild(0) instanceof J8Typed)
+        || !(e.getChild(2) instanceof J8Typed)) {
+      return interpreted(e, null);
+    }
+    // Do primitive comparison if either is primitive.
+    TriState isPrimitiveComparison = TriState.OTHER;
+    StaticType ltype = ((J8Typed) e.getChild(0)).getStaticType();
+    StaticType rtype = ((J8Typed) e.getChild(2)).getStaticType();
+    if (ltype != null && rtype != null) {
+      isPrimitiveComparison = TriState.of(
+          !(ltype instanceof ReferenceType
+            && rtype instanceof ReferenceType));
+    }
+    BinaryOperator equal;
+    switch (isPrimitiveComparison) {
+      case TRUE:
+        equal = new BinaryOperator() {
+          @Override
+          VALUE apply(VALUE left, VALUE right) {
+            return context.primitiveEquals(left, right);
+          }
+        };
+        break;
+      case FALSE:
+        equal = new BinaryOperator() {
+          @Override
+          VALUE apply(VALUE left, VALUE right) {
+            return context.sameReference(left, right);
+          }
+        };
+        break;
+      case OTHER:
+        equal = new BinaryOperator() {
+          @Override
+          VALUE apply(VALUE left, VALUE right) {
+            if ((left instanceof Number && right instanceof Number)
+                || (left instanceof Boolean && right instanceof Boolean)
+                || (left instanceof Character && right instanceof Character)
+                ) {
+              return context.primitiveEquals(left, right);
+            }
+            return context.sameReference(left, right);
+          }
+        };
+        break;
+      default:
+        throw new AssertionError(isPrimitiveComparison);
+    }
+    switch (op.getVariant()) {
+      case EqEq:
+        return binary(e, op, equal);
+      case BngEq:
+        return binary(e, op, new BinaryOperator() {
+          @Override
+          VALUE apply(VALUE left, VALUE right) {
+            return context.primitiveLogicalNot(equal.apply(left, right));
+          }
+        });
+    }
+    throw new AssertionError(op);
+  }
+
+  private Step compileShortCircuit(J8BaseNode node) {
+    if (node.getNChildren() == 0) {
+      return interpreted(node, null);
+    }
+    boolean isAnd = node.getNodeType() == J8NodeType.ConditionalAndExpression;
+    Expr left = compileExpr(Interpreter.leftOperand(node));
+    Expr right = compileExpr(Interpreter.rightOperand(node));
+    return new Expr(node) {
+      @Override
+      VALUE evaluate(Locals<VALUE> locals) {
+        VALUE leftValue = left.eval(locals);
+        if (context.isErrorValue(leftValue)) { return leftValue; }
+        // Short circuit as appropriate.
+        switch (context.toBoolean(leftValue)) {
+          case FALSE:
+            if (isAnd) { return leftValue; }
+            break;
+          case OTHER:  // Unbox of null
+            interpreter.error(
+                node, "Invalid result for (||): " + normal(leftValue));
+            return context.errorValue();
+          case TRUE:
+            if (!isAnd) { return leftValue; }
+            break;
+        }
+        VALUE rightValue = right.eval(locals);
+        if (context.isErrorValue(rightValue)) { return rightValue; }
+        switch (context.toBoolean(rightValue)) {
+          case FALSE: case TRUE:
+            return rightValue;
+          case OTHER:
+            return context.errorValue();
+        }
+        throw new AssertionError(rightValue);
+      }
+    };
+  }
+
+  private Step compileConditional(J8BaseNode node) {
+    int nChildren = node.getNChildren();
+    if (nChildren != 2 && nChildren != 3) {
+      return interpreted(node, null);
+    }
+    J8BaseNode condNode = node.getChild(0);
+    Expr cond = compileExpr(condNode);
+    if (node.getNodeType() == J8NodeType.ConditionalExpression
+        && nChildren == 3) {
+      Expr then = compileExpr(node.getChild(1));
+      Expr otherwise = compileExpr(node.getChild(2));
+      return new Expr(node) {
+        @Override
+        VALUE evaluate(Locals<VALUE> locals) {
+          VALUE condValue = cond.eval(locals);
+          if (context.isErrorValue(condValue)) {
+            interpreter.error(condNode, "Bad condition result " + condValue);
+            return condValue;
+          }
+          switch (context.toBoolean(condValue)) {
+            case FALSE:
+              return otherwise.eval(locals);
+            case OTHER:
+              interpreter.error(condNode, "Bad condition result " + condValue);
+              return context.errorValue();
+            case TRUE:
+              return then.eval(locals);
+          }
+          throw new AssertionError(condValue);
+        }
+      };
+    }
+    Stmt then = asStmt(compile(node.getChild(1), null));
+    Stmt otherwise = nChildren == 3
+        ? asStmt(compile(node.getChild(2), null))
+        : null;
+    return new Stmt(node) {
+      @Override
+      Completion<VALUE> execute(Locals<VALUE> locals) {
+        VALUE condValue = cond.eval(locals);
+        if (context.isErrorValue(condValue)) {
+          interpreter.error(condNode, "Bad condition result " + condValue);
+          return normal(condValue);
+        }
+        switch (context.toBoolean(condValue)) {
+          case FALSE:
+            if (otherwise == null) { return nullCompletion; }  // if w/o else
+            return otherwise.exec(locals);
+          case OTHER:
+            interpreter.error(condNode, "Bad condition result " + condValue);
+            return errorCompletion;
+          case TRUE:
+            return then.exec(locals);
+        }
+        throw new AssertionError(condValue);
+      }
+    };
+  }
+
+  private Step compileCast(J8BaseNode node) {
+    if (node.getNChildren() != 2) {
+      return interpreted(node, null);
+    }
+    Optional<J8WholeType> targetTypeOpt = node.getChild(0)
+        .finder(J8WholeType.class).exclude(J8WholeType.class).findOne();
+    StaticType targetType = targetTypeOpt.isPresent()
+        ? targetTypeOpt.get().getStaticType() : null;
+    if (targetType == null || StaticType.ERROR_TYPE.equals(targetType)) {
+      return interpreted(node, null);
+    }
+    Function<VALUE, VALUE> coercion = context.coercion(targetType);
+    Expr operand = compileExpr(node.getChild(1));
+    return new Expr(node) {
+      @Override
+      VALUE evaluate(Locals<VALUE> locals) {
+        VALUE v = operand.eval(locals);
+        if (context.isErrorValue(v)) {
+          interpreter.error(node, "Missing cast target type");
+          return context.errorValue();
+        }
+        return coercion.apply(v);
+      }
+    };
+  }
+
+  private Step compilePrefixOperator(J8BaseNode node) {
+    PrefixOperatorNode operator = node.firstChildWithType(
+        PrefixOperatorNode.class);
+    if (operator == null) {
+      return interpreted(node, null);
+    }
+    Expr operand = compileExpr(Interpreter.rightOperand(node));
+    PrefixOperatorNode.Variant v = operator.getVariant();
+    switch (v) {
+      case Bng:
+        return new Expr(node) {
+          @Override
+          VALUE evaluate(Locals<VALUE> locals) {
+            VALUE x = operand.eval(locals);
+            if (context.isErrorValue(x)) { return x; }
+            return context.primitiveLogicalNot(x);
+          }
+        };
+      case Dsh:
+        return new Expr(node) {
+          @Override
+          VALUE evaluate(Locals<VALUE> locals) {
+            VALUE x = operand.eval(locals);
+            if (context.isErrorValue(x)) { return x; }
+            return context.primitiveNegation(x);
+          }
+        };
+      case Pls:
+        return new Expr(node) {
+          @Override
+          VALUE evaluate(Locals<VALUE> locals) {
+            VALUE x = operand.eval(locals);
+            if (context.isErrorValue(x)) { return x; }
+            return context.primitiveNegation(context.primitiveNegation(x));
+          }
+        };
+      case Tld:
+        return new Expr(node) {
+          @Override
+          VALUE evaluate(Locals<VALUE> locals) {
+            VALUE x = operand.eval(locals);
+            if (context.isErrorValue(x)) { return x; }
+            return context.primitiveBitwiseInvert(x);
+          }
+        };
+    }
+    throw new AssertionError(v);
+  }
+
+
+  /**
+   * Computes the value to store in a left hand side from any right hand side
+   * as for a plain assignment.
+   *
+   * @see ReadModifyWriteUpdate
+   */
+  class Update {
+    /** True if the old value of the left hand side is needed. */
+    final boolean readsOld;
+    final @Nullable Expr rhs;
+
+    Update(Expr rhs) {
+      this(false, rhs);
+    }
+
+    private Update(boolean readsOld, @Nullable Expr rhs) {
+      this.readsOld = readsOld;
+      this.rhs = rhs;
+    }
+
+    /** The value to store, or an error value. */
+    final VALUE newValue(@Nullable VALUE oldValue, Locals<VALUE> locals) {
+      VALUE rhsValue;
+      if (rhs != null) {
+        rhsValue = rhs.eval(locals);
+        if (context.isErrorValue(rhsValue)) { return rhsValue; }
+      } else {
+        rhsValue = context.nullValue();
+      }
+      return combine(oldValue, rhsValue);
+    }
+
+    /** The value to store given the old value if {@link #readsOld}. */
+    VALUE combine(@SuppressWarnings("unused") @Nullable VALUE oldValue,
+                  VALUE rhsValue) {
+      return rhsValue;
+    }
+  }
+
+  /**
+   * Computes the value to store in a left hand side from the value it holds
+   * and any right hand side as for compound assignments and increments.
+   */
+  abstract class ReadModifyWriteUpdate extends Update {
+    ReadModifyWriteUpdate(@Nullable Expr rhs) {
+      super(true, rhs);
+    }
+
+    @Override
+    abstract VALUE combine(VALUE oldValue, VALUE rhsValue);
+  }
+
+  /** A compiled left hand side that can be read from or assigned. */
+  abstract class Lhs {
+    final J8BaseNode node;
+
+    Lhs(J8BaseNode node) {
+      this.node = node;
+    }
+
+    abstract VALUE read(Locals<VALUE> locals);
+
+    /**
+     * Stores the updated value.
+     *
+     * @param returnOld true to return the value before the update instead
+     *     of the stored value as for post-increment.
+     * @return the error value on failure.
+     */
+    abstract VALUE assign(
+        Locals<VALUE> locals, Update update, boolean returnOld);
+  }
+
+  private @Nullable Lhs compileLhs(LeftHandSideNode lhs) {
+    if (lhs.getNChildren() == 1) {
+      J8BaseNode child = lhs.getChild(0);
+      if (child instanceof PrimaryNode) {
+        return compileLhs((PrimaryNode) child);
+      } else if (child instanceof ExpressionAtomNode) {
+        return compileLhs((ExpressionAtomNode) child);
+      }
+    }
+    return null;
+  }
+
+  /** The name of the local referenced by e, or null. */
+  static @Nullable Name localName(ExpressionAtomNode e) {
+    if (e.getVariant() != ExpressionAtomNode.Variant.Local) {
+      // Free fields depend on the context's this type at execution time.
+      return null;
+    }
+    LocalNameNode nameNode = e.firstChildWithType(LocalNameNode.class);
+    if (nameNode == null) { return null; }
+    Name name = nameNode.getReferencedExpressionName();
+    if (name == null) {
+      IdentifierNode identNode =
+          nameNode.firstChildWithType(IdentifierNode.class);
+      if (identNode == null) { return null; }
+      name = Name.root(identNode.getValue(), Name.Type.AMBIGUOUS);
+    }
+    return name;
+  }
+
+  /** Resolves the local referenced by e, or returns null. */
+  @Nullable LocalRef resolveLocal(ExpressionAtomNode e) {
+    Name name = localName(e);
+    return name != null ? resolve(name) : null;
+  }
+
+  private @Nullable Lhs compileLhs(ExpressionAtomNode e) {
+    Name name = localName(e);
+    if (name == null) { return null; }
+    LocalRef ref = resolve(name);
+    int depth = ref.depth;
+    int slot = ref.slot;
+    if (slot < 0) {
+      return new Lhs(e) {
+        @Override
+        VALUE read(Locals<VALUE> locals) {
+          return locals.up(depth).get(name, context.errorValue());
+        }
+
+        @Override
+        VALUE assign(Locals<VALUE> locals, Update update, boolean returnOld) {
+          Locals<VALUE> scopeLocals = locals.up(depth);
+          VALUE oldValue = null;
+          if (update.readsOld) {
+            oldValue = scopeLocals.get(name, context.errorValue());
+            if (context.isErrorValue(oldValue)) { return oldValue; }
+          }
+          VALUE newValue = update.newValue(oldValue, locals);
+          if (context.isErrorValue(newValue)) { return newValue; }
+          VALUE stored = scopeLocals.set(name, newValue);
+          return returnOld ? oldValue : stored;
+        }
+      };
+    }
+    return new Lhs(e) {
+      @Override
+      VALUE read(Locals<VALUE> locals) {
+        return locals.up(depth).getSlot(slot);
+      }
+
+      @Override
+      VALUE assign(Locals<VALUE> locals, Update update, boolean returnOld) {
+        VALUE oldValue = null;
+        if (update.readsOld) {
+          oldValue = locals.up(depth).getSlot(slot);
+          if (context.isErrorValue(oldValue)) { return oldValue; }
+        }
+        VALUE newValue = update.newValue(oldValue, locals);
+        if (context.isErrorValue(newValue)) { return newValue; }
+        VALUE stored = locals.up(depth).setSlot(slot, newValue);
+        return returnOld ? oldValue : stored;
+      }
+    };
+  }
+
+  private @Nullable Lhs compileLhs(PrimaryNode e) {
+    switch (e.getVariant()) {
+      case ArrayAccess:
+        if (e.getNChildren() == 2) {
+          return compileArrayAccess(e);
+        }
+        break;
+      case FieldAccess:
+        if (e.getNChildren() == 2) {
+          return compileFieldAccess(e);
+        }
+        break;
+      default:
+        break;
+    }
+    return null;
+  }
+
+  private Lhs compileArrayAccess(PrimaryNode e) {
+    Expr arrExpr = compileExpr(Interpreter.leftOperand(e));
+    Expr idxExpr = compileExpr(Interpreter.rightOperand(e));
+    Function<VALUE, VALUE> toInt = context.coercion(StaticType.T_INT);
+    return new Lhs(e) {
+      /** The index or -1 if not a valid index into arr. */
+      private int index(VALUE arr, VALUE idx) {
+        Optional<Integer> iOpt = context.toInt(toInt.apply(idx));
+        if (iOpt.isPresent()) {
+          int i = iOpt.get();
+          if (0 <= i && i < context.arrayLength(arr)) {
+            return i;
+          }
+        }
+        interpreter.error(e, "invalid LHS " + e.getVariant());
+        return -1;
+      }
+
+      @Override
+      VALUE read(Locals<VALUE> locals) {
+        VALUE arr = arrExpr.eval(locals);
+        if (context.isErrorValue(arr)) { return arr; }
+        VALUE idx = idxExpr.eval(locals);
+        if (context.isErrorValue(idx)) { return idx; }
+        int i = index(arr, idx);
+        if (i < 0) { return context.errorValue(); }
+        return context.arrayGet(arr, i);
+      }
+
+      @Override
+      VALUE assign(Locals<VALUE> locals, Update update, boolean returnOld) {
+        VALUE arr = arrExpr.eval(locals);
+        if (context.isErrorValue(arr)) { return arr; }
+        VALUE idx = idxExpr.eval(locals);
+        if (context.isErrorValue(idx)) { return idx; }
+        int i = index(arr, idx);
+        if (i < 0) { return context.errorValue(); }
+        VALUE oldValue = null;
+        if (update.readsOld) {
+          oldValue = context.arrayGet(arr, i);
+          if (context.isErrorValue(oldValue)) { return oldValue; }
+        }
+        VALUE newValue = update.newValue(oldValue, locals);
+        if (context.isErrorValue(newValue)) { return newValue; }
+        VALUE stored = context.arraySet(arr, i, newValue);
+        return returnOld ? oldValue : stored;
+      }
+    };
+  }
+
+  private @Nullable Lhs compileFieldAccess(PrimaryNode e) {
+    J8BaseNode objNode = Interpreter.leftOperand(e);
+    StaticType objType = objNode instanceof J8Typed
+        ? ((J8Typed) objNode).getStaticType()
+        : null;
+
+    FieldNameNode nameNode = e.firstChildWithType(FieldNameNode.class);
+    if (nameNode == null) { return null; }
+    IdentifierNode identNode = nameNode.firstChildWithType(
+        IdentifierNode.class);
+    Name canonName = nameNode.getReferencedExpressionName();
+
+    FieldInfo fieldInfo = null;
+    if (canonName != null) {
+      Optional<TypeInfo> objInfo = context.getTypePool().r.resolve(
+          canonName.getContainingClass());
+      if (objInfo.isPresent()) {
+        Optional<FieldInfo> fi = interpreter.fieldForType(
+            objInfo.get(), canonName.identifier, false);
+        if (fi.isPresent()) {
+          fieldInfo = fi.get();
+        }
+      }
+    }
+    String ident = identNode != null ? identNode.getValue() : null;
+    boolean isArrayLength = fieldInfo == null
+        && objType instanceof ArrayType && "length".equals(ident);
+    if (fieldInfo == null && ident == null) { return null; }
+
+    Expr objExpr = compileExpr(objNode);
+    FieldInfo fi = fieldInfo;
+    boolean isStatic = fi != null && Modifier.isStatic(fi.modifiers);
+    return new Lhs(e) {
+      private VALUE get(VALUE obj) {
+        return isStatic
+            ? context.getStaticField(fi)
+            : context.getField(fi, obj);
+      }
+
+      @Override
+      VALUE read(Locals<VALUE> locals) {
+        VALUE obj = objExpr.eval(locals);
+        if (context.isErrorValue(obj)) { return obj; }
+        if (fi != null) {
+          return get(obj);
+        } else if (isArrayLength) {
+          return context.from(context.arrayLength(obj));
+        } else {
+          return context.getFieldDynamic(ident, obj);
+        }
+      }
+
+      @Override
+      VALUE assign(Locals<VALUE> locals, Update update, boolean returnOld) {
+        VALUE obj = objExpr.eval(locals);
+        if (context.isErrorValue(obj)) { return obj; }
+        if (fi == null) {
+          interpreter.error(
+              null,
+              isArrayLength
+              ? "Cannot assign array length"
+              : "Cannot assign to dynamic field " + ident);
+          return context.errorValue();
+        }
+        VALUE oldValue = null;
+        if (update.readsOld) {
+          oldValue = get(obj);
+          if (context.isErrorValue(oldValue)) { return oldValue; }
+        }
+        VALUE newValue = update.newValue(oldValue, locals);
+        if (context.isErrorValue(newValue)) { return newValue; }
+        VALUE stored = isStatic
+            ? context.setStaticField(fi, newValue)
+            : context.setField(fi, obj, newValue);
+        return returnOld ? oldValue : stored;
+      }
+    };
+  }
+
+  private Step compileAssignment(AssignmentNode e) {
+    if (e.getNChildren() != 3) {
+      return interpreted(e, null);
+    }
+    LeftHandSideNode lhsNode = e.firstChildWithType(LeftHandSideNode.class);
+    AssignmentOperatorNode op = e.firstChildWithType(
+        AssignmentOperatorNode.class);
+    J8BaseNode rhsNode = Interpreter.rightOperand(e);
+    Lhs lhs = lhsNode != null ? compileLhs(lhsNode) : null;
+    if (lhs == null || op == null || rhsNode == null) {
+      return interpreted(e, null);
+    }
+    Expr rhs = compileExpr(rhsNode);
+    Update update;
+    if (op.getVariant() == AssignmentOperatorNode.Variant.Eq) {
+      update = new Update(rhs);
+    } else {
+      Interpreter<VALUE>.LazyBinaryOp binaryOp = interpreter.binaryOpFor(
+          lhsNode, op.getVariant(), rhsNode);
+      update = new ReadModifyWriteUpdate(rhs) {
+        @Override
+        VALUE combine(VALUE oldValue, VALUE rhsValue) {
+          return binaryOp.perform(oldValue, rhsValue);
+        }
+      };
+    }
+    return new Expr(e) {
+      @Override
+      VALUE evaluate(Locals<VALUE> locals) {
+        return lhs.assign(locals, update, false);
+      }
+    };
+  }
+
+  private Step compileIncrDecr(J8BaseNode node) {
+    boolean isPost = node.getNodeType() == J8NodeType.PostExpression;
+    LeftHandSideNode lhsNode = node.firstChildWithType(LeftHandSideNode.class);
+    IncrDecrOperatorNode opNode = node.firstChildWithType(
+        IncrDecrOperatorNode.class);
+    Lhs lhs = lhsNode != null ? compileLhs(lhsNode) : null;
+    if (lhs == null || opNode == null) {
+      return interpreted(node, null);
+    }
+    VALUE one = context.from(1);
+    Update update;
+    switch (opNode.getVariant()) {
+      case DshDsh:
+        update = new ReadModifyWriteUpdate(null) {
+          @Override
+          VALUE combine(VALUE oldValue, VALUE rhsValue) {
+            return context.primitiveSubtraction(oldValue, one);
+          }
+        };
+        break;
+      case PlsPls:
+        update = new ReadModifyWriteUpdate(null) {
+          @Override
+          VALUE combine(VALUE oldValue, VALUE rhsValue) {
+            return context.primitiveAddition(oldValue, one);
+          }
+        };
+        break;
+      default:
+        throw new AssertionError(opNode);
+    }
+    return new Expr(node) {
+      @Override
+      VALUE evaluate(Locals<VALUE> locals) {
+        return lhs.assign(locals, update, isPost);
+      }
+    };
+  }
+
+  private Step compileInvocation(
+      @Nullable J8BaseNode objNode, J8BaseNode call) {
+    MethodNameNode name = call.firstChildWithType(MethodNameNode.class);
+    IdentifierNode identNode = name != null
+        ? name.firstChildWithType(IdentifierNode.class)
+        : null;
+    if (identNode == null) {
+      return interpreted(call, null);
+    }
+    String ident = identNode.getValue();
+    TypeSpecification declType = name.getMethodDeclaringType();
+    MethodDescriptor descriptor = name.getMethodDescriptor();
+    CallableInfo info = null;
+    if (declType != null && descriptor != null) {
+      Optional<CallableInfo> infoOpt = interpreter.callableForType(
+          declType, ident, descriptor);
+      if (!infoOpt.isPresent()) {
+        return interpreted(call, null);
+      }
+      info = infoOpt.get();
+    }
+    boolean isStatic = info != null && Modifier.isStatic(info.modifiers);
+
+    Expr receiver = !isStatic && objNode != null ? compileExpr(objNode) : null;
+
+    @Nullable ArgumentListNode actuals = call.firstChildWithType(
+        ArgumentListNode.class);
+    int nActuals = actuals != null ? actuals.getNChildren() : 0;
+    Expr[] actualExprs = newExprArray(nActuals);
+    for (int i = 0; i < nActuals; ++i) {
+      actualExprs[i] = compileExpr(actuals.getChild(i));
+    }
+
+    CallableInfo callee = info;
+    return new Expr(call) {
+      @Override
+      VALUE evaluate(Locals<VALUE> locals) {
+        VALUE methodReceiver;
+        if (isStatic) {
+          methodReceiver = context.nullValue();
+        } else if (receiver != null) {
+          methodReceiver = receiver.eval(locals);
+          if (context.isErrorValue(methodReceiver)) { return methodReceiver; }
+        } else {
+          methodReceiver = bareReceiver();
+          if (context.isErrorValue(methodReceiver)) { return methodReceiver; }
+        }
+
+        List<VALUE> actualValues = Lists.newArrayListWithCapacity(nActuals);
+        for (Expr actualExpr : actualExprs) {
+          VALUE actualValue = actualExpr.eval(locals);
+          if (context.isErrorValue(actualValue)) {
+            return context.errorValue();
+          }
+          actualValues.add(actualValue);
+        }
+
+        if (callee != null) {
+          if (isStatic) {
+            return interpreter.invokeStatic(callee, actualValues);
+          } else {
+            return interpreter.invokeVirtual(
+                callee, methodReceiver, actualValues);
+          }
+        } else {
+          return context.invokeDynamic(ident, methodReceiver, actualValues);
+        }
+      }
+
+      /**
+       * The receiver for a bare method call or the error value on failure.
+       * The null value is a valid receiver for dynamic invocations.
+       */
+      private VALUE bareReceiver() {
+        VALUE methodReceiver = context.errorValue();
+        if (callee != null) {
+          methodReceiver = context.getThisValue(
+              callee.canonName.getContainingClass());
+        }
+        if (context.isErrorValue(methodReceiver)) {
+          TypeInfo ti = context.getThisType();
+          if (ti != null) {
+            methodReceiver = context.getThisValue(ti.canonName);
+          }
+        }
+        if (context.isErrorValue(methodReceiver)) {
+          if (callee != null) {
+            interpreter.error(
+                call, "Cannot find message receiver for " + callee);
+            return context.errorValue();
+          } else {
+            // Let the dynamic invocation handler in context handle any error.
+            methodReceiver = context.nullValue();
+          }
+        }
+        return methodReceiver;
+      }
+    };
+  }
+
+  private Step compileBlockStatements(
+      J8BaseNode node, @Nullable String parentLabel) {
+    int n = node.getNChildren();
+    @SuppressWarnings("unchecked")
+    Step[] steps = (Step[]) new ClosureCompiler.Step[n];
+    for (int i = 0; i < n; ++i) {
+      steps[i] = compile(node.getChild(i), parentLabel);
+    }
+    return new Stmt(node) {
+      @Override
+      Completion<VALUE> execute(Locals<VALUE> locals) {
+        for (Step step : steps) {
+          Completion<VALUE> result;
+          if (step instanceof ClosureCompiler.Expr) {
+            // Avoid allocating completions for expression statements.
+            @SuppressWarnings("unchecked")
+            VALUE v = ((Expr) step).effect(locals);
+            if (!context.isErrorValue(v)) { continue; }
+            result = normal(v);
+          } else {
+            @SuppressWarnings("unchecked")
+            Completion<VALUE> stmtResult = ((Stmt) step).exec(locals);
+            result = stmtResult;
+          }
+          if (result.kind == Completion.Kind.NORMAL
+              && !context.isErrorValue(result.value)) {
+            continue;
+          }
+          if (result.kind == Completion.Kind.BREAK
+              && result.label != null && result.label.equals(parentLabel)) {
+            break;
+          }
+          return result;
+        }
+        return nullCompletion;
+      }
+    };
+  }
+
+  /** An expression that computes unboxed and boxes only the result. */
+  private Expr boxed(J8BaseNode node, PrimitiveCompiler<VALUE>.Prim p) {
+    PrimitiveCompiler<VALUE> prims = primitives;
+    return new Expr(node) {
+      @Override
+      VALUE evaluate(Locals<VALUE> locals) {
+        try {
+          return prims.box(p, locals);
+        } catch (@SuppressWarnings("unused") PrimitiveCompiler.Abort ex) {
+          return context.errorValue();
+        }
+      }
+
+      @Override
+      VALUE evaluateForEffect(Locals<VALUE> locals) {
+        try {
+          prims.run(p, locals);
+          return context.nullValue();
+        } catch (@SuppressWarnings("unused") PrimitiveCompiler.Abort ex) {
+          return context.errorValue();
+        }
+      }
+    };
+  }
+
+  private Step compileLabeled(J8BaseNode node) {
+    LabelNode labelNode = node.firstChildWithType(LabelNode.class);
+    J8BaseNode stmtNode = node.firstChildWithType(StatementNode.class);
+    if (stmtNode != null
+        && ((StatementNode) stmtNode).getVariant()
+            == StatementNode.Variant.Block) {
+      // A block is a barrier for parentLabel, so feed this through
+      // explicitly.
+      stmtNode = stmtNode.firstChildWithType(BlockNode.class);
+      if (stmtNode != null) {
+        stmtNode = stmtNode.firstChildWithType(BlockStatementsNode.class);
+      }
+    }
+    IdentifierNode identNode = labelNode != null
+        ? labelNode.firstChildWithType(IdentifierNode.class)
+        : null;
+    if (identNode == null || stmtNode == null) {
+      return interpreted(node, null);
+    }
+    String label = identNode.getValue();
+    Stmt stmt = asStmt(compile(stmtNode, label));
+    return new Stmt(node) {
+      @Override
+      Completion<VALUE> execute(Locals<VALUE> locals) {
+        Completion<VALUE> result = stmt.exec(locals);
+        if (label.equals(result.label)) {
+          return nullCompletion;
+        }
+        return result;
+      }
+    };
+  }
+
+  private Step compileLocalVariableDeclaration(J8BaseNode node) {
+    UnannTypeNode typeNode = node.firstChildWithType(UnannTypeNode.class);
+    if (typeNode == null) {
+      return interpreted(node, null);
+    }
+    Function<VALUE, VALUE> coercion = context.coercion(
+        typeNode.getStaticType());
+    ImmutableList<VariableDeclaratorNode> decls = node
+        .finder(VariableDeclaratorNode.class)
+        .exclude(J8NodeType.VariableInitializer)
+        .find();
+    int n = decls.size();
+    Name[] names = new Name[n];
+    Expr[] initializers = newExprArray(n);
+    // Primitive locals are stored unboxed when compiled code can operate on
+    // them unboxed.
+    PrimitiveCompiler<VALUE> prims = primitives;
+    PrimitiveCompiler.Kind declaredKind = prims != null
+        ? PrimitiveCompiler.Kind.of(typeNode.getStaticType())
+        : null;
+    @SuppressWarnings("unchecked")
+    Locals.Unboxed<VALUE>[] unboxeds = new Locals.Unboxed[n];
+    @SuppressWarnings("unchecked")
+    PrimitiveCompiler<VALUE>.Prim[] unboxedInitializers =
+        new PrimitiveCompiler.Prim[n];
+    for (int i = 0; i < n; ++i) {
+      VariableDeclaratorNode decl = decls.get(i);
+      VariableDeclaratorIdNode varid = decl.firstChildWithType(
+          VariableDeclaratorIdNode.class);
+      if (varid == null) {
+        return interpreted(node, null);
+      }
+      Name localName = varid.getDeclaredExpressionName();
+      if (localName == null) {
+        IdentifierNode id = varid.firstChildWithType(IdentifierNode.class);
+        if (id == null) {
+          return interpreted(node, null);
+        }
+        localName = Name.root(id.getValue(), Name.Type.LOCAL);
+      }
+      names[i] = localName;
+      if (prims != null && varid.firstChildWithType(J8NodeType.Dims) == null) {
+        unboxeds[i] = prims.unboxedFor(declaredKind);
+      }
+    }
+    for (int i = 0; i < n; ++i) {
+      VariableDeclaratorNode decl = decls.get(i);
+      // The initializer can see the local it initializes.
+      declareInScope(names[i], unboxeds[i] != null ? declaredKind : null);
+      VariableInitializerNode varinit =
+          decl.firstChildWithType(VariableInitializerNode.class);
+      if (varinit != null) {
+        if (unboxeds[i] != null) {
+          unboxedInitializers[i] = prims.compileInitializer(
+              varinit, declaredKind);
+        }
+        if (unboxedInitializers[i] == null) {
+          initializers[i] = compileExpr(varinit);
+        }
+      }
+    }
+    return new Stmt(node) {
+      @Override
+      Completion<VALUE> execute(Locals<VALUE> locals) {
+        // Slots are assigned in declaration order, so declaring in order
+        // puts each local in the slot the compiler resolved uses to.
+        for (int i = 0; i < n; ++i) {
+          int slot = locals.declare(names[i], coercion, unboxeds[i]);
+          PrimitiveCompiler<VALUE>.Prim unboxedInitializer =
+              unboxedInitializers[i];
+          if (unboxedInitializer != null) {
+            long bits;
+            try {
+              bits = prims.bits(unboxedInitializer, locals);
+            } catch (@SuppressWarnings("unused")
+                     PrimitiveCompiler.Abort ex) {
+              return errorCompletion;
+            }
+            locals.setBits(slot, bits);
+            continue;
+          }
+          Expr initializer = initializers[i];
+          if (initializer != null) {
+            VALUE initialValue = initializer.eval(locals);
+            if (context.isErrorValue(initialValue)) {
+              return normal(initialValue);
+            }
+            locals.set(names[i], initialValue);
+          }
+        }
+        return nullCompletion;
+      }
+    };
+  }
+
+  /**
+   * @param expression the condition node used for error reporting.
+   */
+  private Stmt loop(
+      @Nullable Stmt forInit, @Nullable J8BaseNode expression,
+      @Nullable Expr cond, @Nullable Stmt forUpdate, @Nullable Stmt body,
+      @Nullable String parentLabel) {
+    return new Stmt(null) {
+      @Override
+      Completion<VALUE> execute(Locals<VALUE> locals) {
+        if (forInit != null) {
+          Completion<VALUE> result = forInit.exec(locals);
+          if (!context.completedNormallyWithoutError(result)) {
+            return result;
+          }
+        }
+        while (true) {
+          if (cond != null) {
+            VALUE condValue = cond.eval(locals);
+            if (context.isErrorValue(condValue)) { return normal(condValue); }
+            switch (context.toBoolean(condValue)) {
+              case FALSE:
+                return nullCompletion;
+              case OTHER:
+                interpreter.error(
+                    expression, "Invalid condition result: " + condValue);
+                return errorCompletion;
+              case TRUE:
+                break;
+            }
+          }
+          if (body != null) {
+            Completion<VALUE> result = body.exec(locals);
+            switch (result.kind) {
+              case BREAK:
+                if (result.label == null || result.label.equals(parentLabel)) {
+                  return nullCompletion;
+                } else {
+                  return result;
+                }
+              case CONTINUE:
+                if (result.label == null || result.label.equals(parentLabel)) {
+                  break;  // proceed to increment
+                } else {
+                  return result;
+                }
+              case NORMAL:
+                if (context.isErrorValue(result.value)) {
+                  return result;
+                }
+                break;
+              case RETURN:
+              case THROW:
+                return result;
+            }
+          }
+          if (forUpdate != null) {
+            Completion<VALUE> result = forUpdate.exec(locals);
+            if (!context.completedNormallyWithoutError(result)) {
+              return result;
+            }
+          }
+        }
+      }
+    };
+  }
+
+  private Step compileDo(J8BaseNode node, @Nullable String parentLabel) {
+    if (node.getNChildren() != 2) {
+      return interpreted(node, parentLabel);
+    }
+    Stmt body = asStmt(compile(node.getChild(0), null));
+    Stmt loop = loop(
+        null, node.getChild(1), compileExpr(node.getChild(1)), null, body,
+        parentLabel);
+    return new Stmt(node) {
+      @Override
+      Completion<VALUE> execute(Locals<VALUE> locals) {
+        Completion<VALUE> firstTimeThroughBody = body.exec(locals);
+        switch (firstTimeThroughBody.kind) {
+          case BREAK:
+            if (firstTimeThroughBody.label == null
+                || firstTimeThroughBody.label.equals(parentLabel)) {
+              return nullCompletion;
+            }
+            return firstTimeThroughBody;
+          case CONTINUE:
+            if (firstTimeThroughBody.label == null
+                || firstTimeThroughBody.label.equals(parentLabel)) {
+              break;
+            }
+            return firstTimeThroughBody;
+          case NORMAL:
+            break;
+          case RETURN:
+          case THROW:
+            return firstTimeThroughBody;
+        }
+        return loop.exec(locals);
+      }
+    };
+  }
+
+  private Step compileEnhancedFor(
+      EnhancedForStatementNode s, @Nullable String parentLabel) {
+    J8WholeType elementTypeNode = s.firstChildWithType(J8WholeType.class);
+    VariableDeclaratorIdNode decl = s.firstChildWithType(
+        VariableDeclaratorIdNode.class);
+    ExpressionNode sequenceNode = s.firstChildWithType(ExpressionNode.class);
+    StatementNode bodyNode = s.firstChildWithType(StatementNode.class);
+    if (elementTypeNode == null || decl == null || sequenceNode == null
+        || bodyNode == null) {
+      return interpreted(s, parentLabel);
+    }
+
+    StaticType elementType = elementTypeNode.getStaticType();
+    if (elementType == null) {
+      elementType = context.getTypePool().type(
+          JavaLang.JAVA_LANG_OBJECT, null, context.getLogger());
+    }
+    Function<VALUE, VALUE> coercion = context.coercion(elementType);
+
+    Name declaredName = decl.getDeclaredExpressionName();
+    Name elementName = declaredName != null
+        ? declaredName
+        : Name.root(
+            Mixins.getDeclaredExpressionIdentifier(decl),
+            Name.Type.AMBIGUOUS);
+
+    pushScope();
+    declareInScope(elementName);
+    Expr sequence = compileExpr(sequenceNode);
+    Stmt body = asStmt(compile(bodyNode, null));
+    popScope();
+    StaticType staticSequenceType = sequenceNode.getStaticType();
+
+    return new Stmt(s) {
+      @Override
+      Completion<VALUE> execute(Locals<VALUE> locals) {
+        Locals<VALUE> loopLocals = new Locals<>(locals);
+        loopLocals.declare(elementName, coercion);
+
+        VALUE sequenceValue = sequence.eval(loopLocals);
+        if (context.isErrorValue(sequenceValue)) {
+          return normal(sequenceValue);
+        }
+
+        StaticType sequenceType = staticSequenceType != null
+            ? staticSequenceType
+            : context.runtimeType(sequenceValue);
+        return interpreter.forEach(
+            sequenceNode, parentLabel, sequenceValue,
+            new Function<VALUE, Completion<VALUE>>() {
+
+              @Override
+              public Completion<VALUE> apply(VALUE element) {
+                loopLocals.setSlot(0, element);
+
+                return body.exec(loopLocals);
+              }
+
+            },
+            sequenceType);
+      }
+    };
+  }
+
+  @SuppressWarnings("unchecked")
+  private Expr[] newExprArray(int n) {
+    return (Expr[]) new ClosureCompiler.Expr[n];
+  }
+}
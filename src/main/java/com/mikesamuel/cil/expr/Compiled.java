@@ -0,0 +1,41 @@
+package com.mikesamuel.cil.expr;
+
+import com.google.common.base.Supplier;
+import com.mikesamuel.cil.parser.SourcePosition;
+
+/**
+ * A statement or expression that has been compiled so that it can be
+ * executed repeatedly without re-dispatching on AST node types.
+ *
+ * @see Interpreter#compile
+ */
+public final class Compiled<VALUE> {
+  private final Interpreter<VALUE> interpreter;
+  private final ClosureCompiler<VALUE>.Stmt root;
+
+  Compiled(Interpreter<VALUE> interpreter, ClosureCompiler<VALUE>.Stmt root) {
+    this.interpreter = interpreter;
+    this.root = root;
+  }
+
+  /** Executes the compiled AST fragment. */
+  public Completion<VALUE> execute() {
+    return execute(new Locals<>());
+  }
+
+  /**
+   * Executes the compiled AST fragment.
+   *
+   * @param locals used to resolve free variables.
+   * @return the same completion that
+   *     {@link Interpreter#interpret(com.mikesamuel.cil.ast.j8.J8BaseNode,
+   *     Locals)} would.
+   */
+  public Completion<VALUE> execute(Locals<VALUE> locals) {
+    Supplier<SourcePosition> oldSourcePositionSupplier =
+        interpreter.installSourcePositionSupplier();
+    Completion<VALUE> result = root.exec(locals);
+    interpreter.context.setSourcePositionSupplier(oldSourcePositionSupplier);
+    return result;
+  }
+}
@@ -0,0 +1,344 @@
+package com.mikesamuel.cil.expr;
+
+import java.lang.reflect.Modifier;
+import java.util.EnumSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Optional;
+import com.mikesamuel.cil.ast.Trees;
+import com.mikesamuel.cil.ast.j8.ExpressionAtomNode;
+import com.mikesamuel.cil.ast.j8.FieldNameNode;
+import com.mikesamuel.cil.ast.j8.J8BaseInnerNode;
+import com.mikesamuel.cil.ast.j8.J8BaseNode;
+import com.mikesamuel.cil.ast.j8.J8NodeType;
+import com.mikesamuel.cil.ast.j8.J8Typed;
+import com.mikesamuel.cil.ast.j8.J8WholeType;
+import com.mikesamuel.cil.ast.j8.PrefixOperatorNode;
+import com.mikesamuel.cil.ast.j8.PrimaryNode;
+import com.mikesamuel.cil.ast.j8.Tokens;
+import com.mikesamuel.cil.ast.meta.FieldInfo;
+import com.mikesamuel.cil.ast.meta.JavaLang;
+import com.mikesamuel.cil.ast.meta.Name;
+import com.mikesamuel.cil.ast.meta.StaticType;
+import com.mikesamuel.cil.ast.meta.StaticType.TypePool;
+import com.mikesamuel.cil.ast.meta.TypeInfo;
+import com.mikesamuel.cil.ast.meta.TypeSpecification;
+import com.mikesamuel.cil.parser.Input;
+import com.mikesamuel.cil.parser.LeftRecursion;
+import com.mikesamuel.cil.parser.ParseErrorReceiver;
+import com.mikesamuel.cil.parser.ParseResult;
+import com.mikesamuel.cil.parser.ParseState;
+import com.mikesamuel.cil.parser.SourcePosition;
+import com.mikesamuel.cil.ptree.PTree;
+
+/**
+ * Replaces constant expressions (JLS 15.28) with literals so that code which
+ * is interpreted many times, like template directives in loop bodies and
+ * template functions, need not recompute them.
+ * <p>
+ * Besides operators over literals, qualified names of {@code static final}
+ * fields of primitive or {@code String} type, like
+ * {@code Integer.MAX_VALUE}, are folded using the values loaded by the
+ * folder's class loader.
+ * Those include constant variables but also fields like
+ * {@code File.separator} whose values are only fixed once their class is
+ * initialized, so a folded tree should only be interpreted with classes
+ * from the same loader.
+ * Shifts are not folded since the interpreter does not yet support them.
+ * <p>
+ * Folded values are computed by the {@link Interpreter}, so interpreting a
+ * folded tree produces the same values as interpreting the original.
+ * An expression whose evaluation fails, like {@code 1 / 0}, is left as is so
+ * that the failure is reported if and when it is interpreted.
+ */
+public final class ConstantFolder {
+  private final Interpreter<Object> interpreter;
+
+  /**
+   * @param typePool used to resolve the types of casts.
+   */
+  public ConstantFolder(ClassLoader loader, TypePool typePool) {
+    // Failures are reported when the unfolded expression is interpreted.
+    Logger quietLogger = Logger.getAnonymousLogger();
+    quietLogger.setUseParentHandlers(false);
+    quietLogger.setLevel(Level.OFF);
+    this.interpreter = new Interpreter<>(
+        new InterpretationContextImpl(quietLogger, loader, typePool));
+  }
+
+  /**
+   * Replaces maximal constant expressions under root with literals.
+   *
+   * @return the number of expressions replaced.
+   */
+  public int foldWithin(J8BaseNode root) {
+    int[] nFolded = new int[1];
+    fold(root, nFolded);
+    return nFolded[0];
+  }
+
+  /**
+   * Folds maximal constant expressions under node.
+   *
+   * @return true iff node is itself a constant expression or part of one,
+   *     in which case the caller decides whether to fold it.
+   */
+  private boolean fold(J8BaseNode node, int[] nFolded) {
+    int n = node.getNChildren();
+    boolean allChildrenConstant = true;
+    boolean[] childConstant = n != 0 ? new boolean[n] : null;
+    for (int i = 0; i < n; ++i) {
+      childConstant[i] = fold(node.getChild(i), nFolded);
+      allChildrenConstant &= childConstant[i];
+    }
+    if (isConstantPart(node, childConstant, allChildrenConstant)) {
+      return true;
+    }
+    for (int i = 0; i < n; ++i) {
+      if (childConstant[i] && tryToFold((J8BaseInnerNode) node, i)) {
+        ++nFolded[0];
+      }
+    }
+    return false;
+  }
+
+  private static final EnumSet<J8NodeType> LITERALS = EnumSet.of(
+      J8NodeType.BooleanLiteral,
+      J8NodeType.CharacterLiteral,
+      J8NodeType.FloatingPointLiteral,
+      J8NodeType.IntegerLiteral,
+      J8NodeType.StringLiteral);
+
+  /** Operators whose operands may be constant expressions. */
+  private static final EnumSet<J8NodeType> OPERATORS = EnumSet.of(
+      J8NodeType.AdditiveOperator,
+      J8NodeType.EqualityOperator,
+      J8NodeType.MultiplicativeOperator,
+      J8NodeType.PrefixOperator,
+      J8NodeType.RelationalOperator);
+
+  /**
+   * Node types that are constant expressions when all their children are.
+   * Variants with children that cannot be constant, like instanceof's
+   * ReferenceType, are excluded by their children.
+   */
+  private static final EnumSet<J8NodeType> CONSTANT_WHEN_CHILDREN_ARE =
+      EnumSet.of(
+          J8NodeType.AdditiveExpression,
+          J8NodeType.AndExpression,
+          J8NodeType.ConditionalAndExpression,
+          J8NodeType.ConditionalExpression,
+          J8NodeType.ConditionalOrExpression,
+          J8NodeType.EqualityExpression,
+          J8NodeType.ExclusiveOrExpression,
+          J8NodeType.Expression,
+          J8NodeType.InclusiveOrExpression,
+          J8NodeType.Literal,
+          J8NodeType.MultiplicativeExpression,
+          J8NodeType.Primary,
+          J8NodeType.RelationalExpression,
+          J8NodeType.UnaryExpression);
+
+  private boolean isConstantPart(
+      J8BaseNode node, @Nullable boolean[] childConstant,
+      boolean allChildrenConstant) {
+    J8NodeType nt = node.getNodeType();
+    if (LITERALS.contains(nt) || OPERATORS.contains(nt)) {
+      return true;
+    }
+    if (isConstantField(node)) {
+      return true;
+    }
+    if (childConstant == null) {
+      // Excludes ExpressionAtom.This and the like.
+      return false;
+    }
+    if (CONSTANT_WHEN_CHILDREN_ARE.contains(nt)) {
+      return allChildrenConstant;
+    }
+    switch (nt) {
+      case ExpressionAtom:
+        switch (((ExpressionAtomNode) node).getVariant()) {
+          case Literal:
+          case Parenthesized:
+            return allChildrenConstant;
+          default:
+            return false;
+        }
+      case CastExpression:
+        // The operand of a cast to a primitive type or String.
+        return childConstant.length == 2 && childConstant[1]
+            && isConstantCast(node.getChild(0));
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * True for a qualified name like {@code Integer.MAX_VALUE} that reads a
+   * static final field of primitive or String type.
+   */
+  private boolean isConstantField(J8BaseNode node) {
+    if (!(node instanceof PrimaryNode
+          && ((PrimaryNode) node).getVariant()
+             == PrimaryNode.Variant.FieldAccess
+          && node.getNChildren() == 2)) {
+      return false;
+    }
+    // Reading a field via an instance may have side effects.
+    J8BaseNode container = node.getChild(0);
+    if (!(container instanceof ExpressionAtomNode
+          && ((ExpressionAtomNode) container).getVariant()
+             == ExpressionAtomNode.Variant.StaticMember)) {
+      return false;
+    }
+    FieldNameNode nameNode = node.firstChildWithType(FieldNameNode.class);
+    Name canonName = nameNode != null
+        ? nameNode.getReferencedExpressionName()
+        : null;
+    if (canonName == null || canonName.type != Name.Type.FIELD) {
+      return false;
+    }
+    Optional<TypeInfo> declaringType = interpreter.context.getTypePool().r
+        .resolve(canonName.getContainingClass());
+    if (!declaringType.isPresent()) { return false; }
+    Optional<FieldInfo> field = interpreter.fieldForType(
+        declaringType.get(), canonName.identifier, false);
+    if (!field.isPresent()) { return false; }
+    int mods = field.get().modifiers;
+    if (!(Modifier.isStatic(mods) && Modifier.isFinal(mods))) {
+      return false;
+    }
+    TypeSpecification valueType = field.get().getValueType();
+    if (valueType == null) { return false; }
+    if (JavaLang.JAVA_LANG_STRING.equals(valueType)) { return true; }
+    for (StaticType.PrimitiveType pt : StaticType.PRIMITIVE_TYPES) {
+      if (pt.typeSpecification.equals(valueType)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isConstantCast(J8BaseNode castNode) {
+    // Cast is an intermediate, so its child appears in its stead.
+    switch (castNode.getNodeType()) {
+      case ConvertCast:
+        return true;
+      case ConfirmCast:
+        break;
+      default:
+        return false;
+    }
+    Optional<J8WholeType> targetType = castNode.finder(J8WholeType.class)
+        .exclude(J8WholeType.class).findOne();
+    if (!targetType.isPresent()) { return false; }
+    StaticType t = targetType.get().getStaticType();
+    return t != null
+        && JavaLang.JAVA_LANG_STRING.equals(t.typeSpecification);
+  }
+
+  /**
+   * Replaces a constant expression child with a literal.
+   *
+   * @return true if replaced.
+   */
+  private boolean tryToFold(J8BaseInnerNode parent, int index) {
+    J8BaseNode node = parent.getChild(index);
+    if (isFolded(node)) {
+      return false;
+    }
+    if (OPERATORS.contains(node.getNodeType())) {
+      return false;  // Part of the parent's constant expression.
+    }
+    Completion<Object> result = interpreter.interpret(node);
+    if (!interpreter.context.completedNormallyWithoutError(result)) {
+      return false;
+    }
+    String code = toJavaSource(result.value);
+    if (code == null) { return false; }
+    J8BaseNode folded = parseAs(code, node.getNodeType());
+    if (folded == null) { return false; }
+
+    SourcePosition pos = node.getSourcePosition();
+    StaticType type = node instanceof J8Typed
+        ? ((J8Typed) node).getStaticType()
+        : null;
+    for (J8BaseNode n : folded.finder(J8BaseNode.class).find()) {
+      if (pos != null) {
+        n.setSourcePosition(pos);
+      }
+      if (type != null && n instanceof J8Typed) {
+        ((J8Typed) n).setStaticType(type);
+      }
+    }
+    parent.replace(index, folded);
+    return true;
+  }
+
+  /** True if node is already as simple as folding would make it. */
+  private static boolean isFolded(J8BaseNode node) {
+    J8BaseNode e = Interpreter.unwrapDelegates(node);
+    if (e.getNodeType() == J8NodeType.UnaryExpression
+        && e.getNChildren() == 2) {
+      // A negated literal.
+      J8BaseNode op = e.getChild(0);
+      if (op instanceof PrefixOperatorNode
+          && ((PrefixOperatorNode) op).getVariant()
+             == PrefixOperatorNode.Variant.Dsh) {
+        e = Interpreter.unwrapDelegates(e.getChild(1));
+      }
+    }
+    return LITERALS.contains(e.getNodeType());
+  }
+
+  /**
+   * Java source for a literal, possibly negated, that evaluates to value,
+   * or null if value is not a constant or has no such literal.
+   */
+  private static @Nullable String toJavaSource(@Nullable Object value) {
+    if (value instanceof Boolean) {
+      return value.toString();
+    } else if (value instanceof String) {
+      return Tokens.encodeString((String) value);
+    } else if (value instanceof Character) {
+      StringBuilder sb = new StringBuilder();
+      sb.append('\'');
+      Tokens.encodeCodepointOnto(((Character) value).charValue(), sb);
+      sb.append('\'');
+      return sb.toString();
+    } else if (value instanceof Integer) {
+      int i = (Integer) value;
+      // The literal 2147483648 is only allowed as the operand of unary
+      // minus.
+      return i != Integer.MIN_VALUE ? Integer.toString(i) : null;
+    } else if (value instanceof Long) {
+      long j = (Long) value;
+      return j != Long.MIN_VALUE ? j + "L" : null;
+    } else if (value instanceof Float) {
+      float f = (Float) value;
+      return Float.isFinite(f) ? f + "F" : null;
+    } else if (value instanceof Double) {
+      double d = (Double) value;
+      return Double.isFinite(d) ? d + "D" : null;
+    }
+    // Bytes and shorts have no literals.
+    return null;
+  }
+
+  private static @Nullable J8BaseNode parseAs(
+      String code, J8NodeType nodeType) {
+    Input inp = Input.builder().code(code).build();
+    ParseResult result = PTree.complete(nodeType).getParSer().parse(
+        new ParseState(inp), new LeftRecursion(),
+        ParseErrorReceiver.DEV_NULL);
+    if (result.synopsis != ParseResult.Synopsis.SUCCESS) { return null; }
+    // Intermediate nodes are elided as for any other parse of nodeType so the
+    // result may be of another type.
+    return (J8BaseNode) Trees.forGrammar(nodeType.getGrammar())
+        .of(result.next());
+  }
+}
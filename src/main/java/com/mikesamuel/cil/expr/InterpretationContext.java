@@ -89,6 +89,16 @@ public interface InterpretationContext<VALUE> {
    */
   Optional<Integer> toInt(VALUE v);
 
+  /**
+   * Conversions to Java primitives that let {@linkplain Interpreter#compile
+   * compiled code} do arithmetic without boxing intermediate results.
+   * Absent if values of primitive type cannot be unboxed, in which case
+   * compiled code uses the primitive operators below.
+   */
+  default Optional<PrimitiveValues<VALUE>> getPrimitiveValues() {
+    return Optional.absent();
+  }
+
   /**
    * Wraps a primitive.
    */
@@ -4,8 +4,8 @@ import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Executable;
 import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -25,6 +25,7 @@ import com.google.common.base.Suppliers;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableTable;
 import com.google.common.collect.Table;
@@ -159,6 +160,45 @@ implements InterpretationContext<Object> {
     return Optional.absent();
   }
 
+  @Override
+  public Optional<PrimitiveValues<Object>> getPrimitiveValues() {
+    return Optional.of(PRIMITIVE_VALUES);
+  }
+
+  private static final PrimitiveValues<Object> PRIMITIVE_VALUES =
+      new PrimitiveValues<Object>() {
+
+        @Override
+        public boolean booleanValue(Object v) {
+          return (Boolean) v;
+        }
+
+        @Override
+        public int intValue(Object v) {
+          if (v instanceof Character) { return (Character) v; }
+          return ((Number) v).intValue();
+        }
+
+        @Override
+        public long longValue(Object v) {
+          if (v instanceof Character) { return (Character) v; }
+          return ((Number) v).longValue();
+        }
+
+        @Override
+        public float floatValue(Object v) {
+          if (v instanceof Character) { return (Character) v; }
+          return ((Number) v).floatValue();
+        }
+
+        @Override
+        public double doubleValue(Object v) {
+          if (v instanceof Character) { return (Character) v; }
+          return ((Number) v).doubleValue();
+        }
+
+      };
+
   @Override
   public Boolean from(boolean b) {
     return Boolean.valueOf(b);
@@ -243,7 +283,8 @@ implements InterpretationContext<Object> {
   private static @Nullable Number asNumber(@Nullable Object v) {
     if (v instanceof Number) { return (Number) v; }
     if (v instanceof Character) {
-      return Short.valueOf((short) ((Character) v).charValue());
+      // char promotes to int, JLS 5.6.1.
+      return Integer.valueOf(((Character) v).charValue());
     }
     return null;
   }
@@ -292,7 +333,7 @@ implements InterpretationContext<Object> {
       case BYTE:
         n = asNumber(v);
         if (n != null) {
-          return n instanceof Byte ? v : n.byteValue();
+          return v instanceof Byte ? v : n.byteValue();
         }
         break;
       case CHAR:
@@ -305,31 +346,31 @@ implements InterpretationContext<Object> {
       case DOUBLE:
         n = asNumber(v);
         if (n != null) {
-          return n instanceof Double ? v : n.doubleValue();
+          return v instanceof Double ? v : n.doubleValue();
         }
         break;
       case FLOAT:
         n = asNumber(v);
         if (n != null) {
-          return n instanceof Float ? v : n.floatValue();
+          return v instanceof Float ? v : n.floatValue();
         }
         break;
       case INT:
         n = asNumber(v);
         if (n != null) {
-          return n instanceof Integer ? v : n.intValue();
+          return v instanceof Integer ? v : n.intValue();
         }
         break;
       case LONG:
         n = asNumber(v);
         if (n != null) {
-          return n instanceof Long ? v : n.longValue();
+          return v instanceof Long ? v : n.longValue();
         }
         break;
       case SHORT:
         n = asNumber(v);
         if (n != null) {
-          return n instanceof Short ? v : n.shortValue();
+          return v instanceof Short ? v : n.shortValue();
         }
         break;
       case VOID:
@@ -708,17 +749,17 @@ implements InterpretationContext<Object> {
   @Override
   public Object setField(
       FieldInfo field, @Nullable Object container, @Nullable Object newValue) {
-    Optional<Field> fOpt = fieldFor(field);
+    Optional<MemberHandles.FieldAccessor> fOpt = fieldAccessorFor(field);
     Throwable th = null;
     if (fOpt.isPresent()) {
-      Field f = fOpt.get();
-      try {
-        f.set(container, newValue);
-        return f.get(container);
-      } catch (IllegalAccessException | IllegalArgumentException
-               | NullPointerException ex) {
-        // return error below
-        th = ex;
+      MemberHandles.FieldAccessor f = fOpt.get();
+      th = f.checkSet(container, newValue);
+      if (th == null) {
+        th = f.checkGet(container);
+        if (th == null) {
+          f.set(container, newValue);
+          return f.get(container);
+        }
       }
     }
     return error("Failed to set field " + field.canonName, th);
@@ -726,16 +767,17 @@ implements InterpretationContext<Object> {
 
   @Override
   public Object setStaticField(FieldInfo field, @Nullable Object newValue) {
-    Optional<Field> fOpt = fieldFor(field);
+    Optional<MemberHandles.FieldAccessor> fOpt = fieldAccessorFor(field);
     Throwable th = null;
     if (fOpt.isPresent()) {
-      Field f = fOpt.get();
-      try {
-        f.set(null, newValue);
-        return f.get(null);
-      } catch (IllegalAccessException | NullPointerException ex) {
-        // return error below
-        th = ex;
+      MemberHandles.FieldAccessor f = fOpt.get();
+      th = f.checkSet(null, newValue);
+      if (th == null) {
+        th = f.checkGet(null);
+        if (th == null) {
+          f.set(null, newValue);
+          return f.get(null);
+        }
       }
     }
     return error("Failed to set field " + field.canonName, th);
@@ -743,16 +785,13 @@ implements InterpretationContext<Object> {
 
   @Override
   public Object getField(FieldInfo field, @Nullable Object container) {
-    Optional<Field> fOpt = fieldFor(field);
+    Optional<MemberHandles.FieldAccessor> fOpt = fieldAccessorFor(field);
     Throwable th = null;
     if (fOpt.isPresent()) {
-      Field f = fOpt.get();
-      try {
+      MemberHandles.FieldAccessor f = fOpt.get();
+      th = f.checkGet(container);
+      if (th == null) {
         return f.get(container);
-      } catch (IllegalAccessException | IllegalArgumentException
-               | NullPointerException ex) {
-        // return error below
-        th = ex;
       }
     }
     return error("Failed to read field " + field.canonName, th);
@@ -767,36 +806,43 @@ implements InterpretationContext<Object> {
     if ("length".equals(key) && cl.isArray()) {
       return arrayLength(container);
     }
-    Field f;
-    try {
-      f = cl.getField(key);
-    } catch (NoSuchFieldException ex) {
-      return error(
-          "Missing field " + key + " on " + cl.getSimpleName(),
-          ex);
+    MemberHandles.DynamicSite<MemberHandles.FieldAccessor> site =
+        dynamicFieldSites.get(key);
+    if (site == null) {
+      site = new MemberHandles.DynamicSite<>();
+      dynamicFieldSites.put(key, site);
     }
-    try {
-      return f.get(container);
-    } catch (IllegalArgumentException ex) {
-      throw new AssertionError(null, ex);
-    } catch (IllegalAccessException ex) {
+    MemberHandles.FieldAccessor f = site.get(cl);
+    if (f == null) {
+      try {
+        f = MemberHandles.fieldAccessor(cl.getField(key));
+      } catch (NoSuchFieldException ex) {
+        return error(
+            "Missing field " + key + " on " + cl.getSimpleName(),
+            ex);
+      }
+      site.put(cl, f);
+    }
+    Exception ex = f.checkGet(container);
+    if (ex instanceof IllegalAccessException) {
       return error(
           "Access denied to field " + key + " on " + cl.getSimpleName(),
           ex);
+    } else if (ex != null) {
+      throw new AssertionError(null, ex);
     }
+    return f.get(container);
   }
 
   @Override
   public Object getStaticField(FieldInfo field) {
-    Optional<Field> fOpt = fieldFor(field);
+    Optional<MemberHandles.FieldAccessor> fOpt = fieldAccessorFor(field);
     Throwable th = null;
     if (fOpt.isPresent()) {
-      Field f = fOpt.get();
-      try {
+      MemberHandles.FieldAccessor f = fOpt.get();
+      th = f.checkGet(null);
+      if (th == null) {
         return f.get(null);
-      } catch (IllegalAccessException | NullPointerException ex) {
-        // return error below
-        th = ex;
       }
     }
     return error("Failed to read field " + field.canonName, th);
@@ -805,21 +851,20 @@ implements InterpretationContext<Object> {
   @Override
   public Object newInstance(
       CallableInfo constructor, List<? extends Object> constructorActuals) {
-    Optional<Executable> ctorOpt = executableFor(constructor);
+    Optional<MemberHandles.Invoker> ctorOpt = invokerFor(constructor);
     if (ctorOpt.isPresent()) {
-      Executable ctor = ctorOpt.get();
-      if (ctor instanceof Constructor) {
+      MemberHandles.Invoker ctor = ctorOpt.get();
+      if (ctor.executable instanceof Constructor) {
         Object[] actualsArray = constructorActuals.toArray(
             new Object[constructorActuals.size()]);
-        try {
-          return ((Constructor<?>) ctor).newInstance(actualsArray);
-        } catch (@SuppressWarnings("unused")
-                 InstantiationException | IllegalAccessException
-                 | IllegalArgumentException e) {
-          // return error below
-        } catch (InvocationTargetException ex) {
-          log(Level.SEVERE, "Failure in constructor", ex.getTargetException());
+        if (ctor.checkCall(null, actualsArray) == null) {
+          try {
+            return ctor.invoke(null, actualsArray);
+          } catch (Throwable th) {
+            log(Level.SEVERE, "Failure in constructor", th);
+          }
         }
+        // Otherwise return error below
       }
     }
     return ErrorValue.INSTANCE;
@@ -829,22 +874,25 @@ implements InterpretationContext<Object> {
   public Object invokeVirtual(
       CallableInfo method,
       @Nullable Object receiver, List<? extends Object> actuals) {
-    Optional<Executable> execOpt = executableFor(method);
+    Optional<MemberHandles.Invoker> execOpt = invokerFor(method);
     if (execOpt.isPresent()) {
-      Executable exec = execOpt.get();
-      if (exec instanceof Method) {
+      MemberHandles.Invoker exec = execOpt.get();
+      if (exec.executable instanceof Method) {
         Object[] actualsArray = actuals.toArray(new Object[actuals.size()]);
-        try {
-          return ((Method) exec).invoke(receiver, actualsArray);
-        } catch (IllegalAccessException | IllegalArgumentException
-                 | NullPointerException ex) {
+        Exception ex = exec.checkCall(receiver, actualsArray);
+        if (ex == null) {
+          try {
+            return exec.invoke(receiver, actualsArray);
+          } catch (Throwable th) {
+            log(Level.SEVERE, "Failure in method", th);
+          }
+        } else {
           // return error below
           log(Level.SEVERE, "Failure in method", ex);
-        } catch (InvocationTargetException ex) {
-          log(Level.SEVERE, "Failure in method", ex.getTargetException());
         }
       } else {
-        log(Level.SEVERE, "Executable " + exec + " is not a method", null);
+        log(Level.SEVERE,
+            "Executable " + exec.executable + " is not a method", null);
       }
     } else {
       log(Level.SEVERE, "Failed to find executable for " + method.canonName,
@@ -856,30 +904,63 @@ implements InterpretationContext<Object> {
   @Override
   public Object invokeStatic(
       CallableInfo method, List<? extends Object> actuals) {
-    Optional<Executable> execOpt = executableFor(method);
+    Optional<MemberHandles.Invoker> execOpt = invokerFor(method);
     if (execOpt.isPresent()) {
-      Executable exec = execOpt.get();
-      if (exec instanceof Method) {
+      MemberHandles.Invoker exec = execOpt.get();
+      if (exec.executable instanceof Method) {
         Object[] actualsArray = actuals.toArray(new Object[actuals.size()]);
-        try {
-          return ((Method) exec).invoke(null, actualsArray);
-        } catch (@SuppressWarnings("unused")
-                 IllegalAccessException | IllegalArgumentException
-                 | NullPointerException ex) {
-          // return error below
-        } catch (InvocationTargetException ex) {
-          log(Level.SEVERE, "Failure in static method",
-              ex.getTargetException());
+        if (exec.checkCall(null, actualsArray) == null) {
+          try {
+            return exec.invoke(null, actualsArray);
+          } catch (Throwable th) {
+            log(Level.SEVERE, "Failure in static method", th);
+          }
         }
+        // Otherwise return error below
       }
     }
     return ErrorValue.INSTANCE;
   }
 
 
+  /**
+   * Invokes the most specific public method of the receiver's runtime class
+   * that accepts the actual arguments.
+   */
   @Override
   public Object invokeDynamic(
       String methodName, Object receiver, List<? extends Object> actuals) {
+    if (receiver != null) {
+      int arity = actuals.size();
+      String key = methodName + "/" + arity;
+      MemberHandles.DynamicSite<ImmutableList<MemberHandles.Invoker>> site =
+          dynamicMethodSites.get(key);
+      if (site == null) {
+        site = new MemberHandles.DynamicSite<>();
+        dynamicMethodSites.put(key, site);
+      }
+      Class<?> cl = receiver.getClass();
+      ImmutableList<MemberHandles.Invoker> candidates = site.get(cl);
+      if (candidates == null) {
+        candidates = MemberHandles.publicMethods(cl, methodName, arity);
+        site.put(cl, candidates);
+      }
+      Object[] actualsArray = actuals.toArray(new Object[arity]);
+      MemberHandles.Invoker best = null;
+      for (MemberHandles.Invoker candidate : candidates) {
+        if (candidate.checkCall(receiver, actualsArray) == null
+            && (best == null || candidate.isMoreSpecificThan(best))) {
+          best = candidate;
+        }
+      }
+      if (best != null) {
+        try {
+          return best.invoke(receiver, actualsArray);
+        } catch (Throwable th) {
+          return error("Failure in method " + methodName, th);
+        }
+      }
+    }
     return this.error(
         "Could not invoke " + methodName + "(...) on " + receiver + " with "
         + actuals);
@@ -1006,6 +1087,68 @@ implements InterpretationContext<Object> {
 
           });
 
+  /**
+   * Field accessors by the field metadata that call sites resolve to.
+   * Keys are compared by identity, so this caches per-call-site lookups
+   * without pinning metadata for ASTs that are no longer in use.
+   * The accessors themselves are {@linkplain MemberHandles#fieldAccessor
+   * shared} with other contexts.
+   */
+  private final
+  LoadingCache<FieldInfo, Optional<MemberHandles.FieldAccessor>>
+      fieldAccessors = CacheBuilder.newBuilder().weakKeys().build(
+          new CacheLoader<FieldInfo, Optional<MemberHandles.FieldAccessor>>() {
+
+            @SuppressWarnings("synthetic-access")
+            @Override
+            public Optional<MemberHandles.FieldAccessor> load(FieldInfo info) {
+              Optional<Field> f = fieldFor(info);
+              return f.isPresent()
+                  ? Optional.of(MemberHandles.fieldAccessor(f.get()))
+                  : Optional.<MemberHandles.FieldAccessor>absent();
+            }
+
+          });
+
+  private Optional<MemberHandles.FieldAccessor> fieldAccessorFor(
+      FieldInfo info) {
+    return fieldAccessors.getUnchecked(info);
+  }
+
+  /**
+   * Invokers by the callable metadata that call sites resolve to.
+   * Keys are compared by identity, as for {@link #fieldAccessors}.
+   */
+  private final
+  LoadingCache<CallableInfo, Optional<MemberHandles.Invoker>> invokers =
+      CacheBuilder.newBuilder().weakKeys().build(
+          new CacheLoader<CallableInfo, Optional<MemberHandles.Invoker>>() {
+
+            @SuppressWarnings("synthetic-access")
+            @Override
+            public Optional<MemberHandles.Invoker> load(CallableInfo info) {
+              Optional<Executable> e = executableFor(info);
+              return e.isPresent()
+                  ? Optional.of(MemberHandles.invoker(e.get()))
+                  : Optional.<MemberHandles.Invoker>absent();
+            }
+
+          });
+
+  private Optional<MemberHandles.Invoker> invokerFor(CallableInfo info) {
+    return invokers.getUnchecked(info);
+  }
+
+  /** Inline caches for {@link #getFieldDynamic} by field name. */
+  private final
+  Map<String, MemberHandles.DynamicSite<MemberHandles.FieldAccessor>>
+      dynamicFieldSites = new HashMap<>();
+
+  /** Inline caches for {@link #invokeDynamic} by method name and arity. */
+  private final
+  Map<String, MemberHandles.DynamicSite<ImmutableList<MemberHandles.Invoker>>>
+      dynamicMethodSites = new HashMap<>();
+
   private Optional<Executable> executableFor(CallableInfo info) {
     try {
       return Optional.fromNullable(
@@ -98,6 +98,7 @@ public final class Interpreter<VALUE> {
   protected final Completion<VALUE> nullCompletion;
   protected final Completion<VALUE> errorCompletion;
   private SourcePosition currentSourcePosition;
+  private @Nullable InterpreterProfiler profiler;
 
   private static final MethodDescriptor DESCRIPTOR_OBJECT_TO_BOOLEAN =
       MethodDescriptor.builder()
@@ -135,6 +136,22 @@ public final class Interpreter<VALUE> {
     errorCompletion = Completion.normal(context.errorValue());
   }
 
+  /** The profiler that measures interpretation or null if none. */
+  public @Nullable InterpreterProfiler getProfiler() {
+    return profiler;
+  }
+
+  /**
+   * Sets the profiler that measures interpretation.
+   * Code {@linkplain #compile compiled} after this call is not profiled node
+   * by node, but its invocations of methods and constructors are.
+   *
+   * @param newProfiler null to stop profiling.
+   */
+  public void setProfiler(@Nullable InterpreterProfiler newProfiler) {
+    this.profiler = newProfiler;
+  }
+
   protected final void log(
       Level level, @Nullable Positioned p, String message,
       @Nullable Throwable cause) {
@@ -163,6 +180,29 @@ public final class Interpreter<VALUE> {
    */
   public final Completion<VALUE> interpret(
       J8BaseNode node, Locals<VALUE> locals) {
+    Supplier<SourcePosition> oldSourcePositionSupplier =
+        installSourcePositionSupplier();
+    Completion<VALUE> result = interpret(node, locals, null);
+    context.setSourcePositionSupplier(oldSourcePositionSupplier);
+    return result;
+  }
+
+  /**
+   * Compiles the given AST fragment to a form that can be
+   * {@linkplain Compiled#execute executed} repeatedly without re-examining
+   * the AST.
+   * The compiled form produces the same completions as {@link #interpret}.
+   */
+  public final Compiled<VALUE> compile(J8BaseNode node) {
+    return new Compiled<>(this, new ClosureCompiler<>(this).compile(node));
+  }
+
+  /**
+   * Points the context's source position supplier at this interpreter.
+   *
+   * @return the prior supplier which the caller should restore.
+   */
+  final Supplier<SourcePosition> installSourcePositionSupplier() {
     Supplier<SourcePosition> oldSourcePositionSupplier =
         context.getSourcePositionSupplier();
 
@@ -176,9 +216,53 @@ public final class Interpreter<VALUE> {
           }
 
         });
-    Completion<VALUE> result = interpret(node, locals, null);
-    context.setSourcePositionSupplier(oldSourcePositionSupplier);
-    return result;
+    return oldSourcePositionSupplier;
+  }
+
+  final void setCurrentSourcePosition(SourcePosition pos) {
+    this.currentSourcePosition = pos;
+  }
+
+  final VALUE invokeVirtual(
+      CallableInfo method, VALUE receiver, List<? extends VALUE> actuals) {
+    InterpreterProfiler p = profiler;
+    if (p == null) {
+      return context.invokeVirtual(method, receiver, actuals);
+    }
+    long start = System.nanoTime();
+    try {
+      return context.invokeVirtual(method, receiver, actuals);
+    } finally {
+      p.invoked(method, System.nanoTime() - start);
+    }
+  }
+
+  final VALUE invokeStatic(
+      CallableInfo method, List<? extends VALUE> actuals) {
+    InterpreterProfiler p = profiler;
+    if (p == null) {
+      return context.invokeStatic(method, actuals);
+    }
+    long start = System.nanoTime();
+    try {
+      return context.invokeStatic(method, actuals);
+    } finally {
+      p.invoked(method, System.nanoTime() - start);
+    }
+  }
+
+  final VALUE newInstance(
+      CallableInfo constructor, List<? extends VALUE> actuals) {
+    InterpreterProfiler p = profiler;
+    if (p == null) {
+      return context.newInstance(constructor, actuals);
+    }
+    long start = System.nanoTime();
+    try {
+      return context.newInstance(constructor, actuals);
+    } finally {
+      p.invoked(constructor, System.nanoTime() - start);
+    }
   }
 
   private static final ImmutableSet<J8NodeType> NONSPECIFIC_DELEGATES =
@@ -186,26 +270,48 @@ public final class Interpreter<VALUE> {
           J8NodeType.FieldName, J8NodeType.TypeName, J8NodeType.LocalName);
 
   /**
-   * @param parentLabel the label of the containing block so that interpretation
-   *     can properly handle continues.
+   * Skips over nodes that simply delegate to their sole child since they
+   * have the same completion.
    */
-  @SuppressWarnings({ "synthetic-access" })
-  protected final Completion<VALUE> interpret(
-      J8BaseNode nodei, Locals<VALUE> locals, @Nullable String parentLabel) {
-    // Handle delegates by recursing
+  static J8BaseNode unwrapDelegates(J8BaseNode nodei) {
     J8BaseNode node = nodei;
-    if (node == null) {
-      return errorCompletion;
-    }
     while (true) {
       J8NodeType delegate = node.getVariant().getDelegate();
       if (delegate != null && !NONSPECIFIC_DELEGATES.contains(delegate)
           && node.getNChildren() == 1) {
         node = node.getChild(0);
       } else {
-        break;
+        return node;
       }
     }
+  }
+
+  /**
+   * @param parentLabel the label of the containing block so that interpretation
+   *     can properly handle continues.
+   */
+  protected final Completion<VALUE> interpret(
+      J8BaseNode nodei, Locals<VALUE> locals, @Nullable String parentLabel) {
+    InterpreterProfiler p = profiler;
+    if (p == null || nodei == null) {
+      return interpretNode(nodei, locals, parentLabel);
+    }
+    p.nodeStarting(unwrapDelegates(nodei));
+    try {
+      return interpretNode(nodei, locals, parentLabel);
+    } finally {
+      p.nodeFinished();
+    }
+  }
+
+  @SuppressWarnings({ "synthetic-access" })
+  private Completion<VALUE> interpretNode(
+      J8BaseNode nodei, Locals<VALUE> locals, @Nullable String parentLabel) {
+    if (nodei == null) {
+      return errorCompletion;
+    }
+    // Handle delegates by recursing
+    J8BaseNode node = unwrapDelegates(nodei);
 
     SourcePosition pos = node.getSourcePosition();
     if (pos != null) {
@@ -1250,7 +1356,7 @@ public final class Interpreter<VALUE> {
                     VALUE eq = equalsInfo == null
                         ? context.primitiveEquals(
                             exprValue, caseResult.value)
-                        : context.invokeVirtual(
+                        : invokeVirtual(
                             equalsInfo,
                             exprValue,
                             ImmutableList.of(caseResult.value));
@@ -1422,7 +1528,7 @@ public final class Interpreter<VALUE> {
               Optional<CallableInfo> close = findMethod(
                   ti, "close", DESCRIPTOR_VOID_TO_VOID);
               if (close.isPresent()) {
-                VALUE v = context.invokeVirtual(
+                VALUE v = invokeVirtual(
                     close.get(), resource, ImmutableList.of());
                 if (!context.isErrorValue(v)) {
                   continue;
@@ -1519,7 +1625,7 @@ public final class Interpreter<VALUE> {
           }
         }
 
-        return normal(context.newInstance(ctor.get(), actualValues));
+        return normal(newInstance(ctor.get(), actualValues));
       }
       case WhileStatement: {
         if (node.getNChildren() != 2) {
@@ -1560,7 +1666,7 @@ public final class Interpreter<VALUE> {
         error(sequenceNode, "Not iterable");
         return errorCompletion;
       }
-      VALUE iterator = context.invokeVirtual(
+      VALUE iterator = invokeVirtual(
           iteratorMethod.get(), sequenceValue, ImmutableList.of());
 
       StaticType iteratorType = context.runtimeType(iterator);
@@ -1576,7 +1682,7 @@ public final class Interpreter<VALUE> {
           iti, "next", DESCRIPTOR_VOID_TO_OBJECT);
       if (hasNext.isPresent() && next.isPresent()) {
         while (true) {
-          VALUE hasNextValue = context.invokeVirtual(
+          VALUE hasNextValue = invokeVirtual(
               hasNext.get(), iterator, ImmutableList.of());
           switch (context.toBoolean(hasNextValue)) {
             case TRUE:
@@ -1588,7 +1694,7 @@ public final class Interpreter<VALUE> {
                     + hasNextValue);
               return errorCompletion;
           }
-          VALUE element = context.invokeVirtual(
+          VALUE element = invokeVirtual(
               next.get(), iterator, ImmutableList.of());
           if (context.isErrorValue(element)) { return normal(element); }
 
@@ -1766,9 +1872,9 @@ public final class Interpreter<VALUE> {
     if (infoOpt.isPresent()) {
       CallableInfo info = infoOpt.get();
       if (isStatic) {
-        return normal(context.invokeStatic(info, actualValues));
+        return normal(invokeStatic(info, actualValues));
       } else {
-        return normal(context.invokeVirtual(
+        return normal(invokeVirtual(
             info, methodReceiver, actualValues));
       }
     } else {
@@ -1847,12 +1953,12 @@ public final class Interpreter<VALUE> {
     return arr;
   }
 
-  private static J8BaseNode leftOperand(J8BaseNode node) {
+  static J8BaseNode leftOperand(J8BaseNode node) {
     int nChildren = node.getNChildren();
     return nChildren == 0 ? null : node.getChild(0);
   }
 
-  private static J8BaseNode rightOperand(J8BaseNode node) {
+  static J8BaseNode rightOperand(J8BaseNode node) {
     int nChildren = node.getNChildren();
     return nChildren == 0 ? null : node.getChild(nChildren - 1);
   }
@@ -2396,7 +2502,7 @@ public final class Interpreter<VALUE> {
     throw new AssertionError(v);
   }
 
-  private Optional<FieldInfo> fieldForType(
+  Optional<FieldInfo> fieldForType(
       TypeInfo info, String ident, boolean publicOnly) {
     Optional<MemberInfo> matching = info.memberMatching(
         context.getTypePool().r,
@@ -2416,7 +2522,7 @@ public final class Interpreter<VALUE> {
     return Optional.absent();
   }
 
-  private Optional<CallableInfo> callableForType(
+  Optional<CallableInfo> callableForType(
       TypeSpecification ts, String ident, MethodDescriptor descriptor) {
     StaticType t = context.getTypePool().type(ts, null, context.getLogger());
     if (t instanceof ClassOrInterfaceType) {
@@ -0,0 +1,286 @@
+package com.mikesamuel.cil.expr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.mikesamuel.cil.ast.j8.J8BaseNode;
+import com.mikesamuel.cil.ast.j8.J8NodeType;
+import com.mikesamuel.cil.ast.meta.CallableInfo;
+import com.mikesamuel.cil.parser.SourcePosition;
+
+/**
+ * Counts evaluations and measures time spent by an {@link Interpreter} so
+ * that hot spots in interpreted code can be found.
+ * <p>
+ * Costs are attributed to the source position and node type of each
+ * interpreted node, to each callable invoked via the interpretation context,
+ * and to a stack of frames that clients {@linkplain #pushFrame push} to
+ * describe what is being interpreted, e.g. the template function calls that
+ * lead to the current node.
+ * The last can be {@linkplain #writeCollapsedStacks written} in the collapsed
+ * stack format consumed by flame graph tools.
+ * <p>
+ * An interpreter without a profiler does nothing extra beyond checking for
+ * one.
+ * <p>
+ * Not thread-safe.  Times are measured for the thread that interprets.
+ *
+ * @see Interpreter#setProfiler
+ */
+public final class InterpreterProfiler {
+  private final Map<SourcePosition, Tally> byPosition = new LinkedHashMap<>();
+  private final Map<J8NodeType, Tally> byNodeType =
+      new EnumMap<>(J8NodeType.class);
+  private final Map<CallableInfo, Tally> byCallable = new LinkedHashMap<>();
+  /** Self time in nanos keyed by collapsed stack. */
+  private final Map<String, long[]> byStack = new LinkedHashMap<>();
+
+  private final List<String> frames = new ArrayList<>();
+  private String stackKey = ROOT_FRAME;
+
+  /**
+   * Timed spans, node evaluations and frames, that have started but not
+   * finished.
+   */
+  private int nOpenSpans;
+  private long[] spanStarts = new long[16];
+  /** Time spent in spans nested in the corresponding open span. */
+  private long[] spanChildNanos = new long[16];
+  /** Tallies for the node being evaluated or null for a frame. */
+  private Tally[] spanPositionTallies = new Tally[16];
+  private Tally[] spanNodeTypeTallies = new Tally[16];
+
+  /** The name of the bottom-most frame when none has been pushed. */
+  private static final String ROOT_FRAME = "interpreter";
+
+  /**
+   * Starts attributing time to a frame with the given name.
+   * Each call must be followed by a call to {@link #popFrame}, even if
+   * interpretation fails.
+   *
+   * @param name describes the work done in the frame, e.g.
+   *     a template function name and the position of its call.
+   */
+  public void pushFrame(String name) {
+    // ';' separates frames in the collapsed stack format.
+    String frame = name.replace(';', ',').replace('\n', ' ');
+    stackKey = frames.isEmpty() ? frame : stackKey + ";" + frame;
+    frames.add(frame);
+    openSpan(null, null);
+  }
+
+  /** Stops attributing time to the most recently pushed frame. */
+  public void popFrame() {
+    Preconditions.checkState(
+        !frames.isEmpty()
+        && nOpenSpans != 0 && spanNodeTypeTallies[nOpenSpans - 1] == null);
+    closeSpan();
+    frames.remove(frames.size() - 1);
+    stackKey = frames.isEmpty() ? ROOT_FRAME : Joiner.on(';').join(frames);
+  }
+
+  /** Called by the interpreter before it evaluates node. */
+  void nodeStarting(J8BaseNode node) {
+    SourcePosition pos = node.getSourcePosition();
+    Tally positionTally = null;
+    if (pos != null) {
+      positionTally = byPosition.get(pos);
+      if (positionTally == null) {
+        positionTally = new Tally(pos.toString());
+        byPosition.put(pos, positionTally);
+      }
+    }
+    J8NodeType nodeType = node.getNodeType();
+    Tally nodeTypeTally = byNodeType.get(nodeType);
+    if (nodeTypeTally == null) {
+      nodeTypeTally = new Tally(nodeType.name());
+      byNodeType.put(nodeType, nodeTypeTally);
+    }
+    openSpan(positionTally, nodeTypeTally);
+  }
+
+  /** Called by the interpreter after it evaluates a node. */
+  void nodeFinished() {
+    Preconditions.checkState(
+        nOpenSpans != 0 && spanNodeTypeTallies[nOpenSpans - 1] != null);
+    closeSpan();
+  }
+
+  /**
+   * Called by the interpreter after it invokes a callable via its
+   * interpretation context.
+   * The time is also part of the invoking node's self time.
+   */
+  void invoked(CallableInfo callable, long nanos) {
+    Tally t = byCallable.get(callable);
+    if (t == null) {
+      t = new Tally(callable.canonName.toString());
+      byCallable.put(callable, t);
+    }
+    t.count += 1;
+    t.selfNanos += nanos;
+    t.totalNanos += nanos;
+  }
+
+  private void openSpan(
+      @Nullable Tally positionTally, @Nullable Tally nodeTypeTally) {
+    int i = nOpenSpans;
+    if (i == spanStarts.length) {
+      int n = i * 2;
+      spanStarts = Arrays.copyOf(spanStarts, n);
+      spanChildNanos = Arrays.copyOf(spanChildNanos, n);
+      spanPositionTallies = Arrays.copyOf(spanPositionTallies, n);
+      spanNodeTypeTallies = Arrays.copyOf(spanNodeTypeTallies, n);
+    }
+    if (positionTally != null) { positionTally.start(); }
+    if (nodeTypeTally != null) { nodeTypeTally.start(); }
+    spanChildNanos[i] = 0;
+    spanPositionTallies[i] = positionTally;
+    spanNodeTypeTallies[i] = nodeTypeTally;
+    nOpenSpans = i + 1;
+    // Read the clock last so that the bookkeeping above is not counted.
+    spanStarts[i] = System.nanoTime();
+  }
+
+  private void closeSpan() {
+    long end = System.nanoTime();
+    int i = --nOpenSpans;
+    long elapsed = end - spanStarts[i];
+    long self = elapsed - spanChildNanos[i];
+    Tally positionTally = spanPositionTallies[i];
+    Tally nodeTypeTally = spanNodeTypeTallies[i];
+    spanPositionTallies[i] = spanNodeTypeTallies[i] = null;
+    if (positionTally != null) { positionTally.finish(self, elapsed); }
+    if (nodeTypeTally != null) { nodeTypeTally.finish(self, elapsed); }
+    if (i != 0) {
+      spanChildNanos[i - 1] += elapsed;
+    }
+    long[] stackNanos = byStack.get(stackKey);
+    if (stackNanos == null) {
+      stackNanos = new long[1];
+      byStack.put(stackKey, stackNanos);
+    }
+    stackNanos[0] += self;
+  }
+
+  /** Hot spots by source position, hottest first. */
+  public ImmutableList<HotSpot> getHotSpotsBySourcePosition() {
+    return hotSpots(byPosition);
+  }
+
+  /** Hot spots by node type, hottest first. */
+  public ImmutableList<HotSpot> getHotSpotsByNodeType() {
+    return hotSpots(byNodeType);
+  }
+
+  /**
+   * Invocations of methods and constructors, hottest first.
+   * Dynamic invocations of methods found by name are not included.
+   */
+  public ImmutableList<HotSpot> getHotSpotsByCallable() {
+    return hotSpots(byCallable);
+  }
+
+  private static ImmutableList<HotSpot> hotSpots(Map<?, Tally> tallies) {
+    List<HotSpot> spots = new ArrayList<>();
+    for (Tally t : tallies.values()) {
+      spots.add(new HotSpot(t.key, t.count, t.selfNanos, t.totalNanos));
+    }
+    Collections.sort(spots, HOTTEST_FIRST);
+    return ImmutableList.copyOf(spots);
+  }
+
+  private static final Comparator<HotSpot> HOTTEST_FIRST =
+      new Comparator<HotSpot>() {
+        @Override
+        public int compare(HotSpot a, HotSpot b) {
+          int delta = Long.compare(b.selfNanos, a.selfNanos);
+          if (delta == 0) { delta = Long.compare(b.count, a.count); }
+          return delta;
+        }
+      };
+
+  /**
+   * Writes one line per frame stack with the self time in nanoseconds spent
+   * in it, e.g. {@code "Main.java;outer;inner 12345"}, as consumed by
+   * flame graph tools like {@code flamegraph.pl}.
+   * Time spent interpreting while no frame is pushed is attributed to a
+   * frame named {@code interpreter}.
+   */
+  public void writeCollapsedStacks(Appendable out) throws IOException {
+    for (Map.Entry<String, long[]> e : byStack.entrySet()) {
+      out.append(e.getKey()).append(' ')
+          .append(Long.toString(e.getValue()[0])).append('\n');
+    }
+  }
+
+
+  private static final class Tally {
+    final String key;
+    long count;
+    long selfNanos;
+    long totalNanos;
+    /**
+     * The number of open spans for the key, so that recursive evaluations do
+     * not count towards the total more than once.
+     */
+    int depth;
+
+    Tally(String key) {
+      this.key = key;
+    }
+
+    void start() {
+      ++depth;
+    }
+
+    void finish(long self, long elapsed) {
+      count += 1;
+      selfNanos += self;
+      if (--depth == 0) {
+        totalNanos += elapsed;
+      }
+    }
+  }
+
+
+  /** Costs attributed to one source position, node type, or callable. */
+  public static final class HotSpot {
+    /**
+     * Describes the source position, node type, or callable to which costs
+     * are attributed.
+     */
+    public final String key;
+    /** The number of evaluations or invocations. */
+    public final long count;
+    /** Time spent excluding time spent evaluating other nodes. */
+    public final long selfNanos;
+    /** Time spent including time spent evaluating other nodes. */
+    public final long totalNanos;
+
+    HotSpot(String key, long count, long selfNanos, long totalNanos) {
+      this.key = key;
+      this.count = count;
+      this.selfNanos = selfNanos;
+      this.totalNanos = totalNanos;
+    }
+
+    @Override
+    public String toString() {
+      return key + " count=" + count + " self=" + selfNanos + "ns total="
+          + totalNanos + "ns";
+    }
+  }
+}
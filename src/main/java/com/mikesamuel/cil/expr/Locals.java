@@ -1,5 +1,6 @@
 package com.mikesamuel.cil.expr;
 
+import java.util.Arrays;
 import java.util.Map;
 
 import javax.annotation.Nullable;
@@ -14,15 +15,44 @@ import com.mikesamuel.cil.ast.meta.Name;
  * <p>
  * Ambiguous names can appear in template contexts which have not been run
  * through the disambiguation pass.
+ * <p>
+ * Each declaration is assigned a slot, in declaration order, which holds its
+ * value and coercion.
+ * {@linkplain Interpreter#compile Compiled code} resolves uses of locals it
+ * declares to (up-level depth, slot) pairs ahead of time so it need not look
+ * them up by name.
+ * <p>
+ * Compiled code may also declare primitive locals whose values are stored
+ * unboxed so that arithmetic on them need not allocate.  Those are boxed
+ * lazily when read by name.
  */
 public final class Locals<VALUE> {
   /** Outer locals that might be masked by names declared in this scope. */
   public final @Nullable Locals<VALUE> outer;
-  private final Map<Name, VALUE> values = Maps.newLinkedHashMap();
-  private final Map<String, Name> identToLocallyDeclaredName =
-      Maps.newLinkedHashMap();
-  private final Map<String, Function<? super VALUE, ? extends VALUE>> coercions
-      = Maps.newLinkedHashMap();
+  private Name[] names = NO_NAMES;
+  private Function<?, ?>[] coercions = NO_COERCIONS;
+  /**
+   * Slot values.  For unboxed slots, this caches the boxed form of the bits
+   * and is null when the cache is stale.
+   */
+  private Object[] values = NO_VALUES;
+  /** Per slot, null if the slot is boxed. */
+  private Unboxed<?>[] unboxeds = NO_UNBOXEDS;
+  /** Values of unboxed slots. */
+  private long[] bits = NO_BITS;
+  private int size;
+  /**
+   * Maps identifiers to slots.  Only used once there are enough slots that a
+   * linear scan would be slow.
+   */
+  private @Nullable Map<String, Integer> identToSlot;
+
+  private static final Name[] NO_NAMES = new Name[0];
+  private static final Function<?, ?>[] NO_COERCIONS = new Function<?, ?>[0];
+  private static final Object[] NO_VALUES = new Object[0];
+  private static final Unboxed<?>[] NO_UNBOXEDS = new Unboxed<?>[0];
+  private static final long[] NO_BITS = new long[0];
+  private static final int MAX_SLOTS_FOR_LINEAR_SCAN = 8;
 
   /** */
   public Locals() {
@@ -37,37 +67,102 @@ public final class Locals<VALUE> {
   /** Adds a binding for the given name. */
   public void declare(
       Name name, Function<? super VALUE, ? extends VALUE> coercion) {
+    declare(name, coercion, null);
+  }
+
+  /**
+   * Adds a binding for the given name.
+   *
+   * @param unboxed non-null to store the local's value unboxed.
+   *     The coercion must produce values that unboxed can convert.
+   * @return the slot index.
+   */
+  int declare(
+      Name name, Function<? super VALUE, ? extends VALUE> coercion,
+      @Nullable Unboxed<VALUE> unboxed) {
     Preconditions.checkArgument(
         name.type == Name.Type.LOCAL
         || name.type == Name.Type.AMBIGUOUS
         );
     Preconditions.checkArgument(
-        !identToLocallyDeclaredName.containsKey(name.identifier),
+        slotOfIdentifier(name.identifier) < 0,
         name);
-    identToLocallyDeclaredName.put(name.identifier, name);
-    coercions.put(name.identifier, coercion);
-    VALUE zeroValue = coercion.apply(null);
-    values.put(name, zeroValue);
+    return declareSlot(name, coercion, unboxed);
   }
 
-  private Name fixName(Name name) {
-    if (name.type == Name.Type.AMBIGUOUS) {
-      Name nm = identToLocallyDeclaredName.get(name.identifier);
-      if (nm != null) { return nm; }
+  private int declareSlot(
+      Name name, Function<? super VALUE, ? extends VALUE> coercion,
+      @Nullable Unboxed<VALUE> unboxed) {
+    int slot = size;
+    if (slot == names.length) {
+      int capacity = Math.max(4, slot * 2);
+      names = Arrays.copyOf(names, capacity);
+      coercions = Arrays.copyOf(coercions, capacity);
+      values = Arrays.copyOf(values, capacity);
+      if (unboxeds.length != 0) {
+        unboxeds = Arrays.copyOf(unboxeds, capacity);
+        bits = Arrays.copyOf(bits, capacity);
+      }
+    }
+    names[slot] = name;
+    coercions[slot] = coercion;
+    VALUE zero = coercion.apply(null);
+    values[slot] = zero;
+    if (unboxed != null) {
+      if (unboxeds.length == 0) {
+        unboxeds = new Unboxed<?>[names.length];
+        bits = new long[names.length];
+      }
+      unboxeds[slot] = unboxed;
+      bits[slot] = unboxed.unbox(zero);
+    }
+    size = slot + 1;
+    if (identToSlot != null) {
+      identToSlot.put(name.identifier, slot);
+    } else if (size > MAX_SLOTS_FOR_LINEAR_SCAN) {
+      identToSlot = Maps.newHashMapWithExpectedSize(size * 2);
+      for (int i = 0; i < size; ++i) {
+        identToSlot.put(names[i].identifier, i);
+      }
+    }
+    return slot;
+  }
+
+  private int slotOfIdentifier(String ident) {
+    if (identToSlot != null) {
+      Integer slot = identToSlot.get(ident);
+      return slot != null ? slot : -1;
+    }
+    for (int i = 0; i < size; ++i) {
+      if (ident.equals(names[i].identifier)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * The slot for the given name in this scope or -1 if none.
+   * An ambiguous name matches any local with the same identifier.
+   */
+  private int slotOf(Name name) {
+    int slot = slotOfIdentifier(name.identifier);
+    if (slot >= 0 && name.type != Name.Type.AMBIGUOUS
+        && !name.equals(names[slot])) {
+      return -1;
     }
-    return name;
+    return slot;
   }
 
   /**
    * The value of the named local or defaultValue if none such exists.
    */
   public VALUE get(Name name, VALUE defaultValue) {
-    Name uname = fixName(name);
-    if (values.containsKey(uname)) {
-      return values.get(uname);
-    }
-    if (outer != null) {
-      return outer.get(name, defaultValue);
+    for (Locals<VALUE> ls = this; ls != null; ls = ls.outer) {
+      int slot = ls.slotOf(name);
+      if (slot >= 0) {
+        return ls.getSlot(slot);
+      }
     }
     return defaultValue;
   }
@@ -79,16 +174,11 @@ public final class Locals<VALUE> {
    *    an int local, the short is promoted to an int and returned.
    */
   public VALUE set(Name name, VALUE value) throws IllegalArgumentException {
-    Name uname = fixName(name);
-    if (values.containsKey(uname)) {
-      Function<? super VALUE, ? extends VALUE> coercion =
-          coercions.get(uname.identifier);
-      VALUE cvalue = coercion.apply(value);
-      values.put(uname, cvalue);
-      return cvalue;
-    }
-    if (outer != null) {
-      return outer.set(name, value);
+    for (Locals<VALUE> ls = this; ls != null; ls = ls.outer) {
+      int slot = ls.slotOf(name);
+      if (slot >= 0) {
+        return ls.setSlot(slot, value);
+      }
     }
     throw new IllegalArgumentException("Undeclared name " + name);
   }
@@ -97,8 +187,12 @@ public final class Locals<VALUE> {
    * True if the name corresponds to a declared variable.
    */
   public boolean has(Name name) {
-    Name uname = fixName(name);
-    return values.containsKey(uname) || outer != null && outer.has(name);
+    for (Locals<VALUE> ls = this; ls != null; ls = ls.outer) {
+      if (ls.slotOf(name) >= 0) {
+        return true;
+      }
+    }
+    return false;
   }
 
   /**
@@ -106,6 +200,70 @@ public final class Locals<VALUE> {
    * regards to outer scopes.
    */
   public boolean hasOwn(Name name) {
-    return values.containsKey(fixName(name));
+    return slotOf(name) >= 0;
+  }
+
+  /** The scope depth levels out from this one. */
+  Locals<VALUE> up(int depth) {
+    Locals<VALUE> ls = this;
+    for (int i = depth; --i >= 0;) {
+      ls = ls.outer;
+    }
+    return ls;
+  }
+
+  /** The value in the given slot of this scope. */
+  VALUE getSlot(int slot) {
+    @SuppressWarnings("unchecked")
+    VALUE value = (VALUE) values[slot];
+    if (value == null && slot < unboxeds.length && unboxeds[slot] != null) {
+      @SuppressWarnings("unchecked")
+      Unboxed<VALUE> unboxed = (Unboxed<VALUE>) unboxeds[slot];
+      value = unboxed.box(bits[slot]);
+      values[slot] = value;
+    }
+    return value;
+  }
+
+  /**
+   * Sets the value in the given slot of this scope.
+   *
+   * @return the coerced value.
+   */
+  VALUE setSlot(int slot, VALUE value) {
+    @SuppressWarnings("unchecked")
+    Function<? super VALUE, ? extends VALUE> coercion =
+        (Function<? super VALUE, ? extends VALUE>) coercions[slot];
+    VALUE cvalue = coercion.apply(value);
+    values[slot] = cvalue;
+    if (slot < unboxeds.length && unboxeds[slot] != null) {
+      @SuppressWarnings("unchecked")
+      Unboxed<VALUE> unboxed = (Unboxed<VALUE>) unboxeds[slot];
+      bits[slot] = unboxed.unbox(cvalue);
+    }
+    return cvalue;
+  }
+
+  /** The bits of the given unboxed slot of this scope. */
+  long getBits(int slot) {
+    return bits[slot];
+  }
+
+  /**
+   * Sets the bits of the given unboxed slot of this scope.
+   * No coercion is applied so the bits must encode a value of the slot's
+   * type.
+   */
+  void setBits(int slot, long newBits) {
+    bits[slot] = newBits;
+    values[slot] = null;
+  }
+
+  /** Converts between the values of an unboxed slot and its bits. */
+  interface Unboxed<VALUE> {
+    /** The value encoded by bits. */
+    VALUE box(long bits);
+    /** Encodes a value produced by the slot's coercion. */
+    long unbox(VALUE value);
   }
 }
@@ -0,0 +1,459 @@
+package com.mikesamuel.cil.expr;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Executable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.primitives.Primitives;
+
+/**
+ * Method handles for the reflective calls and field accesses made by
+ * {@link InterpretationContextImpl}.
+ * <p>
+ * Access checks and argument adaptation are done once when a handle is
+ * created instead of on every call.
+ * Arguments are checked against the member's signature before each call, so
+ * a throwable that escapes a handle is known to come from the member itself
+ * as with {@link java.lang.reflect.InvocationTargetException}.
+ * <p>
+ * Handles are shared by all interpretation contexts and threads.
+ * They are stored with the member's declaring class so that they are
+ * collected with it and its class loader.
+ */
+final class MemberHandles {
+  private MemberHandles() {
+    // Static API
+  }
+
+  /** Access checks are done as if by reflective calls from this package. */
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+  private static final MethodType STATIC_CALL = MethodType.methodType(
+      Object.class, Object[].class);
+  private static final MethodType INSTANCE_CALL = MethodType.methodType(
+      Object.class, Object.class, Object[].class);
+  private static final MethodType STATIC_GET = MethodType.methodType(
+      Object.class);
+  private static final MethodType INSTANCE_GET = MethodType.methodType(
+      Object.class, Object.class);
+  private static final MethodType STATIC_SET = MethodType.methodType(
+      void.class, Object.class);
+  private static final MethodType INSTANCE_SET = MethodType.methodType(
+      void.class, Object.class, Object.class);
+
+  private static final ClassValue<ConcurrentMap<Executable, Invoker>>
+      INVOKERS = new ClassValue<ConcurrentMap<Executable, Invoker>>() {
+        @Override
+        protected ConcurrentMap<Executable, Invoker> computeValue(
+            Class<?> declaringClass) {
+          return new ConcurrentHashMap<>();
+        }
+      };
+
+  private static final ClassValue<ConcurrentMap<Field, FieldAccessor>>
+      FIELD_ACCESSORS = new ClassValue<ConcurrentMap<Field, FieldAccessor>>() {
+        @Override
+        protected ConcurrentMap<Field, FieldAccessor> computeValue(
+            Class<?> declaringClass) {
+          return new ConcurrentHashMap<>();
+        }
+      };
+
+  /**
+   * Public, non-bridge methods by name and arity.
+   * Each is looked up via a public type so that it may be called even when
+   * the runtime class is not public.
+   */
+  private static final ClassValue<ConcurrentMap<String, ImmutableList<Invoker>>>
+      PUBLIC_METHODS =
+      new ClassValue<ConcurrentMap<String, ImmutableList<Invoker>>>() {
+        @Override
+        protected ConcurrentMap<String, ImmutableList<Invoker>> computeValue(
+            Class<?> cl) {
+          return new ConcurrentHashMap<>();
+        }
+      };
+
+  /**
+   * The invoker for the given method or constructor.
+   * Equivalent executables share an invoker.
+   */
+  static Invoker invoker(Executable executable) {
+    ConcurrentMap<Executable, Invoker> forClass = INVOKERS.get(
+        executable.getDeclaringClass());
+    Invoker invoker = forClass.get(executable);
+    if (invoker == null) {
+      invoker = new Invoker(executable);
+      Invoker prior = forClass.putIfAbsent(executable, invoker);
+      if (prior != null) { invoker = prior; }
+    }
+    return invoker;
+  }
+
+  /**
+   * The accessor for the given field.
+   * Equivalent fields share an accessor.
+   */
+  static FieldAccessor fieldAccessor(Field field) {
+    ConcurrentMap<Field, FieldAccessor> forClass = FIELD_ACCESSORS.get(
+        field.getDeclaringClass());
+    FieldAccessor accessor = forClass.get(field);
+    if (accessor == null) {
+      accessor = new FieldAccessor(field);
+      FieldAccessor prior = forClass.putIfAbsent(field, accessor);
+      if (prior != null) { accessor = prior; }
+    }
+    return accessor;
+  }
+
+  /**
+   * Invokers for the public methods of cl with the given name and arity,
+   * as considered when a call cannot be resolved statically.
+   */
+  static ImmutableList<Invoker> publicMethods(
+      Class<?> cl, String name, int arity) {
+    ConcurrentMap<String, ImmutableList<Invoker>> forClass =
+        PUBLIC_METHODS.get(cl);
+    String key = name + "/" + arity;
+    ImmutableList<Invoker> invokers = forClass.get(key);
+    if (invokers == null) {
+      ImmutableList.Builder<Invoker> b = ImmutableList.builder();
+      for (Method m : cl.getMethods()) {
+        if (m.getName().equals(name) && m.getParameterCount() == arity
+            && !m.isBridge() && !m.isSynthetic()) {
+          b.add(invoker(viaPublicType(m)));
+        }
+      }
+      invokers = b.build();
+      ImmutableList<Invoker> prior = forClass.putIfAbsent(key, invokers);
+      if (prior != null) { invokers = prior; }
+    }
+    return invokers;
+  }
+
+  /**
+   * A method equivalent to m that is declared in a public type, or m if
+   * there is none, since a public method of a non-public class, like a
+   * collection implementation, is only accessible via a public supertype.
+   */
+  private static Method viaPublicType(Method m) {
+    Class<?> declaringClass = m.getDeclaringClass();
+    if (Modifier.isPublic(declaringClass.getModifiers())) {
+      return m;
+    }
+    Deque<Class<?>> supertypes = new ArrayDeque<>();
+    supertypes.add(declaringClass);
+    Set<Class<?>> seen = new HashSet<>();
+    for (Class<?> t; (t = supertypes.poll()) != null;) {
+      if (!seen.add(t)) { continue; }
+      if (Modifier.isPublic(t.getModifiers())) {
+        try {
+          return t.getMethod(m.getName(), m.getParameterTypes());
+        } catch (@SuppressWarnings("unused") NoSuchMethodException ex) {
+          continue;
+        }
+      }
+      if (t.getSuperclass() != null) {
+        supertypes.add(t.getSuperclass());
+      }
+      supertypes.addAll(Arrays.asList(t.getInterfaces()));
+    }
+    return m;
+  }
+
+  /** Calls a method or constructor. */
+  static final class Invoker {
+    final Executable executable;
+    private final boolean needsReceiver;
+    private final Class<?>[] parameterTypes;
+    /** Null when the executable may not be called. */
+    private final @Nullable MethodHandle handle;
+    private final @Nullable ReflectiveOperationException failure;
+
+    private Invoker(Executable executable) {
+      this.executable = executable;
+      this.needsReceiver = executable instanceof Method
+          && !Modifier.isStatic(executable.getModifiers());
+      this.parameterTypes = executable.getParameterTypes();
+      MethodHandle h = null;
+      ReflectiveOperationException f = null;
+      try {
+        if (executable instanceof Constructor) {
+          Constructor<?> ctor = (Constructor<?>) executable;
+          if (Modifier.isAbstract(ctor.getDeclaringClass().getModifiers())) {
+            throw new InstantiationException(
+                ctor.getDeclaringClass().getName());
+          }
+          h = LOOKUP.unreflectConstructor(ctor);
+        } else {
+          h = LOOKUP.unreflect((Method) executable);
+        }
+        h = h.asFixedArity()
+            .asSpreader(Object[].class, parameterTypes.length)
+            .asType(needsReceiver ? INSTANCE_CALL : STATIC_CALL);
+      } catch (IllegalAccessException | InstantiationException ex) {
+        h = null;
+        f = ex;
+      }
+      this.handle = h;
+      this.failure = f;
+    }
+
+    /**
+     * The exception that a reflective call would fail with before reaching
+     * the executable, or null if {@link #invoke} may be called.
+     */
+    @Nullable Exception checkCall(
+        @Nullable Object receiver, Object[] actuals) {
+      if (failure != null) { return failure; }
+      if (needsReceiver) {
+        Exception ex = checkContainer(
+            executable.getDeclaringClass(), receiver);
+        if (ex != null) { return ex; }
+      }
+      if (actuals.length != parameterTypes.length) {
+        return new IllegalArgumentException(
+            "Expected " + parameterTypes.length + " arguments but got "
+            + actuals.length);
+      }
+      for (int i = 0, n = actuals.length; i < n; ++i) {
+        if (!isAssignable(parameterTypes[i], actuals[i])) {
+          return new IllegalArgumentException(
+              "Argument " + i + " is not a " + parameterTypes[i].getName());
+        }
+      }
+      return null;
+    }
+
+    /**
+     * True if every argument list accepted by this is accepted by other,
+     * as when choosing the most specific of several applicable methods.
+     */
+    boolean isMoreSpecificThan(Invoker other) {
+      for (int i = 0, n = parameterTypes.length; i < n; ++i) {
+        Class<?> a = parameterTypes[i];
+        Class<?> b = other.parameterTypes[i];
+        if (!(b.isAssignableFrom(a)
+              || (a.isPrimitive() && WIDENINGS.containsKey(a)
+                  && WIDENINGS.get(a).contains(b)))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Invokes the executable after {@link #checkCall} approves the call.
+     *
+     * @param receiver ignored for static methods and constructors.
+     * @return the result boxed, or null for a void method.
+     * @throws Throwable anything thrown by the executable.
+     */
+    Object invoke(@Nullable Object receiver, Object[] actuals)
+    throws Throwable {
+      return needsReceiver
+          ? (Object) handle.invokeExact(receiver, actuals)
+          : (Object) handle.invokeExact(actuals);
+    }
+  }
+
+  /** Reads and writes a field. */
+  static final class FieldAccessor {
+    final Field field;
+    private final boolean isStatic;
+    private final @Nullable MethodHandle getter;
+    private final @Nullable IllegalAccessException getterFailure;
+    private final @Nullable MethodHandle setter;
+    private final @Nullable IllegalAccessException setterFailure;
+
+    private FieldAccessor(Field field) {
+      this.field = field;
+      this.isStatic = Modifier.isStatic(field.getModifiers());
+      MethodHandle g = null;
+      IllegalAccessException gf = null;
+      try {
+        g = LOOKUP.unreflectGetter(field)
+            .asType(isStatic ? STATIC_GET : INSTANCE_GET);
+      } catch (IllegalAccessException ex) {
+        gf = ex;
+      }
+      MethodHandle s = null;
+      IllegalAccessException sf = null;
+      try {
+        s = LOOKUP.unreflectSetter(field)
+            .asType(isStatic ? STATIC_SET : INSTANCE_SET);
+      } catch (IllegalAccessException ex) {
+        sf = ex;
+      }
+      this.getter = g;
+      this.getterFailure = gf;
+      this.setter = s;
+      this.setterFailure = sf;
+    }
+
+    /**
+     * The exception that {@link Field#get} would fail with or null if
+     * {@link #get} may be called.
+     */
+    @Nullable Exception checkGet(@Nullable Object container) {
+      if (getterFailure != null) { return getterFailure; }
+      return isStatic
+          ? null
+          : checkContainer(field.getDeclaringClass(), container);
+    }
+
+    /**
+     * The exception that {@link Field#set} would fail with or null if
+     * {@link #set} may be called.
+     */
+    @Nullable Exception checkSet(
+        @Nullable Object container, @Nullable Object newValue) {
+      if (setterFailure != null) { return setterFailure; }
+      if (!isStatic) {
+        Exception ex = checkContainer(field.getDeclaringClass(), container);
+        if (ex != null) { return ex; }
+      }
+      if (!isAssignable(field.getType(), newValue)) {
+        return new IllegalArgumentException(
+            "Cannot assign to " + field.getType().getName());
+      }
+      return null;
+    }
+
+    /** Reads the field after {@link #checkGet} approves the read. */
+    Object get(@Nullable Object container) {
+      try {
+        return isStatic
+            ? (Object) getter.invokeExact()
+            : (Object) getter.invokeExact(container);
+      } catch (Error | RuntimeException ex) {
+        throw ex;
+      } catch (Throwable th) {
+        // Field reads only throw unchecked exceptions.
+        throw new AssertionError(null, th);
+      }
+    }
+
+    /** Writes the field after {@link #checkSet} approves the write. */
+    void set(@Nullable Object container, @Nullable Object newValue) {
+      try {
+        if (isStatic) {
+          setter.invokeExact(newValue);
+        } else {
+          setter.invokeExact(container, newValue);
+        }
+      } catch (Error | RuntimeException ex) {
+        throw ex;
+      } catch (Throwable th) {
+        // Field writes only throw unchecked exceptions.
+        throw new AssertionError(null, th);
+      }
+    }
+  }
+
+  /**
+   * A polymorphic inline cache for a member looked up by name on the runtime
+   * class of a receiver.
+   * Not thread-safe, so each is confined to one interpretation context.
+   *
+   * @param <T> the type of member handle.
+   */
+  static final class DynamicSite<T> {
+    /** Past this many receiver classes, the oldest entry is replaced. */
+    private static final int MAX_ENTRIES = 4;
+
+    private Class<?>[] classes = new Class<?>[0];
+    private Object[] entries = new Object[0];
+    private int nextToReplace;
+
+    /** The entry cached for cl or null if none is. */
+    @Nullable T get(Class<?> cl) {
+      for (int i = 0, n = classes.length; i < n; ++i) {
+        if (classes[i] == cl) {
+          @SuppressWarnings("unchecked")  // Only Ts are put.
+          T entry = (T) entries[i];
+          return entry;
+        }
+      }
+      return null;
+    }
+
+    void put(Class<?> cl, T entry) {
+      int n = classes.length;
+      if (n < MAX_ENTRIES) {
+        classes = Arrays.copyOf(classes, n + 1);
+        entries = Arrays.copyOf(entries, n + 1);
+        classes[n] = cl;
+        entries[n] = entry;
+      } else {
+        classes[nextToReplace] = cl;
+        entries[nextToReplace] = entry;
+        nextToReplace = (nextToReplace + 1) % MAX_ENTRIES;
+      }
+    }
+  }
+
+  private static @Nullable Exception checkContainer(
+      Class<?> declaringClass, @Nullable Object container) {
+    if (container == null) {
+      return new NullPointerException();
+    }
+    if (!declaringClass.isInstance(container)) {
+      return new IllegalArgumentException(
+          container.getClass().getName() + " is not a "
+          + declaringClass.getName());
+    }
+    return null;
+  }
+
+  /**
+   * True if a reflective call would accept value for a parameter of the given
+   * type: it is null or an instance of a reference type, or it unboxes to a
+   * primitive that widens to type.
+   */
+  static boolean isAssignable(Class<?> type, @Nullable Object value) {
+    if (!type.isPrimitive()) {
+      return value == null || type.isInstance(value);
+    }
+    if (value == null) {
+      return false;
+    }
+    Class<?> valuePrimitiveType = Primitives.unwrap(value.getClass());
+    if (valuePrimitiveType == type) {
+      return true;
+    }
+    ImmutableSet<Class<?>> widened = WIDENINGS.get(valuePrimitiveType);
+    return widened != null && widened.contains(type);
+  }
+
+  private static final ImmutableMap<Class<?>, ImmutableSet<Class<?>>>
+      WIDENINGS = ImmutableMap.<Class<?>, ImmutableSet<Class<?>>>builder()
+      .put(byte.class, ImmutableSet.<Class<?>>of(
+          short.class, int.class, long.class, float.class, double.class))
+      .put(short.class, ImmutableSet.<Class<?>>of(
+          int.class, long.class, float.class, double.class))
+      .put(char.class, ImmutableSet.<Class<?>>of(
+          int.class, long.class, float.class, double.class))
+      .put(int.class, ImmutableSet.<Class<?>>of(
+          long.class, float.class, double.class))
+      .put(long.class, ImmutableSet.<Class<?>>of(float.class, double.class))
+      .put(float.class, ImmutableSet.<Class<?>>of(double.class))
+      .build();
+}
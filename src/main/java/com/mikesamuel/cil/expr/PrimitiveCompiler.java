@@ -0,0 +1,1201 @@
+package com.mikesamuel.cil.expr;
+
+import java.util.EnumMap;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.mikesamuel.cil.ast.j8.AdditiveOperatorNode;
+import com.mikesamuel.cil.ast.j8.AssignmentNode;
+import com.mikesamuel.cil.ast.j8.AssignmentOperatorNode;
+import com.mikesamuel.cil.ast.j8.EqualityOperatorNode;
+import com.mikesamuel.cil.ast.j8.ExpressionAtomNode;
+import com.mikesamuel.cil.ast.j8.IncrDecrOperatorNode;
+import com.mikesamuel.cil.ast.j8.J8BaseNode;
+import com.mikesamuel.cil.ast.j8.J8NodeType;
+import com.mikesamuel.cil.ast.j8.J8Typed;
+import com.mikesamuel.cil.ast.j8.J8WholeType;
+import com.mikesamuel.cil.ast.j8.LeftHandSideNode;
+import com.mikesamuel.cil.ast.j8.MultiplicativeOperatorNode;
+import com.mikesamuel.cil.ast.j8.PrefixOperatorNode;
+import com.mikesamuel.cil.ast.j8.RelationalOperatorNode;
+import com.mikesamuel.cil.ast.j8.UnaryExpressionNode;
+import com.mikesamuel.cil.ast.meta.StaticType;
+import com.mikesamuel.cil.parser.SourcePosition;
+
+/**
+ * Compiles operators over primitive values so that compiled code evaluates
+ * them to Java primitives instead of boxed values.
+ * <p>
+ * An operator qualifies when the static types of it and its operands are
+ * primitive.
+ * Operands that do not qualify, like method calls, are compiled by the
+ * {@link ClosureCompiler} and unboxed.  An error value from one of those
+ * aborts the enclosing unboxed computation, which then yields the error
+ * value as the interpreter would have.
+ * <p>
+ * Results are those the context's primitive operators compute, but operand
+ * types come from the typing pass instead of the runtime classes of values.
+ * Operators whose interpreted results depend on the runtime classes of their
+ * operands, like {@code ==} on different numeric types, do not qualify.
+ * <p>
+ * Compiled code stores primitive locals unboxed, so loops over them need not
+ * allocate.
+ */
+final class PrimitiveCompiler<VALUE> {
+  private final ClosureCompiler<VALUE> compiler;
+  private final Interpreter<VALUE> interpreter;
+  private final InterpretationContext<VALUE> context;
+  private final PrimitiveValues<VALUE> values;
+  private final EnumMap<Kind, Locals.Unboxed<VALUE>> unboxeds =
+      new EnumMap<>(Kind.class);
+
+  PrimitiveCompiler(
+      ClosureCompiler<VALUE> compiler, Interpreter<VALUE> interpreter,
+      PrimitiveValues<VALUE> values) {
+    this.compiler = compiler;
+    this.interpreter = interpreter;
+    this.context = interpreter.context;
+    this.values = values;
+  }
+
+  /** Primitive types. */
+  enum Kind {
+    BOOLEAN,
+    BYTE,
+    SHORT,
+    CHAR,
+    INT,
+    LONG,
+    FLOAT,
+    DOUBLE,
+    ;
+
+    /**
+     * True if unboxed values are held as doubles.
+     * Otherwise they are held as longs, with booleans as 0 or 1.
+     */
+    boolean isFloaty() {
+      return this == FLOAT || this == DOUBLE;
+    }
+
+    boolean isNumeric() {
+      return this != BOOLEAN;
+    }
+
+    boolean isIntegral() {
+      return isNumeric() && !isFloaty();
+    }
+
+    /** The kind after unary numeric promotion per JLS 5.6.1. */
+    Kind promote() {
+      switch (this) {
+        case BYTE: case SHORT: case CHAR:
+          return INT;
+        default:
+          return this;
+      }
+    }
+
+    /** The kind after binary numeric promotion per JLS 5.6.2. */
+    static Kind promote(Kind a, Kind b) {
+      Kind pa = a.promote();
+      Kind pb = b.promote();
+      return pa.compareTo(pb) >= 0 ? pa : pb;
+    }
+
+    private static final ImmutableMap<StaticType, Kind> BY_TYPE =
+        ImmutableMap.<StaticType, Kind>builder()
+        .put(StaticType.T_BOOLEAN, BOOLEAN)
+        .put(StaticType.T_BYTE, BYTE)
+        .put(StaticType.T_SHORT, SHORT)
+        .put(StaticType.T_CHAR, CHAR)
+        .put(StaticType.T_INT, INT)
+        .put(StaticType.T_LONG, LONG)
+        .put(StaticType.T_FLOAT, FLOAT)
+        .put(StaticType.T_DOUBLE, DOUBLE)
+        .build();
+
+    static @Nullable Kind of(@Nullable StaticType t) {
+      return t != null ? BY_TYPE.get(t) : null;
+    }
+  }
+
+  enum Op {
+    ADD, SUB, MUL, DIV, MOD,
+    SHL, SHR, USHR,
+    AND, OR, XOR,
+    LT, GT, LE, GE, EQ, NE,
+    ;
+  }
+
+  /**
+   * Abandons an unboxed computation when an operand evaluates to an error
+   * value.
+   * Preallocated and without a stack trace since it is used for control flow.
+   */
+  static final class Abort extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    static final Abort INSTANCE = new Abort();
+
+    private Abort() {
+      super(null, null, false, false);
+    }
+  }
+
+  /** An expression compiled to produce an unboxed value. */
+  abstract class Prim {
+    final Kind kind;
+
+    Prim(Kind kind) {
+      this.kind = kind;
+    }
+
+    /**
+     * The value of a boolean, as 0 or 1, or integral expression.
+     *
+     * @throws Abort if an operand evaluated to an error value.
+     */
+    long longValue(@SuppressWarnings("unused") Locals<VALUE> locals) {
+      throw new AssertionError(kind);
+    }
+
+    /**
+     * The value of a floating point expression.
+     *
+     * @throws Abort if an operand evaluated to an error value.
+     */
+    double doubleValue(@SuppressWarnings("unused") Locals<VALUE> locals) {
+      throw new AssertionError(kind);
+    }
+  }
+
+  /** The static type of node if primitive. */
+  static @Nullable Kind kindOf(@Nullable J8BaseNode node) {
+    if (node instanceof J8Typed) {
+      return Kind.of(((J8Typed) node).getStaticType());
+    }
+    return null;
+  }
+
+  /**
+   * The representation for locals of the given type that compiled code
+   * stores unboxed, or null if locals of that type are stored boxed.
+   */
+  @Nullable Locals.Unboxed<VALUE> unboxedFor(@Nullable Kind kind) {
+    if (kind == null) { return null; }
+    Locals.Unboxed<VALUE> unboxed = unboxeds.get(kind);
+    if (unboxed == null) {
+      switch (kind) {
+        case BOOLEAN:
+          unboxed = new Locals.Unboxed<VALUE>() {
+            @Override
+            public VALUE box(long bits) {
+              return context.from(bits != 0);
+            }
+
+            @Override
+            public long unbox(VALUE value) {
+              return values.booleanValue(value) ? 1 : 0;
+            }
+          };
+          break;
+        case INT:
+          unboxed = new Locals.Unboxed<VALUE>() {
+            @Override
+            public VALUE box(long bits) {
+              return context.from((int) bits);
+            }
+
+            @Override
+            public long unbox(VALUE value) {
+              return values.intValue(value);
+            }
+          };
+          break;
+        case LONG:
+          unboxed = new Locals.Unboxed<VALUE>() {
+            @Override
+            public VALUE box(long bits) {
+              return context.from(bits);
+            }
+
+            @Override
+            public long unbox(VALUE value) {
+              return values.longValue(value);
+            }
+          };
+          break;
+        case FLOAT:
+          unboxed = new Locals.Unboxed<VALUE>() {
+            @Override
+            public VALUE box(long bits) {
+              return context.from((float) Double.longBitsToDouble(bits));
+            }
+
+            @Override
+            public long unbox(VALUE value) {
+              return Double.doubleToRawLongBits(values.floatValue(value));
+            }
+          };
+          break;
+        case DOUBLE:
+          unboxed = new Locals.Unboxed<VALUE>() {
+            @Override
+            public VALUE box(long bits) {
+              return context.from(Double.longBitsToDouble(bits));
+            }
+
+            @Override
+            public long unbox(VALUE value) {
+              return Double.doubleToRawLongBits(values.doubleValue(value));
+            }
+          };
+          break;
+        case BYTE:
+        case SHORT:
+        case CHAR:
+          // Rare enough as locals that the narrowing is not worth it.
+          return null;
+      }
+      unboxeds.put(kind, unboxed);
+    }
+    return unboxed;
+  }
+
+  /**
+   * Boxes the result of p.
+   *
+   * @throws Abort if an operand evaluated to an error value.
+   */
+  VALUE box(Prim p, Locals<VALUE> locals) {
+    switch (p.kind) {
+      case BOOLEAN: return context.from(p.longValue(locals) != 0);
+      case BYTE:    return context.from((byte) p.longValue(locals));
+      case SHORT:   return context.from((short) p.longValue(locals));
+      case CHAR:    return context.from((char) p.longValue(locals));
+      case INT:     return context.from((int) p.longValue(locals));
+      case LONG:    return context.from(p.longValue(locals));
+      case FLOAT:   return context.from((float) p.doubleValue(locals));
+      case DOUBLE:  return context.from(p.doubleValue(locals));
+    }
+    throw new AssertionError(p.kind);
+  }
+
+  /**
+   * Evaluates p for its side effects.
+   *
+   * @throws Abort if an operand evaluated to an error value.
+   */
+  void run(Prim p, Locals<VALUE> locals) {
+    if (p.kind.isFloaty()) {
+      p.doubleValue(locals);
+    } else {
+      p.longValue(locals);
+    }
+  }
+
+  /**
+   * The bits to store in an unboxed local for the result of p.
+   *
+   * @throws Abort if an operand evaluated to an error value.
+   */
+  long bits(Prim p, Locals<VALUE> locals) {
+    return p.kind.isFloaty()
+        ? Double.doubleToRawLongBits(p.doubleValue(locals))
+        : p.longValue(locals);
+  }
+
+  /**
+   * Compiles an operation node whose delegates have been unwrapped.
+   *
+   * @return null if node is not an operator, or its operands are not all
+   *     primitive.
+   */
+  @Nullable Prim compileOperation(J8BaseNode node) {
+    Kind resultKind = kindOf(node);
+    if (resultKind == null) { return null; }
+    Prim result = null;
+    switch (node.getNodeType()) {
+      case AdditiveExpression: {
+        AdditiveOperatorNode op = operator(node, AdditiveOperatorNode.class);
+        if (op == null) { return null; }
+        switch (op.getVariant()) {
+          case Pls: result = arithmetic(node, Op.ADD); break;
+          case Dsh: result = arithmetic(node, Op.SUB); break;
+        }
+        break;
+      }
+      case MultiplicativeExpression: {
+        MultiplicativeOperatorNode op = operator(
+            node, MultiplicativeOperatorNode.class);
+        if (op == null) { return null; }
+        switch (op.getVariant()) {
+          case Str: result = arithmetic(node, Op.MUL); break;
+          case Fwd: result = arithmetic(node, Op.DIV); break;
+          case Pct: result = arithmetic(node, Op.MOD); break;
+        }
+        break;
+      }
+      case RelationalExpression: {
+        RelationalOperatorNode op = operator(
+            node, RelationalOperatorNode.class);
+        if (op == null) { return null; }
+        switch (op.getVariant()) {
+          case Lt:   result = comparison(node, Op.LT); break;
+          case Gt:   result = comparison(node, Op.GT); break;
+          case LtEq: result = comparison(node, Op.LE); break;
+          case GtEq: result = comparison(node, Op.GE); break;
+        }
+        break;
+      }
+      case EqualityExpression: {
+        EqualityOperatorNode op = operator(node, EqualityOperatorNode.class);
+        if (op == null) { return null; }
+        switch (op.getVariant()) {
+          case EqEq:  result = comparison(node, Op.EQ); break;
+          case BngEq: result = comparison(node, Op.NE); break;
+        }
+        break;
+      }
+      case AndExpression:
+        result = bitwise(node, Op.AND);
+        break;
+      case ExclusiveOrExpression:
+        result = bitwise(node, Op.XOR);
+        break;
+      case InclusiveOrExpression:
+        result = bitwise(node, Op.OR);
+        break;
+      case ConditionalAndExpression:
+      case ConditionalOrExpression:
+        result = shortCircuit(node);
+        break;
+      case UnaryExpression:
+        if (((UnaryExpressionNode) node).getVariant()
+            == UnaryExpressionNode.Variant.PrefixOperatorUnaryExpression) {
+          result = prefixOperator(node);
+        }
+        break;
+      case CastExpression:
+        result = cast(node, resultKind);
+        break;
+      case Assignment:
+        result = assignment((AssignmentNode) node);
+        break;
+      case PreExpression:
+      case PostExpression:
+        result = incrDecr(node);
+        break;
+      default:
+        break;
+    }
+    // Bail if our idea of the result type differs from the typing pass's.
+    return result != null && result.kind == resultKind ? result : null;
+  }
+
+  /**
+   * Compiles the initializer for an unboxed local.
+   *
+   * @return null if the initializer's static type is not primitive.
+   */
+  @Nullable Prim compileInitializer(J8BaseNode node, Kind kind) {
+    Prim p = compileOperand(node);
+    if (p == null) { return null; }
+    if (p.kind == kind) { return p; }
+    return p.kind.isNumeric() && kind.isNumeric() ? convert(p, kind) : null;
+  }
+
+  /**
+   * Compiles an operand.
+   *
+   * @return null if the operand's static type is not primitive.
+   */
+  private @Nullable Prim compileOperand(@Nullable J8BaseNode operandNode) {
+    if (operandNode == null) { return null; }
+    J8BaseNode node = Interpreter.unwrapDelegates(operandNode);
+    Kind kind = kindOf(node);
+    if (kind == null) { return null; }
+    Prim p = compileOperation(node);
+    if (p != null) { return p; }
+    switch (node.getNodeType()) {
+      case BooleanLiteral:
+      case CharacterLiteral:
+      case FloatingPointLiteral:
+      case IntegerLiteral: {
+        Completion<VALUE> result = interpreter.interpret(
+            node, new Locals<>(), null);
+        if (context.completedNormallyWithoutError(result)) {
+          return constant(node, kind, result.value);
+        }
+        break;
+      }
+      case ExpressionAtom: {
+        ClosureCompiler.LocalRef ref = compiler.resolveLocal(
+            (ExpressionAtomNode) node);
+        if (ref != null && ref.slot >= 0 && ref.unboxedKind == kind) {
+          return readSlot(kind, ref.depth, ref.slot);
+        }
+        break;
+      }
+      default:
+        break;
+    }
+    return unboxed(node, kind, compiler.compileExpr(node));
+  }
+
+  private @Nullable <OP extends J8BaseNode> OP operator(
+      J8BaseNode node, Class<OP> operatorType) {
+    if (node.getNChildren() == 3) {
+      J8BaseNode child = node.getChild(1);
+      if (operatorType.isInstance(child)) {
+        return operatorType.cast(child);
+      }
+    }
+    return null;
+  }
+
+  private Prim constant(J8BaseNode node, Kind kind, VALUE value) {
+    if (kind.isFloaty()) {
+      double d = unboxDouble(node, kind, value);
+      return new Prim(kind) {
+        @Override
+        double doubleValue(Locals<VALUE> locals) {
+          return d;
+        }
+      };
+    }
+    long j = unboxLong(node, kind, value);
+    return new Prim(kind) {
+      @Override
+      long longValue(Locals<VALUE> locals) {
+        return j;
+      }
+    };
+  }
+
+  private Prim unboxed(
+      J8BaseNode node, Kind kind, ClosureCompiler<VALUE>.Expr e) {
+    if (kind.isFloaty()) {
+      return new Prim(kind) {
+        @Override
+        double doubleValue(Locals<VALUE> locals) {
+          return unboxDouble(node, kind, e.eval(locals));
+        }
+      };
+    }
+    return new Prim(kind) {
+      @Override
+      long longValue(Locals<VALUE> locals) {
+        return unboxLong(node, kind, e.eval(locals));
+      }
+    };
+  }
+
+  private long unboxLong(J8BaseNode node, Kind kind, VALUE v) {
+    if (context.isErrorValue(v)) { throw Abort.INSTANCE; }
+    try {
+      switch (kind) {
+        case BOOLEAN: return values.booleanValue(v) ? 1 : 0;
+        case LONG:    return values.longValue(v);
+        default:      return narrow(kind, values.intValue(v));
+      }
+    } catch (ClassCastException | NullPointerException ex) {
+      interpreter.error(
+          node, "Expected " + kind.name().toLowerCase() + " not " + v);
+      throw Abort.INSTANCE;
+    }
+  }
+
+  private double unboxDouble(J8BaseNode node, Kind kind, VALUE v) {
+    if (context.isErrorValue(v)) { throw Abort.INSTANCE; }
+    try {
+      return kind == Kind.FLOAT
+          ? values.floatValue(v)
+          : values.doubleValue(v);
+    } catch (ClassCastException | NullPointerException ex) {
+      interpreter.error(
+          node, "Expected " + kind.name().toLowerCase() + " not " + v);
+      throw Abort.INSTANCE;
+    }
+  }
+
+  private Prim readSlot(Kind kind, int depth, int slot) {
+    if (kind.isFloaty()) {
+      return new Prim(kind) {
+        @Override
+        double doubleValue(Locals<VALUE> locals) {
+          return Double.longBitsToDouble(locals.up(depth).getBits(slot));
+        }
+      };
+    }
+    return new Prim(kind) {
+      @Override
+      long longValue(Locals<VALUE> locals) {
+        return locals.up(depth).getBits(slot);
+      }
+    };
+  }
+
+  /** Stores the result of p, which must be of kind, in the slot. */
+  private Prim writeSlot(Kind kind, int depth, int slot, Prim p) {
+    if (kind.isFloaty()) {
+      return new Prim(kind) {
+        @Override
+        double doubleValue(Locals<VALUE> locals) {
+          double d = p.doubleValue(locals);
+          locals.up(depth).setBits(slot, Double.doubleToRawLongBits(d));
+          return d;
+        }
+      };
+    }
+    return new Prim(kind) {
+      @Override
+      long longValue(Locals<VALUE> locals) {
+        long j = p.longValue(locals);
+        locals.up(depth).setBits(slot, j);
+        return j;
+      }
+    };
+  }
+
+  private static long narrow(Kind kind, long x) {
+    switch (kind) {
+      case BYTE:  return (byte) x;
+      case SHORT: return (short) x;
+      case CHAR:  return (char) x;
+      case INT:   return (int) x;
+      default:    return x;
+    }
+  }
+
+  /**
+   * Converts p to another numeric kind, as by a cast.
+   */
+  private Prim convert(Prim p, Kind to) {
+    Kind from = p.kind;
+    if (from == to) { return p; }
+    if (to.isFloaty()) {
+      if (from.isFloaty()) {
+        return new Prim(to) {
+          @Override
+          double doubleValue(Locals<VALUE> locals) {
+            double x = p.doubleValue(locals);
+            return to == Kind.FLOAT ? (float) x : x;
+          }
+        };
+      }
+      return new Prim(to) {
+        @Override
+        double doubleValue(Locals<VALUE> locals) {
+          long x = p.longValue(locals);
+          return to == Kind.FLOAT ? (float) x : (double) x;
+        }
+      };
+    }
+    if (from.isFloaty()) {
+      return new Prim(to) {
+        @Override
+        long longValue(Locals<VALUE> locals) {
+          double x = p.doubleValue(locals);
+          return to == Kind.LONG ? (long) x : narrow(to, (int) x);
+        }
+      };
+    }
+    if (to == Kind.LONG || (to == Kind.INT && from != Kind.LONG)) {
+      // Widening does not change the long that holds the value.
+      return new Prim(to) {
+        @Override
+        long longValue(Locals<VALUE> locals) {
+          return p.longValue(locals);
+        }
+      };
+    }
+    return new Prim(to) {
+      @Override
+      long longValue(Locals<VALUE> locals) {
+        return narrow(to, p.longValue(locals));
+      }
+    };
+  }
+
+  /** Compiles a binary numeric operation with its operands promoted. */
+  private @Nullable Prim arithmetic(J8BaseNode node, Op op) {
+    Prim a = compileOperand(node.getChild(0));
+    Prim b = compileOperand(node.getChild(2));
+    if (a == null || b == null
+        || !a.kind.isNumeric() || !b.kind.isNumeric()) {
+      return null;
+    }
+    Kind kind = Kind.promote(a.kind, b.kind);
+    return arithmetic(node.getChild(2), op, kind, a, b);
+  }
+
+  /**
+   * @param rightNode the position of the right operand is used when
+   *     reporting division by zero as the interpreter would.
+   */
+  private Prim arithmetic(
+      J8BaseNode rightNode, Op op, Kind kind, Prim a, Prim b) {
+    Prim x = convert(a, kind);
+    Prim y = convert(b, kind);
+    if (kind.isFloaty()) {
+      Prim r = floatyArithmetic(op, kind, x, y);
+      // Rounding a float operation done in double precision gives the
+      // same result as doing it in float precision.
+      return kind == Kind.FLOAT ? roundToFloat(r) : r;
+    }
+    Prim r = integralArithmetic(rightNode.getSourcePosition(), op, kind, x, y);
+    return kind == Kind.INT ? narrowToInt(r) : r;
+  }
+
+  /** One closure per operator so that evaluation does not switch on op. */
+  private Prim floatyArithmetic(Op op, Kind kind, Prim x, Prim y) {
+    switch (op) {
+      case ADD:
+        return new Prim(kind) {
+          @Override
+          double doubleValue(Locals<VALUE> locals) {
+            return x.doubleValue(locals) + y.doubleValue(locals);
+          }
+        };
+      case SUB:
+        return new Prim(kind) {
+          @Override
+          double doubleValue(Locals<VALUE> locals) {
+            return x.doubleValue(locals) - y.doubleValue(locals);
+          }
+        };
+      case MUL:
+        return new Prim(kind) {
+          @Override
+          double doubleValue(Locals<VALUE> locals) {
+            return x.doubleValue(locals) * y.doubleValue(locals);
+          }
+        };
+      case DIV:
+        return new Prim(kind) {
+          @Override
+          double doubleValue(Locals<VALUE> locals) {
+            return x.doubleValue(locals) / y.doubleValue(locals);
+          }
+        };
+      case MOD:
+        return new Prim(kind) {
+          @Override
+          double doubleValue(Locals<VALUE> locals) {
+            return x.doubleValue(locals) % y.doubleValue(locals);
+          }
+        };
+      default:
+        throw new AssertionError(op);
+    }
+  }
+
+  /** @see #floatyArithmetic */
+  private Prim integralArithmetic(
+      @Nullable SourcePosition rightPos, Op op, Kind kind, Prim x, Prim y) {
+    switch (op) {
+      case ADD:
+        return new Prim(kind) {
+          @Override
+          long longValue(Locals<VALUE> locals) {
+            return x.longValue(locals) + y.longValue(locals);
+          }
+        };
+      case SUB:
+        return new Prim(kind) {
+          @Override
+          long longValue(Locals<VALUE> locals) {
+            return x.longValue(locals) - y.longValue(locals);
+          }
+        };
+      case MUL:
+        return new Prim(kind) {
+          @Override
+          long longValue(Locals<VALUE> locals) {
+            return x.longValue(locals) * y.longValue(locals);
+          }
+        };
+      case DIV:
+        return new Prim(kind) {
+          @Override
+          long longValue(Locals<VALUE> locals) {
+            long u = x.longValue(locals);
+            long v = y.longValue(locals);
+            if (v == 0) { return divideByZero(rightPos, op, kind, u, v); }
+            return u / v;
+          }
+        };
+      case MOD:
+        return new Prim(kind) {
+          @Override
+          long longValue(Locals<VALUE> locals) {
+            long u = x.longValue(locals);
+            long v = y.longValue(locals);
+            if (v == 0) { return divideByZero(rightPos, op, kind, u, v); }
+            return u % v;
+          }
+        };
+      default:
+        throw new AssertionError(op);
+    }
+  }
+
+  private Prim roundToFloat(Prim p) {
+    return new Prim(Kind.FLOAT) {
+      @Override
+      double doubleValue(Locals<VALUE> locals) {
+        return (float) p.doubleValue(locals);
+      }
+    };
+  }
+
+  private Prim narrowToInt(Prim p) {
+    return new Prim(Kind.INT) {
+      @Override
+      long longValue(Locals<VALUE> locals) {
+        return (int) p.longValue(locals);
+      }
+    };
+  }
+
+  /** Lets the context report integer division by zero. */
+  private long divideByZero(
+      @Nullable SourcePosition pos, Op op, Kind kind, long u, long v) {
+    if (pos != null) {
+      interpreter.setCurrentSourcePosition(pos);
+    }
+    VALUE x = kind == Kind.INT ? context.from((int) u) : context.from(u);
+    VALUE y = kind == Kind.INT ? context.from((int) v) : context.from(v);
+    VALUE result = op == Op.DIV
+        ? context.primitiveDivision(x, y)
+        : context.primitiveModulus(x, y);
+    if (context.isErrorValue(result)) { throw Abort.INSTANCE; }
+    return kind == Kind.INT
+        ? values.intValue(result)
+        : values.longValue(result);
+  }
+
+  /** Compiles a shift, as for a compound assignment like {@code <<=}. */
+  private Prim shift(Op op, Prim a, Prim b) {
+    Kind kind = a.kind.promote();
+    Prim x = convert(a, kind);
+    if (kind == Kind.INT) {
+      switch (op) {
+        case SHL:
+          return new Prim(kind) {
+            @Override
+            long longValue(Locals<VALUE> locals) {
+              return ((int) x.longValue(locals)) << b.longValue(locals);
+            }
+          };
+        case SHR:
+          return new Prim(kind) {
+            @Override
+            long longValue(Locals<VALUE> locals) {
+              return ((int) x.longValue(locals)) >> b.longValue(locals);
+            }
+          };
+        case USHR:
+          return new Prim(kind) {
+            @Override
+            long longValue(Locals<VALUE> locals) {
+              return ((int) x.longValue(locals)) >>> b.longValue(locals);
+            }
+          };
+        default:
+          throw new AssertionError(op);
+      }
+    }
+    switch (op) {
+      case SHL:
+        return new Prim(kind) {
+          @Override
+          long longValue(Locals<VALUE> locals) {
+            return x.longValue(locals) << b.longValue(locals);
+          }
+        };
+      case SHR:
+        return new Prim(kind) {
+          @Override
+          long longValue(Locals<VALUE> locals) {
+            return x.longValue(locals) >> b.longValue(locals);
+          }
+        };
+      case USHR:
+        return new Prim(kind) {
+          @Override
+          long longValue(Locals<VALUE> locals) {
+            return x.longValue(locals) >>> b.longValue(locals);
+          }
+        };
+      default:
+        throw new AssertionError(op);
+    }
+  }
+
+  private @Nullable Prim comparison(J8BaseNode node, Op op) {
+    Prim a = compileOperand(node.getChild(0));
+    Prim b = compileOperand(node.getChild(2));
+    if (a == null || b == null) { return null; }
+    Kind kind;
+    if (op == Op.EQ || op == Op.NE) {
+      // The interpreter compares boxed values with equals so only compare
+      // values of the same type, and not floating point values for which
+      // equals differs from == on NaN and negative zero.
+      if (a.kind != b.kind || a.kind.isFloaty()) { return null; }
+      kind = a.kind;
+    } else {
+      if (!a.kind.isNumeric() || !b.kind.isNumeric()) { return null; }
+      kind = Kind.promote(a.kind, b.kind);
+    }
+    Prim x = convert(a, kind);
+    Prim y = convert(b, kind);
+    return kind.isFloaty()
+        ? floatyComparison(op, x, y)
+        : integralComparison(op, x, y);
+  }
+
+  /** One closure per operator so that evaluation does not switch on op. */
+  private Prim floatyComparison(Op op, Prim x, Prim y) {
+    // The interpreter derives (<=) and (>=) by negating (<) which differs
+    // from Java for NaN.  We do the same.
+    switch (op) {
+      case LT:
+        return new Prim(Kind.BOOLEAN) {
+          @Override
+          long longValue(Locals<VALUE> locals) {
+            return x.doubleValue(locals) < y.doubleValue(locals) ? 1 : 0;
+          }
+        };
+      case GT:
+        return new Prim(Kind.BOOLEAN) {
+          @Override
+          long longValue(Locals<VALUE> locals) {
+            double u = x.doubleValue(locals);
+            return y.doubleValue(locals) < u ? 1 : 0;
+          }
+        };
+      case LE:
+        return new Prim(Kind.BOOLEAN) {
+          @Override
+          long longValue(Locals<VALUE> locals) {
+            double u = x.doubleValue(locals);
+            return y.doubleValue(locals) < u ? 0 : 1;
+          }
+        };
+      case GE:
+        return new Prim(Kind.BOOLEAN) {
+          @Override
+          long longValue(Locals<VALUE> locals) {
+            return x.doubleValue(locals) < y.doubleValue(locals) ? 0 : 1;
+          }
+        };
+      default:
+        throw new AssertionError(op);
+    }
+  }
+
+  /** @see #floatyComparison */
+  private Prim integralComparison(Op op, Prim x, Prim y) {
+    switch (op) {
+      case LT:
+        return new Prim(Kind.BOOLEAN) {
+          @Override
+          long longValue(Locals<VALUE> locals) {
+            return x.longValue(locals) < y.longValue(locals) ? 1 : 0;
+          }
+        };
+      case GT:
+        return new Prim(Kind.BOOLEAN) {
+          @Override
+          long longValue(Locals<VALUE> locals) {
+            return x.longValue(locals) > y.longValue(locals) ? 1 : 0;
+          }
+        };
+      case LE:
+        return new Prim(Kind.BOOLEAN) {
+          @Override
+          long longValue(Locals<VALUE> locals) {
+            return x.longValue(locals) <= y.longValue(locals) ? 1 : 0;
+          }
+        };
+      case GE:
+        return new Prim(Kind.BOOLEAN) {
+          @Override
+          long longValue(Locals<VALUE> locals) {
+            return x.longValue(locals) >= y.longValue(locals) ? 1 : 0;
+          }
+        };
+      case EQ:
+        return new Prim(Kind.BOOLEAN) {
+          @Override
+          long longValue(Locals<VALUE> locals) {
+            return x.longValue(locals) == y.longValue(locals) ? 1 : 0;
+          }
+        };
+      case NE:
+        return new Prim(Kind.BOOLEAN) {
+          @Override
+          long longValue(Locals<VALUE> locals) {
+            return x.longValue(locals) != y.longValue(locals) ? 1 : 0;
+          }
+        };
+      default:
+        throw new AssertionError(op);
+    }
+  }
+
+  private @Nullable Prim bitwise(J8BaseNode node, Op op) {
+    if (node.getNChildren() != 2) { return null; }
+    Prim a = compileOperand(node.getChild(0));
+    Prim b = compileOperand(node.getChild(1));
+    if (a == null || b == null) { return null; }
+    return bitwise(op, a, b);
+  }
+
+  private @Nullable Prim bitwise(Op op, Prim a, Prim b) {
+    Kind kind;
+    if (a.kind == Kind.BOOLEAN && b.kind == Kind.BOOLEAN) {
+      kind = Kind.BOOLEAN;
+    } else if (a.kind.isIntegral() && b.kind.isIntegral()) {
+      kind = Kind.promote(a.kind, b.kind);
+    } else {
+      return null;
+    }
+    Prim x = convert(a, kind);
+    Prim y = convert(b, kind);
+    // Since ints are held sign-extended, these need no narrowing.
+    switch (op) {
+      case AND:
+        return new Prim(kind) {
+          @Override
+          long longValue(Locals<VALUE> locals) {
+            return x.longValue(locals) & y.longValue(locals);
+          }
+        };
+      case OR:
+        return new Prim(kind) {
+          @Override
+          long longValue(Locals<VALUE> locals) {
+            return x.longValue(locals) | y.longValue(locals);
+          }
+        };
+      case XOR:
+        return new Prim(kind) {
+          @Override
+          long longValue(Locals<VALUE> locals) {
+            return x.longValue(locals) ^ y.longValue(locals);
+          }
+        };
+      default:
+        throw new AssertionError(op);
+    }
+  }
+
+  private @Nullable Prim shortCircuit(J8BaseNode node) {
+    if (node.getNChildren() != 2) { return null; }
+    Prim a = compileOperand(node.getChild(0));
+    Prim b = compileOperand(node.getChild(1));
+    if (a == null || b == null
+        || a.kind != Kind.BOOLEAN || b.kind != Kind.BOOLEAN) {
+      return null;
+    }
+    if (node.getNodeType() == J8NodeType.ConditionalAndExpression) {
+      return new Prim(Kind.BOOLEAN) {
+        @Override
+        long longValue(Locals<VALUE> locals) {
+          return a.longValue(locals) != 0 ? b.longValue(locals) : 0;
+        }
+      };
+    }
+    return new Prim(Kind.BOOLEAN) {
+      @Override
+      long longValue(Locals<VALUE> locals) {
+        return a.longValue(locals) != 0 ? 1 : b.longValue(locals);
+      }
+    };
+  }
+
+  private @Nullable Prim prefixOperator(J8BaseNode node) {
+    PrefixOperatorNode operator = node.firstChildWithType(
+        PrefixOperatorNode.class);
+    if (operator == null) { return null; }
+    Prim a = compileOperand(Interpreter.rightOperand(node));
+    if (a == null) { return null; }
+    switch (operator.getVariant()) {
+      case Bng: {
+        if (a.kind != Kind.BOOLEAN) { return null; }
+        return new Prim(Kind.BOOLEAN) {
+          @Override
+          long longValue(Locals<VALUE> locals) {
+            return a.longValue(locals) ^ 1;
+          }
+        };
+      }
+      case Pls:
+        if (!a.kind.isNumeric()) { return null; }
+        return convert(a, a.kind.promote());
+      case Dsh: {
+        if (!a.kind.isNumeric()) { return null; }
+        Kind kind = a.kind.promote();
+        Prim x = convert(a, kind);
+        if (kind.isFloaty()) {
+          return new Prim(kind) {
+            @Override
+            double doubleValue(Locals<VALUE> locals) {
+              return -x.doubleValue(locals);
+            }
+          };
+        }
+        return new Prim(kind) {
+          @Override
+          long longValue(Locals<VALUE> locals) {
+            long r = -x.longValue(locals);
+            return kind == Kind.INT ? (int) r : r;
+          }
+        };
+      }
+      case Tld: {
+        if (!a.kind.isIntegral()) { return null; }
+        Prim x = convert(a, a.kind.promote());
+        return new Prim(x.kind) {
+          @Override
+          long longValue(Locals<VALUE> locals) {
+            return ~x.longValue(locals);
+          }
+        };
+      }
+    }
+    throw new AssertionError(operator);
+  }
+
+  private @Nullable Prim cast(J8BaseNode node, Kind targetKind) {
+    if (node.getNChildren() != 2) { return null; }
+    Optional<J8WholeType> targetTypeOpt = node.getChild(0)
+        .finder(J8WholeType.class).exclude(J8WholeType.class).findOne();
+    if (!targetTypeOpt.isPresent()
+        || Kind.of(targetTypeOpt.get().getStaticType()) != targetKind) {
+      return null;
+    }
+    Prim a = compileOperand(node.getChild(1));
+    if (a == null) { return null; }
+    if (a.kind == Kind.BOOLEAN || targetKind == Kind.BOOLEAN) {
+      return a.kind == targetKind ? a : null;
+    }
+    return convert(a, targetKind);
+  }
+
+  /** The slot of an unboxed local or null. */
+  private @Nullable ClosureCompiler.LocalRef unboxedLocal(
+      @Nullable LeftHandSideNode lhsNode) {
+    if (lhsNode == null || lhsNode.getNChildren() != 1
+        || !(lhsNode.getChild(0) instanceof ExpressionAtomNode)) {
+      return null;
+    }
+    ClosureCompiler.LocalRef ref = compiler.resolveLocal(
+        (ExpressionAtomNode) lhsNode.getChild(0));
+    return ref != null && ref.slot >= 0 && ref.unboxedKind != null
+        ? ref : null;
+  }
+
+  private @Nullable Prim assignment(AssignmentNode node) {
+    if (node.getNChildren() != 3) { return null; }
+    ClosureCompiler.LocalRef ref = unboxedLocal(
+        node.firstChildWithType(LeftHandSideNode.class));
+    AssignmentOperatorNode operator = node.firstChildWithType(
+        AssignmentOperatorNode.class);
+    if (ref == null || operator == null) { return null; }
+    Kind kind = ref.unboxedKind;
+    J8BaseNode rhsNode = Interpreter.rightOperand(node);
+    Prim rhs = compileOperand(rhsNode);
+    if (rhs == null) { return null; }
+
+    Prim newValue;
+    if (operator.getVariant() == AssignmentOperatorNode.Variant.Eq) {
+      if ((kind == Kind.BOOLEAN) != (rhs.kind == Kind.BOOLEAN)) {
+        return null;
+      }
+      newValue = kind == Kind.BOOLEAN ? rhs : convert(rhs, kind);
+    } else {
+      Prim old = readSlot(kind, ref.depth, ref.slot);
+      Prim combined;
+      switch (operator.getVariant()) {
+        case PlsEq: combined = compound(Op.ADD, old, rhsNode, rhs); break;
+        case DshEq: combined = compound(Op.SUB, old, rhsNode, rhs); break;
+        case StrEq: combined = compound(Op.MUL, old, rhsNode, rhs); break;
+        case FwdEq: combined = compound(Op.DIV, old, rhsNode, rhs); break;
+        case PctEq: combined = compound(Op.MOD, old, rhsNode, rhs); break;
+        case AmpEq: combined = bitwise(Op.AND, old, rhs); break;
+        case HatEq: combined = bitwise(Op.XOR, old, rhs); break;
+        case PipEq: combined = bitwise(Op.OR, old, rhs); break;
+        case Lt2Eq: case Gt2Eq: case Gt3Eq: {
+          if (!kind.isIntegral() || !rhs.kind.isIntegral()) { return null; }
+          Op op = operator.getVariant() == AssignmentOperatorNode.Variant.Lt2Eq
+              ? Op.SHL
+              : operator.getVariant() == AssignmentOperatorNode.Variant.Gt2Eq
+              ? Op.SHR
+              : Op.USHR;
+          combined = shift(op, old, rhs);
+          break;
+        }
+        default:
+          throw new AssertionError(operator);
+      }
+      if (combined == null) { return null; }
+      // Compound assignment narrows as by a cast, JLS 15.26.2.
+      newValue = kind == Kind.BOOLEAN ? combined : convert(combined, kind);
+    }
+    return writeSlot(kind, ref.depth, ref.slot, newValue);
+  }
+
+  private @Nullable Prim compound(
+      Op op, Prim old, J8BaseNode rhsNode, Prim rhs) {
+    if (!old.kind.isNumeric() || !rhs.kind.isNumeric()) { return null; }
+    return arithmetic(
+        rhsNode, op, Kind.promote(old.kind, rhs.kind), old, rhs);
+  }
+
+  private @Nullable Prim incrDecr(J8BaseNode node) {
+    ClosureCompiler.LocalRef ref = unboxedLocal(
+        node.firstChildWithType(LeftHandSideNode.class));
+    IncrDecrOperatorNode operator = node.firstChildWithType(
+        IncrDecrOperatorNode.class);
+    if (ref == null || operator == null
+        || !ref.unboxedKind.isNumeric()) {
+      return null;
+    }
+    Kind kind = ref.unboxedKind;
+    int depth = ref.depth;
+    int slot = ref.slot;
+    boolean isPost = node.getNodeType() == J8NodeType.PostExpression;
+    int delta = operator.getVariant() == IncrDecrOperatorNode.Variant.PlsPls
+        ? 1 : -1;
+    if (kind.isFloaty()) {
+      return new Prim(kind) {
+        @Override
+        double doubleValue(Locals<VALUE> locals) {
+          Locals<VALUE> slotLocals = locals.up(depth);
+          double oldValue = Double.longBitsToDouble(slotLocals.getBits(slot));
+          double newValue = oldValue + delta;
+          if (kind == Kind.FLOAT) { newValue = (float) newValue; }
+          slotLocals.setBits(slot, Double.doubleToRawLongBits(newValue));
+          return isPost ? oldValue : newValue;
+        }
+      };
+    }
+    return new Prim(kind) {
+      @Override
+      long longValue(Locals<VALUE> locals) {
+        Locals<VALUE> slotLocals = locals.up(depth);
+        long oldValue = slotLocals.getBits(slot);
+        long newValue = narrow(kind, oldValue + delta);
+        slotLocals.setBits(slot, newValue);
+        return isPost ? oldValue : newValue;
+      }
+    };
+  }
+}
@@ -0,0 +1,30 @@
+package com.mikesamuel.cil.expr;
+
+/**
+ * Unboxes values of primitive type so that compiled code can do arithmetic
+ * without boxing intermediate results.
+ * <p>
+ * Each method takes a non-error value whose static type is the named
+ * primitive type or one that widens to it, as per JLS 5.1.2.
+ * Boxing back to values is done via {@link InterpretationContext#from}.
+ *
+ * @param <VALUE> the type of a value instance.
+ * @see InterpretationContext#getPrimitiveValues()
+ */
+public interface PrimitiveValues<VALUE> {
+
+  /** The boolean value of v. */
+  boolean booleanValue(VALUE v);
+
+  /** The value of a byte, short, char or int value. */
+  int intValue(VALUE v);
+
+  /** The value of v widened to a long. */
+  long longValue(VALUE v);
+
+  /** The value of v widened to a float. */
+  float floatValue(VALUE v);
+
+  /** The value of v widened to a double. */
+  double doubleValue(VALUE v);
+}
@@ -0,0 +1,63 @@
+package com.mikesamuel.cil.format;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/**
+ * A token sink that writes tokens through to an {@link Appendable}.
+ * <p>
+ * The token sink interface does not allow for checked exceptions, so
+ * {@link IOException}s from the appendable are rethrown wrapped in
+ * {@link UncheckedIOException}s.
+ */
+public class AppendableTokenSink extends AbstractTokenSink {
+  private final Appendable out;
+  private final List<Integer> tokenIndices = Lists.newArrayList();
+  private int charInFile;
+
+  /** */
+  public AppendableTokenSink(Appendable out) {
+    this.out = out;
+  }
+
+  @Override
+  protected void appendTokenContent(String content, String adjustedContent) {
+    tokenIndices.add(charInFile);
+    try {
+      out.append(adjustedContent);
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+    charInFile += adjustedContent.length();
+  }
+
+  @Override
+  protected void appendSpaceChars(char ch, int count) {
+    try {
+      for (int i = 0; i < count; ++i) {
+        out.append(ch);
+      }
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+    charInFile += count;
+  }
+
+  @Override
+  public int charInFile() {
+    return charInFile;
+  }
+
+  /**
+   * The start indices of tokens appended since the last call in the output
+   * written.
+   */
+  public List<Integer> takeTokenIndices() {
+    List<Integer> taken = Lists.newArrayList(tokenIndices);
+    tokenIndices.clear();
+    return taken;
+  }
+}
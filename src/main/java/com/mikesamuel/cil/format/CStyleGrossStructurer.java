@@ -1,12 +1,20 @@
 package com.mikesamuel.cil.format;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import javax.annotation.Nullable;
 
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
 import com.mikesamuel.cil.ast.j8.Tokens;
 
 /**
@@ -14,7 +22,8 @@ import com.mikesamuel.cil.ast.j8.Tokens;
  * gross structure is based on bracketed blocks like <code>{...}</code>
  * and <code>(...)</code>.
  */
-public class CStyleGrossStructurer<C> implements Layout<C> {
+public class CStyleGrossStructurer<C>
+implements IncrementalLayout<C>, ConcurrentLayout<C> {
 
   final TokenBreaker<C> tokenBreaker;
 
@@ -36,9 +45,113 @@ public class CStyleGrossStructurer<C> implements Layout<C> {
       ImmutableList<Formatter.DecoratedToken<C>> tokens,
       int softColumnLimit) {
     List<Layout.AbstractGrossStructure> structure = Lists.newArrayList();
-    Formatter.DecoratedToken<C> last = null;
+    buildStructure(null, tokens, null, structure);
+
+    Layout.BlockGrossStructure root = Layout.nest(structure);
+    if (DEBUG) {
+      System.err.println("structure=" + structure);
+      System.err.println("root     =" + root);
+    }
+    Layout.optimize(root, softColumnLimit, null, null);
+    return root;
+  }
+
+  @Override
+  public int depthAfter(int depth, Formatter.DecoratedToken<C> token) {
+    switch (bracketChar(token.content)) {
+      case '(': case '[': case '{':
+        return depth + 1;
+      case '}': case ']': case ')':
+        // Layout.nest ignores unbalanced close brackets.
+        return depth != 0 ? depth - 1 : 0;
+      default:
+        return depth;
+    }
+  }
+
+  @Override
+  public boolean mayEndPiece(Formatter.DecoratedToken<C> token) {
+    return ";".equals(token.content) || bracketChar(token.content) == '}';
+  }
+
+  @Override
+  public int firstOverflow(
+      List<? extends Formatter.DecoratedToken<C>> tokens,
+      int softColumnLimit) {
+    List<Layout.AbstractGrossStructure> structure = Lists.newArrayList();
+    buildStructure(null, tokens, null, structure);
+
+    Layout.BlockGrossStructure root = Layout.nest(structure);
+    Layout.OneToken overflow = Layout.firstOverflow(root, softColumnLimit);
+    return overflow != null ? overflow.ordinal : -1;
+  }
+
+  @Override
+  public void appendPiece(
+      @Nullable Formatter.DecoratedToken<C> previous,
+      List<? extends Formatter.DecoratedToken<C>> piece,
+      @Nullable Formatter.DecoratedToken<C> next, int overflowIndex,
+      AbstractTokenSink sink, int softColumnLimit) {
+    List<Layout.AbstractGrossStructure> structure = Lists.newArrayList();
+    buildStructure(previous, piece, next, structure);
+
+    Layout.OneToken overflow = null;
+    if (overflowIndex >= 0) {
+      int tokenIndex = 0;
+      for (Layout.AbstractGrossStructure g : structure) {
+        if (g instanceof Layout.OneToken && tokenIndex++ == overflowIndex) {
+          overflow = (Layout.OneToken) g;
+          break;
+        }
+      }
+    }
+
+    Layout.BlockGrossStructure root = Layout.nest(structure);
+    Layout.optimize(root, softColumnLimit, sink, overflow);
+    root.appendTokens(sink, softColumnLimit);
+  }
+
+  @Override
+  public void layoutAndAppend(
+      List<? extends Formatter.DecoratedToken<C>> tokens, int softColumnLimit,
+      StringBuilderTokenSink sink, Executor executor) {
+    List<Layout.AbstractGrossStructure> structure = Lists.newArrayList();
+    buildStructure(null, tokens, null, structure);
+
+    Layout.BlockGrossStructure root = Layout.nest(structure);
+    if (!Layout.render(root, softColumnLimit, sink, executor)) {
+      // Some piece was rendered from a state that it would not have started
+      // in, so fall back to doing everything on this thread.
+      Layout.optimize(root, softColumnLimit, null, null);
+      root.appendTokens(sink, softColumnLimit);
+    }
+  }
+
+  /**
+   * Adds tokens and the breaks between them to structure.
+   *
+   * @param previous if not null, a token whose break with the first token is
+   *     included.
+   * @param next if not null, a token used to look ahead from the last break
+   *     but which is not itself included.
+   */
+  private void buildStructure(
+      @Nullable Formatter.DecoratedToken<C> previous,
+      List<? extends Formatter.DecoratedToken<C>> tokens,
+      @Nullable Formatter.DecoratedToken<C> next,
+      List<Layout.AbstractGrossStructure> structure) {
+    Formatter.DecoratedToken<C> last = previous;
     Layout.Break lastBreak = null;
-    for (Formatter.DecoratedToken<C> token : tokens) {
+    for (int i = 0, n = tokens.size(); i <= n; ++i) {
+      Formatter.DecoratedToken<C> token;
+      if (i < n) {
+        token = tokens.get(i);
+      } else if (next != null) {
+        token = next;
+      } else {
+        break;
+      }
+      boolean isLookahead = i == n;
       if (last != null) {
         TokenBreak space = tokenBreaker.breakBetween(
             last.content, last.context, token.content, token.context);
@@ -50,27 +163,39 @@ public class CStyleGrossStructurer<C> implements Layout<C> {
               ", space=" + space + ", newline=" + newline + ", brk="
               + breakBeforeToken);
         }
-        structure.add(breakBeforeToken);
+        if (!isLookahead) {
+          structure.add(breakBeforeToken);
+        }
         if (lastBreak != null) {
           lastBreak.nextBreak = breakBeforeToken;
         }
         lastBreak = breakBeforeToken;
       }
       Layout.OneToken oneToken = new Layout.OneToken(token.content);
-      structure.add(oneToken);
+      if (!isLookahead) {
+        structure.add(oneToken);
+      }
       if (lastBreak != null) {
         lastBreak.nextToken = oneToken;
       }
       last = token;
     }
+  }
 
-    Layout.BlockGrossStructure root = Layout.nest(structure);
-    if (DEBUG) {
-      System.err.println("structure=" + structure);
-      System.err.println("root     =" + root);
+  /**
+   * The character that determines whether a token is a bracket.
+   */
+  static char bracketChar(String content) {
+    // Try to find a bracket as the first character which works for all
+    // standard brackets, and some nonstandard tokens: "(%", "{%"
+    char ch = content.charAt(0);
+    if (ch >= BRACKET_CHARS.length || !BRACKET_CHARS[ch]) {
+      // Failover in the case of nonstandard tokens that include
+      // "%%{", "%%}".
+      int n =  content.length();
+      ch = content.charAt(n - 1);
     }
-    Layout.optimize(root, softColumnLimit);
-    return root;
+    return ch;
   }
 
   enum Orientation {
@@ -100,15 +225,7 @@ public class CStyleGrossStructurer<C> implements Layout<C> {
         AbstractGrossStructure g = gs.get(i);
         if (g instanceof OneToken) {
           OneToken t = (OneToken) g;
-          // Try to find a bracket as the first character which works for all
-          // standard brackets, and some nonstandard tokens: "(%", "{%"
-          char ch = t.content.charAt(0);
-          if (ch >= BRACKET_CHARS.length || !BRACKET_CHARS[ch]) {
-            // Failover in the case of nonstandard tokens that include
-            // "%%{", "%%}".
-            int n =  t.content.length();
-            ch = t.content.charAt(n - 1);
-          }
+          char ch = bracketChar(t.content);
           switch (ch) {
             case '(': case '[': case '{':
               int indent = ch == '(' ? 4 : 2;
@@ -139,36 +256,462 @@ public class CStyleGrossStructurer<C> implements Layout<C> {
     /**
      * Pick the best ONE_LINE or MULTILINE orientations given the blocks
      * reachable from root.
+     * <p>
+     * A block is ONE_LINE unless, when laid out on one line, one of its
+     * tokens would extend past the soft column limit, in which case it and
+     * every block between it and that token are MULTILINE.
+     * Orientations are decided in a single left-to-right pass since a
+     * decision only affects tokens after the start of the block.
+     * Deciding whether a block fits takes time logarithmic in its size, and
+     * each token is positioned once, so the whole is O(n log n) in the token
+     * count.
+     *
+     * @param start null to lay out root as a whole token stream, or the sink
+     *     that root will be appended to, in which case root is a piece of a
+     *     longer token stream that does not fit on one line.
+     * @param overflow when start is not null, the token in root, if any, that
+     *     first overflowed when the whole token stream was laid out on one
+     *     line.  Blocks containing it are multiline as they would be had the
+     *     whole token stream been optimized.
      */
-    static void optimize(BlockGrossStructure root, int softColumnLimit) {
+    static void optimize(
+        BlockGrossStructure root, int softColumnLimit,
+        @Nullable AbstractTokenSink start, @Nullable OneToken overflow) {
       List<BlockGrossStructure> blocks = Lists.newArrayList();
       root.addAllBlocks(blocks);
       for (int i = 0, n = blocks.size(); i < n; ++i) {
         BlockGrossStructure block = blocks.get(i);
         block.setOrientation(Orientation.ONE_LINE);
       }
+      if (start != null) {
+        root.setOrientation(Orientation.MULTILINE);
+        if (overflow != null) {
+          for (BlockGrossStructure b = overflow.parent; b != null;
+               b = b.parent) {
+            b.setOrientation(Orientation.MULTILINE);
+          }
+        }
+      }
 
-      while (true) {
-        PositioningTokenSink pts = new PositioningTokenSink();
-        try {
-          root.appendTokens(pts, softColumnLimit);
-        } catch (@SuppressWarnings("unused") OneLineFailure f) {
-          continue;
+      OneLineWidths widths = new OneLineWidths(root);
+      PositioningTokenSink pts = new PositioningTokenSink();
+      if (start != null) {
+        pts.resetTo(start);
+      }
+      root.chooseOrientations(pts, softColumnLimit, widths);
+
+      if (DEBUG) {
+        System.err.println(
+            "Orientations: "
+            + Iterables.transform(
+                blocks, new Function<BlockGrossStructure, Orientation>() {
+                  @Override
+                  public Orientation apply(BlockGrossStructure b) {
+                    return b.getOrientation();
+                  }
+                }));
+      }
+    }
+
+    /**
+     * The first token that would extend past the soft column limit if root
+     * were laid out on one line from the start of the output, or null if root
+     * fits.
+     */
+    static @Nullable OneToken firstOverflow(
+        BlockGrossStructure root, int softColumnLimit) {
+      return new OneLineWidths(root).firstOverflow(
+          root, new PositioningTokenSink(), softColumnLimit);
+    }
+
+    /**
+     * Decides orientations as {@link #optimize} does and appends root to sink,
+     * handing runs of lines in large blocks off to executor.
+     * <p>
+     * Each of those runs starts on a new line because it follows a
+     * {@link TokenBreak#MUST} or {@link TokenBreak#SHOULD} line break in a
+     * multiline block, so the state of the sink at its start is known
+     * without rendering what precedes it, as long as whatever precedes it
+     * does not end at the start of a line.
+     * The output after such a run is rendered on the assumption that it
+     * starts in the same state.
+     * Pieces are checked against these assumptions before being appended to
+     * sink.
+     *
+     * @return false if sink was not appended to because a piece was rendered
+     *     from the wrong state.
+     */
+    static boolean render(
+        BlockGrossStructure root, int softColumnLimit,
+        StringBuilderTokenSink sink, Executor executor) {
+      ConcurrentRenderer renderer = new ConcurrentRenderer(
+          new OneLineWidths(root), softColumnLimit, sink, executor);
+      renderer.drive(root);
+      renderer.endPiece();
+
+
+      List<StringBuilderTokenSink> rendered = Lists.newArrayList();
+      AbstractTokenSink last = sink;
+      for (Piece piece : renderer.pieces) {
+        StringBuilderTokenSink pieceSink = Futures.getUnchecked(
+            piece.rendered);
+        if (last.atStartOfLine() != piece.startsAtStartOfLine
+            || last.indentation() != piece.startIndentation) {
+          return false;
         }
+        rendered.add(pieceSink);
+        last = pieceSink;
+      }
+      for (StringBuilderTokenSink pieceSink : rendered) {
+        sink.appendPiece(pieceSink);
+      }
+      return true;
+    }
 
-        if (DEBUG) {
-          System.err.println(
-              "Orientations: "
-              + Iterables.transform(
-                  blocks, new Function<BlockGrossStructure, Orientation>() {
-                    @Override
-                    public Orientation apply(BlockGrossStructure b) {
-                      return b.getOrientation();
-                    }
-                  }));
+    /**
+     * Part of the output and the state it was assumed to start in.
+     */
+    private static final class Piece {
+      final Future<StringBuilderTokenSink> rendered;
+      final boolean startsAtStartOfLine;
+      final int startIndentation;
+
+      Piece(Future<StringBuilderTokenSink> rendered, AbstractTokenSink start) {
+        this.rendered = rendered;
+        this.startsAtStartOfLine = start.atStartOfLine();
+        this.startIndentation = start.indentation();
+      }
+    }
+
+    private static final class ConcurrentRenderer {
+      /**
+       * Blocks with fewer tokens than this are rendered by whichever thread
+       * reaches them.
+       */
+      static final int MIN_TOKENS_TO_SPLIT = 2048;
+      /** The number of tokens to try to put in each run handed off. */
+      static final int TOKENS_PER_RUN = 512;
+
+      final OneLineWidths widths;
+      final int softColumnLimit;
+      final Executor executor;
+      final List<Piece> pieces = Lists.newArrayList();
+      StringBuilderTokenSink current;
+      AbstractTokenSink currentStart;
+
+      ConcurrentRenderer(
+          OneLineWidths widths, int softColumnLimit,
+          AbstractTokenSink start, Executor executor) {
+        this.widths = widths;
+        this.softColumnLimit = softColumnLimit;
+        this.executor = executor;
+        this.current = new StringBuilderTokenSink(start);
+        this.currentStart = start;
+      }
+
+      void endPiece() {
+        pieces.add(new Piece(Futures.immediateFuture(current), currentStart));
+      }
+
+      /** Like {@link BlockGrossStructure#chooseOrientations}. */
+      @SuppressWarnings("synthetic-access")
+      void drive(BlockGrossStructure b) {
+        if (b.endOrdinal - b.firstOrdinal < MIN_TOKENS_TO_SPLIT) {
+          b.chooseOrientations(current, softColumnLimit, widths);
+          return;
+        }
+        b.decideOrientation(current, softColumnLimit, widths);
+        if (b.orientation == Orientation.ONE_LINE) {
+          b.appendTokens(current, softColumnLimit);
+          return;
         }
 
-        break;
+        if (b.indent != 0) {
+          current.indentBy(b.indent);
+        }
+        ImmutableList<AbstractGrossStructure> children = b.children;
+        for (int i = 0, n = children.size(); i < n;) {
+          int end = i;
+          if (startsLine(children, i)) {
+            int nTokens = 0;
+            for (int j = i; j < n && nTokens < TOKENS_PER_RUN;) {
+              int next = nextLineStart(children, j);
+              if (next == n && !isHardBreak(children.get(n - 1))) {
+                // The state after the run is not known.
+                break;
+              }
+              int runTokens = tokenCount(children, j, next);
+              if (runTokens >= MIN_TOKENS_TO_SPLIT) {
+                // Split it instead.
+                break;
+              }
+              nTokens += runTokens;
+              end = j = next;
+            }
+          }
+          if (end != i) {
+            handOff(children.subList(i, end));
+            i = end;
+          } else {
+            AbstractGrossStructure child = children.get(i);
+            if (child instanceof BlockGrossStructure) {
+              drive((BlockGrossStructure) child);
+            } else {
+              child.appendTokens(current, softColumnLimit);
+            }
+            ++i;
+          }
+        }
+        if (b.indent != 0) {
+          current.dedent();
+        }
+      }
+
+      /**
+       * Renders a run of lines on the executor, and continues on the
+       * assumption that the state after them is the same as that before
+       * them.
+       */
+      private void handOff(final List<AbstractGrossStructure> run) {
+        endPiece();
+        AbstractTokenSink start = current;
+        final StringBuilderTokenSink runSink =
+            new StringBuilderTokenSink(start);
+        FutureTask<StringBuilderTokenSink> task =
+            new FutureTask<>(new Callable<StringBuilderTokenSink>() {
+              @SuppressWarnings("synthetic-access")
+              @Override
+              public StringBuilderTokenSink call() {
+                for (AbstractGrossStructure child : run) {
+                  if (child instanceof BlockGrossStructure) {
+                    ((BlockGrossStructure) child).chooseOrientations(
+                        runSink, softColumnLimit, widths);
+                  } else {
+                    child.appendTokens(runSink, softColumnLimit);
+                  }
+                }
+                return runSink;
+              }
+            });
+        pieces.add(new Piece(task, start));
+        executor.execute(task);
+        current = new StringBuilderTokenSink(start);
+        currentStart = start;
+      }
+
+      /**
+       * True if children[i] is a token that goes on a new line because the
+       * break before it requires one.
+       */
+      private static boolean startsLine(
+          List<AbstractGrossStructure> children, int i) {
+        return i != 0 && children.get(i) instanceof OneToken
+            && isHardBreak(children.get(i - 1));
+      }
+
+      /** True if g is a break that requires a newline in a multiline block. */
+      private static boolean isHardBreak(AbstractGrossStructure g) {
+        if (g instanceof Break) {
+          switch (((Break) g).line) {
+            case MUST:
+            case SHOULD:
+              return true;
+            case MAY:
+            case SHOULD_NOT:
+              return false;
+          }
+        }
+        return false;
+      }
+
+      /** The least index after i of a child that starts a line, or size. */
+      private static int nextLineStart(
+          List<AbstractGrossStructure> children, int i) {
+        int n = children.size();
+        int j = i + 1;
+        while (j < n && !startsLine(children, j)) {
+          ++j;
+        }
+        return j;
+      }
+
+      private static int tokenCount(
+          List<AbstractGrossStructure> children, int left, int right) {
+        int count = 0;
+        for (int i = left; i < right; ++i) {
+          AbstractGrossStructure child = children.get(i);
+          if (child instanceof OneToken) {
+            ++count;
+          } else if (child instanceof BlockGrossStructure) {
+            BlockGrossStructure b = (BlockGrossStructure) child;
+            count += b.endOrdinal - b.firstOrdinal;
+          }
+        }
+        return count;
+      }
+    }
+
+    /**
+     * The width of the token stream when laid out on one line, so that we can
+     * tell where a block would first pass the column limit without laying it
+     * out.
+     */
+    private static final class OneLineWidths {
+      /**
+       * ends[i] is the column past the end of the i-th token when all tokens
+       * through i are laid out on one line starting at column 0.
+       */
+      private int[] ends = new int[16];
+      /**
+       * multilineBefore[i] is the count of tokens before the i-th that contain
+       * line breaks, which invalidate ends.
+       */
+      private int[] multilineBefore = new int[17];
+      private OneToken[] tokens = new OneToken[16];
+      private int nTokens;
+      private boolean spaceBeforeNext;
+
+      /** Returned by simulate when no overflow has been seen yet. */
+      private static final int CONTINUE = -1;
+      /** Returned by simulate when it is known there is no overflow. */
+      private static final int FITS = -2;
+
+      OneLineWidths(BlockGrossStructure root) {
+        index(root);
+      }
+
+      @SuppressWarnings("synthetic-access")
+      private void index(AbstractGrossStructure g) {
+        if (g instanceof Break) {
+          switch (((Break) g).space) {
+            case MUST:
+            case SHOULD:
+              spaceBeforeNext = true;
+              break;
+            case MAY:
+            case SHOULD_NOT:
+              break;
+          }
+        } else if (g instanceof OneToken) {
+          OneToken t = (OneToken) g;
+          int i = nTokens;
+          if (i == ends.length) {
+            ends = Arrays.copyOf(ends, i * 2);
+            multilineBefore = Arrays.copyOf(multilineBefore, i * 2 + 1);
+            tokens = Arrays.copyOf(tokens, i * 2);
+          }
+          int end = i != 0 ? ends[i - 1] : 0;
+          if (spaceBeforeNext && i != 0) {
+            ++end;
+          }
+          ends[i] = end + t.content.length();
+          boolean isMultiline = t.content.indexOf('\n') >= 0
+              || t.content.indexOf('\r') >= 0;
+          multilineBefore[i + 1] = multilineBefore[i] + (isMultiline ? 1 : 0);
+          tokens[i] = t;
+          t.ordinal = i;
+          nTokens = i + 1;
+          spaceBeforeNext = false;
+        } else {
+          BlockGrossStructure b = (BlockGrossStructure) g;
+          b.firstOrdinal = nTokens;
+          for (AbstractGrossStructure child : b.children) {
+            index(child);
+          }
+          b.endOrdinal = nTokens;
+        }
+      }
+
+      /**
+       * The first token in b that would extend past the column limit if b were
+       * laid out on one line after the content already on sink, or null if b
+       * fits.
+       */
+      @Nullable OneToken firstOverflow(
+          BlockGrossStructure b, AbstractTokenSink sink, int softColumnLimit) {
+        if (b.firstOrdinal == b.endOrdinal) { return null; }
+        PositioningTokenSink probe = new PositioningTokenSink();
+        probe.resetTo(sink);
+        boolean hasMultilineTokens = multilineBefore[b.endOrdinal]
+            != multilineBefore[b.firstOrdinal];
+        int result = simulate(
+            b, probe, softColumnLimit,
+            hasMultilineTokens ? -1 : b.endOrdinal);
+        return result >= 0 ? tokens[result] : null;
+      }
+
+      /**
+       * Lays out g on one line to probe until a token passes the soft column
+       * limit.
+       *
+       * @param fastEnd -1 or the end of a run of tokens with no line breaks
+       *     starting at the first token reached, so they can be checked
+       *     against ends instead of being laid out.
+       * @return the ordinal of the token that passes the limit, or
+       *     {@link #CONTINUE} or {@link #FITS}.
+       */
+      @SuppressWarnings("synthetic-access")
+      private int simulate(
+          AbstractGrossStructure g, PositioningTokenSink probe,
+          int softColumnLimit, int fastEnd) {
+        if (g instanceof Break) {
+          switch (((Break) g).space) {
+            case MUST:
+            case SHOULD:
+              probe.space();
+              break;
+            case MAY:
+            case SHOULD_NOT:
+              break;
+          }
+          return CONTINUE;
+        } else if (g instanceof OneToken) {
+          OneToken t = (OneToken) g;
+          probe.prepareForToken();
+          int column = probe.column();
+          if (fastEnd >= 0) {
+            // Token k extends past the limit when
+            //   column + ends[k] - (ends[t] - len(t)) > softColumnLimit
+            int threshold = softColumnLimit - column
+                + ends[t.ordinal] - t.content.length();
+            int k = firstGreaterThan(t.ordinal, fastEnd, threshold);
+            return k < fastEnd ? k : FITS;
+          }
+          if (column + t.content.length() > softColumnLimit) {
+            return t.ordinal;
+          }
+          probe.append(t.content, t.multilineAdjust());
+          return CONTINUE;
+        } else {
+          BlockGrossStructure b = (BlockGrossStructure) g;
+          if (b.indent != 0) {
+            probe.indentBy(b.indent);
+          }
+          for (AbstractGrossStructure child : b.children) {
+            int result = simulate(child, probe, softColumnLimit, fastEnd);
+            if (result != CONTINUE) {
+              return result;
+            }
+          }
+          if (b.indent != 0) {
+            probe.dedent();
+          }
+          return CONTINUE;
+        }
+      }
+
+      /** The least k in [left, right) with ends[k] > x, or right. */
+      private int firstGreaterThan(int left, int right, int x) {
+        int lo = left, hi = right;
+        while (lo < hi) {
+          int mid = (lo + hi) >>> 1;
+          if (ends[mid] > x) {
+            hi = mid;
+          } else {
+            lo = mid + 1;
+          }
+        }
+        return lo;
       }
     }
 
@@ -319,6 +862,8 @@ public class CStyleGrossStructurer<C> implements Layout<C> {
 
     static final class OneToken extends AbstractGrossStructure {
       final String content;
+      /** Index in the token stream set by {@link OneLineWidths}. */
+      int ordinal;
 
       OneToken(String content) {
         this.content = content;
@@ -326,20 +871,13 @@ public class CStyleGrossStructurer<C> implements Layout<C> {
 
       @Override
       public void appendTokens(TokenSink sink, int softColumnLimit) {
-        sink.prepareForToken();
-        if (sink.column() + content.length() > softColumnLimit
-            && getOrientation() == Orientation.ONE_LINE) {
-          for (BlockGrossStructure b = parent; b != null; b = b.parent) {
-            b.setOrientation(Orientation.MULTILINE);
-          }
-          @SuppressWarnings("synthetic-access")
-          RuntimeException nonLocalTransfer = ONE_LINE_FAILURE;
-          throw nonLocalTransfer;
-        }
-        TokenSink.MultilineAdjust adj = Tokens.isBlockComment(content)
+        sink.append(content, multilineAdjust());
+      }
+
+      TokenSink.MultilineAdjust multilineAdjust() {
+        return Tokens.isBlockComment(content)
             ? TokenSink.MultilineAdjust.INDENT
             : TokenSink.MultilineAdjust.AS_IS;
-        sink.append(content, adj);
       }
 
       @Override
@@ -355,13 +893,15 @@ public class CStyleGrossStructurer<C> implements Layout<C> {
 
     static final class BlockGrossStructure extends AbstractGrossStructure {
       /**
-       * Set speculatively during optimization to find the combination that
-       * minimizes the line count.
+       * Set during optimization to find the combination that minimizes the
+       * line count.
        */
       private Orientation orientation = Orientation.ONE_LINE;
 
       final ImmutableList<AbstractGrossStructure> children;
       private final int indent;
+      /** The range of token ordinals set by {@link OneLineWidths}. */
+      int firstOrdinal, endOrdinal;
 
       BlockGrossStructure(
           int indent,
@@ -394,6 +934,58 @@ public class CStyleGrossStructurer<C> implements Layout<C> {
         }
       }
 
+      /**
+       * Appends this block to a positioning sink, deciding the orientations
+       * of this block and any blocks within it along the way.
+       */
+      void chooseOrientations(
+          AbstractTokenSink sink, int softColumnLimit,
+          OneLineWidths widths) {
+        decideOrientation(sink, softColumnLimit, widths);
+        if (orientation == Orientation.ONE_LINE) {
+          appendTokens(sink, softColumnLimit);
+          return;
+        }
+
+        if (indent != 0) {
+          sink.indentBy(indent);
+        }
+        for (AbstractGrossStructure child : children) {
+          if (child instanceof BlockGrossStructure) {
+            ((BlockGrossStructure) child).chooseOrientations(
+                sink, softColumnLimit, widths);
+          } else {
+            child.appendTokens(sink, softColumnLimit);
+          }
+        }
+        if (indent != 0) {
+          sink.dedent();
+        }
+      }
+
+      /**
+       * Makes this block multiline if it does not fit on one line starting
+       * from the state of sink.
+       */
+      @SuppressWarnings("synthetic-access")
+      void decideOrientation(
+          AbstractTokenSink sink, int softColumnLimit,
+          OneLineWidths widths) {
+        if (orientation == Orientation.ONE_LINE) {
+          OneToken overflow = widths.firstOverflow(
+              this, sink, softColumnLimit);
+          if (overflow != null) {
+            // Every block that contains the overflowing token has to be
+            // multiline.  Blocks that contain this one already are.
+            for (BlockGrossStructure b = overflow.parent;
+                 b != null && b.orientation != Orientation.MULTILINE;
+                 b = b.parent) {
+              b.setOrientation(Orientation.MULTILINE);
+            }
+          }
+        }
+      }
+
       @Override
       Orientation getOrientation() {
         return orientation;
@@ -455,17 +1047,6 @@ public class CStyleGrossStructurer<C> implements Layout<C> {
     }
   }
 
-  @SuppressWarnings("synthetic-access")
-  private static final RuntimeException ONE_LINE_FAILURE = new OneLineFailure();
-  private static final class OneLineFailure extends RuntimeException {
-    private static final long serialVersionUID = 1L;
-
-    {
-      // Only used for transfer of control.
-      this.setStackTrace(new StackTraceElement[0]);
-    }
-  }
-
   private static boolean[] BRACKET_CHARS = new boolean[128];
   static {
     BRACKET_CHARS['('] = BRACKET_CHARS['['] = BRACKET_CHARS['{']
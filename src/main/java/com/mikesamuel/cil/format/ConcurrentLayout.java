@@ -0,0 +1,21 @@
+package com.mikesamuel.cil.format;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * A layout that can lay out and render independent parts of a token stream,
+ * like the members of a large class body, concurrently.
+ */
+public interface ConcurrentLayout<C> extends Layout<C> {
+  /**
+   * Appends tokens to sink, with the same result as appending the gross
+   * structure returned by {@link #layout}, but laying out and rendering parts
+   * of the token stream on executor.
+   *
+   * @param sink receives the tokens only after all parts are rendered.
+   */
+  void layoutAndAppend(
+      List<? extends Formatter.DecoratedToken<C>> tokens, int softColumnLimit,
+      StringBuilderTokenSink sink, Executor executor);
+}
@@ -1,11 +1,15 @@
 package com.mikesamuel.cil.format;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import javax.annotation.Nullable;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.mikesamuel.cil.parser.SourcePosition;
 
 /**
@@ -19,6 +23,7 @@ public class Formatter<C> {
   private SourcePosition sourcePosition;
   private C context;
   private int softColumnLimit = 80;
+  private @Nullable Stream<C> stream;
 
   /** */
   public Formatter(Layout<C> layout) {
@@ -28,9 +33,56 @@ public class Formatter<C> {
   /**
    * Specifies a token that occurs after all previously specified tokens in the
    * token stream.
+   *
+   * @throws UncheckedIOException if {@linkplain #streamTo streaming} and
+   *     writing fails.
    */
   public void token(String tok) {
-    tokens.add(new DecoratedToken<>(tok, this.sourcePosition, this.context));
+    DecoratedToken<C> token = new DecoratedToken<>(
+        tok, this.sourcePosition, this.context);
+    if (stream != null) {
+      stream.token(token);
+    } else {
+      tokens.add(token);
+    }
+  }
+
+  /**
+   * Causes formatted code to be written to out as tokens are specified
+   * instead of being collected for {@link #format}.
+   * <p>
+   * The output is the same as that of {@link #format}.
+   * When this formatter's layout is an {@link IncrementalLayout} and the
+   * tokens do not fit on one line, each top-level piece, e.g. a statement or
+   * a type declaration, is laid out and written once the token after it is
+   * known.  Tokens are held until their piece is written, and a piece may be
+   * as large as the whole stream, so this avoids building the output string
+   * but does not bound the number of tokens held.
+   * <p>
+   * Must be called before any tokens are specified, and must be followed by a
+   * call to {@link #finish} after the last.
+   *
+   * @param positions receives position mapping entries as tokens are written
+   *     or null to not compute a position mapping.
+   */
+  public void streamTo(
+      Appendable out, @Nullable PositionMapping.Receiver positions) {
+    Preconditions.checkState(stream == null && tokens.build().isEmpty());
+    this.stream = new Stream<>(
+        layout, softColumnLimit, new AppendableTokenSink(out), positions);
+  }
+
+  /**
+   * Writes any tokens not yet written after a call to {@link #streamTo}.
+   */
+  public void finish() throws IOException {
+    Preconditions.checkState(stream != null);
+    try {
+      stream.finish();
+    } catch (UncheckedIOException ex) {
+      throw ex.getCause();
+    }
+    stream = null;
   }
 
   /**
@@ -75,6 +127,29 @@ public class Formatter<C> {
     ImmutableList<DecoratedToken<C>> tokenList = tokens.build();
     GrossStructure root = layout.layout(tokenList, softColumnLimit);
     root.appendTokens(sink, softColumnLimit);
+    return formattedSource(tokenList, sink);
+  }
+
+  /**
+   * Like {@link #format()} but, when this formatter's layout is a
+   * {@link ConcurrentLayout}, lays out and renders independent parts of the
+   * token stream, like the members of a large class body, on executor.
+   * The result is the same as that of {@link #format()}.
+   */
+  public FormattedSource format(Executor executor) {
+    if (!(layout instanceof ConcurrentLayout)) {
+      return format();
+    }
+    StringBuilderTokenSink sink = new StringBuilderTokenSink();
+    ImmutableList<DecoratedToken<C>> tokenList = tokens.build();
+    ((ConcurrentLayout<C>) layout).layoutAndAppend(
+        tokenList, softColumnLimit, sink, executor);
+    return formattedSource(tokenList, sink);
+  }
+
+  private static <C> FormattedSource formattedSource(
+      ImmutableList<DecoratedToken<C>> tokenList,
+      StringBuilderTokenSink sink) {
     String code = sink.getCode();
 
     ImmutableList.Builder<PositionMapping.Entry> entries =
@@ -105,6 +180,152 @@ public class Formatter<C> {
     return new FormattedSource(code, positionMapping);
   }
 
+  private static final class Stream<C> {
+    final Layout<C> layout;
+    final int softColumnLimit;
+    final AppendableTokenSink sink;
+    final @Nullable PositionMapping.Receiver positions;
+    /** Tokens not yet written. */
+    final List<DecoratedToken<C>> pending = Lists.newArrayList();
+    /**
+     * The number of pending tokens that form complete pieces or -1 if
+     * it is not yet known whether the tokens fit on one line.
+     */
+    int nPendingInPieces = -1;
+    /** Estimates the column after the pending tokens on one line. */
+    int oneLineColumn = 1;
+    /**
+     * The number of pending tokens at or after which to next look for the
+     * first overflow once oneLineColumn passes the limit.
+     */
+    int nPendingAtNextOverflowCheck;
+    /**
+     * The index in pending of the first token that overflowed when laid out
+     * on one line, or -1 if it has been written or is not yet known.
+     */
+    int overflowIndex = -1;
+    /** The bracket depth after the pending tokens. */
+    int depth;
+    /** The last token written. */
+    @Nullable DecoratedToken<C> lastWritten;
+
+    Stream(
+        Layout<C> layout, int softColumnLimit, AppendableTokenSink sink,
+        @Nullable PositionMapping.Receiver positions) {
+      this.layout = layout;
+      this.softColumnLimit = softColumnLimit;
+      this.sink = sink;
+      this.positions = positions;
+    }
+
+    void token(DecoratedToken<C> token) {
+      if (!(layout instanceof IncrementalLayout)) {
+        pending.add(token);
+        return;
+      }
+      IncrementalLayout<C> incremental = (IncrementalLayout<C>) layout;
+      if (nPendingInPieces < 0) {
+        // Everything goes on one line if it fits, so wait until something
+        // overflows before committing to piecewise layout.
+        pending.add(token);
+        if (!overflowsOneLine(incremental, token)) {
+          return;
+        }
+        pending.remove(pending.size() - 1);
+        nPendingInPieces = 0;
+        for (int i = 0, n = pending.size(); i < n; ++i) {
+          DecoratedToken<C> t = pending.get(i);
+          depth = incremental.depthAfter(depth, t);
+          if (depth == 0 && incremental.mayEndPiece(t)) {
+            nPendingInPieces = i + 1;
+          }
+        }
+      }
+      if (nPendingInPieces != 0) {
+        // Complete pieces can be written once the token after them is known.
+        writePieces(
+            incremental, nPendingInPieces,
+            nPendingInPieces < pending.size()
+            ? pending.get(nPendingInPieces) : token);
+      }
+      pending.add(token);
+      depth = incremental.depthAfter(depth, token);
+      if (depth == 0 && incremental.mayEndPiece(token)) {
+        nPendingInPieces = pending.size();
+      }
+    }
+
+    /**
+     * True once the pending tokens, which end with last, are known not to fit
+     * on one line, in which case overflowIndex is set.
+     */
+    private boolean overflowsOneLine(
+        IncrementalLayout<C> incremental, DecoratedToken<C> last) {
+      if (oneLineColumn <= softColumnLimit) {
+        int nl = Math.max(
+            last.content.lastIndexOf('\n'), last.content.lastIndexOf('\r'));
+        oneLineColumn = nl >= 0
+            ? last.content.length() - nl
+            : oneLineColumn + last.content.length();
+        if (oneLineColumn <= softColumnLimit) { return false; }
+      }
+      if (pending.size() < nPendingAtNextOverflowCheck) { return false; }
+      overflowIndex = incremental.firstOverflow(pending, softColumnLimit);
+      if (overflowIndex < 0) {
+        // oneLineColumn is only an estimate.  Check again once the pending
+        // tokens double so that checks take amortized linear time.
+        nPendingAtNextOverflowCheck = 2 * pending.size();
+        return false;
+      }
+      return true;
+    }
+
+    private void writePieces(
+        IncrementalLayout<C> incremental, int n,
+        @Nullable DecoratedToken<C> next) {
+      List<DecoratedToken<C>> piece = pending.subList(0, n);
+      incremental.appendPiece(
+          lastWritten, piece, next, overflowIndex < n ? overflowIndex : -1,
+          sink, softColumnLimit);
+      writePositions(piece);
+      lastWritten = piece.get(n - 1);
+      piece.clear();
+      nPendingInPieces = 0;
+      overflowIndex = overflowIndex >= n ? overflowIndex - n : -1;
+    }
+
+    private void writePositions(List<DecoratedToken<C>> written) {
+      List<Integer> tokenIndices = sink.takeTokenIndices();
+      Preconditions.checkState(tokenIndices.size() == written.size());
+      if (positions == null) { return; }
+      for (int i = 0, n = tokenIndices.size(); i < n; ++i) {
+        int tokIdx = tokenIndices.get(i);
+        DecoratedToken<C> tok = written.get(i);
+        if (tok.pos != null) {
+          try {
+            positions.entry(new PositionMapping.Entry(
+                tok.pos, tokIdx, tokIdx + tok.content.length()));
+          } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+          }
+        }
+      }
+    }
+
+    void finish() {
+      if (pending.isEmpty()) { return; }
+      if (nPendingInPieces < 0) {
+        GrossStructure root = layout.layout(pending, softColumnLimit);
+        root.appendTokens(sink, softColumnLimit);
+        writePositions(pending);
+        pending.clear();
+      } else {
+        writePieces(
+            (IncrementalLayout<C>) layout, pending.size(), null);
+      }
+    }
+  }
+
   /**
    * A non-whitespace lexical token with position and context information.
    */
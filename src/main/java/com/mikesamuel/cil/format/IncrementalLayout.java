@@ -0,0 +1,54 @@
+package com.mikesamuel.cil.format;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * A layout that can arrange a token stream one top-level piece at a time so
+ * that formatted output can be written before the whole stream is known.
+ * <p>
+ * Appending the pieces of a token stream must produce the same output as
+ * {@link #layout laying out} the whole.
+ */
+public interface IncrementalLayout<C> extends Layout<C> {
+  /**
+   * The bracket depth after token given the bracket depth before it.
+   */
+  int depthAfter(int depth, Formatter.DecoratedToken<C> token);
+
+  /**
+   * True if a piece may end after token when the bracket depth after it is
+   * zero.
+   */
+  boolean mayEndPiece(Formatter.DecoratedToken<C> token);
+
+  /**
+   * The index of the first token that would extend past the soft column
+   * limit if tokens were laid out on one line, or -1 if they fit.
+   * Since earlier tokens do not depend on later ones, tokens may be a prefix
+   * of the token stream.
+   */
+  int firstOverflow(
+      List<? extends Formatter.DecoratedToken<C>> tokens, int softColumnLimit);
+
+  /**
+   * Appends a piece of a token stream that is too long to fit on one line.
+   *
+   * @param previous the last token of the previous piece, if any, so that
+   *     the break before the piece can be written.
+   * @param piece tokens that start and end at bracket depth zero.
+   * @param next the first token of the next piece, if any, which is not
+   *     appended but may affect where lines break.
+   * @param overflowIndex the index in piece of the token stream's
+   *     {@linkplain #firstOverflow first overflow} or -1 if it is in another
+   *     piece.
+   * @param sink receives the piece and holds the state left by any previous
+   *     pieces.
+   */
+  void appendPiece(
+      @Nullable Formatter.DecoratedToken<C> previous,
+      List<? extends Formatter.DecoratedToken<C>> piece,
+      @Nullable Formatter.DecoratedToken<C> next, int overflowIndex,
+      AbstractTokenSink sink, int softColumnLimit);
+}
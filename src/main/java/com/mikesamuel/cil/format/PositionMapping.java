@@ -1,26 +1,446 @@
 package com.mikesamuel.cil.format;
 
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.json.JSONObject;
+
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.mikesamuel.cil.parser.SourcePosition;
 
 /**
  * Relates characters in source files to characters in a file derived from them.
+ * <p>
+ * Entries are stored packed: parallel arrays of derived starts and ends sorted
+ * by derived start, and indices into a table of distinct original positions
+ * sorted by source and offset, so that lookups in either direction are
+ * binary searches.
  *
  * @see <a href="http://www.ibm.com/support/knowledgecenter/SS3JHP_6.1.0/com.ibm.install.raav6006.doc/topics/com12.html">Source Line Mapping File</a>
  */
 public final class PositionMapping {
   /**
-   * The entries in the mapping.
-   * Each entry's derived file range should be
-   * disjoint with each other entry's.
+   * A read-only view of {@link #getEntries()}.
+   *
+   * @deprecated use {@link #getEntries()}.
    */
-  public final ImmutableList<Entry> entries;
+  @Deprecated
+  public final List<Entry> entries;
+
+  /** Inclusive derived start of each entry.  Monotonic. */
+  private final int[] derivedStarts;
+  /** Exclusive derived end of each entry. */
+  private final int[] derivedEnds;
+  /** Index into {@link #positions} of each entry's original position. */
+  private final int[] positionIndices;
+  /** Distinct original positions in {@link #ORIGINAL_ORDER}. */
+  private final SourcePosition[] positions;
+  /**
+   * Entry indices grouped by position index where the entries for position
+   * p are at [entriesByPositionStart[p], entriesByPositionStart[p + 1]) in
+   * order of increasing derived index.
+   */
+  private final int[] entriesByPosition;
+  private final int[] entriesByPositionStart;
+  /** Lazily materialized from the arrays above. */
+  private volatile @Nullable ImmutableList<Entry> entryList;
 
   /** */
   public PositionMapping(Iterable<? extends Entry> entries) {
-    // TODO: sort and merge adjacent entries.
-    this.entries = ImmutableList.copyOf(entries);
+    List<Entry> sorted = new ArrayList<>();
+    boolean inOrder = true;
+    for (Entry e : entries) {
+      if (!sorted.isEmpty()
+          && sorted.get(sorted.size() - 1).startIndexInDerived
+             > e.startIndexInDerived) {
+        inOrder = false;
+      }
+      sorted.add(e);
+    }
+    if (!inOrder) {
+      // Stable so entries with the same start keep their relative order.
+      Collections.sort(sorted, DERIVED_ORDER);
+    }
+
+    int n = sorted.size();
+    Map<SourcePosition, Integer> ids = new HashMap<>();
+    List<SourcePosition> distinct = new ArrayList<>();
+    int[] ids0 = new int[n];
+    for (int i = 0; i < n; ++i) {
+      SourcePosition pos = sorted.get(i).positionInOriginal;
+      Integer id = ids.get(pos);
+      if (id == null) {
+        id = distinct.size();
+        ids.put(pos, id);
+        distinct.add(pos);
+      }
+      ids0[i] = id;
+    }
+    int nPositions = distinct.size();
+    this.positions = distinct.toArray(new SourcePosition[nPositions]);
+    Arrays.sort(this.positions, ORIGINAL_ORDER);
+    int[] rank = new int[nPositions];
+    for (int p = 0; p < nPositions; ++p) {
+      rank[ids.get(positions[p])] = p;
+    }
+
+    this.derivedStarts = new int[n];
+    this.derivedEnds = new int[n];
+    this.positionIndices = new int[n];
+    this.entriesByPositionStart = new int[nPositions + 1];
+    for (int i = 0; i < n; ++i) {
+      Entry e = sorted.get(i);
+      derivedStarts[i] = e.startIndexInDerived;
+      derivedEnds[i] = e.endIndexInDerived;
+      int p = rank[ids0[i]];
+      positionIndices[i] = p;
+      ++entriesByPositionStart[p + 1];
+    }
+    for (int p = 0; p < nPositions; ++p) {
+      entriesByPositionStart[p + 1] += entriesByPositionStart[p];
+    }
+    this.entriesByPosition = new int[n];
+    int[] fill = Arrays.copyOf(entriesByPositionStart, nPositions);
+    for (int i = 0; i < n; ++i) {
+      entriesByPosition[fill[positionIndices[i]]++] = i;
+    }
+
+    this.entries = new AbstractList<Entry>() {
+      @Override
+      public Entry get(int i) {
+        return getEntries().get(i);
+      }
+
+      @Override
+      public int size() {
+        return derivedStarts.length;
+      }
+    };
+  }
+
+  /**
+   * The entries in the mapping in order of increasing derived index.
+   * Each entry's derived file range should be
+   * disjoint with each other entry's.
+   */
+  public ImmutableList<Entry> getEntries() {
+    ImmutableList<Entry> list = entryList;
+    if (list == null) {
+      int n = derivedStarts.length;
+      Entry[] arr = new Entry[n];
+      for (int i = 0; i < n; ++i) {
+        arr[i] = entry(i);
+      }
+      // Racing threads build equivalent lists.
+      entryList = list = ImmutableList.copyOf(arr);
+    }
+    return list;
+  }
+
+  private Entry entry(int i) {
+    return new Entry(
+        positions[positionIndices[i]], derivedStarts[i], derivedEnds[i]);
+  }
+
+  /**
+   * The entry with the greatest derived start at or before indexInDerived,
+   * which is the entry whose derived range contains indexInDerived if there
+   * is one, or null if no entry starts at or before indexInDerived.
+   */
+  public @Nullable Entry entryForDerived(int indexInDerived) {
+    // Find the last entry whose start is <= indexInDerived.
+    int lo = 0, hi = derivedStarts.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (derivedStarts[mid] <= indexInDerived) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo == 0 ? null : entry(lo - 1);
+  }
+
+  /**
+   * The entries whose original positions start at the greatest mapped offset
+   * in source that is at or before charInFile, in order of increasing derived
+   * index.
+   *
+   * @return empty if no entry maps from source at or before charInFile.
+   */
+  public ImmutableList<Entry> entriesForOriginal(
+      String source, int charInFile) {
+    // Find the last position that starts at or before (source, charInFile).
+    int lo = 0, hi = positions.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      SourcePosition pos = positions[mid];
+      int delta = pos.getSource().compareTo(source);
+      if (delta < 0 || (delta == 0 && pos.startCharInFile() <= charInFile)) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    if (lo == 0 || !positions[lo - 1].getSource().equals(source)) {
+      return ImmutableList.of();
+    }
+    int last = lo - 1;
+    int first = last;
+    int start = positions[last].startCharInFile();
+    while (first > 0
+           && positions[first - 1].startCharInFile() == start
+           && positions[first - 1].getSource().equals(source)) {
+      --first;
+    }
+    int from = entriesByPositionStart[first];
+    int to = entriesByPositionStart[last + 1];
+    int[] indices = Arrays.copyOfRange(entriesByPosition, from, to);
+    if (first != last) {
+      // Interleave entries for positions that differ only in their ends.
+      Arrays.sort(indices);
+    }
+    ImmutableList.Builder<Entry> b = ImmutableList.builder();
+    for (int i : indices) {
+      b.add(entry(i));
+    }
+    return b.build();
+  }
+
+  /**
+   * Appends a <a href="https://sourcemaps.info/spec.html">Source Map
+   * Revision 3</a> that maps each entry's derived start to its original
+   * start.
+   *
+   * @param derived the derived output that the entries index into.
+   * @param derivedFileName the value of the source map's {@code file}
+   *     property.
+   */
+  public void appendSourceMap(
+      CharSequence derived, String derivedFileName, Appendable out)
+  throws IOException {
+    int[] lineStarts = lineStarts(derived);
+    Map<String, Integer> sources = new LinkedHashMap<>();
+    StringBuilder mappings = new StringBuilder();
+    int line = 0;
+    int lineStart = 0;
+    // Segment fields are relative to the previous segment's except for the
+    // derived column which restarts at zero on each line.
+    int lastColumn = 0;
+    int lastSource = 0;
+    int lastOriginalLine = 0;
+    int lastOriginalColumn = 0;
+    boolean firstOnLine = true;
+    for (int i = 0, n = derivedStarts.length; i < n; ++i) {
+      int start = derivedStarts[i];
+      while (line + 1 < lineStarts.length && lineStarts[line + 1] <= start) {
+        ++line;
+        lineStart = lineStarts[line];
+        mappings.append(';');
+        lastColumn = 0;
+        firstOnLine = true;
+      }
+      SourcePosition pos = positions[positionIndices[i]];
+      Integer source = sources.get(pos.getSource());
+      if (source == null) {
+        source = sources.size();
+        sources.put(pos.getSource(), source);
+      }
+      int column = start - lineStart;
+      int originalLine = pos.startLineInFile() - 1;
+      int originalColumn = pos.startCharInLine();
+
+      if (!firstOnLine) {
+        mappings.append(',');
+      }
+      firstOnLine = false;
+      appendVlq(column - lastColumn, mappings);
+      appendVlq(source - lastSource, mappings);
+      appendVlq(originalLine - lastOriginalLine, mappings);
+      appendVlq(originalColumn - lastOriginalColumn, mappings);
+      lastColumn = column;
+      lastSource = source;
+      lastOriginalLine = originalLine;
+      lastOriginalColumn = originalColumn;
+    }
+
+    out.append("{\"version\":3,\"file\":")
+        .append(JSONObject.quote(derivedFileName))
+        .append(",\"sources\":[");
+    boolean first = true;
+    for (String source : sources.keySet()) {
+      if (!first) { out.append(','); }
+      first = false;
+      out.append(JSONObject.quote(source));
+    }
+    out.append("],\"names\":[],\"mappings\":")
+        .append(JSONObject.quote(mappings.toString()))
+        .append('}');
+  }
+
+  /**
+   * Appends a <a href="https://jcp.org/en/jsr/detail?id=45">JSR-45</a>
+   * source map (SMAP) with one stratum that maps each line of the derived
+   * output to the original line of the first entry that starts on it, which
+   * is what tools that rewrite a class file's {@code LineNumberTable} need.
+   *
+   * @param derived the derived output that the entries index into.
+   * @param derivedFileName the name of the generated file.
+   * @param stratumId the name of the stratum, e.g. the input language.
+   */
+  public void appendSmap(
+      CharSequence derived, String derivedFileName, String stratumId,
+      Appendable out)
+  throws IOException {
+    int[] lineStarts = lineStarts(derived);
+    Map<String, Integer> fileIds = new LinkedHashMap<>();
+    StringBuilder lineSection = new StringBuilder();
+
+    // Runs of consecutive derived lines that map to consecutive original
+    // lines in the same file.
+    int runFile = -1, runOriginalLine = -1, runDerivedLine = -1;
+    int runLength = 0;
+    int lastFileWritten = -1;
+    int lastDerivedLine = 0;  // One-indexed.
+    int line = 0;
+    for (int i = 0, n = derivedStarts.length; i <= n; ++i) {
+      int fileId = -1, originalLine = -1, derivedLine = -1;
+      if (i < n) {
+        int start = derivedStarts[i];
+        while (line + 1 < lineStarts.length
+               && lineStarts[line + 1] <= start) {
+          ++line;
+        }
+        derivedLine = line + 1;
+        if (derivedLine == lastDerivedLine) {
+          continue;  // Not the first entry on the line.
+        }
+        lastDerivedLine = derivedLine;
+        SourcePosition pos = positions[positionIndices[i]];
+        Integer id = fileIds.get(pos.getSource());
+        if (id == null) {
+          id = fileIds.size() + 1;
+          fileIds.put(pos.getSource(), id);
+        }
+        fileId = id;
+        originalLine = pos.startLineInFile();
+        if (fileId == runFile
+            && originalLine == runOriginalLine + runLength
+            && derivedLine == runDerivedLine + runLength) {
+          ++runLength;
+          continue;
+        }
+      }
+      if (runLength != 0) {
+        lineSection.append(runOriginalLine);
+        if (runFile != lastFileWritten) {
+          lineSection.append('#').append(runFile);
+          lastFileWritten = runFile;
+        }
+        if (runLength != 1) {
+          lineSection.append(',').append(runLength);
+        }
+        lineSection.append(':').append(runDerivedLine).append('\n');
+      }
+      runFile = fileId;
+      runOriginalLine = originalLine;
+      runDerivedLine = derivedLine;
+      runLength = 1;
+    }
+
+    out.append("SMAP\n").append(derivedFileName).append('\n')
+        .append(stratumId).append('\n')
+        .append("*S ").append(stratumId).append('\n')
+        .append("*F\n");
+    for (Map.Entry<String, Integer> e : fileIds.entrySet()) {
+      String path = e.getKey();
+      String name = path.substring(path.lastIndexOf('/') + 1);
+      out.append("+ ").append(e.getValue().toString()).append(' ')
+          .append(name).append('\n')
+          .append(path).append('\n');
+    }
+    out.append("*L\n").append(lineSection).append("*E\n");
+  }
+
+  private static final String BASE64_DIGITS =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+  /** Appends a base64 variable length quantity as used in source maps. */
+  private static void appendVlq(int n, StringBuilder out) {
+    // The sign goes in the least significant bit.
+    int vlq = n < 0 ? ((-n) << 1) | 1 : n << 1;
+    do {
+      int digit = vlq & 0x1f;
+      vlq >>>= 5;
+      if (vlq != 0) {
+        digit |= 0x20;  // Continuation bit
+      }
+      out.append(BASE64_DIGITS.charAt(digit));
+    } while (vlq != 0);
+  }
+
+  /** The indices of the starts of lines in s. */
+  private static int[] lineStarts(CharSequence s) {
+    int[] starts = new int[16];
+    int nLines = 1;
+    for (int i = 0, n = s.length(); i < n; ++i) {
+      char ch = s.charAt(i);
+      if (ch == '\n' || ch == '\r') {
+        if (ch == '\r' && i + 1 < n && s.charAt(i + 1) == '\n') {
+          ++i;
+        }
+        if (nLines == starts.length) {
+          starts = Arrays.copyOf(starts, nLines * 2);
+        }
+        starts[nLines++] = i + 1;
+      }
+    }
+    return Arrays.copyOf(starts, nLines);
+  }
+
+  private static final Comparator<Entry> DERIVED_ORDER =
+      new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+          return Integer.compare(a.startIndexInDerived, b.startIndexInDerived);
+        }
+      };
+
+  private static final Comparator<SourcePosition> ORIGINAL_ORDER =
+      new Comparator<SourcePosition>() {
+        @Override
+        public int compare(SourcePosition a, SourcePosition b) {
+          int delta = a.getSource().compareTo(b.getSource());
+          if (delta == 0) {
+            delta = Integer.compare(a.startCharInFile(), b.startCharInFile());
+            if (delta == 0) {
+              delta = Integer.compare(a.endCharInFile(), b.endCharInFile());
+            }
+          }
+          return delta;
+        }
+      };
+
+  /**
+   * Receives entries as they are produced so that a mapping can be written
+   * out without collecting all of its entries.
+   */
+  public interface Receiver {
+    /**
+     * Called once per entry in order of increasing derived indices.
+     */
+    void entry(Entry e) throws IOException;
   }
 
   /**
@@ -9,6 +9,26 @@ public class StringBuilderTokenSink extends AbstractTokenSink {
   private final ImmutableList.Builder<Integer> tokenIndices =
       ImmutableList.builder();
   private final StringBuilder sb = new StringBuilder();
+  /**
+   * Added to the length of sb to get {@link #charInFile} so that a sink can
+   * continue from the state of another sink.
+   */
+  private int base;
+
+  /** */
+  public StringBuilderTokenSink() {
+    super();
+  }
+
+  /**
+   * A sink that is empty but otherwise in the same state as start so that
+   * content appended to it can be {@linkplain #appendPiece appended} to a
+   * sink in that state.
+   */
+  StringBuilderTokenSink(AbstractTokenSink start) {
+    super(start);
+    this.base = start.charInFile();
+  }
 
   @Override
   protected void appendTokenContent(String content, String adjustedContent) {
@@ -26,7 +46,22 @@ public class StringBuilderTokenSink extends AbstractTokenSink {
 
   @Override
   public int charInFile() {
-    return sb.length();
+    return base + sb.length();
+  }
+
+  /**
+   * Appends the code and tokens collected by piece, which should have
+   * started in the state that this sink is in, and leaves this sink in the
+   * state that piece is in.
+   */
+  void appendPiece(StringBuilderTokenSink piece) {
+    int offset = sb.length();
+    for (int tokenIndex : piece.getTokenIndices()) {
+      tokenIndices.add(offset + tokenIndex);
+    }
+    sb.append(piece.sb);
+    resetTo(piece);
+    this.base = piece.charInFile() - sb.length();
   }
 
   /**
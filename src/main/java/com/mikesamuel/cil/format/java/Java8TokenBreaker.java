@@ -2,6 +2,8 @@ package com.mikesamuel.cil.format.java;
 
 import javax.annotation.Nullable;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.mikesamuel.cil.ast.NodeType;
 import com.mikesamuel.cil.ast.NodeVariant;
@@ -18,17 +20,232 @@ import com.mikesamuel.cil.parser.SList;
  * Determines which tokens should have spaces between them based on the need to
  * avoid lexical ambiguity and a desire to format token streams the way a human
  * might.
+ * <p>
+ * Breaks depend on a token's text only via its {@link Classification} unless
+ * it is punctuation or a keyword, and on its context only via a few bits, so
+ * breaks are memoized in a table indexed by those.
+ * <p>
+ * Not thread-safe.
  */
 final class Java8TokenBreaker
 implements TokenBreaker<SList<NodeVariant<?, ?>>> {
 
+  /**
+   * The most recently classified tokens.
+   * Layouts ask for both breaks between each pair of adjacent tokens, so
+   * remembering the last two means each token is classified once.
+   */
+  private ClassifiedToken recent0, recent1;
+
+  private ClassifiedToken classify(
+      String tok, @Nullable SList<NodeVariant<?, ?>> stack) {
+    ClassifiedToken c = recent0;
+    if (c != null && c.token == tok && c.stack == stack) { return c; }
+    c = recent1;
+    if (c != null && c.token == tok && c.stack == stack) { return c; }
+    c = new ClassifiedToken(tok, stack);
+    recent1 = recent0;
+    recent0 = c;
+    return c;
+  }
+
   @Override
   public TokenBreak breakBetween(
       String left,  @Nullable SList<NodeVariant<?, ?>> leftStack,
       String right, @Nullable SList<NodeVariant<?, ?>> rightStack) {
-    Classification lc = Java8TokenClassifier.classify(left);
-    Classification rc = Java8TokenClassifier.classify(right);
+    return BreakTable.breakBetween(
+        classify(left, leftStack), classify(right, rightStack));
+  }
+
+  @Override
+  public TokenBreak lineBetween(
+      String left,  @Nullable SList<NodeVariant<?, ?>> leftStack,
+      String right, @Nullable SList<NodeVariant<?, ?>> rightStack) {
+    return BreakTable.lineBetween(
+        classify(left, leftStack), classify(right, rightStack));
+  }
+
+  /** Set when the token is in a prefix operator or its operand. */
+  private static final int PREFIX_OPERATOR = 1;
+  /** Set when the token is in type parameters, type arguments or diamond. */
+  private static final int ANGLE_BRACKETS = 2;
+  /** Set when a semicolon does not end a line, as in a for loop header. */
+  private static final int SEMICOLON_IN_HEADER = 4;
+  /** The number of distinct {@link ClassifiedToken#leftBits}. */
+  private static final int N_LEFT_BITS = 8;
+
+  /** Set when the token is the operand of a postfix operator. */
+  private static final int POSTFIX_OPERAND = 1;
+  /** Set when the token is in type parameters or arguments. */
+  private static final int TYPE_PARAMETERS_OR_ARGUMENTS = 2;
+  /** The number of distinct {@link ClassifiedToken#rightBits}. */
+  private static final int N_RIGHT_BITS = 4;
+
+  /**
+   * A token and the facts about it and its context that breaks depend on.
+   */
+  private static final class ClassifiedToken {
+    final String token;
+    final @Nullable SList<NodeVariant<?, ?>> stack;
+    final Classification classification;
+    /**
+     * An index into {@link BreakTable#VOCABULARY} of a token that breaks the
+     * same way as this one, or -1 if there is none.
+     */
+    final int key;
+    /** Context bits that matter when this token is the left of a pair. */
+    final int leftBits;
+    /** Context bits that matter when this token is the right of a pair. */
+    final int rightBits;
+
+    ClassifiedToken(String token, @Nullable SList<NodeVariant<?, ?>> stack) {
+      this.token = token;
+      this.stack = stack;
+      this.classification = Java8TokenClassifier.classify(token);
+      this.key = BreakTable.key(token, classification);
+
+      int lb = 0;
+      if (inPrefixOperatorContext(stack)) {
+        lb |= PREFIX_OPERATOR;
+      }
+      int rb = 0;
+      if (inPostfixOperatorContext(stack)) {
+        rb |= POSTFIX_OPERAND;
+      }
+      if (stack != null) {
+        NodeType<?, ?> nt = stack.x.getNodeType();
+        if (nt == J8NodeType.TypeParameters
+            || nt == JminNodeType.TypeParameters
+            || nt == J8NodeType.TypeArguments
+            || nt == JminNodeType.TypeArguments) {
+          lb |= ANGLE_BRACKETS;
+          rb |= TYPE_PARAMETERS_OR_ARGUMENTS;
+        } else if (nt == J8NodeType.Diamond) {
+          lb |= ANGLE_BRACKETS;
+        } else if (nt == J8NodeType.TryWithResourcesStatement
+            || nt == JminNodeType.TryStatement
+            || nt == J8NodeType.BasicForStatement
+            || nt == JminNodeType.BasicForStatement) {
+          lb |= SEMICOLON_IN_HEADER;
+        }
+      }
+      this.leftBits = lb;
+      this.rightBits = rb;
+    }
+  }
+
+  /**
+   * Breaks memoized by the keys and context bits of the tokens on either
+   * side.
+   */
+  private static final class BreakTable {
+    /**
+     * Tokens whose text matters to {@link Java8TokenBreaker#computeBreak}
+     * and {@link Java8TokenBreaker#computeLine}, and one token for each
+     * classification of tokens whose text does not.
+     */
+    static final ImmutableList<String> VOCABULARY;
+    static final ImmutableMap<String, Integer> KEYS;
+    private static final int IDENTIFIER_KEY, NUMBER_KEY, STRING_KEY, CHAR_KEY,
+        LINE_COMMENT_KEY, BLOCK_COMMENT_KEY, SPACED_BLOCK_COMMENT_KEY;
+    static {
+      ImmutableList.Builder<String> b = ImmutableList.builder();
+      b.addAll(TokenStrings.PUNCTUATION);
+      b.addAll(TokenStrings.RESERVED);
+      int k = b.build().size();
+      b.add("x", "0", "\"\"", "'c'", "//", "/**/", "/* */");
+      VOCABULARY = b.build();
+      ImmutableMap.Builder<String, Integer> keys = ImmutableMap.builder();
+      for (int i = 0, n = VOCABULARY.size(); i < n; ++i) {
+        keys.put(VOCABULARY.get(i), i);
+      }
+      KEYS = keys.build();
+      IDENTIFIER_KEY = k;
+      NUMBER_KEY = k + 1;
+      STRING_KEY = k + 2;
+      CHAR_KEY = k + 3;
+      LINE_COMMENT_KEY = k + 4;
+      BLOCK_COMMENT_KEY = k + 5;
+      SPACED_BLOCK_COMMENT_KEY = k + 6;
+    }
 
+    /**
+     * Indexed by {@link #decisions}.
+     * Zero for pairs whose breaks have not yet been computed, and otherwise
+     * 1 + the space break ordinal * 4 + the line break ordinal.
+     * Racy writes are benign since all writers of an element write the same
+     * value.
+     */
+    private static final byte[] DECISIONS = new byte[
+        VOCABULARY.size() * VOCABULARY.size() * N_LEFT_BITS * N_RIGHT_BITS];
+
+    private static final TokenBreak[] TOKEN_BREAKS = TokenBreak.values();
+
+    static int key(String token, Classification c) {
+      Integer key = KEYS.get(token);
+      if (key != null) { return key; }
+      switch (c) {
+        case BLOCK_COMMENT:
+          return hasSpace(token) ? SPACED_BLOCK_COMMENT_KEY : BLOCK_COMMENT_KEY;
+        case CHAR_LITERAL:
+          return CHAR_KEY;
+        case IDENTIFIER_CHARS:
+          return IDENTIFIER_KEY;
+        case LINE_COMMENT:
+          return LINE_COMMENT_KEY;
+        case NUMBER_LITERAL:
+          return NUMBER_KEY;
+        case STRING_LITERAL:
+          return STRING_KEY;
+        case PUNCTUATION:
+          return -1;
+      }
+      throw new AssertionError(c);
+    }
+
+    static TokenBreak breakBetween(ClassifiedToken l, ClassifiedToken r) {
+      if (l.key < 0 || r.key < 0) {
+        return computeBreak(
+            l.token, l.classification, l.leftBits,
+            r.token, r.classification, r.rightBits);
+      }
+      return TOKEN_BREAKS[(decisions(l, r) - 1) >> 2];
+    }
+
+    static TokenBreak lineBetween(ClassifiedToken l, ClassifiedToken r) {
+      if (l.key < 0 || r.key < 0) {
+        return computeLine(
+            l.token, l.classification, l.leftBits,
+            r.token, r.classification);
+      }
+      return TOKEN_BREAKS[(decisions(l, r) - 1) & 3];
+    }
+
+    private static int decisions(ClassifiedToken l, ClassifiedToken r) {
+      int index = ((l.key * VOCABULARY.size() + r.key) * N_LEFT_BITS
+                   + l.leftBits) * N_RIGHT_BITS + r.rightBits;
+      int d = DECISIONS[index];
+      if (d == 0) {
+        // Compute using the vocabulary tokens so that the decision cannot
+        // depend on text that the key does not capture.
+        String left = VOCABULARY.get(l.key);
+        String right = VOCABULARY.get(r.key);
+        TokenBreak space = computeBreak(
+            left, l.classification, l.leftBits,
+            right, r.classification, r.rightBits);
+        TokenBreak line = computeLine(
+            left, l.classification, l.leftBits,
+            right, r.classification);
+        d = 1 + (space.ordinal() << 2) + line.ordinal();
+        DECISIONS[index] = (byte) d;
+      }
+      return d;
+    }
+  }
+
+  private static TokenBreak computeBreak(
+      String left, Classification lc, int leftBits,
+      String right, Classification rc, int rightBits) {
     // Handle all the MUST cases first.
     if ((lc == Classification.IDENTIFIER_CHARS
         || lc == Classification.NUMBER_LITERAL)
@@ -92,12 +309,12 @@ implements TokenBreaker<SList<NodeVariant<?, ?>>> {
         case "!": case "~":
           return TokenBreak.SHOULD_NOT;
         case "-": case "+":
-          if (inPrefixOperatorContext(leftStack)) {
+          if ((leftBits & PREFIX_OPERATOR) != 0) {
             return TokenBreak.SHOULD_NOT;
           }
           return TokenBreak.SHOULD;
         case "--": case "++":
-          if (inPrefixOperatorContext(leftStack)) {
+          if ((leftBits & PREFIX_OPERATOR) != 0) {
             return TokenBreak.SHOULD_NOT;
           }
           break;
@@ -125,15 +342,8 @@ implements TokenBreaker<SList<NodeVariant<?, ?>>> {
           }
           return TokenBreak.SHOULD;
         case "<":
-          if (leftStack != null) {
-            NodeType<?, ?> nt = leftStack.x.getNodeType();
-            if (nt == J8NodeType.TypeParameters
-                || nt == JminNodeType.TypeParameters
-                || nt == J8NodeType.TypeArguments
-                || nt == JminNodeType.TypeArguments
-                || nt == J8NodeType.Diamond) {
-              return TokenBreak.SHOULD_NOT;
-            }
+          if ((leftBits & ANGLE_BRACKETS) != 0) {
+            return TokenBreak.SHOULD_NOT;
           }
           return TokenBreak.SHOULD;
         default:
@@ -166,7 +376,7 @@ implements TokenBreaker<SList<NodeVariant<?, ?>>> {
         case ":": case "?":
           return TokenBreak.SHOULD;
         case "--": case "++":
-          if (inPostfixOperatorContext(rightStack)) {
+          if ((rightBits & POSTFIX_OPERAND) != 0) {
             return TokenBreak.SHOULD_NOT;
           }
           break;
@@ -181,14 +391,8 @@ implements TokenBreaker<SList<NodeVariant<?, ?>>> {
           }
           //$FALL-THROUGH$
         case ">":
-          if (rightStack != null) {
-            NodeType<?, ?> nt = rightStack.x.getNodeType();
-            if (nt == J8NodeType.TypeParameters
-                || nt == JminNodeType.TypeParameters
-                || nt == J8NodeType.TypeArguments
-                || nt == JminNodeType.TypeArguments) {
-              return TokenBreak.SHOULD_NOT;
-            }
+          if ((rightBits & TYPE_PARAMETERS_OR_ARGUMENTS) != 0) {
+            return TokenBreak.SHOULD_NOT;
           }
           return TokenBreak.SHOULD;
         default:
@@ -224,13 +428,10 @@ implements TokenBreaker<SList<NodeVariant<?, ?>>> {
     return false;
   }
 
-  @Override
-  public TokenBreak lineBetween(
-      String left,  @Nullable SList<NodeVariant<?, ?>> leftStack,
-      String right, @Nullable SList<NodeVariant<?, ?>> rightStack) {
-
+  private static TokenBreak computeLine(
+      String left, Classification lc, int leftBits,
+      String right, Classification rc) {
     // Handle all the MUST cases first.
-    Classification lc = Java8TokenClassifier.classify(left);
     if (lc == Classification.LINE_COMMENT) {
       return TokenBreak.MUST;
     }
@@ -238,7 +439,6 @@ implements TokenBreaker<SList<NodeVariant<?, ?>>> {
     if (lc == Classification.BLOCK_COMMENT) {
       if (hasSpace(left)) { return TokenBreak.SHOULD; }
     }
-    Classification rc = Java8TokenClassifier.classify(right);
     if (rc == Classification.BLOCK_COMMENT) {
       if (hasSpace(right)) { return TokenBreak.SHOULD; }
     }
@@ -258,14 +458,8 @@ implements TokenBreaker<SList<NodeVariant<?, ?>>> {
           }
           return TokenBreak.SHOULD;
         case ";":
-          if (leftStack != null) {
-            NodeType<?, ?> nt = leftStack.x.getNodeType();
-            if (nt == J8NodeType.TryWithResourcesStatement
-                || nt == JminNodeType.TryStatement
-                || nt == J8NodeType.BasicForStatement
-                || nt == JminNodeType.BasicForStatement) {
-              return TokenBreak.SHOULD_NOT;
-            }
+          if ((leftBits & SEMICOLON_IN_HEADER) != 0) {
+            return TokenBreak.SHOULD_NOT;
           }
           return TokenBreak.SHOULD;
       }
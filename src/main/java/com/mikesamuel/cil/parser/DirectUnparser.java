@@ -0,0 +1,381 @@
+package com.mikesamuel.cil.parser;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import com.mikesamuel.cil.ast.BaseNode;
+import com.mikesamuel.cil.ast.NodeType;
+import com.mikesamuel.cil.ast.NodeVariant;
+import com.mikesamuel.cil.ast.Trees;
+import com.mikesamuel.cil.event.Event;
+
+/**
+ * Unparses a tree by walking it and replaying, for each node, the events that
+ * {@link ParSer#unparse} inserts around that node's children.
+ * <p>
+ * The events the grammar inserts at a node depend only on the node's variant
+ * and its children's node types since {@link ParSer#unparse} commits to a
+ * child as soon as it sees a push of the expected node type.
+ * So the first time a node of a given shape is seen, we unparse it via the
+ * grammar, record the events inserted at each node as a {@link Template},
+ * and check that replaying the templates reproduces the grammar's output
+ * exactly before caching them.
+ * Later trees made of known shapes are unparsed without consulting the
+ * grammar.
+ */
+final class DirectUnparser {
+  private DirectUnparser() {
+    // Static API
+  }
+
+  private static final Cache<Shape, Template> TEMPLATES =
+      CacheBuilder.newBuilder().maximumSize(4096).build();
+
+  /**
+   * The events for node, in the form accepted by {@link Unparse#verify}, or
+   * null if node cannot be unparsed.
+   *
+   * @param withChecks true to include {@link Event#delayedCheck}s, and check
+   *     the values of leaf nodes against the grammar.
+   */
+  static @Nullable List<Event> unparse(
+      BaseNode<?, ?, ?> node, boolean withChecks) {
+    List<Event> out = new ArrayList<>();
+    Replayer cached = new Replayer(
+        out, withChecks, TemplateLookup.EMPTY);
+    if (cached.replayRoot(node)) {
+      return out;
+    }
+
+    ImmutableList<Event> skeleton = ImmutableList.copyOf(
+        SList.forwardIterable(Trees.startUnparse(null, node, null)));
+    ImmutableList<Event> byGrammar = unparseByGrammar(node, skeleton);
+    if (byGrammar == null) {
+      return null;
+    }
+    Map<Shape, Template> learned = learn(node, skeleton, byGrammar);
+    if (learned != null) {
+      List<Event> replayed = new ArrayList<>();
+      Replayer check = new Replayer(
+          replayed, true, new TemplateLookup(learned));
+      if (check.replayRoot(node) && replayed.equals(byGrammar)) {
+        TEMPLATES.putAll(learned);
+      }
+    }
+    return byGrammar;
+  }
+
+  /**
+   * The events for node derived by matching it against the grammar, or null
+   * if it does not match.
+   */
+  static @Nullable ImmutableList<Event> unparseByGrammar(
+      BaseNode<?, ?, ?> node) {
+    return unparseByGrammar(
+        node,
+        ImmutableList.copyOf(
+            SList.forwardIterable(Trees.startUnparse(null, node, null))));
+  }
+
+  private static @Nullable ImmutableList<Event> unparseByGrammar(
+      BaseNode<?, ?, ?> node, ImmutableList<Event> skeleton) {
+    Optional<SerialState> sstate = node.getNodeType().getParSer().unparse(
+        new SerialState(skeleton), SerialErrorReceiver.DEV_NULL);
+    if (!sstate.isPresent()) {
+      return null;
+    }
+    return ImmutableList.copyOf(SList.forwardIterable(sstate.get().output));
+  }
+
+  /**
+   * The templates for node and its descendants derived from the grammar's
+   * output for node, or null if they could not be derived.
+   */
+  private static @Nullable Map<Shape, Template> learn(
+      BaseNode<?, ?, ?> root, ImmutableList<Event> skeleton,
+      ImmutableList<Event> byGrammar) {
+    // Events from the skeleton are copied to the output as-is.
+    Set<Event> fromSkeleton = Sets.newIdentityHashSet();
+    fromSkeleton.addAll(skeleton);
+
+    Map<Shape, Template> learned = new HashMap<>();
+    // Absent elements correspond to pushes inserted for anon variants.
+    Deque<Optional<NodeFrame>> stack = new ArrayDeque<>();
+    NodeFrame top = null;
+    for (Event e : byGrammar) {
+      switch (e.getKind()) {
+        case POSITION_MARK:
+          // Derived from source positions when replaying.
+          continue;
+        case PUSH:
+          if (fromSkeleton.contains(e)) {
+            BaseNode<?, ?, ?> node;
+            if (top == null) {
+              if (!stack.isEmpty()) { return null; }
+              node = root;
+            } else {
+              List<? extends BaseNode<?, ?, ?>> children =
+                  top.node.getChildren();
+              if (top.nextChild == children.size()) { return null; }
+              node = children.get(top.nextChild++);
+              top.events.add(null);
+            }
+            if (node.getVariant() != e.getNodeVariant()) { return null; }
+            top = new NodeFrame(node);
+            stack.push(Optional.of(top));
+          } else {
+            if (top == null) { return null; }
+            top.events.add(e);
+            stack.push(Optional.<NodeFrame>absent());
+          }
+          continue;
+        case POP:
+          if (top == null) { return null; }
+          if (stack.pop().isPresent()) {
+            if (!top.isComplete()) { return null; }
+            Template t = new Template(top.events);
+            Template prior = learned.put(new Shape(top.node), t);
+            if (prior != null && !prior.equals(t)) { return null; }
+            top = null;
+            for (Optional<NodeFrame> f : stack) {
+              if (f.isPresent()) {
+                top = f.get();
+                break;
+              }
+            }
+          } else {
+            top.events.add(e);
+          }
+          continue;
+        case CONTENT:
+        case IGNORABLE:
+          if (top == null) { return null; }
+          if (fromSkeleton.contains(e)) {
+            if (top.node.getValue() == null || top.sawValue) { return null; }
+            top.sawValue = true;
+            top.events.add(null);
+          } else {
+            top.events.add(e);
+          }
+          continue;
+        case DELAYED_CHECK:
+        case TOKEN:
+          if (top == null) { return null; }
+          top.events.add(e);
+          continue;
+        case LR_END:
+        case LR_START:
+          return null;
+      }
+      throw new AssertionError(e);
+    }
+    return stack.isEmpty() ? learned : null;
+  }
+
+  private static final class NodeFrame {
+    final BaseNode<?, ?, ?> node;
+    final List<Event> events = new ArrayList<>();
+    int nextChild;
+    boolean sawValue;
+
+    NodeFrame(BaseNode<?, ?, ?> node) {
+      this.node = node;
+    }
+
+    boolean isComplete() {
+      return node.getValue() != null
+          ? sawValue
+          : nextChild == node.getChildren().size();
+    }
+  }
+
+  /**
+   * The events to emit for a node.
+   * Null elements are placeholders for the node's value or its next child.
+   */
+  private static final class Template {
+    final Event[] events;
+
+    Template(List<Event> events) {
+      this.events = events.toArray(new Event[events.size()]);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Template
+          && Arrays.equals(events, ((Template) o).events);
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(events);
+    }
+  }
+
+  /** A node variant and the node types of its children. */
+  private static final class Shape {
+    final NodeVariant<?, ?> variant;
+    final boolean hasValue;
+    final NodeType<?, ?>[] childTypes;
+
+    Shape(BaseNode<?, ?, ?> node) {
+      this.variant = node.getVariant();
+      this.hasValue = node.getValue() != null;
+      List<? extends BaseNode<?, ?, ?>> children = node.getChildren();
+      int n = children.size();
+      this.childTypes = new NodeType<?, ?>[n];
+      for (int i = 0; i < n; ++i) {
+        childTypes[i] = children.get(i).getNodeType();
+      }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Shape)) { return false; }
+      Shape that = (Shape) o;
+      return this.variant == that.variant && this.hasValue == that.hasValue
+          && Arrays.equals(this.childTypes, that.childTypes);
+    }
+
+    @Override
+    public int hashCode() {
+      return variant.hashCode() * 31 + Arrays.hashCode(childTypes)
+          + (hasValue ? 1 : 0);
+    }
+  }
+
+  /** Looks up templates first among those just learned, then the cache. */
+  private static final class TemplateLookup {
+    static final TemplateLookup EMPTY = new TemplateLookup(
+        new HashMap<Shape, Template>());
+
+    final Map<Shape, Template> templates;
+
+    TemplateLookup(Map<Shape, Template> templates) {
+      this.templates = templates;
+    }
+
+    @Nullable Template get(Shape shape) {
+      Template t = templates.get(shape);
+      return t != null ? t : TEMPLATES.getIfPresent(shape);
+    }
+  }
+
+  /**
+   * Emits events for a tree from templates, and position marks in the same
+   * places that {@link SerialState} would copy them over from the
+   * {@link Trees#startUnparse skeleton}.
+   */
+  private static final class Replayer {
+    final List<Event> out;
+    final boolean withChecks;
+    final TemplateLookup templates;
+    /**
+     * The last position mark in the skeleton after the last skeleton event
+     * that consumes characters, which the skeleton would not repeat.
+     */
+    private SourcePosition lastMark;
+
+    Replayer(
+        List<Event> out, boolean withChecks, TemplateLookup templates) {
+      this.out = out;
+      this.withChecks = withChecks;
+      this.templates = templates;
+    }
+
+    boolean replayRoot(BaseNode<?, ?, ?> root) {
+      SourcePosition pos = root.getSourcePosition();
+      markStart(root);
+      if (!replay(root)) { return false; }
+      if (pos != null) {
+        mark(pos.end());
+      }
+      return true;
+    }
+
+    private void markStart(BaseNode<?, ?, ?> node) {
+      SourcePosition pos = node.getSourcePosition();
+      if (pos != null) {
+        mark(pos.start());
+      }
+    }
+
+    private void mark(SourcePosition pos) {
+      if (!pos.equals(lastMark)) {
+        out.add(Event.positionMark(pos));
+        lastMark = pos;
+      }
+    }
+
+    /** Emits node and its descendants but not the marks around it. */
+    private boolean replay(BaseNode<?, ?, ?> node) {
+      Template t = templates.get(new Shape(node));
+      if (t == null) { return false; }
+
+      NodeVariant<?, ?> variant = node.getVariant();
+      String value = node.getValue();
+      List<? extends BaseNode<?, ?, ?>> children = node.getChildren();
+
+      out.add(Event.push(variant));
+      if (!children.isEmpty()) {
+        markStart(children.get(0));
+      }
+      int childIndex = 0;
+      for (Event e : t.events) {
+        if (e != null) {
+          if (withChecks || e.getKind() != Event.Kind.DELAYED_CHECK) {
+            out.add(e);
+          }
+        } else if (value != null) {
+          SourcePosition pos = node.getSourcePosition();
+          int startIndex = pos != null ? pos.startCharInFile() : -1;
+          Event valueEvent = variant.isIgnorable()
+              ? Event.ignorable(value, startIndex)
+              : Event.content(value, startIndex);
+          if (withChecks && !matchesValue(variant, valueEvent)) {
+            return false;
+          }
+          out.add(valueEvent);
+          if (valueEvent.nCharsConsumed() != 0) {
+            lastMark = null;
+          }
+        } else {
+          BaseNode<?, ?, ?> child = children.get(childIndex++);
+          if (!replay(child)) { return false; }
+          SourcePosition pos = child.getSourcePosition();
+          if (pos != null) {
+            mark(pos.end());
+          }
+          if (childIndex < children.size()) {
+            markStart(children.get(childIndex));
+          }
+        }
+      }
+      out.add(Event.pop());
+      return true;
+    }
+
+    private static boolean matchesValue(
+        NodeVariant<?, ?> variant, Event valueEvent) {
+      Optional<SerialState> after = variant.getParSer().unparse(
+          new SerialState(ImmutableList.of(valueEvent, Event.pop())),
+          SerialErrorReceiver.DEV_NULL);
+      return after.isPresent() && !after.get().isEmpty()
+          && after.get().structure.get(after.get().index).getKind()
+             == Event.Kind.POP;
+    }
+  }
+}
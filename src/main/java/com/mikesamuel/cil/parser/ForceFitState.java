@@ -1,37 +1,94 @@
 package com.mikesamuel.cil.parser;
 
+import java.util.BitSet;
+
 import javax.annotation.Nullable;
 
+import com.google.common.base.Optional;
+import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Table;
 import com.mikesamuel.cil.ast.BaseNode;
 import com.mikesamuel.cil.ast.j8.Tokens;
 
 /**
  * State of a {@link ParSer#forceFit} operation.
+ * <p>
+ * How a fit proceeds depends only on the index of the next part to fit, not
+ * on how earlier parts were resolved, so fits are kept only for the first
+ * way found of reaching each index.  This keeps the number of fits linear in
+ * the number of parts instead of exponential.
  */
 public final class ForceFitState {
   /** Parts to fit together. */
   public final ImmutableList<FitPart> parts;
-  /** Ways of fitting parts together thus far. */
+  /**
+   * Ways of fitting parts together thus far.
+   * At most one per {@linkplain PartialFit#index index}.
+   */
   public final ImmutableSet<PartialFit> fits;
+  /**
+   * Shared by all states derived from the same initial state so that work
+   * that depends only on a parser and a part is done once per operation.
+   */
+  private final Table<ParSer, Integer, Optional<BaseNode<?, ?, ?>>>
+      resolutions;
 
   /** */
   public ForceFitState(Iterable<? extends FitPart> parts) {
-    this(parts, ImmutableSet.of(new PartialFit(0, null)));
+    this(
+        ImmutableList.copyOf(parts),
+        ImmutableSet.of(new PartialFit(0, null)),
+        HashBasedTable.<ParSer, Integer, Optional<BaseNode<?, ?, ?>>>create());
   }
 
-  /** */
-  ForceFitState(
-      Iterable<? extends FitPart> parts,
-      Iterable<? extends PartialFit> fits) {
-    this.parts = ImmutableList.copyOf(parts);
-    this.fits = ImmutableSet.copyOf(fits);
+  private ForceFitState(
+      ImmutableList<FitPart> parts,
+      Iterable<? extends PartialFit> fits,
+      Table<ParSer, Integer, Optional<BaseNode<?, ?, ?>>> resolutions) {
+    this.parts = parts;
+    this.resolutions = resolutions;
+    ImmutableSet.Builder<PartialFit> b = ImmutableSet.builder();
+    BitSet indices = new BitSet(parts.size() + 1);
+    for (PartialFit f : fits) {
+      if (!indices.get(f.index)) {
+        indices.set(f.index);
+        b.add(f);
+      }
+    }
+    this.fits = b.build();
   }
 
-  /** Like this but with the given fits instead. */
+  /**
+   * Like this but with the given fits instead.
+   * When several of the given fits have the same index, only the first is
+   * kept.
+   */
   public ForceFitState withFits(Iterable<? extends PartialFit> newFits) {
-    return new ForceFitState(parts, newFits);
+    return new ForceFitState(parts, newFits, resolutions);
+  }
+
+  /**
+   * The resolution previously {@linkplain #putResolution stored} for the
+   * given part by the given parser during this force fit operation.
+   *
+   * @return null if none was stored, or absent if the part could not be
+   *     resolved.
+   */
+  public @Nullable Optional<BaseNode<?, ?, ?>> getResolution(
+      ParSer p, int partIndex) {
+    return resolutions.get(p, partIndex);
+  }
+
+  /**
+   * Stores the resolution of the given part by the given parser, or absent
+   * if it cannot resolve the part, for reuse by later fits that reach the
+   * same part.
+   */
+  public void putResolution(
+      ParSer p, int partIndex, Optional<BaseNode<?, ?, ?>> resolution) {
+    resolutions.put(p, partIndex, resolution);
   }
 
   @Override
@@ -2,6 +2,8 @@ package com.mikesamuel.cil.parser;
 
 import java.io.IOException;
 
+import javax.annotation.Nullable;
+
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.io.CharSource;
@@ -57,6 +59,36 @@ public abstract class Input {
    */
   public abstract SourcePosition getSourcePosition(int index);
 
+  /**
+   * The line structure of the single source file that all positions in this
+   * input fall within, or null if positions are not derived from indices into
+   * a single source file.
+   */
+  public abstract @Nullable LineStarts getLineStarts();
+
+  /**
+   * The index into the source file of the given index into content.
+   *
+   * @throws IllegalStateException if {@link #getLineStarts()} is null since
+   *     then there is no single source file.  Inputs built from
+   *     {@linkplain Builder#events events} take positions from the position
+   *     marks between tokens instead.
+   */
+  public final int indexInSource(int index) {
+    Preconditions.checkState(
+        getLineStarts() != null,
+        "Input has no single source file.  Use getSourcePosition(int)");
+    return indexInLineStarts(index);
+  }
+
+  /**
+   * Implements {@link #indexInSource} for inputs with
+   * {@linkplain #getLineStarts line starts}.
+   */
+  int indexInLineStarts(int index) {
+    return index;
+  }
+
   /**
    * A builder for inputs.
    */
@@ -94,6 +126,11 @@ public abstract class Input {
     public SourcePosition getSourcePosition(int index) {
       return new SourcePosition(lineStarts, index, index);
     }
+
+    @Override
+    public LineStarts getLineStarts() {
+      return lineStarts;
+    }
   }
 
 
@@ -135,6 +172,16 @@ public abstract class Input {
       return new SourcePosition(
           lineStarts, indexInEncoded, indexInEncoded);
     }
+
+    @Override
+    public LineStarts getLineStarts() {
+      return lineStarts;
+    }
+
+    @Override
+    int indexInLineStarts(int index) {
+      return content.indexInEncoded(index);
+    }
   }
 
 
@@ -162,6 +209,12 @@ public abstract class Input {
     public SourcePosition getSourcePosition(int index) {
       return tokenAndContentText.getSourcePosition(index);
     }
+
+    @Override
+    public @Nullable LineStarts getLineStarts() {
+      // Each token's position is derived from the position mark before it.
+      return null;
+    }
   }
 
 
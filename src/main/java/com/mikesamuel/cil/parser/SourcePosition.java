@@ -50,6 +50,12 @@ public final class SourcePosition implements Positioned {
    */
   public String getSource() { return starts.source; }
 
+  /**
+   * The line structure of the source file which is used to compute line
+   * numbers and columns.
+   */
+  public LineStarts getLineStarts() { return starts; }
+
   /**
    * Index of the character (UTF-16 offset) in file of the start.
    */
@@ -1,6 +1,11 @@
 package com.mikesamuel.cil.parser;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import javax.annotation.Nullable;
 
@@ -8,11 +13,13 @@ import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.mikesamuel.cil.ast.BaseNode;
 import com.mikesamuel.cil.ast.NodeVariant;
 import com.mikesamuel.cil.event.DelayedCheckPredicate;
 import com.mikesamuel.cil.event.Event;
 import com.mikesamuel.cil.format.FormattedSource;
 import com.mikesamuel.cil.format.Formatter;
+import com.mikesamuel.cil.format.PositionMapping;
 import com.mikesamuel.cil.format.java.Java8Formatters;
 
 /**
@@ -34,7 +41,67 @@ import com.mikesamuel.cil.format.java.Java8Formatters;
  */
 public final class Unparse {
 
+  /** How {@link Unparse#unparse} derives a token stream from a tree. */
+  public enum Strategy {
+    /**
+     * Match each node against the grammar to find the tokens between its
+     * children, and run {@link Event#delayedCheck}s.
+     */
+    GRAMMAR,
+    /**
+     * Replay the tokens that the grammar produced for earlier nodes with the
+     * same variant and child node types, falling back to the grammar for
+     * nodes unlike any seen before.
+     * Delayed checks are not run and leaf values are not checked, so this is
+     * only suitable for trees known to be well-formed, like those produced by
+     * our own passes.
+     */
+    DIRECT,
+    /**
+     * Like {@link #DIRECT} but leaf values are checked against the grammar,
+     * and delayed checks are run, so the output is always the same as that
+     * of {@link #GRAMMAR}.
+     */
+    VERIFIED_DIRECT,
+    ;
+  }
+
+  /**
+   * Derives the tokens for node and its descendants.
+   *
+   * @throws UnparseVerificationException if node could not be unparsed or
+   *     a delayed check failed.
+   */
+  public static Verified unparse(BaseNode<?, ?, ?> node, Strategy strategy)
+  throws UnparseVerificationException {
+    List<Event> events = null;
+    switch (strategy) {
+      case GRAMMAR:
+        events = DirectUnparser.unparseByGrammar(node);
+        break;
+      case DIRECT:
+        events = DirectUnparser.unparse(node, false);
+        break;
+      case VERIFIED_DIRECT:
+        events = DirectUnparser.unparse(node, true);
+        break;
+    }
+    if (events == null) {
+      throw new UnparseVerificationException(
+          "Failed to unparse " + node.getNodeType()
+          + " at " + node.getSourcePosition(),
+          null);
+    }
+    return verify(events);
+  }
+
   /**
+   * Delayed checks with a {@link DelayedCheckPredicate#maxTokens bound} are
+   * run against a small window of tokens as soon as enough tokens have been
+   * seen, so need only a single pass.
+   * Any others are run at the end against the output from the first of them
+   * onwards.
+   *
    * @param unverified the full unparsed output with
    *     {@link Event#delayedCheck}s.
    * @return the verified output which consists only of position and
@@ -42,17 +109,23 @@ public final class Unparse {
    */
   public static Verified verify(Iterable<? extends Event> unverified)
   throws UnparseVerificationException {
+    TokenWindow window = new TokenWindow();
     List<Object> delayedAndIndices = Lists.newArrayList();
-    StringBuilder sb = new StringBuilder();
+    // Only allocated once we see an unbounded check.
+    StringBuilder sb = null;
     List<Event> verifiedTokens = Lists.newArrayList();
     for (Event e : unverified) {
       switch (e.getKind()) {
         case TOKEN: case CONTENT:
-          sb.append(e.getContent());
-          // Add the space here instead of before the token so that indices
-          // added below always correspond to the beginning of a token or the
-          // end of input.
-          sb.append(' ');
+          String content = e.getContent();
+          if (sb != null) {
+            sb.append(content);
+            // Add the space here instead of before the token so that indices
+            // added below always correspond to the beginning of a token or
+            // the end of input.
+            sb.append(' ');
+          }
+          window.token(content);
 
           verifiedTokens.add(e);
           break;
@@ -60,13 +133,24 @@ public final class Unparse {
           String commentContent = e.getContent();
           if (commentContent.length() == Ignorables.scanPastIgnorablesFrom(
                   commentContent, 0, null)) {
-            sb.append(commentContent).append(' ');
+            if (sb != null) {
+              sb.append(commentContent).append(' ');
+            }
             verifiedTokens.add(e);
           }
           break;
         case DELAYED_CHECK:
-          delayedAndIndices.add(e);
-          delayedAndIndices.add(sb.length());
+          DelayedCheckPredicate p = e.getDelayedCheck();
+          int maxTokens = p.maxTokens();
+          if (maxTokens >= 0) {
+            window.check(p, maxTokens);
+          } else {
+            if (sb == null) {
+              sb = new StringBuilder();
+            }
+            delayedAndIndices.add(p);
+            delayedAndIndices.add(sb.length());
+          }
           break;
         case POSITION_MARK:
           int n = verifiedTokens.size();
@@ -86,38 +170,138 @@ public final class Unparse {
           throw new AssertionError(e.toString());
       }
     }
+    window.finish();
 
-    Input inp = Input.builder().source("UnparseVerifier").code(sb).build();
-    final ParseState ps = new ParseState(inp);
+    if (sb != null) {
+      Input inp = Input.builder().source("UnparseVerifier").code(sb).build();
+      final ParseState ps = new ParseState(inp);
 
-    for (int i = 0, n = delayedAndIndices.size(); i < n; i += 2) {
-      DelayedCheckPredicate p = ((Event) delayedAndIndices.get(i))
-          .getDelayedCheck();
-      final int index = (Integer) delayedAndIndices.get(i + 1);
-      Suffix s = new Suffix() {
+      for (int i = 0, n = delayedAndIndices.size(); i < n; i += 2) {
+        DelayedCheckPredicate p = (DelayedCheckPredicate)
+            delayedAndIndices.get(i);
+        final int index = (Integer) delayedAndIndices.get(i + 1);
+        Suffix s = new Suffix() {
+
+          @Override
+          public ParseState asParseState() {
+            // It's that index occurs before an ignorable token produced by a
+            // Trees.Decorator so advance index over any ignorable tokens.
+            int indexAfterIgnorables = Ignorables.scanPastIgnorablesFrom(
+                ps.input.content(), index, null);
+            return ps.withIndex(indexAfterIgnorables);
+          }
+
+        };
+        Optional<String> problem = p.problem(s);
+        if (problem.isPresent()) {
+          throw new UnparseVerificationException(
+              "Delayed check " + p + " failed at " + index
+              + " because " + problem.get() + " : " + s.asParseState(),
+              null);
+        }
+      }
+    }
+
+    @SuppressWarnings("synthetic-access")
+    Verified v = new Verified(ImmutableList.copyOf(verifiedTokens));
+    return v;
+  }
+
+  /**
+   * The most recent tokens and the bounded delayed checks that are waiting on
+   * tokens.
+   * Tokens are kept only as long as some pending check might need them, so
+   * the window size is bounded by the largest
+   * {@link DelayedCheckPredicate#maxTokens}.
+   */
+  private static final class TokenWindow {
+    /** Tokens starting at index {@link #start} in the token stream. */
+    private final ArrayDeque<String> tokens = new ArrayDeque<>();
+    /** The index in the token stream of the first element of tokens. */
+    private int start;
+    /** The count of tokens seen so far. */
+    private int count;
+    /** Pending checks in order of {@link PendingCheck#start}. */
+    private final List<PendingCheck> pending = Lists.newArrayList();
+
+    private static final class PendingCheck {
+      final DelayedCheckPredicate p;
+      /** Index in the token stream of the first token in the suffix. */
+      final int start;
+      /** Index of the end of the window which includes one extra token. */
+      final int end;
+
+      PendingCheck(DelayedCheckPredicate p, int start, int end) {
+        this.p = p;
+        this.start = start;
+        this.end = end;
+      }
+    }
+
+    void check(DelayedCheckPredicate p, int maxTokens) {
+      // Include one token past the end so that literals can check that they
+      // are not a prefix of a longer token the same way they would against
+      // the whole output.
+      pending.add(new PendingCheck(p, count, count + maxTokens + 1));
+    }
 
+    void token(String content) throws UnparseVerificationException {
+      if (pending.isEmpty()) {
+        // No one will need it.
+        ++count;
+        start = count;
+        return;
+      }
+      tokens.add(content);
+      ++count;
+      for (Iterator<PendingCheck> it = pending.iterator(); it.hasNext();) {
+        PendingCheck pc = it.next();
+        if (pc.end <= count) {
+          it.remove();
+          run(pc);
+        }
+      }
+      int keepFrom = pending.isEmpty() ? count : pending.get(0).start;
+      for (; start < keepFrom; ++start) {
+        tokens.removeFirst();
+      }
+    }
+
+    void finish() throws UnparseVerificationException {
+      for (PendingCheck pc : pending) {
+        run(pc);
+      }
+      pending.clear();
+      tokens.clear();
+      start = count;
+    }
+
+    private void run(PendingCheck pc) throws UnparseVerificationException {
+      StringBuilder sb = new StringBuilder();
+      int index = start;
+      for (String token : tokens) {
+        if (index >= pc.end) { break; }
+        if (index >= pc.start) {
+          sb.append(token).append(' ');
+        }
+        ++index;
+      }
+      Input inp = Input.builder().source("UnparseVerifier").code(sb).build();
+      final ParseState ps = new ParseState(inp);
+      Suffix s = new Suffix() {
         @Override
         public ParseState asParseState() {
-          // It's that index occurs before an ignorable token produced by a
-          // Trees.Decorator so advance index over any ignorable tokens.
-          int indexAfterIgnorables = Ignorables.scanPastIgnorablesFrom(
-              ps.input.content(), index, null);
-          return ps.withIndex(indexAfterIgnorables);
+          return ps;
         }
-
       };
-      Optional<String> problem = p.problem(s);
+      Optional<String> problem = pc.p.problem(s);
       if (problem.isPresent()) {
         throw new UnparseVerificationException(
-            "Delayed check " + p + " failed at " + index
-            + " because " + problem.get() + " : " + s.asParseState(),
+            "Delayed check " + pc.p + " failed at token " + pc.start
+            + " because " + problem.get() + " : " + ps,
             null);
       }
     }
-
-    @SuppressWarnings("synthetic-access")
-    Verified v = new Verified(ImmutableList.copyOf(verifiedTokens));
-    return v;
   }
 
   /**
@@ -134,6 +318,61 @@ public final class Unparse {
    */
   public static FormattedSource format(
       Verified v, Formatter<SList<NodeVariant<?, ?>>> f) {
+    feed(v, f);
+    return f.format();
+  }
+
+  /**
+   * Formats a verified output producing the formatted source code and an
+   * input source position -> output source position mapping, laying out
+   * independent parts of large outputs on executor.
+   *
+   * @see Formatter#format(Executor)
+   */
+  public static FormattedSource format(
+      Verified v, Formatter<SList<NodeVariant<?, ?>>> f, Executor executor) {
+    feed(v, f);
+    return f.format(executor);
+  }
+
+  /**
+   * Formats a verified output writing the formatted source code to out as it
+   * is produced instead of building a string.
+   *
+   * @param positions receives the input source position -> output source
+   *     position mapping as it is produced, or null if not needed.
+   * @see Formatter#streamTo
+   */
+  public static void formatTo(
+      Verified v, Appendable out,
+      @Nullable PositionMapping.Receiver positions)
+  throws IOException {
+    formatTo(v, Java8Formatters.createFormatter(), out, positions);
+  }
+
+  /**
+   * Formats a verified output writing the formatted source code to out as it
+   * is produced instead of building a string.
+   *
+   * @param positions receives the input source position -> output source
+   *     position mapping as it is produced, or null if not needed.
+   * @see Formatter#streamTo
+   */
+  public static void formatTo(
+      Verified v, Formatter<SList<NodeVariant<?, ?>>> f, Appendable out,
+      @Nullable PositionMapping.Receiver positions)
+  throws IOException {
+    f.streamTo(out, positions);
+    try {
+      feed(v, f);
+    } catch (UncheckedIOException ex) {
+      throw ex.getCause();
+    }
+    f.finish();
+  }
+
+  private static void feed(
+      Verified v, Formatter<SList<NodeVariant<?, ?>>> f) {
     SList<NodeVariant<?, ?>> contextStack = null;
     for (Event e : v.events) {
       switch (e.getKind()) {
@@ -158,8 +397,6 @@ public final class Unparse {
           throw new AssertionError(e.toString());
       }
     }
-
-    return f.format();
   }
 
 
@@ -180,6 +417,8 @@ public final class Unparse {
     /**
      * A parse input with the suffix tokens and only the suffix tokens following
      * the input cursor.
+     * For a check with a {@link DelayedCheckPredicate#maxTokens bound}, only a
+     * prefix of the suffix tokens may follow the cursor.
      */
     ParseState asParseState();
   }
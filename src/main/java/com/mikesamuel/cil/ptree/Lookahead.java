@@ -61,6 +61,8 @@ final class Lookahead extends PTParSer {
 
   final Valence valence;
   final ParSerable body;
+  /** Lazily computed by {@link #getMaxTokens}. */
+  private int maxTokens = Integer.MIN_VALUE;
 
   private Lookahead(Valence valence, ParSerable body) {
     this.valence = valence;
@@ -128,6 +130,50 @@ final class Lookahead extends PTParSer {
     sb.append(")");
   }
 
+  /**
+   * The most tokens that the body can match, or -1 if there is no easily
+   * computed bound.
+   */
+  int getMaxTokens() {
+    // Racy but idempotent.
+    if (maxTokens == Integer.MIN_VALUE) {
+      maxTokens = maxTokens(body);
+    }
+    return maxTokens;
+  }
+
+  private static int maxTokens(ParSerable p) {
+    ParSer ps = p.getParSer();
+    if (!(ps instanceof PTParSer)) { return -1; }
+    switch (((PTParSer) ps).getKind()) {
+      case LIT:
+      case REX:
+        return 1;
+      case CAT: {
+        int sum = 0;
+        for (ParSerable el : ((Concatenation) ps).ps) {
+          int n = maxTokens(el);
+          if (n < 0) { return -1; }
+          sum += n;
+        }
+        return sum;
+      }
+      case ALT: {
+        int max = 0;
+        for (ParSerable option : ((Alternation) ps).ps) {
+          int n = maxTokens(option);
+          if (n < 0) { return -1; }
+          max = Math.max(max, n);
+        }
+        return max;
+      }
+      case LA:
+      case REF:
+      case REP:
+        return -1;
+    }
+    throw new AssertionError(ps);
+  }
 
   private final class DoubleCheckPredicate implements DelayedCheckPredicate {
 
@@ -175,6 +221,11 @@ final class Lookahead extends PTParSer {
       throw new AssertionError(result.synopsis);
     }
 
+    @Override
+    public int maxTokens() {
+      return getLookahead().getMaxTokens();
+    }
+
     private Lookahead getLookahead() {
       return Lookahead.this;
     }
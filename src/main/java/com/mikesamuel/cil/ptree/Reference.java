@@ -569,9 +569,14 @@ final class Reference extends PTParSer {
           b.add(f.advance());
         }
       } else if (p instanceof ForceFitState.InterpolatedValue) {
-        ForceFitState.InterpolatedValue iv = (InterpolatedValue) p;
-        Optional<? extends BaseNode<?, ?, ?>> wrapped = coerceAndWrap(
-            nodeType.getGrammar(), nodeType, iv.value);
+        // Coercion may involve parsing, so do it once per part.
+        Optional<BaseNode<?, ?, ?>> wrapped = state.getResolution(
+            this, f.index);
+        if (wrapped == null) {
+          ForceFitState.InterpolatedValue iv = (InterpolatedValue) p;
+          wrapped = coerceAndWrap(nodeType.getGrammar(), nodeType, iv.value);
+          state.putResolution(this, f.index, wrapped);
+        }
         if (wrapped.isPresent()) {
           b.add(f.advanceAndResolve(wrapped.get()));
         }
@@ -583,7 +588,7 @@ final class Reference extends PTParSer {
   private static
   <BN extends BaseNode<BN, NT, ?>,
    NT extends Enum<NT> & NodeType<BN, NT>>
-  Optional<? extends BaseNode<?, ?, ?>> coerceAndWrap(
+  Optional<BaseNode<?, ?, ?>> coerceAndWrap(
       Grammar<BN, NT> g, NodeType<?, ?> t, Object interpValue) {
     NT nodeType = g.cast(t);
     Object value = g.tryToCoerce(interpValue, g.cast(nodeType));
@@ -591,7 +596,10 @@ final class Reference extends PTParSer {
     // can be reached from this nodeType and generate any intermediates we
     // need.
     if (value instanceof BaseNode<?, ?, ?>) {
-      return g.wrap((BaseNode<?, ?, ?>) value, nodeType);
+      Optional<BN> wrapped = g.wrap((BaseNode<?, ?, ?>) value, nodeType);
+      if (wrapped.isPresent()) {
+        return Optional.of(wrapped.get());
+      }
     }
     return Optional.absent();
   }
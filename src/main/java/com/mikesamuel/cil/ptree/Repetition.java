@@ -1,6 +1,8 @@
 package com.mikesamuel.cil.ptree;
 
-import java.util.LinkedHashSet;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
@@ -126,15 +128,26 @@ final class Repetition extends PTParSer {
 
   @Override
   public ForceFitState forceFit(ForceFitState start) {
+    List<ForceFitState.PartialFit> fits = new ArrayList<>(start.fits);
+    BitSet reached = new BitSet();
+    for (ForceFitState.PartialFit f : start.fits) {
+      reached.set(f.index);
+    }
+    // Only fits that reach a new index need another pass through the body
+    // since fits that reach the same index proceed the same way.
     ForceFitState state = start;
-    LinkedHashSet<ForceFitState.PartialFit> fits =
-        new LinkedHashSet<>(start.fits);
     while (true) {
-      int nFits = fits.size();
       ForceFitState after = p.getParSer().forceFit(state);
-      fits.addAll(after.fits);
-      if (fits.size() == nFits) { break; }
-      state = after;
+      List<ForceFitState.PartialFit> novel = new ArrayList<>();
+      for (ForceFitState.PartialFit f : after.fits) {
+        if (!reached.get(f.index)) {
+          reached.set(f.index);
+          novel.add(f);
+        }
+      }
+      if (novel.isEmpty()) { break; }
+      fits.addAll(novel);
+      state = after.withFits(novel);
     }
     return start.withFits(fits);
   }
@@ -2,13 +2,16 @@ package com.mikesamuel.cil.template;
 
 import java.io.IOException;
 import java.io.Reader;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import javax.annotation.Nullable;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
@@ -30,6 +33,9 @@ import com.mikesamuel.cil.ptree.PTree;
 /**
  * A bundle of data that allows dynamic field access via
  * {@link InterpretationContext#getFieldDynamic}.
+ * <p>
+ * Bundles read from JSON defer parsing code snippets until the values
+ * containing them are first fetched.
  */
 public final class DataBundle {
 
@@ -39,9 +45,14 @@ public final class DataBundle {
    * The data associated with the given key or the defaultValue if there is none
    * such.
    */
-  public @Nullable Object getOrDefault(
+  public synchronized @Nullable Object getOrDefault(
       String key, @Nullable Object defaultValue) {
-    return data.getOrDefault(key, defaultValue);
+    Object value = data.getOrDefault(key, defaultValue);
+    if (value instanceof Deferred) {
+      value = ((Deferred) value).force();
+      data.put(key, value);
+    }
+    return value;
   }
 
   /**
@@ -57,18 +68,28 @@ public final class DataBundle {
    *
    * <p>
    * <code>{ "code": "...", "nodeType": "..." }</code> are parsed to ASTs.
+   * Parsing happens when the value containing the AST is first fetched, and
+   * snippets with the same node type and code are parsed once per file.
+   * The JSON is read as a stream, so the file's content is not held in memory
+   * in addition to the bundle.
+   *
+   * @throws JSONException if the input is not valid JSON.  A code snippet that
+   *     fails to parse causes a JSONException when it is first fetched.
    */
   public static DataBundle fromJsonFile(String source, CharSource code)
   throws IOException {
-    JSONObject obj;
+    Object x;
     try (Reader in = code.openBufferedStream()) {
       JSONTokener lexer = new JSONTokener(in);
-      obj = new JSONObject(lexer);
+      if (lexer.nextClean() != '{') {
+        throw lexer.syntaxError("A JSONObject text must begin with '{'");
+      }
+      lexer.back();
+      x = new JsonReader(source, lexer).readValue(null);
       if (lexer.nextClean() != 0 || lexer.more()) {
         throw lexer.syntaxError("Unconsumed JSON input from " + source);
       }
     }
-    Object x = from(source, null, obj);
     if (x instanceof DataBundle) {
       return (DataBundle) x;
     }
@@ -77,31 +98,89 @@ public final class DataBundle {
     return b;
   }
 
-  private static Object from(
-      String source, SList<Object> keyChain, JSONArray jarr) {
-    int n = jarr.length();
-    Object[] arr = new Object[n];
-    for (int i = 0; i < n; ++i) {
-      arr[i] = from(source, SList.append(keyChain, i), jarr.get(i));
+
+  /** A value whose construction is deferred until it is fetched. */
+  private static abstract class Deferred {
+    abstract Object force();
+  }
+
+  /** An AST snippet that has not been parsed yet. */
+  private static final class Snippet extends Deferred {
+    final SnippetParser parser;
+    final J8NodeType nodeType;
+    final String code;
+    final SList<Object> keyChain;
+
+    Snippet(
+        SnippetParser parser, J8NodeType nodeType, String code,
+        SList<Object> keyChain) {
+      this.parser = parser;
+      this.nodeType = nodeType;
+      this.code = code;
+      this.keyChain = keyChain;
+    }
+
+    @Override
+    Object force() {
+      return parser.parse(this);
     }
-    return arr;
   }
 
-  private static final String[] ZERO_STRINGS = new String[0];
-
-  private static Object from(
-      String source, SList<Object> keyChain, JSONObject obj) {
-    String[] keys = JSONObject.getNames(obj);
-    if (keys == null) { keys = ZERO_STRINGS; }
-    if (keys.length == 2 && obj.has("nodeType")
-        && obj.has("code")) {
-      // Recognize
-      //   { "nodeType": "Foo", "code": "..." }
-      // and parse "..." using NodeType.Foo to get a FooNode AST.
-      J8NodeType nodeType = obj.getEnum(J8NodeType.class, "nodeType");
+  /** An array containing deferred values. */
+  private static final class DeferredArray extends Deferred {
+    final Object[] elements;
+
+    DeferredArray(Object[] elements) {
+      this.elements = elements;
+    }
+
+    @Override
+    Object force() {
+      for (int i = 0, n = elements.length; i < n; ++i) {
+        Object element = elements[i];
+        if (element instanceof Deferred) {
+          elements[i] = ((Deferred) element).force();
+        }
+      }
+      return elements;
+    }
+  }
+
+  /**
+   * Parses snippets, sharing work between snippets from the same source with
+   * the same node type and code.
+   */
+  private static final class SnippetParser {
+    final String source;
+    private final Map<J8NodeType, Map<String, J8BaseNode>> parsed =
+        new EnumMap<>(J8NodeType.class);
+
+    SnippetParser(String source) {
+      this.source = source;
+    }
+
+    J8BaseNode parse(Snippet snippet) {
+      synchronized (parsed) {
+        Map<String, J8BaseNode> byCode = parsed.get(snippet.nodeType);
+        if (byCode == null) {
+          byCode = new HashMap<>();
+          parsed.put(snippet.nodeType, byCode);
+        }
+        J8BaseNode node = byCode.get(snippet.code);
+        if (node == null) {
+          node = parseUncached(snippet);
+          byCode.put(snippet.code, node);
+        }
+        // Copy so that the same node does not appear in two places.
+        return node.deepClone();
+      }
+    }
+
+    private J8BaseNode parseUncached(Snippet snippet) {
+      J8NodeType nodeType = snippet.nodeType;
       Input inp = Input.builder()
           .source(source)
-          .code(obj.getString("code"))
+          .code(snippet.code)
           .build();
       ParseErrorReceiver err = ParseErrorReceiver.DEV_NULL;  // TODO
       ParseResult r = PTree.complete(nodeType.getParSer()).getParSer().parse(
@@ -110,30 +189,128 @@ public final class DataBundle {
         case FAILURE:
           throw new JSONException(
               "Failed to parse " + nodeType + " from " +
-              source + " reached via " + SList.forwardIterable(keyChain));
+              source + " reached via "
+              + SList.forwardIterable(snippet.keyChain));
         case SUCCESS:
           ParseState afterParse = r.next();
-          J8BaseNode parsed = Trees
+          return Trees
               .forGrammar(J8NodeType.CompilationUnit.getGrammar())
               .of(inp, afterParse.output);
-          return parsed;
       }
       throw new AssertionError(r.synopsis);
     }
-    DataBundle b = new DataBundle();
-    for (String key : keys) {
-      b.data.put(key, from(source, SList.append(keyChain, key), obj.get(key)));
-    }
-    return b;
   }
 
-  private static Object from(
-      String source, SList<Object> keyChain, Object value) {
-    if (value instanceof JSONObject) {
-      return from(source, keyChain, (JSONObject) value);
-    } else if (value instanceof JSONArray) {
-      return from(source, keyChain, (JSONArray) value);
+  /**
+   * Reads values from a JSON token stream without building an intermediate
+   * {@link org.json.JSONObject} tree.
+   */
+  private static final class JsonReader {
+    final JSONTokener lexer;
+    final SnippetParser snippetParser;
+
+    JsonReader(String source, JSONTokener lexer) {
+      this.lexer = lexer;
+      this.snippetParser = new SnippetParser(source);
+    }
+
+    Object readValue(SList<Object> keyChain) {
+      char c = lexer.nextClean();
+      switch (c) {
+        case '{':
+          return readObject(keyChain);
+        case '[':
+          return readArray(keyChain);
+        default:
+          lexer.back();
+          return lexer.nextValue();
+      }
+    }
+
+    /** Follows the syntax accepted by {@link org.json.JSONObject}. */
+    private Object readObject(SList<Object> keyChain) {
+      Map<String, Object> members = Maps.newLinkedHashMap();
+      if (lexer.nextClean() != '}') {
+        lexer.back();
+        while (true) {
+          char c = lexer.nextClean();
+          if (c == 0) {
+            throw lexer.syntaxError("A JSONObject text must end with '}'");
+          }
+          lexer.back();
+          String key = lexer.nextValue().toString();
+
+          c = lexer.nextClean();
+          if (c != ':') {
+            throw lexer.syntaxError("Expected a ':' after a key");
+          }
+          Object value = readValue(SList.append(keyChain, key));
+          if (members.put(key, value) != null) {
+            throw lexer.syntaxError("Duplicate key \"" + key + "\"");
+          }
+
+          c = lexer.nextClean();
+          if (c == '}') { break; }
+          if (c != ',' && c != ';') {
+            throw lexer.syntaxError("Expected a ',' or '}'");
+          }
+          if (lexer.nextClean() == '}') { break; }
+          lexer.back();
+        }
+      }
+
+      if (members.size() == 2) {
+        // Recognize
+        //   { "nodeType": "Foo", "code": "..." }
+        // and parse "..." using NodeType.Foo to get a FooNode AST.
+        Object nodeTypeName = members.get("nodeType");
+        Object code = members.get("code");
+        if (nodeTypeName != null && code instanceof String) {
+          J8NodeType nodeType;
+          try {
+            nodeType = J8NodeType.valueOf(nodeTypeName.toString());
+          } catch (IllegalArgumentException ex) {
+            throw new JSONException(
+                "\"nodeType\" is not a J8NodeType: " + nodeTypeName, ex);
+          }
+          return new Snippet(
+              snippetParser, nodeType, (String) code, keyChain);
+        }
+      }
+
+      DataBundle b = new DataBundle();
+      b.data.putAll(members);
+      return b;
+    }
+
+    private Object readArray(SList<Object> keyChain) {
+      List<Object> elements = new ArrayList<>();
+      boolean hasDeferred = false;
+      if (lexer.nextClean() != ']') {
+        lexer.back();
+        while (true) {
+          Object element;
+          if (lexer.nextClean() == ',') {
+            // Elided elements are null as in org.json.JSONArray.
+            lexer.back();
+            element = JSONObject.NULL;
+          } else {
+            lexer.back();
+            element = readValue(SList.append(keyChain, elements.size()));
+          }
+          hasDeferred |= element instanceof Deferred;
+          elements.add(element);
+          char c = lexer.nextClean();
+          if (c == ']') { break; }
+          if (c != ',') {
+            throw lexer.syntaxError("Expected a ',' or ']'");
+          }
+          if (lexer.nextClean() == ']') { break; }
+          lexer.back();
+        }
+      }
+      Object[] arr = elements.toArray();
+      return hasDeferred ? new DeferredArray(arr) : arr;
     }
-    return value;
   }
 }
@@ -0,0 +1,84 @@
+package com.mikesamuel.cil.template;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import com.google.common.base.Optional;
+import com.mikesamuel.cil.ast.Trees;
+import com.mikesamuel.cil.ast.j8.CompilationUnitNode;
+import com.mikesamuel.cil.ast.j8.J8NodeType;
+import com.mikesamuel.cil.event.Event;
+import com.mikesamuel.cil.parser.SList;
+import com.mikesamuel.cil.parser.SerialErrorReceiver;
+import com.mikesamuel.cil.parser.SerialState;
+import com.mikesamuel.cil.parser.Unparse;
+import com.mikesamuel.cil.parser.Unparse.UnparseVerificationException;
+import com.mikesamuel.cil.parser.Unparse.Verified;
+
+/**
+ * Receives compilation units as template processing produces them so that
+ * each can be released once it has been handled, instead of holding all
+ * outputs until template processing finishes.
+ *
+ * @see PreparedTemplateBundle#apply(DataBundle, OutputSink)
+ */
+public interface OutputSink {
+  /**
+   * Called once per output compilation unit, in output order.
+   * The sink may modify the unit.
+   */
+  void accept(CompilationUnitNode unit) throws IOException;
+
+
+  /**
+   * Factories for common sinks.
+   */
+  public static final class Sinks {
+    private Sinks() {
+      // Static API
+    }
+
+    /**
+     * A sink that unparses and formats each compilation unit and writes it
+     * to out, separating units with a blank line.
+     * Formatted code is written as it is produced instead of being built
+     * into a string first, though each unit's tokens are still held while
+     * it is unparsed.
+     * The writer is not flushed or closed.
+     */
+    public static OutputSink writingTo(Writer out) {
+      return new OutputSink() {
+        private boolean first = true;
+
+        @Override
+        public void accept(CompilationUnitNode unit) throws IOException {
+          Verified verified = verify(unit);
+          if (!first) {
+            out.write("\n\n");
+          }
+          first = false;
+          Unparse.formatTo(verified, out, null);
+        }
+      };
+    }
+
+    private static Verified verify(CompilationUnitNode unit)
+    throws IOException {
+      SList<Event> events = Trees.startUnparse(null, unit, null);
+      Optional<SerialState> sstate = J8NodeType.CompilationUnit.getParSer()
+          .unparse(
+              new SerialState(SList.forwardIterable(events)),
+              SerialErrorReceiver.DEV_NULL);
+      if (!sstate.isPresent()) {
+        throw new IOException(
+            "Failed to unparse output " + unit.getSourcePosition());
+      }
+      try {
+        return Unparse.verify(SList.forwardIterable(sstate.get().output));
+      } catch (UnparseVerificationException ex) {
+        throw new IOException(
+            "Failed to unparse output " + unit.getSourcePosition(), ex);
+      }
+    }
+  }
+}
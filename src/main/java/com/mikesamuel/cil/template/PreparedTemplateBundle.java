@@ -0,0 +1,304 @@
+package com.mikesamuel.cil.template;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.mikesamuel.cil.ast.j8.CompilationUnitNode;
+import com.mikesamuel.cil.ast.j8.J8BaseNode;
+import com.mikesamuel.cil.ast.j8.J8FileNode;
+import com.mikesamuel.cil.ast.meta.StaticType.TypePool;
+import com.mikesamuel.cil.expr.BytecodeCompiler;
+import com.mikesamuel.cil.expr.InterpreterProfiler;
+import com.mikesamuel.cil.parser.SourcePosition;
+import com.mikesamuel.cil.util.LogUtils;
+
+/**
+ * A template bundle whose compilation units have been parsed, run through
+ * the common passes, and constant folded so that it can be applied to many
+ * inputs.
+ * <p>
+ * {@link #apply} is thread-safe unless the bundle was prepared with an
+ * {@link InterpreterProfiler} since profilers are not.
+ * Each application borrows an interpreter that no other application is
+ * using, and copies templates before rewriting them, so {@link #applyAll}
+ * can render many inputs in parallel.
+ * Interpreters are kept between applications so that their caches of
+ * reflected members and compiled instructions are reused.
+ * The {@link TypePool} is shared by all applications; its documentation
+ * describes how it may be used concurrently.
+ *
+ * @see TemplateBundle#prepare
+ */
+public final class PreparedTemplateBundle {
+  private final Logger logger;
+  private final ClassLoader loader;
+  private final TypePool typePool;
+  /**
+   * Shared by all applications, so never modified.
+   * Constants in instructions have already been folded and constant
+   * conditions pruned so applications do not redo that work.
+   */
+  private final ImmutableList<J8FileNode> processed;
+  /**
+   * The instructions in processed whose compiled code each pass keeps
+   * between applications.
+   */
+  private final TemplateProcessingPass.InstructionIndex instructions;
+  private final @Nullable InterpreterProfiler profiler;
+  private final @Nullable BytecodeCompiler bytecodeCompiler;
+  /**
+   * Passes that are not rendering.  Each keeps its interpretation context,
+   * interpreter, and their caches between applications, so only the locals
+   * and outputs are allocated per application.
+   * A pass renders one input at a time, so there are at most as many as
+   * there have been concurrent applications.
+   */
+  private final Queue<TemplateProcessingPass> idlePasses =
+      new ConcurrentLinkedQueue<>();
+
+  PreparedTemplateBundle(
+      Logger logger, ClassLoader loader, TypePool typePool,
+      ImmutableList<J8FileNode> processed,
+      @Nullable InterpreterProfiler profiler,
+      @Nullable BytecodeCompiler bytecodeCompiler) {
+    this.logger = logger;
+    this.loader = loader;
+    this.typePool = typePool;
+    this.processed = processed;
+    this.instructions = TemplateProcessingPass.InstructionIndex.of(processed);
+    this.profiler = profiler;
+    this.bytecodeCompiler = bytecodeCompiler;
+  }
+
+  /**
+   * Interprets template directives to produce an output bundle.
+   */
+  public ImmutableList<CompilationUnitNode> apply(DataBundle inputObj) {
+    ImmutableList.Builder<CompilationUnitNode> b = ImmutableList.builder();
+    try {
+      apply(inputObj, new OutputSink() {
+        @Override
+        public void accept(CompilationUnitNode unit) {
+          b.add(unit);
+        }
+      });
+    } catch (IOException ex) {
+      throw new AssertionError(ex);  // Builders do not throw
+    }
+    return b.build();
+  }
+
+  /**
+   * Interprets template directives, handing each output compilation unit to
+   * out as soon as it is complete.
+   * Output units are not retained, so the most memory needed for outputs at
+   * any one time is that needed for the largest.
+   *
+   * @throws IOException if out does.  Remaining outputs are not produced.
+   */
+  public void apply(DataBundle inputObj, OutputSink out) throws IOException {
+    TemplateProcessingPass ppass = borrowPass();
+    try {
+      for (J8FileNode fn : processed) {
+        if (TemplateBundle.optsIntoTemplateProcessing(fn)) {
+          try {
+            apply(ppass, fn, inputObj, out);
+          } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+          }
+        } else if (fn instanceof CompilationUnitNode) {
+          LogUtils.log(
+              logger, Level.FINE, fn,
+              "Skipping template processing for file that does not opt-in.",
+              null);
+          out.accept((CompilationUnitNode) fn.deepClone());
+        } else {
+          LogUtils.log(
+              logger, Level.SEVERE,
+              fn, fn.getVariant() + " does not opt into template processing",
+              null);
+        }
+      }
+    } finally {
+      release(ppass);
+    }
+  }
+
+  /**
+   * Receives the outputs of {@link PreparedTemplateBundle#applyAll}.
+   * Calls happen on the thread that called applyAll, one at a time.
+   */
+  public interface RenderReceiver {
+    /**
+     * @param index the index of the input in the sequence of inputs.
+     * @param output the result of applying the templates to the input.
+     */
+    void rendered(int index, ImmutableList<CompilationUnitNode> output);
+  }
+
+  /**
+   * Applies the templates to each input on a pool of parallelism threads.
+   *
+   * @see #applyAll(Iterator, Executor, int, boolean, RenderReceiver)
+   */
+  public void applyAll(
+      Iterator<? extends DataBundle> inputs, int parallelism,
+      boolean inOrder, RenderReceiver receiver)
+  throws InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    try {
+      applyAll(inputs, executor, parallelism, inOrder, receiver);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Applies the templates to each input, rendering up to maxInFlight inputs
+   * concurrently.
+   * <p>
+   * Inputs are read lazily and an input's output is dropped once it has been
+   * received, so at most maxInFlight inputs and outputs are held at a time.
+   * When outputs are received in order, an output that finishes early counts
+   * towards that limit until the outputs before it have been received.
+   *
+   * @param executor runs renders.
+   * @param maxInFlight the maximum number of inputs that have been read but
+   *     whose outputs have not been received.
+   * @param inOrder true to receive outputs in input order, or false to receive
+   *     them as they finish.
+   * @throws IllegalStateException if this was prepared with a profiler and
+   *     maxInFlight is more than one since profilers are not thread-safe.
+   */
+  public void applyAll(
+      Iterator<? extends DataBundle> inputs, Executor executor,
+      int maxInFlight, boolean inOrder, RenderReceiver receiver)
+  throws InterruptedException {
+    Preconditions.checkArgument(maxInFlight > 0, maxInFlight);
+    Preconditions.checkState(profiler == null || maxInFlight == 1);
+
+    CompletionService<Rendered> renders =
+        new ExecutorCompletionService<>(executor);
+    Map<Integer, Rendered> held = new HashMap<>();
+    int nextIndex = 0;
+    int nextToReceive = 0;
+    int nInFlight = 0;
+    while (true) {
+      if (nInFlight < maxInFlight && inputs.hasNext()) {
+        int index = nextIndex++;
+        DataBundle input = inputs.next();
+        renders.submit(new Callable<Rendered>() {
+          @Override
+          public Rendered call() {
+            return new Rendered(index, apply(input));
+          }
+        });
+        ++nInFlight;
+        continue;
+      }
+      if (nInFlight == 0) { break; }
+
+      Rendered r;
+      try {
+        r = renders.take().get();
+      } catch (ExecutionException ex) {
+        Throwables.propagateIfPossible(ex.getCause());
+        throw new AssertionError(ex);
+      }
+      if (inOrder) {
+        held.put(r.index, r);
+        for (Rendered next; (next = held.remove(nextToReceive)) != null;) {
+          receiver.rendered(next.index, next.output);
+          ++nextToReceive;
+          --nInFlight;
+        }
+      } else {
+        receiver.rendered(r.index, r.output);
+        --nInFlight;
+      }
+    }
+  }
+
+  private static final class Rendered {
+    final int index;
+    final ImmutableList<CompilationUnitNode> output;
+
+    Rendered(int index, ImmutableList<CompilationUnitNode> output) {
+      this.index = index;
+      this.output = output;
+    }
+  }
+
+  /**
+   * An idle pass or a new one.
+   * Callers should {@link #release} it when done so that later applications
+   * can reuse its caches.
+   */
+  private TemplateProcessingPass borrowPass() {
+    TemplateProcessingPass ppass = idlePasses.poll();
+    if (ppass == null) {
+      ppass = new TemplateProcessingPass(
+          logger, typePool, loader, instructions);
+      if (bytecodeCompiler != null) {
+        ppass.setBytecodeCompiler(bytecodeCompiler);
+      }
+      if (profiler != null) {
+        ppass.interpreter.setProfiler(profiler);
+      }
+    }
+    return ppass;
+  }
+
+  private void release(TemplateProcessingPass ppass) {
+    idlePasses.add(ppass);
+  }
+
+  /**
+   * The count of instructions compiled by idle passes.
+   * Each pass compiles an instruction once regardless of how many times it
+   * is applied.
+   */
+  int compiledInstructionCount() {
+    int count = 0;
+    for (TemplateProcessingPass ppass : idlePasses) {
+      count += ppass.compiledInstructionCount();
+    }
+    return count;
+  }
+
+  private void apply(
+      TemplateProcessingPass ppass, J8FileNode fn, DataBundle input,
+      OutputSink out) {
+    // The pass copies nodes before rewriting them.
+    if (profiler == null) {
+      ppass.render(fn, input, out);
+      return;
+    }
+    SourcePosition pos = ((J8BaseNode) fn).getSourcePosition();
+    profiler.pushFrame(pos != null ? pos.getSource() : "template");
+    try {
+      ppass.render(fn, input, out);
+    } finally {
+      profiler.popFrame();
+    }
+  }
+}
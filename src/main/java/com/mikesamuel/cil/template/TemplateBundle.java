@@ -1,26 +1,42 @@
 package com.mikesamuel.cil.template;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
+
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.mikesamuel.cil.HereBe;
 import com.mikesamuel.cil.ast.Trees;
+import com.mikesamuel.cil.ast.j8.BooleanLiteralNode;
 import com.mikesamuel.cil.ast.j8.CompilationUnitNode;
+import com.mikesamuel.cil.ast.j8.ExpressionNode;
+import com.mikesamuel.cil.ast.j8.J8BaseInnerNode;
 import com.mikesamuel.cil.ast.j8.J8BaseNode;
 import com.mikesamuel.cil.ast.j8.J8FileNode;
 import com.mikesamuel.cil.ast.j8.J8NodeType;
 import com.mikesamuel.cil.ast.j8.SingleStaticImportDeclarationNode;
+import com.mikesamuel.cil.ast.j8.TemplateDirectiveNode;
+import com.mikesamuel.cil.ast.j8.TemplateDirectivesNode;
 import com.mikesamuel.cil.ast.meta.TypeInfoResolver;
 import com.mikesamuel.cil.ast.passes.CommonPassRunner;
 import com.mikesamuel.cil.event.Event;
+import com.mikesamuel.cil.expr.BytecodeCompiler;
+import com.mikesamuel.cil.expr.ConstantFolder;
+import com.mikesamuel.cil.expr.InterpreterProfiler;
 import com.mikesamuel.cil.parser.Input;
 import com.mikesamuel.cil.parser.LeftRecursion;
 import com.mikesamuel.cil.parser.ParseErrorReceiver;
 import com.mikesamuel.cil.parser.ParseResult;
 import com.mikesamuel.cil.parser.ParseState;
 import com.mikesamuel.cil.parser.SList;
+import com.mikesamuel.cil.parser.SourcePosition;
 import com.mikesamuel.cil.ptree.PTree;
 import com.mikesamuel.cil.util.LogUtils;
 
@@ -33,6 +49,10 @@ public class TemplateBundle {
   private final ImmutableList.Builder<J8FileNode> fileNodes
       = ImmutableList.builder();
   private ClassLoader loader;
+  private @Nullable InterpreterProfiler profiler;
+  private boolean bytecodeCompilationEnabled;
+  /** Created lazily so that compiled classes are reused across applies. */
+  private @Nullable BytecodeCompiler bytecodeCompiler;
 
   static final boolean DEBUG_INTERP = false;
 
@@ -85,6 +105,52 @@ public class TemplateBundle {
    */
   public void setLoader(ClassLoader newLoader) {
     this.loader = Preconditions.checkNotNull(newLoader);
+    this.bytecodeCompiler = null;
+  }
+
+  /**
+   * True if expressions in template instructions are compiled to bytecode
+   * or closures where possible instead of being interpreted.
+   */
+  public boolean isBytecodeCompilationEnabled() {
+    return bytecodeCompilationEnabled;
+  }
+
+  /**
+   * Sets whether expressions in template instructions are compiled to
+   * bytecode where possible.
+   * Compilation needs the system Java compiler, so when running on a JRE
+   * no expressions are compiled to bytecode.
+   * Expressions that are not compiled to bytecode are instead
+   * {@linkplain com.mikesamuel.cil.expr.Interpreter#compile compiled to
+   * closures} so that instructions evaluated in loops are not re-dispatched
+   * on AST node types.
+   *
+   * @see BytecodeCompiler
+   */
+  public void setBytecodeCompilationEnabled(boolean enabled) {
+    this.bytecodeCompilationEnabled = enabled;
+  }
+
+  /**
+   * The profiler that measures interpretation of template instructions or
+   * null if none.
+   */
+  public @Nullable InterpreterProfiler getProfiler() {
+    return profiler;
+  }
+
+  /**
+   * Sets the profiler that measures interpretation of template instructions.
+   * Its frames are the source names of compilation units and the names of
+   * template functions called.
+   * While profiling, instructions are interpreted even if
+   * {@linkplain #setBytecodeCompilationEnabled compilation} is enabled.
+   *
+   * @param newProfiler null to stop profiling.
+   */
+  public void setProfiler(@Nullable InterpreterProfiler newProfiler) {
+    this.profiler = newProfiler;
   }
 
   /**
@@ -142,40 +208,232 @@ public class TemplateBundle {
   /**
    * Processes compilation units and interprets template directives to produce
    * an output bundle.
+   * <p>
+   * To apply the same templates to many inputs, {@link #prepare} once and
+   * apply the result instead.
    */
   public ImmutableList<CompilationUnitNode> apply(DataBundle inputObj) {
+    return prepare().apply(inputObj);
+  }
+
+  /**
+   * Processes compilation units and interprets template directives, handing
+   * each output compilation unit to out as soon as it is complete.
+   *
+   * @see PreparedTemplateBundle#apply(DataBundle, OutputSink)
+   */
+  public void apply(DataBundle inputObj, OutputSink out) throws IOException {
+    prepare().apply(inputObj, out);
+  }
+
+  /**
+   * Runs the common passes over the compilation units, folds constants
+   * in template instructions, and prunes conditions that are then constant
+   * so that the result can be applied to many inputs without redoing that
+   * work.
+   * Compilation units added after this call do not affect the result.
+   */
+  public PreparedTemplateBundle prepare() {
     CommonPassRunner passes = new CommonPassRunner(logger);
     passes.setTypeInfoResolver(
         TypeInfoResolver.Resolvers.forClassLoader(getLoader()));
     passes.setErrorLevel(Level.WARNING);
     ImmutableList<J8FileNode> processed = passes.run(fileNodes.build());
 
-    ImmutableList.Builder<CompilationUnitNode> b = ImmutableList.builder();
+    ConstantFolder folder = new ConstantFolder(
+        getLoader(), passes.getTypePool());
     for (J8FileNode fn : processed) {
       if (optsIntoTemplateProcessing(fn)) {
-        apply(fn, inputObj, passes, b);
-      } else if (fn instanceof CompilationUnitNode) {
-        LogUtils.log(
-            logger, Level.FINE, fn,
-            "Skipping template processing for file that does not opt-in.",
-            null);
-        b.add((CompilationUnitNode) fn);
-      } else {
-        LogUtils.log(
-            logger, Level.SEVERE,
-            fn, fn.getVariant() + " does not opt into template processing",
-            null);
+        foldTemplateInstructions(fn, folder);
+        pruneConstantConditions((J8BaseNode) fn);
+      }
+    }
+
+    BytecodeCompiler compiler = null;
+    if (bytecodeCompilationEnabled) {
+      if (bytecodeCompiler == null) {
+        bytecodeCompiler = new BytecodeCompiler(logger, getLoader());
       }
+      compiler = bytecodeCompiler;
     }
-    return b.build();
+    return new PreparedTemplateBundle(
+        logger, getLoader(), passes.getTypePool(), processed, profiler,
+        compiler);
   }
 
-  void apply(
-      J8FileNode fn, DataBundle input, CommonPassRunner passes,
-      ImmutableList.Builder<CompilationUnitNode> out) {
-    TemplateProcessingPass ppass = new TemplateProcessingPass(
-        logger, passes.getTypePool(), getLoader(), input, out);
+  /**
+   * Folds constant expressions in template instructions which may be
+   * interpreted many times when they appear in loop bodies or template
+   * functions.
+   * Code that is copied to the output is left as written.
+   */
+  static void foldTemplateInstructions(J8FileNode fn, ConstantFolder folder) {
+    for (J8BaseNode node : ((J8BaseNode) fn).finder(J8BaseNode.class)
+             .match(J8NodeType.TemplateDirective,
+                    J8NodeType.TemplateInterpolation,
+                    J8NodeType.TemplateLocal)
+             .allowNonStandard(true)
+             .find()) {
+      if (node instanceof TemplateDirectiveNode
+          && ((TemplateDirectiveNode) node).getVariant()
+             == TemplateDirectiveNode.Variant.Function) {
+        // The body is output code.  The finder finds the instructions
+        // in it.
+        continue;
+      }
+      folder.foldWithin(node);
+    }
+  }
+
+  /**
+   * Removes {@code %%if} directives whose conditions folded to boolean
+   * literals so that applications neither evaluate them nor walk the code
+   * they elide.
+   * An {@code %%if (false)} is removed with its body, and an else
+   * directive that follows becomes a plain block or an {@code %%if}.
+   * An {@code %%if (true)} becomes a plain block so that its scope is
+   * unchanged, unless it has an else branch which is left to be
+   * decided when applied.
+   *
+   * @return the number of directives removed.
+   */
+  static int pruneConstantConditions(J8BaseNode node) {
+    int nPruned = 0;
+    for (int i = 0; i < node.getNChildren(); ++i) {
+      J8BaseNode child = node.getChild(i);
+      if (child instanceof TemplateDirectivesNode
+          && pruneConstantConditionIn((J8BaseInnerNode) node, i)) {
+        ++nPruned;
+        // Children of node may have been removed so look at i again.
+        --i;
+        continue;
+      }
+      nPruned += pruneConstantConditions(child);
+    }
+    return nPruned;
+  }
+
+  /**
+   * Prunes the first constant {@code %%if} among the directives at index i
+   * in container.
+   *
+   * @return true if container changed.
+   */
+  private static boolean pruneConstantConditionIn(
+      J8BaseInnerNode container, int i) {
+    TemplateDirectivesNode ds = (TemplateDirectivesNode) container.getChild(i);
+    for (int k = 0, nd = ds.getNChildren(); k < nd; ++k) {
+      TemplateDirectiveNode d = (TemplateDirectiveNode) ds.getChild(k);
+      if (d.getVariant() != TemplateDirectiveNode.Variant.IfStart) {
+        continue;
+      }
+      Boolean condition = literalCondition(d);
+      if (condition == null) { continue; }
+
+      // Find the directive that ends the body the same way that
+      // TemplateProcessingPass.getBodyOfDirective does.
+      int endI = -1;
+      int endK = -1;
+      int nStarts = 1;
+      search:
+      for (int ci = i, n = container.getNChildren(); ci < n; ++ci) {
+        if (!(container.getChild(ci) instanceof TemplateDirectivesNode)) {
+          continue;
+        }
+        J8BaseNode sds = container.getChild(ci);
+        for (int ck = ci == i ? k + 1 : 0, m = sds.getNChildren(); ck < m;
+             ++ck) {
+          TemplateDirectiveNode.Variant v =
+              ((TemplateDirectiveNode) sds.getChild(ck)).getVariant();
+          if (v.isTemplateEnd() && --nStarts == 0) {
+            endI = ci;
+            endK = ck;
+            break search;
+          }
+          if (v.isTemplateStart()) { ++nStarts; }
+        }
+      }
+      if (endI < 0) {
+        continue;  // Reported when applied.
+      }
+      TemplateDirectiveNode end = (TemplateDirectiveNode)
+          container.getChild(endI).getChild(endK);
+      boolean hasElse =
+          end.getVariant() == TemplateDirectiveNode.Variant.Else;
+
+      if (condition) {
+        if (hasElse) { continue; }
+        ds.replace(k, withPosition(
+            TemplateDirectiveNode.Variant.BlockStart.buildNode(
+                ImmutableList.<J8BaseNode>of()),
+            d));
+        return true;
+      }
+
+      // Drop the directive and its body.  An else starts a new block.
+      TemplateDirectiveNode endReplacement = null;
+      if (hasElse) {
+        ExpressionNode elseCondition = end.firstChildWithType(
+            ExpressionNode.class);
+        endReplacement = withPosition(
+            elseCondition != null
+            ? TemplateDirectiveNode.Variant.IfStart.buildNode(elseCondition)
+            : TemplateDirectiveNode.Variant.BlockStart.buildNode(
+                ImmutableList.<J8BaseNode>of()),
+            end);
+      }
+      List<J8BaseNode> newChildren = new ArrayList<>();
+      Map<TemplateDirectivesNode, List<J8BaseNode>> newDirectives =
+          new LinkedHashMap<>();
+      for (int ci = 0, n = container.getNChildren(); ci < n; ++ci) {
+        J8BaseNode c = container.getChild(ci);
+        if (ci < i || ci > endI) {
+          newChildren.add(c);
+        } else if (ci == i || ci == endI) {
+          List<J8BaseNode> kept = new ArrayList<>();
+          for (int ck = 0, m = c.getNChildren(); ck < m; ++ck) {
+            boolean beforeIf = ci == i && ck < k;
+            boolean afterEnd = ci == endI && ck > endK;
+            if (beforeIf || afterEnd) {
+              kept.add(c.getChild(ck));
+            } else if (ci == endI && ck == endK && endReplacement != null) {
+              kept.add(endReplacement);
+            }
+          }
+          if (!kept.isEmpty()) {
+            newChildren.add(c);
+            newDirectives.put((TemplateDirectivesNode) c, kept);
+          }
+        }
+      }
+      if (newChildren.isEmpty()) {
+        continue;  // The container may need a child.
+      }
+      for (Map.Entry<TemplateDirectivesNode, List<J8BaseNode>> e
+           : newDirectives.entrySet()) {
+        e.getKey().replaceChildren(e.getValue());
+      }
+      container.replaceChildren(newChildren);
+      return true;
+    }
+    return false;
+  }
+
+  private static @Nullable Boolean literalCondition(TemplateDirectiveNode d) {
+    J8BaseNode e = d.firstChildWithType(ExpressionNode.class);
+    while (e != null && e.getNChildren() == 1) {
+      e = e.getChild(0);
+    }
+    if (e instanceof BooleanLiteralNode) {
+      return ((BooleanLiteralNode) e).getVariant()
+          == BooleanLiteralNode.Variant.True;
+    }
+    return null;
+  }
 
-    ppass.run(ImmutableList.of((J8FileNode) fn.deepClone()));
+  private static TemplateDirectiveNode withPosition(
+      TemplateDirectiveNode d, J8BaseNode original) {
+    d.setSourcePosition(original.getSourcePosition());
+    return d;
   }
 }
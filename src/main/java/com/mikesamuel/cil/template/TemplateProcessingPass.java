@@ -1,5 +1,7 @@
 package com.mikesamuel.cil.template;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.IdentityHashMap;
@@ -7,6 +9,7 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -17,18 +20,22 @@ import com.google.common.base.Functions;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Supplier;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Multimaps;
+import com.google.common.collect.Sets;
 import com.mikesamuel.cil.ast.BaseNode;
 import com.mikesamuel.cil.ast.j8.CompilationUnitNode;
 import com.mikesamuel.cil.ast.j8.ExpressionNode;
 import com.mikesamuel.cil.ast.j8.IdentifierNode;
 import com.mikesamuel.cil.ast.j8.J8BaseInnerNode;
 import com.mikesamuel.cil.ast.j8.J8BaseNode;
+import com.mikesamuel.cil.ast.j8.J8FileNode;
 import com.mikesamuel.cil.ast.j8.J8NodeType;
 import com.mikesamuel.cil.ast.j8.J8NodeVariant;
 import com.mikesamuel.cil.ast.j8.NodeTypeHintNode;
@@ -51,10 +58,14 @@ import com.mikesamuel.cil.ast.meta.Name;
 import com.mikesamuel.cil.ast.meta.StaticType;
 import com.mikesamuel.cil.ast.meta.StaticType.TypePool;
 import com.mikesamuel.cil.ast.passes.AbstractRewritingPass;
+import com.mikesamuel.cil.expr.BytecodeCompiler;
+import com.mikesamuel.cil.expr.BytecodeCompiler.CompiledExpression;
+import com.mikesamuel.cil.expr.Compiled;
 import com.mikesamuel.cil.expr.Completion;
 import com.mikesamuel.cil.expr.InterpretationContext;
 import com.mikesamuel.cil.expr.InterpretationContextImpl;
 import com.mikesamuel.cil.expr.Interpreter;
+import com.mikesamuel.cil.expr.InterpreterProfiler;
 import com.mikesamuel.cil.expr.Locals;
 import com.mikesamuel.cil.parser.ForceFitState;
 import com.mikesamuel.cil.parser.ParSer;
@@ -131,11 +142,21 @@ extends AbstractRewritingPass {
               }
             }
 
-            TemplateBodyNode bodyClone = fnInfo.body.deepClone();
+            TemplateBodyNode bodyClone = copy(fnInfo.body);
 
+            InterpreterProfiler profiler = interpreter.getProfiler();
+            if (profiler != null) {
+              profiler.pushFrame(fnInfo.name);
+            }
             templateScopes.add(new TemplateScope(callLocals));
-            visitChildren(bodyClone, null);
-            templateScopes.removeLast();
+            try {
+              visitChildren(bodyClone, null);
+            } finally {
+              templateScopes.removeLast();
+              if (profiler != null) {
+                profiler.popFrame();
+              }
+            }
 
             Collection<Interpolation> interps =
                 parentToInterpolations.get(bodyClone);
@@ -204,26 +225,267 @@ extends AbstractRewritingPass {
 
   final Interpreter<Object> interpreter;
   final InterpretationContext<Object> context;
-  final ImmutableList.Builder<CompilationUnitNode> out;
+  /** Receives outputs during {@link #render}. */
+  private @Nullable OutputSink out;
   private final LinkedList<TemplateScope> templateScopes =
       Lists.newLinkedList();
+  private @Nullable BytecodeCompiler bytecodeCompiler;
+  private final InstructionIndex instructions;
+  /**
+   * Maps the copies of prepared nodes made during a render to the prepared
+   * nodes.
+   * Only {@linkplain InstructionIndex#cacheable cacheable instructions} and
+   * their ancestors are tracked.
+   */
+  private final Map<J8BaseNode, J8BaseNode> preparedNodes =
+      new IdentityHashMap<>();
+  /**
+   * Compiled instructions keyed by prepared node.
+   * Kept across renders since compiled code is specific to an interpreter
+   * but not to an input.
+   */
+  private final Map<J8BaseNode, CompiledInstruction> compiledInstructions =
+      new IdentityHashMap<>();
+  /**
+   * Compiled instructions that have no prepared counterpart, like those
+   * containing interpolations, keyed by the node being rendered.
+   * Cleared between renders.
+   */
+  private final Map<J8BaseNode, CompiledInstruction> renderInstructions =
+      new IdentityHashMap<>();
 
 
+  /**
+   * The interpretation context, interpreter, and their caches are created
+   * once and reused by each {@link #render}.
+   *
+   * @param instructions indexes the files that will be rendered.
+   */
   public TemplateProcessingPass(
-      Logger logger, TypePool typePool, ClassLoader loader, DataBundle input,
-      ImmutableList.Builder<CompilationUnitNode> out) {
+      Logger logger, TypePool typePool, ClassLoader loader,
+      InstructionIndex instructions) {
     super(logger);
 
     this.context = new TemplateBundleInterpretationContext(
         logger, loader, typePool);
-    context.setThisValue(null, input);
     this.interpreter = new Interpreter<>(context);
-    Locals<Object> fileLocals = new Locals<>();
+    this.instructions = instructions;
+  }
+
+  /**
+   * Interprets the template instructions in fn with input bound to
+   * {@code this}, handing output compilation units to out.
+   * Only the locals and the outputs are specific to a render, so one pass
+   * may render many inputs, but only one at a time.
+   * <p>
+   * Nodes are copied before being rewritten so fn is not modified.
+   */
+  void render(J8FileNode fn, DataBundle input, OutputSink renderOut) {
+    Preconditions.checkState(this.out == null, "Render in progress");
+    templateScopes.clear();
+    templateScopes.add(new TemplateScope(new Locals<>()));
+    parentToInterpolations.clear();
+    context.setThisValue(null, input);
+    this.out = renderOut;
+    try {
+      // Compilation units are copied when previsited.
+      J8BaseNode root = fn instanceof CompilationUnitNode
+          ? (J8BaseNode) fn : copy((J8BaseNode) fn);
+      run(ImmutableList.of((J8FileNode) root));
+    } finally {
+      this.out = null;
+      // Do not retain the input or this render's nodes while idle.
+      context.setThisValue(null, null);
+      preparedNodes.clear();
+      renderInstructions.clear();
+    }
+  }
+
+
+  /**
+   * Sets the compiler used to evaluate template instructions as bytecode.
+   * Instructions that it cannot compile are
+   * {@linkplain Interpreter#compile compiled to closures}.
+   * Instructions are interpreted regardless while the interpreter has a
+   * profiler.
+   *
+   * @param newBytecodeCompiler null to interpret all instructions.
+   */
+  void setBytecodeCompiler(@Nullable BytecodeCompiler newBytecodeCompiler) {
+    this.bytecodeCompiler = newBytecodeCompiler;
+    compiledInstructions.clear();
+    renderInstructions.clear();
+  }
+
+  /** The count of instructions compiled and kept between renders. */
+  int compiledInstructionCount() {
+    return compiledInstructions.size();
+  }
+
+  /**
+   * A deep copy of node that remembers which prepared nodes the copies of
+   * instructions correspond to so that they can share compiled code.
+   */
+  private <T extends J8BaseNode> T copy(T node) {
+    @SuppressWarnings("unchecked")  // deepClone returns the same node type.
+    T clone = (T) node.deepClone();
+    if (bytecodeCompiler != null) {
+      trackPrepared(node, clone);
+    }
+    return clone;
+  }
+
+  private void trackPrepared(J8BaseNode original, J8BaseNode clone) {
+    J8BaseNode prepared = preparedNodes.get(original);
+    boolean tracked = prepared != null;
+    if (!tracked) {
+      // Either original is a prepared node or it is specific to this render.
+      prepared = original;
+    }
+    if (instructions.cacheable.contains(prepared)) {
+      preparedNodes.put(clone, prepared);
+      return;
+    }
+    if (instructions.ancestors.contains(prepared)) {
+      preparedNodes.put(clone, prepared);
+    } else if (tracked) {
+      return;
+    }
+    // Nodes made during this render, like loop bodies, may contain tracked
+    // nodes.
+    // A clone has the same shape as the original.
+    for (int i = 0, n = original.getNChildren(); i < n; ++i) {
+      trackPrepared(original.getChild(i), clone.getChild(i));
+    }
+  }
+
+  /**
+   * Evaluates an expression in a template instruction, using compiled code
+   * when possible.
+   */
+  private Completion<Object> evaluate(J8BaseNode expr, Locals<Object> locals) {
+    // Compiled code does not report to the profiler so interpret while
+    // profiling so that hot spots are attributed to template source.
+    if (bytecodeCompiler != null && interpreter.getProfiler() == null) {
+      J8BaseNode prepared = preparedNodes.get(expr);
+      if (prepared == null && instructions.cacheable.contains(expr)) {
+        prepared = expr;
+      }
+      Map<J8BaseNode, CompiledInstruction> table;
+      J8BaseNode key;
+      if (prepared != null) {
+        table = compiledInstructions;
+        key = prepared;
+      } else {
+        table = renderInstructions;
+        key = expr;
+      }
+      CompiledInstruction compiled = table.get(key);
+      if (compiled == null) {
+        // Compile the key since prepared nodes are never modified.
+        compiled = compile(key);
+        table.put(key, compiled);
+      }
+      return compiled.execute(locals);
+    }
+    return interpreter.interpret(expr, locals);
+  }
+
+  private CompiledInstruction compile(J8BaseNode expr) {
+    Optional<CompiledExpression> bytecode = bytecodeCompiler.compile(
+        interpreter, expr);
+    return bytecode.isPresent()
+        ? new CompiledInstruction(bytecode.get(), null)
+        : new CompiledInstruction(null, interpreter.compile(expr));
+  }
+
+  /** Code compiled for an instruction expression. */
+  private static final class CompiledInstruction {
+    final @Nullable CompiledExpression bytecode;
+    /** Used when the expression could not be compiled to bytecode. */
+    final @Nullable Compiled<Object> closures;
+
+    CompiledInstruction(
+        @Nullable CompiledExpression bytecode,
+        @Nullable Compiled<Object> closures) {
+      this.bytecode = bytecode;
+      this.closures = closures;
+    }
 
-    this.out = out;
-    this.templateScopes.add(new TemplateScope(fileLocals));
+    Completion<Object> execute(Locals<Object> locals) {
+      return bytecode != null
+          ? bytecode.execute(locals)
+          : Preconditions.checkNotNull(closures).execute(locals);
+    }
   }
 
+  /**
+   * The instruction expressions in a bundle's prepared files whose compiled
+   * code can be shared by all renders.
+   */
+  static final class InstructionIndex {
+    /**
+     * Expressions evaluated by template instructions that do not contain
+     * interpolations, so which are the same in every render.
+     */
+    final Set<J8BaseNode> cacheable = Sets.newIdentityHashSet();
+    /** Nodes that contain cacheable instructions. */
+    final Set<J8BaseNode> ancestors = Sets.newIdentityHashSet();
+
+    /** Indexes the instructions in files which must not be modified later. */
+    static InstructionIndex of(Iterable<? extends J8FileNode> files) {
+      InstructionIndex index = new InstructionIndex();
+      for (J8FileNode fn : files) {
+        index.add((J8BaseNode) fn, null, null);
+      }
+      return index;
+    }
+
+    private boolean add(
+        J8BaseNode node, @Nullable J8BaseNode parent,
+        @Nullable J8BaseNode grandparent) {
+      if (isInstructionExpression(node, parent, grandparent)) {
+        if (node.finder(TemplateInterpolationNode.class)
+            .allowNonStandard(true).findOne().isPresent()) {
+          return false;
+        }
+        cacheable.add(node);
+        return true;
+      }
+      boolean hasCacheable = false;
+      for (int i = 0, n = node.getNChildren(); i < n; ++i) {
+        hasCacheable |= add(node.getChild(i), node, parent);
+      }
+      if (hasCacheable) {
+        ancestors.add(node);
+      }
+      return hasCacheable;
+    }
+
+    /** True for the nodes that {@link TemplateProcessingPass} evaluates. */
+    private static boolean isInstructionExpression(
+        J8BaseNode node, @Nullable J8BaseNode parent,
+        @Nullable J8BaseNode grandparent) {
+      if (parent == null) { return false; }
+      switch (node.getNodeType()) {
+        case Expression:
+          switch (parent.getNodeType()) {
+            case TemplateDirective:
+            case TemplateComprehension:
+            case TemplateCondition:
+            case TemplateLoop:
+              return true;
+            default:
+              return false;
+          }
+        case VariableInitializer:
+          return grandparent != null
+              && grandparent.getNodeType() == J8NodeType.TemplateLocal;
+        default:
+          return false;
+      }
+    }
+  }
 
   static final class TemplateScope {
     final Locals<Object> locals;
@@ -286,9 +548,13 @@ extends AbstractRewritingPass {
         // Doing this clone and recursing out-of-band means that a template
         // loop or conditional around a compilation unit can attach zero or
         // more compilation units to the output.
-        CompilationUnitNode clone = (CompilationUnitNode) node.deepClone();
+        CompilationUnitNode clone = copy((CompilationUnitNode) node);
         visitChildren(clone, null);
-        out.add(clone);
+        try {
+          Preconditions.checkNotNull(out).accept(clone);
+        } catch (IOException ex) {
+          throw new UncheckedIOException(ex);
+        }
         return ProcessingStatus.BREAK;
       }
       case ImportDeclaration: {
@@ -443,7 +709,7 @@ extends AbstractRewritingPass {
                 && v != TemplateDirectiveNode.Variant.Else) {
               error(directive, "Missing %%if condition");
             } else {
-              Completion<Object> conditionResult = interpreter.interpret(
+              Completion<Object> conditionResult = evaluate(
                   Preconditions.checkNotNull(condition), templateScope.locals);
               switch (context.toBoolean(conditionResult.value)) {
                 case FALSE:
@@ -485,7 +751,7 @@ extends AbstractRewritingPass {
                 elementNameNode.getValue(), Name.Type.LOCAL);
             Locals<Object> loopLocals = new Locals<>(templateScope.locals);
             loopLocals.declare(elementVarName, Functions.identity());
-            Completion<Object> seriesResult = interpreter.interpret(
+            Completion<Object> seriesResult = evaluate(
                 seriesExprNode, loopLocals);
             if (!context.completedNormallyWithoutError(seriesResult)) {
               return ProcessingStatus.BREAK;
@@ -500,7 +766,7 @@ extends AbstractRewritingPass {
 
                   @Override
                   public Completion<Object> apply(Object element) {
-                    TemplatePseudoRootNode copy = bodyOfDirective.deepClone();
+                    TemplatePseudoRootNode copy = copy(bodyOfDirective);
                     loopLocals.set(elementVarName, element);
                     @SuppressWarnings("synthetic-access")
                     ProcessingStatus result = visit(copy, null);
@@ -601,7 +867,7 @@ extends AbstractRewritingPass {
         boolean hadError = false;
         if (iterableExpr == null) {
           for (ExpressionNode nodeExpr : nodeExprs) {
-            Completion<Object> result = interpreter.interpret(
+            Completion<Object> result = evaluate(
                 nodeExpr, templateScope.locals);
             if (!context.completedNormallyWithoutError(result)) {
               error(
@@ -620,7 +886,7 @@ extends AbstractRewritingPass {
           }
         } else {
           Locals<Object> loopLocals = new Locals<>(templateScope.locals);
-          Completion<Object> iterableResult = interpreter.interpret(
+          Completion<Object> iterableResult = evaluate(
               iterableExpr, loopLocals);
           if (!context.completedNormallyWithoutError(iterableResult)) {
             hadError = true;
@@ -638,7 +904,7 @@ extends AbstractRewritingPass {
                   public Completion<Object> apply(Object element) {
                     boolean include = true;
                     if (condExpr != null) {
-                      Completion<Object> condResult = interpreter.interpret(
+                      Completion<Object> condResult = evaluate(
                           condExpr, loopLocals);
                       if (context.completedNormallyWithoutError(condResult)) {
                         switch (context.toBoolean(condResult.value)) {
@@ -709,7 +975,7 @@ extends AbstractRewritingPass {
                 templateScope.locals.declare(name, Functions.identity());
               }
               if (initializer != null) {
-                Completion<Object> result = interpreter.interpret(
+                Completion<Object> result = evaluate(
                     initializer, templateScope.locals);
                 if (context.completedNormallyWithoutError(result)) {
                   templateScope.locals.set(name, result.value);
@@ -787,32 +1053,7 @@ extends AbstractRewritingPass {
             || ((J8BaseNode) o).getNodeType() != nt) {
           // TODO: Limit this to node types that have a single non-intermediate
           // variant to avoid ambiguity, and look through intermediates.
-          // TODO: Move this into Intermediates and memoize
-          for (Enum<? extends J8NodeVariant> variantEnum :
-                   nt.getVariantType().getEnumConstants()) {
-            J8NodeVariant variant = (J8NodeVariant) variantEnum;
-            ParSer fitter = PTree.complete(variant).getParSer();
-            ForceFitState unfit = new ForceFitState(Iterables.transform(
-                uncoerced,
-                new Function<Object, ForceFitState.FitPart>() {
-
-                  @Override
-                  public ForceFitState.FitPart apply(Object x) {
-                    return ForceFitState.FitPart.interpolatedValue(x);
-                  }
-
-                }));
-            ForceFitState fit = fitter.forceFit(unfit);
-            if (!fit.fits.isEmpty()) {
-              ImmutableList.Builder<J8BaseNode> children =
-                  ImmutableList.builder();
-              for (BaseNode<?, ?, ?> child : SList.forwardIterable(
-                       Iterables.getFirst(fit.fits, null).resolutions)) {
-                children.add((J8BaseNode) child);
-              }
-              coerced = variant.buildNode(children.build());
-            }
-          }
+          coerced = forceFitToVariant(uncoerced, nt, coerced);
           break;
         }
       }
@@ -822,6 +1063,85 @@ extends AbstractRewritingPass {
     return coerced;
   }
 
+  /**
+   * Which variant of a node type, if any, a list of nodes with the given
+   * node types can be force fit to.
+   * Keyed by the node type followed by the node types of the parts.
+   * Only lists of nodes are cached since whether other values can be coerced
+   * depends on more than their type.
+   */
+  private static final
+  Cache<ImmutableList<J8NodeType>, Optional<J8NodeVariant>>
+      FIT_VARIANT_BY_SHAPE = CacheBuilder.newBuilder()
+      .maximumSize(1024)
+      .build();
+
+  /**
+   * Tries to force fit the uncoerced values into each variant of nt.
+   *
+   * @return a node of the last variant that fits or ifNoFit.
+   */
+  private static Object forceFitToVariant(
+      Iterable<?> uncoerced, J8NodeType nt, Object ifNoFit) {
+    ImmutableList.Builder<J8NodeType> shape = ImmutableList.builder();
+    shape.add(nt);
+    for (Object x : uncoerced) {
+      if (!(x instanceof J8BaseNode)) {
+        shape = null;
+        break;
+      }
+      shape.add(((J8BaseNode) x).getNodeType());
+    }
+    ImmutableList<J8NodeType> key = shape != null ? shape.build() : null;
+
+    Iterable<? extends J8NodeVariant> candidates = null;
+    if (key != null) {
+      Optional<J8NodeVariant> cached = FIT_VARIANT_BY_SHAPE.getIfPresent(key);
+      if (cached != null) {
+        candidates = cached.asSet();
+      }
+    }
+    if (candidates == null) {
+      ImmutableList.Builder<J8NodeVariant> b = ImmutableList.builder();
+      for (Enum<? extends J8NodeVariant> variantEnum :
+               nt.getVariantType().getEnumConstants()) {
+        b.add((J8NodeVariant) variantEnum);
+      }
+      candidates = b.build();
+    }
+
+    // Shared across variants so that values are coerced once per node type.
+    ForceFitState unfit = new ForceFitState(Iterables.transform(
+        uncoerced,
+        new Function<Object, ForceFitState.FitPart>() {
+
+          @Override
+          public ForceFitState.FitPart apply(Object x) {
+            return ForceFitState.FitPart.interpolatedValue(x);
+          }
+
+        }));
+    Object coerced = ifNoFit;
+    J8NodeVariant fitVariant = null;
+    for (J8NodeVariant variant : candidates) {
+      ParSer fitter = PTree.complete(variant).getParSer();
+      ForceFitState fit = fitter.forceFit(unfit);
+      if (!fit.fits.isEmpty()) {
+        ImmutableList.Builder<J8BaseNode> children = ImmutableList.builder();
+        for (BaseNode<?, ?, ?> child : SList.forwardIterable(
+                 Iterables.getFirst(fit.fits, null).resolutions)) {
+          children.add((J8BaseNode) child);
+        }
+        coerced = variant.buildNode(children.build());
+        fitVariant = variant;
+      }
+    }
+    if (key != null) {
+      FIT_VARIANT_BY_SHAPE.put(key, Optional.fromNullable(fitVariant));
+    }
+    return coerced;
+  }
+
   private static void coerceAllEagerly(
       Iterable<?> ls, J8NodeType nt, ImmutableList.Builder<Object> out) {
     for (Object element : ls) {
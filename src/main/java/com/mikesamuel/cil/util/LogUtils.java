@@ -5,15 +5,10 @@ import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
 
-import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableSet;
-import com.mikesamuel.cil.ast.Trees;
 import com.mikesamuel.cil.ast.j8.J8BaseNode;
-import com.mikesamuel.cil.event.Event;
 import com.mikesamuel.cil.parser.Positioned;
-import com.mikesamuel.cil.parser.SList;
-import com.mikesamuel.cil.parser.SerialErrorReceiver;
-import com.mikesamuel.cil.parser.SerialState;
 import com.mikesamuel.cil.parser.SourcePosition;
 import com.mikesamuel.cil.parser.Unparse;
 import com.mikesamuel.cil.parser.Unparse.UnparseVerificationException;
@@ -56,25 +51,39 @@ public class LogUtils {
     return pos != null ? pos + ": " + message : message;
   }
 
+  private static volatile Unparse.Strategy serializeStrategy =
+      Unparse.Strategy.VERIFIED_DIRECT;
+
+  /** The strategy used by {@link #serialize(J8BaseNode)}. */
+  public static Unparse.Strategy getSerializeStrategy() {
+    return serializeStrategy;
+  }
+
+  /**
+   * Sets the strategy used by {@link #serialize(J8BaseNode)}.
+   * Defaults to {@link Unparse.Strategy#VERIFIED_DIRECT}.
+   * Callers that only log trees produced by their own passes may choose
+   * {@link Unparse.Strategy#DIRECT} to skip checking them against the
+   * grammar.
+   */
+  public static void setSerializeStrategy(Unparse.Strategy newStrategy) {
+    serializeStrategy = Preconditions.checkNotNull(newStrategy);
+  }
+
   /** Best effort to format the given AST.  Output is not length limited. */
   public static String serialize(J8BaseNode node) {
-    SList<Event> events = Trees.startUnparse(null, node, null);
-    Optional<SerialState> sstate = node.getNodeType().getParSer().unparse(
-        new SerialState(SList.forwardIterable(events)),
-        SerialErrorReceiver.DEV_NULL);
-    if (sstate.isPresent()) {
-      Verified verified;
-      try {
-        verified = Unparse.verify(
-            SList.forwardIterable(sstate.get().output));
-      } catch (@SuppressWarnings("unused")
-               UnparseVerificationException e) {
-        verified = null;
-      }
-      if (verified != null) {
-        return Unparse.format(verified).code;
-      }
+    return serialize(node, serializeStrategy);
+  }
+
+  /** Best effort to format the given AST.  Output is not length limited. */
+  public static String serialize(J8BaseNode node, Unparse.Strategy strategy) {
+    Verified verified;
+    try {
+      verified = Unparse.unparse(node, strategy);
+    } catch (@SuppressWarnings("unused")
+             UnparseVerificationException e) {
+      return "<unprintable " + node.getNodeType() + ">";
     }
-    return "<unprintable " + node.getNodeType() + ">";
+    return Unparse.format(verified).code;
   }
 }
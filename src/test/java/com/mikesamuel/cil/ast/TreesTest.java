@@ -15,6 +15,7 @@ import com.mikesamuel.cil.ast.j8.IntegralTypeNode;
 import com.mikesamuel.cil.ast.j8.J8BaseNode;
 import com.mikesamuel.cil.ast.j8.J8NodeType;
 import com.mikesamuel.cil.ast.j8.NumericTypeNode;
+import com.mikesamuel.cil.ast.meta.MetadataBridge;
 import com.mikesamuel.cil.event.Event;
 import com.mikesamuel.cil.parser.Input;
 import com.mikesamuel.cil.parser.LeftRecursion;
@@ -150,4 +151,24 @@ public final class TreesTest extends TestCase {
               }
             }));
   }
+
+  @Test
+  public static void testSetSourcePosition() {
+    Input input = Input.builder().source("test").code("a\n  bc").build();
+    SourcePosition pos = input.getSourcePosition(4, 6);
+
+    J8BaseNode node = IdentifierNode.Variant.Builtin.buildNode("bc");
+    assertNull(node.getSourcePosition());
+    node.setSourcePosition(pos);
+    assertEquals(pos, node.getSourcePosition());
+    assertEquals("test:2+2-4", node.getSourcePosition().toString());
+
+    J8BaseNode copy = IdentifierNode.Variant.Builtin.buildNode("bc");
+    copy.copyMetadataFrom(node, MetadataBridge.Bridges.IDENTITY);
+    assertEquals(pos, copy.getSourcePosition());
+
+    node.setSourcePosition(null);
+    assertNull(node.getSourcePosition());
+    assertEquals(pos, copy.getSourcePosition());
+  }
 }
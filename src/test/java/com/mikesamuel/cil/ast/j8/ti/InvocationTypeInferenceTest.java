@@ -250,6 +250,29 @@ public final class InvocationTypeInferenceTest extends TestCase {
         });
   }
 
+  @Test
+  public static void testTwoVariables() {
+    assertInferences(
+        new Infs(
+            false,
+            ImmutableMap.of(
+                "/java/util/Collections.singletonMap(1).<K>",
+                "/java/lang/String",
+                "/java/util/Collections.singletonMap(1).<V>",
+                "/java/lang/Integer"),
+            "/java/util/Map</java/lang/String, /java/lang/Integer>",
+            ImmutableSet.<String>of()),
+        new String[] {
+            "//Foo.java",
+            "import java.util.Collections;",
+            "class Foo {",
+            "  {",
+            "    Collections.singletonMap(\"\", 1);",
+            "  }",
+            "}",
+        });
+  }
+
   private static SList<Parent> chainTo(
       J8BaseNode target, J8BaseNode node, SList<Parent> p) {
     for (int i = 0, n = node.getNChildren(); i < n; ++i) {
@@ -634,6 +634,33 @@ public final class StaticTypeTest extends TestCase {
   }
 
 
+  @Test
+  public final void testAssignabilityMemoized() {
+    StaticType listString = type("java.util.List", is("java.lang.String"));
+    StaticType arrayListString = type(
+        "java.util.ArrayList", is("java.lang.String"));
+
+    long hitsBefore = pool.getAssignabilityCacheStats().hitCount();
+    assertEquals(
+        Cast.CONFIRM_SAFE, listString.assignableFrom(arrayListString));
+    assertEquals(
+        Cast.CONFIRM_SAFE, listString.assignableFrom(arrayListString));
+    assertEquals(
+        hitsBefore + 1, pool.getAssignabilityCacheStats().hitCount());
+  }
+
+  @Test
+  public final void testLeastUpperBoundUsesErasedSuperTypes() {
+    StaticType.TypePool.ReferenceType lub = pool.leastUpperBound(
+        ImmutableList.of(
+            (StaticType.TypePool.ReferenceType) type("java.lang.Integer"),
+            (StaticType.TypePool.ReferenceType) type("java.lang.Long")));
+    // Number and Comparable are both minimal erased candidates.
+    // We can't represent intersection types yet, so the first wins.
+    assertEquals(type("java.lang.Number"), lub);
+  }
+
+
   /**
    * @param bToA The cast kind needed for code like
    *     {@code B b = ...; A a = (CAST) b;}.
@@ -231,11 +231,105 @@ public final class AbstractRewritingPassTest extends TestCase {
         null);
   }
 
+  @Test
+  public void testFused() throws Exception {
+    AbstractRewritingPass renameAToB = new AbstractRewritingPass(logger) {
+      @Override
+      protected ProcessingStatus previsit(
+          J8BaseNode node, @Nullable SList<Parent> pathFromRoot) {
+        if (node.getNodeType() == J8NodeType.InterfaceType
+            && "A".equals(node.getTextContent("^"))) {
+          J8BaseNode copy = node.deepClone();
+          copy.finder(IdentifierNode.class).findOne().get().setValue("B");
+          return ProcessingStatus.replace(copy);
+        }
+        return ProcessingStatus.CONTINUE;
+      }
+    };
+    AbstractRewritingPass removeB = new AbstractRewritingPass(logger) {
+      @Override
+      protected ProcessingStatus previsit(
+          J8BaseNode node, @Nullable SList<Parent> pathFromRoot) {
+        if (node.getNodeType() == J8NodeType.InterfaceType
+            && "B".equals(node.getTextContent("^"))) {
+          return ProcessingStatus.REMOVE;
+        }
+        return ProcessingStatus.CONTINUE;
+      }
+    };
+    assertRewrite(
+        "class Foo implements B, C, D, E {}",
+        "class Foo implements A, B, C, D, E {}",
+        FusedRewritingPass.builder(logger)
+            .add(removeB)
+            .add(renameAToB)
+            .build(),
+        null);
+    assertRewrite(
+        "class Foo implements C, D, E {}",
+        "class Foo implements A, B, C, D, E {}",
+        FusedRewritingPass.builder(logger)
+            .add(removeB)
+            // removeB sees the renamed A.
+            .order(renameAToB, removeB)
+            .build(),
+        null);
+  }
+
+  @Test
+  public void testFusedMatchesSequentialOnPrevisitReplacement()
+  throws Exception {
+    AbstractRewritingPass renameDToQ = new AbstractRewritingPass(logger) {
+      @Override
+      protected ProcessingStatus postvisit(
+          J8BaseNode node, @Nullable SList<Parent> pathFromRoot) {
+        if (node instanceof IdentifierNode && "D".equals(node.getValue())) {
+          ((IdentifierNode) node).setValue("Q");
+        }
+        return ProcessingStatus.CONTINUE;
+      }
+    };
+    AbstractRewritingPass dropFirstInterface =
+        new AbstractRewritingPass(logger) {
+      @Override
+      protected ProcessingStatus previsit(
+          J8BaseNode node, @Nullable SList<Parent> pathFromRoot) {
+        if (node instanceof InterfaceTypeListNode) {
+          ((InterfaceTypeListNode) node).remove(0);
+          return ProcessingStatus.replace(node);
+        }
+        return ProcessingStatus.CONTINUE;
+      }
+    };
+    String input = "class Foo implements A, B, C, D, E {}";
+    String want = "class Foo implements B, C, Q, E {}";
+    assertRewrite(
+        want, input,
+        ImmutableList.of(renameDToQ, dropFirstInterface), null);
+    // renameDToQ previsits the interface list, so it must still see the
+    // list's children even though dropFirstInterface replaced it.
+    assertRewrite(
+        want, input,
+        FusedRewritingPass.builder(logger)
+            .order(renameDToQ, dropFirstInterface)
+            .build(),
+        null);
+  }
+
   void assertRewrite(
       String want,
       String input,
       AbstractRewritingPass pass,
       @Nullable Trees.Decorator decorator)
+  throws Exception {
+    assertRewrite(want, input, ImmutableList.of(pass), decorator);
+  }
+
+  void assertRewrite(
+      String want,
+      String input,
+      ImmutableList<AbstractRewritingPass> passesInOrder,
+      @Nullable Trees.Decorator decorator)
   throws Exception {
     ParSer ps = PTree.complete(J8NodeType.CompilationUnit).getParSer();
     ParseState start = new ParseState(
@@ -246,8 +340,12 @@ public final class AbstractRewritingPassTest extends TestCase {
     CompilationUnitNode cu = (CompilationUnitNode)
         Trees.forGrammar(J8NodeType.CompilationUnit.getGrammar())
         .of(result.next());
+    ImmutableList<J8FileNode> outs = ImmutableList.of(cu);
+    for (AbstractRewritingPass pass : passesInOrder) {
+      outs = pass.run(outs);
+    }
     StringBuilder sb = new StringBuilder();
-    for (J8FileNode out : pass.run(ImmutableList.of(cu))) {
+    for (J8FileNode out : outs) {
       Optional<SerialState> ser = ps.unparse(
           new SerialState(SList.forwardIterable(
               Trees.startUnparse(null, (J8BaseNode) out, decorator))),
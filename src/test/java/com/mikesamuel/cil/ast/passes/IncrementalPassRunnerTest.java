@@ -0,0 +1,137 @@
+package com.mikesamuel.cil.ast.passes;
+
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.mikesamuel.cil.ast.j8.J8BaseNode;
+import com.mikesamuel.cil.ast.j8.J8FileNode;
+import com.mikesamuel.cil.ast.j8.J8Typed;
+import com.mikesamuel.cil.ast.j8.PrimaryNode;
+import com.mikesamuel.cil.ast.meta.StaticType;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class IncrementalPassRunnerTest extends TestCase {
+
+  private static final String[] A = {
+      "//A",
+      "package p;",
+      "public class A { public int f() { return 1; } }",
+  };
+  private static final String[] A_LONG = {
+      "//A",
+      "package p;",
+      "public class A { public long f() { return 1L; } }",
+  };
+  private static final String[] B = {
+      "//B",
+      "package p;",
+      "public class B extends Base { Object g(A a) { return a.f(); } }",
+  };
+  private static final String[] BASE = {
+      "//Base",
+      "package p;",
+      "public class Base { }",
+  };
+  private static final String[] C = {
+      "//C",
+      "package p;",
+      "public class C { String h() { return \"c\"; } }",
+  };
+
+  private final Logger logger = Logger.getAnonymousLogger();
+  {
+    logger.setUseParentHandlers(false);
+  }
+
+  @Test
+  public void testOnlyDependentsRerun() {
+    IncrementalPassRunner runner = new IncrementalPassRunner(
+        new CommonPassRunner(logger));
+    ImmutableList<J8FileNode> processed = runner.update(
+        PassTestHelpers.parseCompilationUnits(logger, A, B, BASE, C),
+        ImmutableList.of());
+    assertEquals(4, processed.size());
+    assertEquals(
+        ImmutableSet.of("//A", "//B", "//Base", "//C"),
+        runner.getLastRerunSources());
+    assertEquals("int", typeOfCallToF(processed.get(1)));
+    J8FileNode processedC = processed.get(3);
+
+    // B calls A.f so must be re-typed when A changes.
+    processed = runner.update(
+        PassTestHelpers.parseCompilationUnits(logger, A_LONG),
+        ImmutableList.of());
+    assertEquals(
+        ImmutableSet.of("//A", "//B"), runner.getLastRerunSources());
+    assertEquals("long", typeOfCallToF(processed.get(1)));
+    assertSame(processedC, processed.get(3));
+
+    // B's super-type changed.
+    processed = runner.update(
+        PassTestHelpers.parseCompilationUnits(logger, BASE),
+        ImmutableList.of());
+    assertEquals(
+        ImmutableSet.of("//Base", "//B"), runner.getLastRerunSources());
+
+    // A new top-level type might shadow names, so everything is re-run.
+    processed = runner.update(
+        PassTestHelpers.parseCompilationUnits(
+            logger, new String[] { "//D", "package p;", "class D {}" }),
+        ImmutableList.of("//C"));
+    assertEquals(
+        ImmutableSet.of("//A", "//B", "//Base", "//D"),
+        runner.getLastRerunSources());
+    assertEquals(4, processed.size());
+  }
+
+  private static String typeOfCallToF(J8FileNode fn) {
+    PrimaryNode call = ((J8BaseNode) fn).finder(PrimaryNode.class)
+        .match(new Predicate<PrimaryNode>() {
+          @Override
+          public boolean apply(PrimaryNode p) {
+            return p.getVariant() == PrimaryNode.Variant.MethodInvocation;
+          }
+        })
+        .findOne().get();
+    return call.getStaticType().toString();
+  }
+
+  @Test
+  public void testReusedUnitsTypedInLatestPool() {
+    IncrementalPassRunner runner = new IncrementalPassRunner(
+        new CommonPassRunner(logger));
+    runner.update(
+        PassTestHelpers.parseCompilationUnits(logger, A, B, BASE, C),
+        ImmutableList.of());
+    ImmutableList<J8FileNode> processed = runner.update(
+        PassTestHelpers.parseCompilationUnits(logger, A_LONG),
+        ImmutableList.of());
+    assertEquals(
+        ImmutableSet.of("//A", "//B"), runner.getLastRerunSources());
+
+    // C was reused, and its types should come from the same pool as B's.
+    StaticType.TypePool pool = runner.getTypePool();
+    int nReferenceTypes = 0;
+    for (J8FileNode fn : processed) {
+      for (J8Typed typed
+           : ((J8BaseNode) fn).finder(J8Typed.class).find()) {
+        StaticType t = typed.getStaticType();
+        if (t instanceof StaticType.TypePool.ReferenceType) {
+          assertSame(
+              t.toString(),
+              pool, ((StaticType.TypePool.ReferenceType) t).getPool());
+          assertSame(
+              t, pool.type(t.typeSpecification, null, null));
+          ++nReferenceTypes;
+        }
+      }
+    }
+    assertTrue(nReferenceTypes != 0);
+  }
+}
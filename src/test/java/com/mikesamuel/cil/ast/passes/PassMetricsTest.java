@@ -0,0 +1,109 @@
+package com.mikesamuel.cil.ast.passes;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.json.JSONArray;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.mikesamuel.cil.ast.j8.J8FileNode;
+import com.mikesamuel.cil.ast.passes.flatten.FlattenPass;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class PassMetricsTest extends TestCase {
+
+  @Test
+  public void testCommonPassesMeasured() {
+    Logger logger = Logger.getAnonymousLogger();
+    logger.setUseParentHandlers(false);
+
+    ImmutableList<J8FileNode> cus = PassTestHelpers.parseCompilationUnits(
+        logger,
+        new String[] {
+            "class C {",
+            "  int f(int x) { return x + 1; }",
+            "  Object g() { return Integer.valueOf(f(0)); }",
+            "}",
+        });
+
+    PassMetrics metrics = new PassMetrics();
+    CommonPassRunner runner = new CommonPassRunner(logger);
+    runner.setPassListener(metrics);
+    runner.run(cus);
+
+    Map<String, PassMetrics.Measurement> byPath = new LinkedHashMap<>();
+    for (PassMetrics.Measurement m : metrics.getMeasurements()) {
+      byPath.put(m.path, m);
+    }
+    assertEquals(
+        ImmutableList.of(
+            "CommonPassRunner/DefragmentTypesPass",
+            "CommonPassRunner/DeclarationPass",
+            "CommonPassRunner/ExpressionScopePass",
+            "CommonPassRunner/DisambiguationPass",
+            "CommonPassRunner/ClassMemberPass",
+            "CommonPassRunner/TypingPass",
+            "CommonPassRunner"),
+        ImmutableList.copyOf(byPath.keySet()));
+
+    PassMetrics.Measurement typing = byPath.get("CommonPassRunner/TypingPass");
+    assertTrue(typing.nodesVisited > 0);
+    assertTrue(typing.wallNanos >= 0);
+    assertTrue(
+        typing.assignabilityCacheStats.requestCount()
+        + typing.superTypeCacheStats.requestCount() > 0);
+
+    PassMetrics.Measurement all = byPath.get("CommonPassRunner");
+    assertTrue(all.wallNanos >= typing.wallNanos);
+
+    JSONArray json = new JSONArray(metrics.toJson());
+    assertEquals(byPath.size(), json.length());
+    assertEquals(
+        "CommonPassRunner/TypingPass",
+        json.getJSONObject(5).getString("path"));
+  }
+
+  @Test
+  public void testMiniPassesCounted() {
+    Logger logger = Logger.getAnonymousLogger();
+    logger.setUseParentHandlers(false);
+
+    ImmutableList<J8FileNode> cus = PassTestHelpers.parseCompilationUnits(
+        logger,
+        new String[] {
+            "class C {",
+            "  int x;",
+            "  class D { int f() { return x; } }",
+            "}",
+        });
+    CommonPassRunner runner = new CommonPassRunner(logger);
+    cus = runner.run(cus);
+
+    PassMetrics metrics = new PassMetrics();
+    FlattenPass flattenPass = new FlattenPass(
+        logger, runner.getTypeInfoResolver());
+    flattenPass.setPassListener(metrics);
+    flattenPass.runObserved(cus);
+
+    Map<String, PassMetrics.Measurement> byPath = new LinkedHashMap<>();
+    for (PassMetrics.Measurement m : metrics.getMeasurements()) {
+      byPath.put(m.path, m);
+    }
+    PassMetrics.Measurement fused = byPath.get(
+        "FlattenPass/RewriteUsesOfClosedOverStateMiniPass"
+        + "+FlattenNamesMiniPass");
+    assertNotNull(byPath.keySet().toString(), fused);
+    assertTrue(fused.nodesVisited > 0);
+    assertTrue(fused.nodesReplaced > 0);
+
+    PassMetrics.Measurement collect = byPath.get(
+        "FlattenPass/CollectTypeDeclarationsMiniPass");
+    PassMetrics.Measurement all = byPath.get("FlattenPass");
+    assertEquals(
+        collect.nodesVisited + fused.nodesVisited, all.nodesVisited);
+  }
+}
@@ -0,0 +1,171 @@
+package com.mikesamuel.cil.expr;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.mikesamuel.cil.ast.Trees;
+import com.mikesamuel.cil.ast.j8.ExpressionNode;
+import com.mikesamuel.cil.ast.j8.J8BaseNode;
+import com.mikesamuel.cil.ast.j8.J8NodeType;
+import com.mikesamuel.cil.ast.j8.LocalVariableDeclarationStatementNode;
+import com.mikesamuel.cil.ast.j8.StatementNode;
+import com.mikesamuel.cil.ast.j8.VariableInitializerNode;
+import com.mikesamuel.cil.ast.meta.TypeInfoResolver;
+import com.mikesamuel.cil.ast.passes.CommonPassRunner;
+import com.mikesamuel.cil.parser.Input;
+import com.mikesamuel.cil.parser.LeftRecursion;
+import com.mikesamuel.cil.parser.ParseErrorReceiver;
+import com.mikesamuel.cil.parser.ParseResult;
+import com.mikesamuel.cil.parser.ParseState;
+import com.mikesamuel.cil.ptree.PTree;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class BytecodeCompilerTest extends TestCase {
+
+  /** Locals in scope for each expression under test. */
+  private static final String DECLARATIONS =
+      "int i = 7; long j = -3L; char c = 'x'; double d = 1.5; boolean b = true;"
+      + " String s = \"str\"; String n = null; Integer boxed = 42;";
+
+  private static final ClassLoader LOADER =
+      BytecodeCompilerTest.class.getClassLoader();
+
+  private BytecodeCompiler compiler;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    compiler = new BytecodeCompiler(quietLogger(), LOADER);
+  }
+
+  private static Logger quietLogger() {
+    Logger logger = Logger.getAnonymousLogger();
+    logger.setUseParentHandlers(false);
+    logger.setLevel(Level.OFF);
+    return logger;
+  }
+
+  /**
+   * Interprets the declarations, then evaluates expr both ways and checks
+   * that the completions are the same.
+   *
+   * @return whether expr was compiled.
+   */
+  private boolean evaluateBothWays(String expr) {
+    String code = "{ " + DECLARATIONS + " Object result = " + expr + "; }";
+    Input inp = Input.builder().code(code).source(getName()).build();
+    ParseResult result = PTree.complete(J8NodeType.Statement).getParSer()
+        .parse(new ParseState(inp), new LeftRecursion(),
+               ParseErrorReceiver.DEV_NULL);
+    assertEquals(code, ParseResult.Synopsis.SUCCESS, result.synopsis);
+    J8BaseNode root = Trees.forGrammar(J8NodeType.GRAMMAR)
+        .of(inp, result.next().output);
+    CommonPassRunner passes = new CommonPassRunner(quietLogger());
+    passes.setTypeInfoResolver(
+        TypeInfoResolver.Resolvers.forClassLoader(LOADER));
+    root = passes.run((StatementNode) root);
+
+    Interpreter<Object> interpreter = new Interpreter<>(
+        new InterpretationContextImpl(
+            quietLogger(), LOADER, passes.getTypePool()));
+    Locals<Object> locals = new Locals<>();
+    ImmutableList<LocalVariableDeclarationStatementNode> decls =
+        root.finder(LocalVariableDeclarationStatementNode.class).find();
+    int nDecls = decls.size();
+    for (int k = 0; k < nDecls - 1; ++k) {
+      assertTrue(interpreter.context.completedNormallyWithoutError(
+          interpreter.interpret(decls.get(k), locals)));
+    }
+    ExpressionNode exprNode = decls.get(nDecls - 1)
+        .finder(VariableInitializerNode.class).findOne().get()
+        .firstChildWithType(ExpressionNode.class);
+
+    Completion<Object> want = interpreter.interpret(exprNode, locals);
+    Optional<BytecodeCompiler.CompiledExpression> compiled =
+        compiler.compile(interpreter, exprNode);
+    if (compiled.isPresent()) {
+      assertEquals(expr, want, compiled.get().execute(locals));
+      // Runs repeatedly.
+      assertEquals(expr, want, compiled.get().execute(locals));
+    }
+    return compiled.isPresent();
+  }
+
+  private void assertCompiled(String... exprs) {
+    if (!compiler.isAvailable()) { return; }
+    for (String expr : exprs) {
+      assertTrue(expr, evaluateBothWays(expr));
+    }
+  }
+
+  private void assertNotCompiled(String... exprs) {
+    for (String expr : exprs) {
+      assertFalse(expr, evaluateBothWays(expr));
+    }
+  }
+
+  @Test
+  public void testArithmetic() {
+    assertCompiled(
+        "i + j * 2",
+        "i / 2 + i % 3",
+        "c + 1",
+        "(char) (c + 1)",
+        "d * i / 4",
+        "1.0f / 3",
+        "(int) d",
+        "(byte) 300",
+        "-i - -j",
+        "~i ^ 5 | 3 & i",
+        "2147483647 + 1",
+        "boxed.intValue() + boxed",
+        "boxed == 42");
+  }
+
+  @Test
+  public void testLogic() {
+    assertCompiled(
+        "i > 3 && !b || j < 0",
+        "b ? s : n",
+        "i == 7 ? 'y' : c",
+        "d >= 1.5 != (c <= 'a')");
+  }
+
+  @Test
+  public void testStrings() {
+    assertCompiled(
+        "s + c + i + d + b + n",
+        "\"\" + boxed",
+        "s.length() + Math.abs(j)",
+        "s.substring(1).toUpperCase()",
+        "String.valueOf(c).concat(s)");
+  }
+
+  @Test
+  public void testFailures() {
+    // Completions are errors both ways.
+    assertCompiled(
+        "i / 0",
+        "n.length()",
+        "s.substring(10)");
+  }
+
+  @Test
+  public void testUnsupported() {
+    assertNotCompiled(
+        "i++",
+        "Integer.MAX_VALUE",
+        "s instanceof String",
+        "new StringBuilder(s)",
+        "java.util.Collections.<String>emptyList()",
+        // Lone literals and locals are as fast to interpret.
+        "(\"str\")",
+        "s");
+  }
+}
@@ -5,8 +5,11 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
@@ -18,6 +21,7 @@ import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.io.Files;
 import com.google.common.io.Resources;
@@ -48,6 +52,7 @@ import com.mikesamuel.cil.ast.meta.TypeInfo;
 import com.mikesamuel.cil.ast.meta.TypeInfoResolver;
 import com.mikesamuel.cil.ast.meta.TypeSpecification;
 import com.mikesamuel.cil.ast.passes.CommonPassRunner;
+import com.mikesamuel.cil.ast.passes.PassTestHelpers;
 import com.mikesamuel.cil.parser.Input;
 import com.mikesamuel.cil.parser.LeftRecursion;
 import com.mikesamuel.cil.parser.ParseErrorReceiver;
@@ -55,6 +60,7 @@ import com.mikesamuel.cil.parser.ParseResult;
 import com.mikesamuel.cil.parser.ParseState;
 import com.mikesamuel.cil.parser.SList;
 import com.mikesamuel.cil.parser.SourcePosition;
+import com.mikesamuel.cil.parser.Unparse.UnparseVerificationException;
 import com.mikesamuel.cil.ptree.PTree;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
@@ -140,6 +146,18 @@ public final class InterpreterTest extends TestCase {
 
     J8BaseNode root = tc.root;
 
+    Interpreter<Object> interpreter = new Interpreter<>(ctx);
+    Object got = interpreter.interpret(
+        root, localsFor(ctx, typesIdentsAndValues));
+    assertEquals(want, got);
+
+    Object gotCompiled = interpreter.compile(root).execute(
+        localsFor(ctx, typesIdentsAndValues));
+    assertEquals(want, gotCompiled);
+  }
+
+  private static Locals<Object> localsFor(
+      InterpretationContext<Object> ctx, Object... typesIdentsAndValues) {
     Locals<Object> locals = new Locals<>();
     for (int i = 0, n = typesIdentsAndValues.length; i < n; i += 3) {
       TypeSpecification typ = (TypeSpecification) typesIdentsAndValues[i];
@@ -151,11 +169,7 @@ public final class InterpreterTest extends TestCase {
           ctx.coercion(ctx.getTypePool().type(typ, null, ctx.getLogger())));
       locals.set(name, initialValue);
     }
-
-    Interpreter<Object> interpreter = new Interpreter<>(ctx);
-    Object got = interpreter.interpret(root, locals);
-
-    assertEquals(want, got);
+    return locals;
   }
 
   @Test
@@ -224,6 +238,163 @@ public final class InterpreterTest extends TestCase {
         StaticType.T_DOUBLE.typeSpecification.arrayOf(), "arr", new double[3]);
   }
 
+  @Test
+  public void testReflectiveMembers() {
+    assertExprResult(Completion.normal(3L), "Math.max(1, 3L)");
+    assertExprResult(Completion.normal("bc"), "\"abc\".substring(1)");
+    assertExprResult(
+        Completion.normal(Integer.MAX_VALUE), "Integer.MAX_VALUE");
+    assertExprResult(
+        Completion.normal(new StringBuilder("ab").length()),
+        "new StringBuilder(\"ab\").length()");
+    // Exceptions thrown by the callee become errors.
+    assertExprResult(
+        Completion.normal(ErrorValue.INSTANCE), "Integer.parseInt(\"x\")");
+  }
+
+  @Test
+  public void testPrimitiveArithmetic() {
+    // Compiled code operates on primitive locals unboxed, so check that it
+    // overflows, narrows, and rounds as Java does.
+    int overflowed = Integer.MAX_VALUE;
+    overflowed += 1;
+    assertStatementResult(
+        Completion.returnValue(overflowed),
+        "{ int x = Integer.MAX_VALUE; x += 1; return x; }");
+    assertStatementResult(
+        Completion.returnValue(0.1f + 0.2f),
+        "{ float f = 0.1f; f += 0.2f; return f; }");
+    assertStatementResult(
+        Completion.returnValue('a' + 1),
+        "{ char c = 'a'; int i = c + 1; return i; }");
+    long n = 5;
+    long m = n++ + n;
+    assertStatementResult(
+        Completion.returnValue(m),
+        "{ long n = 5; long m = n++ + n; return m; }");
+    long v = 1;
+    v <<= 40;
+    int w = -8;
+    w >>>= 1;
+    assertStatementResult(
+        Completion.returnValue(v + w),
+        "{ long v = 1; v <<= 40; int w = -8; w >>>= 1; return v + w; }");
+    assertStatementResult(
+        Completion.returnValue((int) 1e10 + (long) -1.5 + (short) 65537),
+        "{ double d = 1e10; return (int) d + (long) -1.5 + (short) 65537; }");
+    // Division by zero is an error, unless short-circuited.
+    assertStatementResult(
+        Completion.normal(ErrorValue.INSTANCE),
+        "{ int z = 0; return 1 / z; }");
+    assertStatementResult(
+        Completion.returnValue(false),
+        "{ int i = 0; boolean b = i != 0 && 10 / i > 1; return b; }");
+  }
+
+  @Test
+  public void testConstantFolding() throws UnparseVerificationException {
+    InterpreterTestContext tc = contextFor(
+        J8NodeType.Statement,
+        Joiner.on('\n').join(
+            "{",
+            "  long x = 1 + 2 * 3L;",
+            "  String s = \"a\" + 'b' + (char) 99 + (String) null;",
+            "  int y = x > 6 && !false",
+            "      ? -(1 - 1) + (-1 - 1) : 1 / 0 + (4 >> 1);",
+            "  return s + x + (x < 0 ? 0.5f : (float) 1 / 4) + y",
+            "      + (Integer.MAX_VALUE - 1) + Long.MIN_VALUE;",
+            "}"),
+        getName());
+    InterpretationContext<Object> ctx = new InterpretationContextImpl(
+        tc.logger, tc.loader, tc.typePool);
+    Interpreter<Object> interpreter = new Interpreter<>(ctx);
+    Completion<Object> want = interpreter.interpret(tc.root);
+    assertEquals(
+        Completion.returnValue(
+            "abcnull70.25-2" + (Integer.MAX_VALUE - 1) + Long.MIN_VALUE),
+        want);
+
+    ConstantFolder folder = new ConstantFolder(tc.loader, tc.typePool);
+    assertEquals(6, folder.foldWithin(tc.root));
+    assertEquals(
+        Joiner.on('\n').join(
+            "{",
+            "  long x = 7L;",
+            "  String s = \"abc\" + (String) null;",
+            // Division by zero and shifts are not folded.
+            "  int y = x > 6 && true ? -2 : 1 / 0 + (4 >> 1);",
+            // Long.MIN_VALUE has no literal.
+            "  return s + x + (x < 0 ? 0.5f : 0.25F) + y + 2147483646"
+            + " + Long.MIN_VALUE;",
+            "}"),
+        PassTestHelpers.serializeNodes(ImmutableList.of(tc.root), null));
+    assertEquals(want, interpreter.interpret(tc.root));
+    // Already folded.
+    assertEquals(0, folder.foldWithin(tc.root));
+  }
+
+  @Test
+  public void testProfiler() throws IOException {
+    InterpreterTestContext tc = contextFor(
+        J8NodeType.Statement,
+        Joiner.on('\n').join(
+            "{",
+            "  int n = 0;",
+            "  for (int i = 0; i < 10; ++i) {",
+            "    n += Math.abs(i - 10);",
+            "  }",
+            "  return n;",
+            "}"),
+        getName());
+    InterpretationContext<Object> ctx = new InterpretationContextImpl(
+        tc.logger, tc.loader, tc.typePool);
+    Interpreter<Object> interpreter = new Interpreter<>(ctx);
+    InterpreterProfiler profiler = new InterpreterProfiler();
+    interpreter.setProfiler(profiler);
+
+    profiler.pushFrame("outer;frame");
+    assertEquals(Completion.returnValue(55), interpreter.interpret(tc.root));
+    profiler.popFrame();
+
+    ImmutableList<InterpreterProfiler.HotSpot> byCallable =
+        profiler.getHotSpotsByCallable();
+    assertEquals(1, byCallable.size());
+    assertTrue(byCallable.get(0).key, byCallable.get(0).key.contains("abs"));
+    assertEquals(10, byCallable.get(0).count);
+
+    long forCount = 0;
+    for (InterpreterProfiler.HotSpot spot : profiler.getHotSpotsByNodeType()) {
+      assertTrue(spot.toString(), spot.selfNanos <= spot.totalNanos);
+      if ("BasicForStatement".equals(spot.key)) {
+        forCount = spot.count;
+      }
+    }
+    assertEquals(1, forCount);
+
+    boolean sawLoopBody = false;
+    for (InterpreterProfiler.HotSpot spot
+         : profiler.getHotSpotsBySourcePosition()) {
+      assertTrue(spot.key, spot.key.startsWith(getName() + ":"));
+      sawLoopBody |= spot.key.startsWith(getName() + ":4+")
+          && spot.count == 10;
+    }
+    assertTrue(sawLoopBody);
+
+    StringBuilder stacks = new StringBuilder();
+    profiler.writeCollapsedStacks(stacks);
+    assertTrue(
+        stacks.toString(), stacks.toString().matches("outer,frame \\d+\n"));
+
+    interpreter.setProfiler(null);
+    interpreter.interpret(tc.root);
+    assertEquals(
+        10, profiler.getHotSpotsByCallable().get(0).count);
+  }
+
+  private void assertStatementResult(Completion<Object> want, String code) {
+    assertResult(want, J8NodeType.Statement, code);
+  }
+
   private String pathTo(String pathSuffix) throws IOException {
     try (BufferedReader r = Resources.asCharSource(
         getClass().getResource("/all-sources.txt"),
@@ -240,6 +411,15 @@ public final class InterpreterTest extends TestCase {
 
   @Test
   public void testTestExpressions() throws Exception {
+    runTestExpressions(false);
+  }
+
+  @Test
+  public void testTestExpressionsCompiled() throws Exception {
+    runTestExpressions(true);
+  }
+
+  private void runTestExpressions(boolean compiled) throws Exception {
     String path = pathTo("/expr/TestExpressions.java");
 
     InterpreterTestContext tc = contextFor(
@@ -367,7 +547,9 @@ public final class InterpreterTest extends TestCase {
         locals.declare(localName, ctx.coercion(type));
 
         if (init != null) {
-          Completion<Object> completion = interpreter.interpret(init, locals);
+          Completion<Object> completion = compiled
+              ? interpreter.compile(init).execute(locals)
+              : interpreter.interpret(init, locals);
           assertEquals(Completion.Kind.NORMAL, completion.kind);
           Object value = completion.value;
           if (ctx.isErrorValue(value)) {
@@ -475,7 +657,17 @@ public final class InterpreterTest extends TestCase {
     }
   }
 
+  @Test
   public void testTestStatements() throws Exception {
+    runTestStatements(false);
+  }
+
+  @Test
+  public void testTestStatementsCompiled() throws Exception {
+    runTestStatements(true);
+  }
+
+  private void runTestStatements(boolean compiled) throws Exception {
     String path = pathTo("/expr/TestStatements.java");
 
     InterpreterTestContext tc = contextFor(
@@ -524,7 +716,9 @@ public final class InterpreterTest extends TestCase {
     locals.set(paramName, ctx.from(testInputString));
 
     // Interpret the body.
-    Completion<Object> result = interpreter.interpret(body, locals);
+    Completion<Object> result = compiled
+        ? interpreter.compile(body).execute(locals)
+        : interpreter.interpret(body, locals);
 
     // Returns are translated to normal results when traversing the method body.
     assertEquals(Completion.Kind.RETURN, result.kind);
@@ -536,4 +730,138 @@ public final class InterpreterTest extends TestCase {
     assertEquals(Joiner.on('\n').join(want), Joiner.on('\n').join(got));
   }
 
+  @Test
+  public void testCompiledLoops() {
+    long total = 0;
+    for (int i = 0; i < 150; ++i) {
+      int j = 0;
+      while (j < i) {
+        if ((i ^ j) % 3 == 0) { total += i * j; } else { total -= j; }
+        j++;
+      }
+    }
+    assertLoopResult(
+        Completion.returnValue(total),
+        "{",
+        "  long total = 0;",
+        "  for (int i = 0; i < 150; ++i) {",
+        "    int j = 0;",
+        "    while (j < i) {",
+        "      if ((i ^ j) % 3 == 0) { total += i * j; } else { total -= j; }",
+        "      j++;",
+        "    }",
+        "  }",
+        "  return total;",
+        "}");
+
+    int[] arr = new int[64];
+    for (int i = 0; i < arr.length; ++i) { arr[i] = i * i; }
+    StringBuilder sb = new StringBuilder();
+    for (int k = 0; k < 20; ++k) {
+      for (int x : arr) {
+        if (x % 7 == k % 7) { sb.append(x).append(','); }
+      }
+    }
+    assertLoopResult(
+        Completion.returnValue(sb.length()),
+        "{",
+        "  int[] arr = new int[64];",
+        "  for (int i = 0; i < arr.length; ++i) { arr[i] = i * i; }",
+        "  StringBuilder sb = new StringBuilder();",
+        "  for (int k = 0; k < 20; ++k) {",
+        "    for (int x : arr) {",
+        "      if (x % 7 == k % 7) { sb.append(x).append(','); }",
+        "    }",
+        "  }",
+        "  return sb.length();",
+        "}");
+
+    // Locals in sibling and nested scopes occupy different slots.
+    int sum = 0;
+    for (int i = 0; i < 10; ++i) {
+      { int a = i; sum += a; }
+      { int b = 2 * i; int a = b + 1; sum += a * b; }
+      for (int a : new int[] { i, sum }) { sum ^= a; }
+    }
+    assertLoopResult(
+        Completion.returnValue(sum),
+        "{",
+        "  int sum = 0;",
+        "  for (int i = 0; i < 10; ++i) {",
+        "    { int a = i; sum += a; }",
+        "    { int b = 2 * i; int a = b + 1; sum += a * b; }",
+        "    for (int a : new int[] { i, sum }) { sum ^= a; }",
+        "  }",
+        "  return sum;",
+        "}");
+  }
+
+  @Test
+  public static void testMemberHandlesSharedAcrossContexts() throws Exception {
+    Logger logger = Logger.getAnonymousLogger();
+    ClassLoader loader = InterpreterTest.class.getClassLoader();
+    TypePool typePool = new TypePool(
+        TypeInfoResolver.Resolvers.forClassLoader(loader));
+    // As made by two applications of a template.
+    InterpretationContextImpl a = new InterpretationContextImpl(
+        logger, loader, typePool);
+    InterpretationContextImpl b = new InterpretationContextImpl(
+        logger, loader, typePool);
+
+    assertEquals(3, a.invokeDynamic("length", "foo", ImmutableList.of()));
+    assertEquals(4, b.invokeDynamic("length", "quux", ImmutableList.of()));
+    // Each context reflects separately but gets the same handle.
+    Method length = String.class.getMethod("length");
+    assertNotSame(length, String.class.getMethod("length"));
+    MemberHandles.Invoker lengthInvoker = MemberHandles.invoker(length);
+    assertSame(
+        lengthInvoker,
+        MemberHandles.invoker(String.class.getMethod("length")));
+    assertEquals(
+        ImmutableList.of(lengthInvoker),
+        MemberHandles.publicMethods(String.class, "length", 0));
+
+    // Overloads are chosen by runtime argument types.
+    assertEquals(1, a.invokeDynamic("indexOf", "abc", ImmutableList.of('b')));
+    assertEquals(2, a.invokeDynamic("indexOf", "abc", ImmutableList.of("c")));
+    // Public methods of non-public classes are called via public supertypes.
+    assertEquals(
+        2, a.invokeDynamic("size", Arrays.asList(1, 2), ImmutableList.of()));
+    assertTrue(a.isErrorValue(
+        a.invokeDynamic("noSuchMethod", "abc", ImmutableList.of())));
+  }
+
+  /**
+   * Checks that interpreted and compiled code agree, and logs a rough
+   * comparison of their running times.
+   */
+  private void assertLoopResult(Completion<Object> want, String... lines) {
+    InterpreterTestContext tc = contextFor(
+        J8NodeType.Statement, Joiner.on('\n').join(lines), getName());
+    InterpretationContext<Object> ctx = new InterpretationContextImpl(
+        tc.logger, tc.loader, tc.typePool);
+    Interpreter<Object> interpreter = new Interpreter<>(ctx);
+    Compiled<Object> compiled = interpreter.compile(tc.root);
+
+    int nRuns = 5;
+    long interpretedNanos = 0, compiledNanos = 0;
+    for (int i = 0; i < nRuns; ++i) {
+      long t0 = System.nanoTime();
+      assertEquals(want, interpreter.interpret(tc.root));
+      long t1 = System.nanoTime();
+      assertEquals(want, compiled.execute());
+      long t2 = System.nanoTime();
+      if (i != 0) {  // Skip warm-up
+        interpretedNanos += t1 - t0;
+        compiledNanos += t2 - t1;
+      }
+    }
+    tc.logger.log(
+        Level.INFO,
+        "{0}: interpreted {1}us, compiled {2}us",
+        new Object[] {
+            getName(),
+            String.valueOf(interpretedNanos / 1000),
+            String.valueOf(compiledNanos / 1000) });
+  }
 }
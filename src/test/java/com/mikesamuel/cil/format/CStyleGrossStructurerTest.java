@@ -1,9 +1,16 @@
 package com.mikesamuel.cil.format;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.junit.Test;
 
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.mikesamuel.cil.ast.NodeVariant;
 import com.mikesamuel.cil.ast.j8.J8NodeType;
 import com.mikesamuel.cil.format.java.Java8Formatters;
@@ -64,6 +71,21 @@ public final class CStyleGrossStructurerTest extends TestCase {
             + "import bar.baz.boo.far.foo.*;");
   }
 
+  @Test
+  public void testBlocksContainingFirstOverflowAreMultiline()
+  throws Exception {
+    // The enum body would fit on its own line, but it contains the token
+    // that first passes the column limit when everything is on one line, so
+    // it is multiline.  Streamed output used to leave it on one line.
+    assertReformattedJava(
+        ""
+        + "package foo;\n"
+        + "enum E {\n"
+        + "  AAAAAAA, BBBBBBB, CCCCCCC,\n"
+        + "}",
+        "package foo; enum E { AAAAAAA, BBBBBBB, CCCCCCC, }");
+  }
+
   @Test
   public void testCommaWrapping() throws Exception {
     assertReformattedJava(
@@ -119,6 +141,61 @@ public final class CStyleGrossStructurerTest extends TestCase {
         "}");
   }
 
+  @Test
+  public static void testConcurrentFormatting() {
+    List<String> tokens = new ArrayList<>();
+    tokens.addAll(Arrays.asList(
+        "package", "foo", ";", "class", "Generated", "{"));
+    for (int i = 0; i < 400; ++i) {
+      if (i % 7 == 0) {
+        tokens.add("/**\n * Method " + i + "\n */");
+      }
+      if (i % 50 == 0) {
+        // Nested classes with long bodies of their own.
+        tokens.addAll(Arrays.asList(
+            "static", "class", "Inner" + i, "{"));
+      }
+      tokens.addAll(Arrays.asList(
+          "static", "int", "method" + i,
+          "(", "int", "a", ",", "int", "b", ",", "String", "s", ")", "{",
+          "return", "combine", "(", "a", ",", "scale", "(", "b", ",",
+          "adjust", "(", "a", "+", "b", ",", "mix", "(", "a", "*", "b", ",",
+          "1", ",", "2", ",", "3", ")", ")", ")", ",",
+          "s", ".", "length", "(", ")", ",",
+          "\"a string literal " + i + "\"", ")", ";",
+          "}"));
+      if (i % 50 == 49) {
+        tokens.add("}");
+      }
+    }
+    tokens.add("}");
+
+    Input positions = Input.builder()
+        .source("generated").code(Strings.repeat(" ", tokens.size())).build();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      for (int softColumnLimit : new int[] { 40, 80, 1000000 }) {
+        FormattedSource[] results = new FormattedSource[2];
+        for (int i = 0; i < 2; ++i) {
+          Formatter<SList<NodeVariant<?, ?>>> formatter =
+              Java8Formatters.createFormatter();
+          formatter.setSoftColumnLimit(softColumnLimit);
+          for (int j = 0, n = tokens.size(); j < n; ++j) {
+            formatter.sourcePosition(positions.getSourcePosition(j));
+            formatter.token(tokens.get(j));
+          }
+          results[i] = i == 0 ? formatter.format() : formatter.format(executor);
+        }
+        assertEquals(results[0].code, results[1].code);
+        assertEquals(
+            describe(results[0].positionMapping.getEntries()),
+            describe(results[1].positionMapping.getEntries()));
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
   private void assertReformattedJava(String canon)
   throws Exception {
     assertReformattedJava(canon, canon, J8NodeType.CompilationUnit);
@@ -144,6 +221,35 @@ public final class CStyleGrossStructurerTest extends TestCase {
             result.next().output));
         FormattedSource code = Unparse.format(v, formatter);
         assertEquals(input, want, code.code);
+
+        // Streaming produces the same code and position mapping.
+        Formatter<SList<NodeVariant<?, ?>>> streamingFormatter =
+            Java8Formatters.createFormatter();
+        streamingFormatter.setSoftColumnLimit(40);
+        StringBuilder streamed = new StringBuilder();
+        List<PositionMapping.Entry> entries = new ArrayList<>();
+        Unparse.formatTo(
+            v, streamingFormatter, streamed,
+            new PositionMapping.Receiver() {
+              @Override
+              public void entry(PositionMapping.Entry e) {
+                entries.add(e);
+              }
+            });
+        assertEquals(input, want, streamed.toString());
+        assertEquals(
+            describe(code.positionMapping.getEntries()), describe(entries));
+
+        // So does formatting concurrently.
+        Formatter<SList<NodeVariant<?, ?>>> concurrentFormatter =
+            Java8Formatters.createFormatter();
+        concurrentFormatter.setSoftColumnLimit(40);
+        FormattedSource concurrentCode = Unparse.format(
+            v, concurrentFormatter, MoreExecutors.directExecutor());
+        assertEquals(input, want, concurrentCode.code);
+        assertEquals(
+            describe(code.positionMapping.getEntries()),
+            describe(concurrentCode.positionMapping.getEntries()));
         break;
       default:
         fail(result.synopsis.name());
@@ -161,6 +267,32 @@ public final class CStyleGrossStructurerTest extends TestCase {
      assertEquals(
          Arrays.toString(tokens),
          want, code.code);
+
+     Formatter<SList<NodeVariant<?, ?>>> streamingFormatter =
+         Java8Formatters.createFormatter();
+     streamingFormatter.setSoftColumnLimit(40);
+     StringBuilder streamed = new StringBuilder();
+     streamingFormatter.streamTo(streamed, null);
+     for (String token : tokens) {
+       streamingFormatter.token(token);
+     }
+     try {
+       streamingFormatter.finish();
+     } catch (IOException ex) {
+       throw new AssertionError(ex);
+     }
+     assertEquals(Arrays.toString(tokens), want, streamed.toString());
+  }
+
+  private static List<String> describe(
+      Iterable<? extends PositionMapping.Entry> entries) {
+    List<String> descriptions = new ArrayList<>();
+    for (PositionMapping.Entry e : entries) {
+      descriptions.add(
+          e.positionInOriginal + "->" + e.startIndexInDerived + "-"
+          + e.endIndexInDerived);
+    }
+    return descriptions;
   }
 
 }
@@ -0,0 +1,168 @@
+package com.mikesamuel.cil.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+import org.junit.Test;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import com.mikesamuel.cil.ast.NodeVariant;
+import com.mikesamuel.cil.ast.j8.J8NodeType;
+import com.mikesamuel.cil.event.Event;
+import com.mikesamuel.cil.format.java.Java8Formatters;
+import com.mikesamuel.cil.parser.Input;
+import com.mikesamuel.cil.parser.LeftRecursion;
+import com.mikesamuel.cil.parser.ParseErrorReceiver;
+import com.mikesamuel.cil.parser.ParseResult;
+import com.mikesamuel.cil.parser.ParseState;
+import com.mikesamuel.cil.parser.SList;
+
+import junit.framework.TestCase;
+
+/**
+ * Measures how formatting time grows with the token count by formatting
+ * generated compilation units of 10k tokens and up, and any source files
+ * given, both on one thread and
+ * {@linkplain Formatter#format(java.util.concurrent.Executor) concurrently},
+ * and checks that formatting changes only whitespace and that both ways
+ * produce the same code.
+ * <p>
+ * Not run as part of the default test suite.  Run via
+ * <pre>
+ * mvn test -Pbenchmarks -Dtest=FormattingBenchmark \
+ *   [-Dbenchmark.files=file.java:...]
+ * </pre>
+ */
+@SuppressWarnings("javadoc")
+public final class FormattingBenchmark extends TestCase {
+
+  @Test
+  public void testFormattingTime() throws IOException {
+    List<String> names = new ArrayList<>();
+    List<ImmutableList<String>> inputs = new ArrayList<>();
+    for (int nMethods = 250; nMethods <= 4000; nMethods *= 2) {
+      names.add("generated(" + nMethods + ")");
+      inputs.add(generate(nMethods));
+    }
+    String files = System.getProperty("benchmark.files", "");
+    for (String path
+         : Splitter.on(File.pathSeparatorChar).omitEmptyStrings()
+           .split(files)) {
+      names.add(path);
+      inputs.add(tokenize(path, Files.toString(new File(path), UTF_8)));
+    }
+
+    Logger logger = Logger.getAnonymousLogger();
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors());
+    try {
+      // Warm up.
+      for (int i = 0; i < 3; ++i) {
+        format(inputs.get(0), null);
+        format(inputs.get(0), executor);
+      }
+
+      for (int i = 0, n = inputs.size(); i < n; ++i) {
+        ImmutableList<String> tokens = inputs.get(i);
+        long t0 = System.nanoTime();
+        FormattedSource formatted = format(tokens, null);
+        long t1 = System.nanoTime();
+        FormattedSource concurrent = format(tokens, executor);
+        long t2 = System.nanoTime();
+
+        assertEquals(
+            names.get(i), withoutSpaces(Joiner.on("").join(tokens)),
+            withoutSpaces(formatted.code));
+        assertEquals(names.get(i), formatted.code, concurrent.code);
+
+        double ms = (t1 - t0) / 1e6;
+        double concurrentMs = (t2 - t1) / 1e6;
+        logger.log(
+            Level.INFO,
+            "{0}: {1} tokens in {2}ms, {3} tokens/ms, {4}ms concurrently",
+            new Object[] {
+                names.get(i), String.valueOf(tokens.size()),
+                String.format("%.1f", ms),
+                String.format("%.1f", tokens.size() / ms),
+                String.format("%.1f", concurrentMs) });
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static FormattedSource format(
+      ImmutableList<String> tokens, @Nullable Executor executor) {
+    Formatter<SList<NodeVariant<?, ?>>> f = Java8Formatters.createFormatter();
+    for (String token : tokens) {
+      f.token(token);
+    }
+    return executor != null ? f.format(executor) : f.format();
+  }
+
+  /**
+   * Formatting only adds or removes whitespace so the input and output
+   * should agree once whitespace is removed.
+   */
+  private static String withoutSpaces(String code) {
+    return CharMatcher.WHITESPACE.removeFrom(code);
+  }
+
+  /**
+   * Tokens for a class with a long body of methods with long, nested
+   * expressions.
+   */
+  private static ImmutableList<String> generate(int nMethods) {
+    ImmutableList.Builder<String> tokens = ImmutableList.builder();
+    tokens.add("package", "foo", ";", "class", "Generated", "{");
+    for (int i = 0; i < nMethods; ++i) {
+      tokens.add(
+          "static", "int", "method" + i,
+          "(", "int", "a", ",", "int", "b", ",", "String", "s", ")", "{",
+          "return", "combine", "(", "a", ",", "scale", "(", "b", ",",
+          "adjust", "(", "a", "+", "b", ",", "mix", "(", "a", "*", "b", ",",
+          "1", ",", "2", ",", "3", ")", ")", ")", ",",
+          "s", ".", "length", "(", ")", ",",
+          "\"a string literal " + i + "\"", ")", ";",
+          "}");
+    }
+    tokens.add("}");
+    return tokens.build();
+  }
+
+  private static ImmutableList<String> tokenize(String source, String code)
+  throws IOException {
+    Input inp = Input.builder().source(source).code(code).build();
+    ParseResult result = J8NodeType.CompilationUnit.getParSer().parse(
+        new ParseState(inp), new LeftRecursion(), ParseErrorReceiver.DEV_NULL);
+    if (result.synopsis != ParseResult.Synopsis.SUCCESS) {
+      throw new IOException("Failed to parse " + source);
+    }
+    ImmutableList.Builder<String> tokens = ImmutableList.builder();
+    for (Event e : SList.forwardIterable(result.next().output)) {
+      switch (e.getKind()) {
+        case TOKEN: case CONTENT: case IGNORABLE:
+          tokens.add(e.getContent());
+          break;
+        default:
+          break;
+      }
+    }
+    return tokens.build();
+  }
+}
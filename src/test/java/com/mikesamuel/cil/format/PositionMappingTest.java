@@ -0,0 +1,145 @@
+package com.mikesamuel.cil.format;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.mikesamuel.cil.parser.Input;
+import com.mikesamuel.cil.parser.SourcePosition;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class PositionMappingTest extends TestCase {
+
+  private static final Input A = Input.builder()
+      .source("src/a.java").code("int x;\nint y;\n").build();
+  private static final Input B = Input.builder()
+      .source("src/b.java").code("z").build();
+
+  // int x;
+  //   int y;
+  // z
+  private static final String DERIVED = "int x;\n  int y;\nz\n";
+
+  private static PositionMapping mapping() {
+    return new PositionMapping(ImmutableList.of(
+        // Out of order
+        new PositionMapping.Entry(A.getSourcePosition(7), 9, 12),
+        new PositionMapping.Entry(A.getSourcePosition(0), 0, 3),
+        new PositionMapping.Entry(A.getSourcePosition(4), 4, 5),
+        new PositionMapping.Entry(A.getSourcePosition(11), 13, 14),
+        new PositionMapping.Entry(B.getSourcePosition(0), 16, 17)));
+  }
+
+  private static String describe(PositionMapping.Entry e) {
+    return e == null
+        ? null
+        : e.positionInOriginal + "->"
+          + e.startIndexInDerived + "-" + e.endIndexInDerived;
+  }
+
+  private static List<String> describe(
+      Iterable<? extends PositionMapping.Entry> entries) {
+    List<String> descriptions = new ArrayList<>();
+    for (PositionMapping.Entry e : entries) {
+      descriptions.add(describe(e));
+    }
+    return descriptions;
+  }
+
+  @Test
+  public static void testEntriesSorted() {
+    assertEquals(
+        ImmutableList.of(
+            "src/a.java:1+0->0-3",
+            "src/a.java:1+4->4-5",
+            "src/a.java:2+0->9-12",
+            "src/a.java:2+4->13-14",
+            "src/b.java:1+0->16-17"),
+        describe(mapping().getEntries()));
+  }
+
+  @Test
+  public static void testEntryForDerived() {
+    PositionMapping m = mapping();
+    assertEquals(null, describe(m.entryForDerived(-1)));
+    assertEquals("src/a.java:1+0->0-3", describe(m.entryForDerived(0)));
+    assertEquals("src/a.java:1+0->0-3", describe(m.entryForDerived(3)));
+    assertEquals("src/a.java:2+0->9-12", describe(m.entryForDerived(10)));
+    assertEquals("src/b.java:1+0->16-17", describe(m.entryForDerived(100)));
+  }
+
+  @Test
+  public static void testEntriesForOriginal() {
+    PositionMapping m = mapping();
+    assertEquals(
+        ImmutableList.of("src/a.java:1+4->4-5"),
+        describe(m.entriesForOriginal("src/a.java", 5)));
+    assertEquals(
+        ImmutableList.of("src/a.java:2+0->9-12"),
+        describe(m.entriesForOriginal("src/a.java", 7)));
+    assertEquals(
+        ImmutableList.of("src/a.java:2+4->13-14"),
+        describe(m.entriesForOriginal("src/a.java", 100)));
+    assertEquals(
+        ImmutableList.of("src/b.java:1+0->16-17"),
+        describe(m.entriesForOriginal("src/b.java", 0)));
+    assertEquals(
+        ImmutableList.of(),
+        describe(m.entriesForOriginal("src/c.java", 0)));
+  }
+
+  @Test
+  public static void testRepeatedPositions() {
+    SourcePosition x = A.getSourcePosition(4);
+    SourcePosition xToSemi = A.getSourcePosition(4, 6);
+    PositionMapping m = new PositionMapping(ImmutableList.of(
+        new PositionMapping.Entry(x, 0, 1),
+        new PositionMapping.Entry(xToSemi, 2, 4),
+        new PositionMapping.Entry(A.getSourcePosition(0), 5, 6),
+        new PositionMapping.Entry(x, 7, 8)));
+    assertEquals(
+        ImmutableList.of(
+            "src/a.java:1+4->0-1",
+            "src/a.java:1+4-6->2-4",
+            "src/a.java:1+4->7-8"),
+        describe(m.entriesForOriginal("src/a.java", 4)));
+  }
+
+  @Test
+  public static void testSourceMap() throws Exception {
+    StringBuilder sb = new StringBuilder();
+    mapping().appendSourceMap(DERIVED, "Out.java", sb);
+    assertEquals(
+        "{\"version\":3,\"file\":\"Out.java\","
+        + "\"sources\":[\"src/a.java\",\"src/b.java\"],"
+        + "\"names\":[],"
+        + "\"mappings\":\"AAAA,IAAI;EACJ,IAAI;ACDJ\"}",
+        sb.toString());
+  }
+
+  @Test
+  public static void testSmap() throws Exception {
+    StringBuilder sb = new StringBuilder();
+    mapping().appendSmap(DERIVED, "Out.java", "CIL", sb);
+    assertEquals(
+        ""
+        + "SMAP\n"
+        + "Out.java\n"
+        + "CIL\n"
+        + "*S CIL\n"
+        + "*F\n"
+        + "+ 1 a.java\n"
+        + "src/a.java\n"
+        + "+ 2 b.java\n"
+        + "src/b.java\n"
+        + "*L\n"
+        + "1#1,2:1\n"
+        + "1#2:3\n"
+        + "*E\n",
+        sb.toString());
+  }
+}
@@ -148,6 +148,103 @@ public final class Java8TokenBreakerTest extends TestCase {
         J8NodeType.Statement);
   }
 
+  @Test
+  public void testPrefixOperatorContext() {
+    // The same token breaks differently as a prefix and a binary operator.
+    assertParsedSpacedTokens("-x - x", J8NodeType.Expression);
+    assertParsedSpacedTokens("x - -x", J8NodeType.Expression);
+    assertParsedSpacedTokens("++x + x", J8NodeType.Expression);
+    assertParsedSpacedTokens("x - --x", J8NodeType.Expression);
+  }
+
+  @Test
+  public void testAngleBracketContext() {
+    // Only type arguments hug the type name.  Both are spaced from the
+    // parentheses that follow since '>' might be a binary operator.
+    assertParsedSpacedTokens(
+        true, "List<String> x = new ArrayList<String> ();",
+        "List<String> x = new ArrayList<String>();",
+        J8NodeType.BlockStatement);
+    assertParsedSpacedTokens(
+        true, "List<String> x = new ArrayList <> ();",
+        "List<String> x = new ArrayList<>();",
+        J8NodeType.BlockStatement);
+    assertParsedSpacedTokens("a < b", J8NodeType.Expression);
+    assertParsedSpacedTokens("a > b", J8NodeType.Expression);
+  }
+
+  @Test
+  public void testSemicolonInHeaderContext() {
+    assertParsedLines(
+        "for (int i = 0; i < n; ++i) {\nf();\n}",
+        "for (int i = 0; i < n; ++i) { f(); }",
+        J8NodeType.Statement);
+    assertParsedLines(
+        "{\nint i = 0;\nf(i);\n}",
+        "{ int i = 0; f(i); }",
+        J8NodeType.Statement);
+  }
+
+  @Test
+  public void testPostfixOperandContext() {
+    assertParsedSpacedTokens("x++ + y", J8NodeType.Expression);
+    assertParsedSpacedTokens("x-- - y", J8NodeType.Expression);
+    assertParsedSpacedTokens("x++ + ++y", J8NodeType.Expression);
+  }
+
+  @Test
+  public static void testNonVocabularyPunctuation() {
+    // Tokens that are not in the break table are checked by their text.
+    Java8TokenBreaker tokenBreaker = new Java8TokenBreaker();
+    assertEquals(
+        TokenBreak.SHOULD_NOT,
+        tokenBreaker.breakBetween("x", null, "#", null));
+    assertEquals(
+        TokenBreak.MUST,
+        tokenBreaker.breakBetween("-", null, "-#", null));
+    assertEquals(
+        TokenBreak.MAY,
+        tokenBreaker.lineBetween("#", null, "x", null));
+    assertSpacedTokens(true, "x + #", "x", "+", "#");
+    assertSpacedTokens(false, "- -#", "-", "-#");
+  }
+
+  @Test
+  public static void testBreaksIndependentOfUnmemoizedText() {
+    // Tokens that share a key in the break table break the same way.
+    Java8TokenBreaker tokenBreaker = new Java8TokenBreaker();
+    for (int i = 0; i < 2; ++i) {  // Second time through is memoized.
+      assertEquals(
+          TokenBreak.SHOULD_NOT,
+          tokenBreaker.breakBetween("foo", null, "(", null));
+      assertEquals(
+          TokenBreak.SHOULD_NOT,
+          tokenBreaker.breakBetween("x", null, "(", null));
+      assertEquals(
+          TokenBreak.MUST,
+          tokenBreaker.breakBetween("x", null, "123", null));
+      assertEquals(
+          TokenBreak.MUST,
+          tokenBreaker.breakBetween("123", null, ".5", null));
+      assertEquals(
+          TokenBreak.SHOULD,
+          tokenBreaker.breakBetween("foo", null, "\"bar\"", null));
+      assertEquals(
+          TokenBreak.MUST,
+          tokenBreaker.lineBetween("// foo", null, "x", null));
+      // Block comments with spaces go on their own line.
+      assertEquals(
+          TokenBreak.SHOULD,
+          tokenBreaker.lineBetween("/* foo */", null, "x", null));
+      assertEquals(
+          TokenBreak.MAY,
+          tokenBreaker.lineBetween("/*foo*/", null, "x", null));
+      assertEquals(
+          TokenBreak.SHOULD,
+          tokenBreaker.lineBetween("x", null, "/* foo */", null));
+    }
+  }
+
   private void assertParsedSpacedTokens(
       String content, NodeType<?, ?> startProduction) {
     assertParsedSpacedTokens(true, content, content, startProduction);
@@ -155,6 +252,22 @@ public final class Java8TokenBreakerTest extends TestCase {
   private void assertParsedSpacedTokens(
       boolean includeShould, String expected, String content,
       NodeType<?, ?> startProduction) {
+    assertParsedTokens(
+        includeShould, false, expected, content, startProduction);
+  }
+
+  /**
+   * Like {@link #assertParsedSpacedTokens} but puts a newline where a line
+   * break should go.
+   */
+  private void assertParsedLines(
+      String expected, String content, NodeType<?, ?> startProduction) {
+    assertParsedTokens(true, true, expected, content, startProduction);
+  }
+
+  private void assertParsedTokens(
+      boolean includeShould, boolean includeLines, String expected,
+      String content, NodeType<?, ?> startProduction) {
     Input inp = Input.builder().source(getName()).code(content).build();
     ParseState start = new ParseState(inp);
     ParseResult result = startProduction.getParSer().parse(
@@ -172,8 +285,15 @@ public final class Java8TokenBreakerTest extends TestCase {
         case TOKEN:
           String tok = e.getContent();
           if (lastTok != null) {
+            TokenBreak line = includeLines
+                ? tokenBreaker.lineBetween(lastTok, lastStack, tok, stack)
+                : TokenBreak.MAY;
             TokenBreak b = tokenBreaker.breakBetween(
                 lastTok, lastStack, tok, stack);
+            if (line == TokenBreak.SHOULD || line == TokenBreak.MUST) {
+              sb.append("\n");
+              b = TokenBreak.MAY;
+            }
             switch (b) {
               case SHOULD:
                 if (includeShould) {
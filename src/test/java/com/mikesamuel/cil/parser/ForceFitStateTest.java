@@ -0,0 +1,59 @@
+package com.mikesamuel.cil.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.mikesamuel.cil.ast.BaseNode;
+import com.mikesamuel.cil.ast.j8.ArgumentListNode;
+import com.mikesamuel.cil.ast.j8.ExpressionNode;
+import com.mikesamuel.cil.ast.j8.J8NodeType;
+import com.mikesamuel.cil.ptree.PTree;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class ForceFitStateTest extends TestCase {
+
+  @Test
+  public static void testOneFitPerIndex() {
+    ForceFitState start = new ForceFitState(ImmutableList.of(
+        ForceFitState.FitPart.interpolatedValue("x"),
+        ForceFitState.FitPart.interpolatedValue("y")));
+    BaseNode<?, ?, ?> a = ExpressionNode.Variant.ConditionalExpression
+        .buildNode(ImmutableList.of());
+    ForceFitState.PartialFit first = new ForceFitState.PartialFit(
+        1, SList.append(null, a));
+    ForceFitState.PartialFit second = new ForceFitState.PartialFit(
+        1, SList.append(SList.append(null, a), a));
+    ForceFitState.PartialFit done = new ForceFitState.PartialFit(2, null);
+
+    ForceFitState state = start.withFits(ImmutableList.of(
+        first, second, done));
+    assertEquals(ImmutableList.of(first, done), state.fits.asList());
+  }
+
+  @Test
+  public static void testLongArgumentList() {
+    int n = 500;
+    List<ForceFitState.FitPart> parts = new ArrayList<>();
+    for (int i = 0; i < n; ++i) {
+      parts.add(ForceFitState.FitPart.interpolatedValue(i));
+    }
+    ParSer fitter = PTree.complete(
+        ArgumentListNode.Variant.ExpressionComExpression).getParSer();
+    ForceFitState after = fitter.forceFit(new ForceFitState(parts));
+    assertEquals(1, after.fits.size());
+    ForceFitState.PartialFit fit = after.fits.iterator().next();
+    assertEquals(n, fit.index);
+    int nResolved = 0;
+    for (BaseNode<?, ?, ?> resolution
+         : SList.forwardIterable(fit.resolutions)) {
+      assertEquals(J8NodeType.Expression, resolution.getNodeType());
+      ++nResolved;
+    }
+    assertEquals(n, nResolved);
+  }
+}
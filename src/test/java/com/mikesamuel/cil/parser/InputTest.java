@@ -5,9 +5,11 @@ import java.util.List;
 import org.junit.Test;
 
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
 import com.mikesamuel.cil.ast.Trees;
 import com.mikesamuel.cil.ast.j8.J8BaseNode;
 import com.mikesamuel.cil.ast.j8.J8NodeType;
+import com.mikesamuel.cil.event.Event;
 import com.mikesamuel.cil.parser.Unparse.Verified;
 
 import junit.framework.TestCase;
@@ -38,6 +40,8 @@ public final class InputTest extends TestCase {
         SList.forwardIterable(afterReparse.get().output));
 
     Input eventsInput = Input.builder().events(v.events).build();
+    // Trees only decodes packed positions for inputs with line starts.
+    assertNull(eventsInput.getLineStarts());
     J8BaseNode reroot = parse(ps, eventsInput);
 
     if (!root.equals(reroot)) {
@@ -72,6 +76,27 @@ public final class InputTest extends TestCase {
         J8NodeType.Expression.getParSer(), "1 + 1 * 42 - x.y % 32");
   }
 
+  @Test
+  public static void testIndexInSource() {
+    Input textInput = Input.builder().source("test").code("a\\u0062c").build();
+    assertEquals("abc", textInput.content().toString());
+    assertEquals(0, textInput.indexInSource(0));
+    assertEquals(1, textInput.indexInSource(1));
+    assertEquals(7, textInput.indexInSource(2));
+    assertEquals(8, textInput.indexInSource(3));
+
+    Input eventsInput = Input.builder()
+        .events(ImmutableList.of(Event.token("abc", -1)))
+        .build();
+    assertNull(eventsInput.getLineStarts());
+    try {
+      eventsInput.indexInSource(0);
+      fail();
+    } catch (@SuppressWarnings("unused") IllegalStateException ex) {
+      // Events carry their own positions.
+    }
+  }
+
   @Test
   public static void testAlreadyDecodedInput() {
     assertEquals(
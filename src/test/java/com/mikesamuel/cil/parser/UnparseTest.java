@@ -0,0 +1,166 @@
+package com.mikesamuel.cil.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.mikesamuel.cil.ast.Trees;
+import com.mikesamuel.cil.ast.j8.ExpressionNode;
+import com.mikesamuel.cil.ast.j8.J8BaseNode;
+import com.mikesamuel.cil.ast.j8.J8NodeType;
+import com.mikesamuel.cil.event.DelayedCheckPredicate;
+import com.mikesamuel.cil.event.Event;
+import com.mikesamuel.cil.parser.Unparse.UnparseVerificationException;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class UnparseTest extends TestCase {
+
+  /** Records the text following the cursor of each suffix it sees. */
+  private static final class RecordingPredicate
+  implements DelayedCheckPredicate {
+    final int maxTokens;
+    final List<String> seen = new ArrayList<>();
+    final String bad;
+
+    RecordingPredicate(int maxTokens, String bad) {
+      this.maxTokens = maxTokens;
+      this.bad = bad;
+    }
+
+    @Override
+    public Optional<String> problem(Unparse.Suffix suffix) {
+      ParseState ps = suffix.asParseState();
+      String rest = ps.input.content().subSequence(
+          ps.index, ps.input.content().length()).toString();
+      seen.add(rest);
+      return rest.startsWith(bad)
+          ? Optional.of("found " + bad) : Optional.absent();
+    }
+
+    @Override
+    public int maxTokens() {
+      return maxTokens;
+    }
+  }
+
+  private static List<Event> events(Object... parts) {
+    List<Event> events = new ArrayList<>();
+    for (Object part : parts) {
+      if (part instanceof DelayedCheckPredicate) {
+        events.add(Event.delayedCheck((DelayedCheckPredicate) part));
+      } else if (((String) part).startsWith("/*")) {
+        events.add(Event.ignorable((String) part, -1));
+      } else {
+        events.add(Event.token((String) part, -1));
+      }
+    }
+    return events;
+  }
+
+  @Test
+  public static void testBoundedChecksSeeWindow() throws Exception {
+    RecordingPredicate p = new RecordingPredicate(1, "(");
+    Unparse.verify(events(
+        "a", p, "b", "/* c */", "c", "d", p, "e", p));
+    assertEquals(
+        // One token past maxTokens is included, but not ignorables.
+        ImmutableList.of("b c ", "e ", ""),
+        p.seen);
+  }
+
+  @Test
+  public static void testUnboundedChecksSeeWholeSuffix() throws Exception {
+    RecordingPredicate p = new RecordingPredicate(-1, "(");
+    RecordingPredicate q = new RecordingPredicate(0, "(");
+    Unparse.verify(events("a", q, p, "b", "/* c */", "c", q, p, "d"));
+    assertEquals(ImmutableList.of("b /* c */ c d ", "d "), p.seen);
+    assertEquals(ImmutableList.of("b ", "d "), q.seen);
+  }
+
+  @Test
+  public static void testFailure() throws Exception {
+    for (int maxTokens : new int[] { -1, 2 }) {
+      RecordingPredicate p = new RecordingPredicate(maxTokens, "(");
+      Unparse.verify(events("super", p, ".", "x"));
+      try {
+        Unparse.verify(events("super", p, "(", ")"));
+        fail();
+      } catch (UnparseVerificationException ex) {
+        assertTrue(ex.getMessage(), ex.getMessage().contains("found ("));
+      }
+    }
+  }
+
+  private static J8BaseNode parseCompilationUnit(String... lines) {
+    Input inp = Input.builder()
+        .source("UnparseTest").code(String.join("\n", lines)).build();
+    ParseResult result = J8NodeType.CompilationUnit.getParSer().parse(
+        new ParseState(inp), new LeftRecursion(), ParseErrorReceiver.DEV_NULL);
+    assertEquals(ParseResult.Synopsis.SUCCESS, result.synopsis);
+    return Trees.forGrammar(J8NodeType.CompilationUnit.getGrammar())
+        .of(result.next());
+  }
+
+  private static final String[][] COMPILATION_UNITS = {
+    {
+      "package foo;",
+      "import java.util.List;",
+      "class C<T extends Comparable<T>> extends B implements I {",
+      "  /** Doc */",
+      "  private final int[] xs = { 1, 2, 3 };",
+      "  C(List<? super T> ts) { super(ts.size()); this.xs[0] = -xs[1]; }",
+      "  static <U> U f(U u) throws Exception {",
+      "    for (int i = 0; i < 10; ++i) { if (i % 2 == 0) continue; }",
+      "    return (U) u;",
+      "  }",
+      "}",
+    },
+    {
+      "class D extends C {",
+      "  Runnable r = () -> D.super.toString();",
+      "  int g(String s) {",
+      "    switch (s) { case \"a\": return s.length(); default: }",
+      "    try { return new int[] { 1 }.length; } finally { g(null); }",
+      "  }",
+      "}",
+    },
+  };
+
+  @Test
+  public static void testStrategiesAgree() throws Exception {
+    for (int round = 0; round < 2; ++round) {
+      for (String[] lines : COMPILATION_UNITS) {
+        J8BaseNode node = parseCompilationUnit(lines);
+        ImmutableList<Event> byGrammar = Unparse.unparse(
+            node, Unparse.Strategy.GRAMMAR).events;
+        assertEquals(
+            byGrammar,
+            Unparse.unparse(node, Unparse.Strategy.DIRECT).events);
+        assertEquals(
+            byGrammar,
+            Unparse.unparse(node, Unparse.Strategy.VERIFIED_DIRECT).events);
+      }
+    }
+  }
+
+  @Test
+  public static void testMalformedTree() throws Exception {
+    // An expression needs an operand.
+    J8BaseNode node = ExpressionNode.Variant.ConditionalExpression
+        .buildNode(ImmutableList.of());
+    for (Unparse.Strategy s : Unparse.Strategy.values()) {
+      try {
+        Unparse.unparse(node, s);
+        fail(s.name());
+      } catch (@SuppressWarnings("unused")
+               UnparseVerificationException ex) {
+        // Expected
+      }
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package com.mikesamuel.cil.template;
+
+import java.io.IOException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.CharSource;
+import com.mikesamuel.cil.ast.j8.ExpressionNode;
+import com.mikesamuel.cil.ast.j8.J8BaseNode;
+import com.mikesamuel.cil.ast.j8.J8NodeType;
+import com.mikesamuel.cil.ast.passes.PassTestHelpers;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class DataBundleTest extends TestCase {
+
+  private static DataBundle parse(String json) throws IOException {
+    return DataBundle.fromJsonFile("test.json", CharSource.wrap(json));
+  }
+
+  private static String serialize(Object node) throws Exception {
+    return PassTestHelpers.serializeNodes(
+        ImmutableList.of((J8BaseNode) node), null);
+  }
+
+  @Test
+  public static void testValues() throws Exception {
+    DataBundle b = parse(
+        "{ \"i\": 1, \"s\": \"str\", \"t\": true, \"n\": null,"
+        + " \"a\": [1, [2, 3]], \"o\": { \"k\": \"v\" } }");
+    assertEquals(
+        ImmutableSet.of("i", "s", "t", "n", "a", "o"), b.keySet());
+    assertEquals(1, b.getOrDefault("i", null));
+    assertEquals("str", b.getOrDefault("s", null));
+    assertEquals(Boolean.TRUE, b.getOrDefault("t", null));
+    assertEquals(JSONObject.NULL, b.getOrDefault("n", null));
+    Object[] a = (Object[]) b.getOrDefault("a", null);
+    assertEquals(1, a[0]);
+    assertEquals(3, ((Object[]) a[1])[1]);
+    DataBundle o = (DataBundle) b.getOrDefault("o", null);
+    assertEquals("v", o.getOrDefault("k", null));
+    assertEquals("default", b.getOrDefault("missing", "default"));
+  }
+
+  @Test
+  public static void testSnippets() throws Exception {
+    DataBundle b = parse(
+        "{"
+        + " \"e\": { \"nodeType\": \"Expression\", \"code\": \"x + 1\" },"
+        + " \"f\": { \"code\": \"x + 1\", \"nodeType\": \"Expression\" },"
+        + " \"arr\": [[{ \"nodeType\": \"Expression\", \"code\": \"y\" }]]"
+        + " }");
+    Object e = b.getOrDefault("e", null);
+    assertTrue(e instanceof ExpressionNode);
+    assertEquals("x + 1", serialize(e));
+    // Fetching again gives the same node.
+    assertSame(e, b.getOrDefault("e", null));
+    // Equivalent snippets are parsed once but do not share nodes.
+    Object f = b.getOrDefault("f", null);
+    assertNotSame(e, f);
+    assertEquals("x + 1", serialize(f));
+
+    Object[] arr = (Object[]) b.getOrDefault("arr", null);
+    Object y = ((Object[]) arr[0])[0];
+    assertEquals(J8NodeType.Expression, ((J8BaseNode) y).getNodeType());
+    assertEquals("y", serialize(y));
+  }
+
+  @Test
+  public static void testSnippetsParsedOnDemand() throws Exception {
+    DataBundle b = parse(
+        "{ \"ok\": 1,"
+        + " \"bad\": { \"nodeType\": \"Expression\", \"code\": \"x +\" } }");
+    assertEquals(1, b.getOrDefault("ok", null));
+    try {
+      b.getOrDefault("bad", null);
+      fail();
+    } catch (JSONException ex) {
+      assertTrue(
+          ex.getMessage(),
+          ex.getMessage().startsWith("Failed to parse Expression"));
+    }
+  }
+
+  @Test
+  public static void testMalformed() throws Exception {
+    for (String json : new String[] {
+        "[1]",
+        "{ \"a\": 1",
+        "{ \"a\": 1 } 2",
+        "{ \"a\": 1, \"a\": 2 }",
+        "{ \"a\": [1, 2 }",
+        "{ \"e\": { \"nodeType\": \"NoSuchType\", \"code\": \"x\" } }",
+    }) {
+      try {
+        parse(json);
+        fail(json);
+      } catch (@SuppressWarnings("unused") JSONException ex) {
+        // Expected
+      }
+    }
+  }
+}
@@ -0,0 +1,399 @@
+package com.mikesamuel.cil.template;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ContiguousSet;
+import com.google.common.collect.DiscreteDomain;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Range;
+import com.google.common.io.CharSource;
+import com.mikesamuel.cil.ast.j8.CompilationUnitNode;
+import com.mikesamuel.cil.ast.passes.PassTestHelpers;
+import com.mikesamuel.cil.expr.InterpreterProfiler;
+import com.mikesamuel.cil.parser.Input;
+import com.mikesamuel.cil.parser.Unparse.UnparseVerificationException;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class PreparedTemplateBundleTest extends TestCase {
+
+  private static final String FIB_TEMPLATE = Joiner.on('\n').join(
+      "package foo;",
+      "",
+      "import static com.mikesamuel.cil.HereBe._TEMPLATES_;",
+      "",
+      "%%template fibArray(n) : Expression {",
+      "  new int[] {",
+      "    {%fibArrayElements(0, 1, 1, n) : VariableInitializerList}",
+      "  }",
+      "}",
+      "",
+      "%%template fibArrayElements(a, b, i, n) : VariableInitializer {",
+      "  (% ((i <= n)",
+      "      ? cons(b, fibArrayElements(b, a + b, i + 1, n))",
+      "      : b))",
+      "}",
+      "",
+      "class C {",
+      "  static final int[] fibs = (%fibArray(fibLength));",
+      "}");
+
+  private static TemplateBundle fibBundle() {
+    TemplateBundle bundle = new TemplateBundle(Logger.getAnonymousLogger());
+    bundle.addCompilationUnit(
+        Input.builder()
+        .source("C.java")
+        .code(FIB_TEMPLATE)
+        .allowNonStandardProductions(true)
+        .build());
+    return bundle;
+  }
+
+  private static DataBundle input(int fibLength) throws IOException {
+    return DataBundle.fromJsonFile(
+        "input.json", CharSource.wrap("{ \"fibLength\": " + fibLength + " }"));
+  }
+
+  private static String render(PreparedTemplateBundle prepared, int fibLength)
+  throws IOException, UnparseVerificationException {
+    return PassTestHelpers.serializeNodes(
+        prepared.apply(input(fibLength)), null);
+  }
+
+  @Test
+  public void testPreparedOnce() throws Exception {
+    TemplateBundle bundle = fibBundle();
+    PreparedTemplateBundle prepared = bundle.prepare();
+    String want = PassTestHelpers.serializeNodes(
+        bundle.apply(input(4)), null);
+    assertTrue(want, want.contains("{ 1, 1, 2, 3, 5, }"));
+    assertEquals(want, render(prepared, 4));
+    // Applying does not change the prepared bundle.
+    assertEquals(want, render(prepared, 4));
+    assertFalse(want.equals(render(prepared, 5)));
+    assertEquals(want, render(prepared, 4));
+  }
+
+  private static TemplateBundle loopBundle() {
+    String code = Joiner.on('\n').join(
+        "package foo;",
+        "",
+        "import static com.mikesamuel.cil.HereBe._TEMPLATES_;",
+        "",
+        "class C {",
+        "  void f() {",
+        "    %%for (x : xs) {",
+        "      n += (%x);",
+        "    %%}",
+        "    %%{",
+        "      let y = k * 2;",
+        "      n *= (%y);",
+        "    %%}",
+        "  }",
+        "  int n;",
+        "}");
+    TemplateBundle bundle = new TemplateBundle(Logger.getAnonymousLogger());
+    bundle.addCompilationUnit(
+        Input.builder()
+        .source("C.java")
+        .code(code)
+        .allowNonStandardProductions(true)
+        .build());
+    return bundle;
+  }
+
+  @Test
+  public void testCompiledInstructionsReused() throws Exception {
+    TemplateBundle bundle = loopBundle();
+    bundle.setBytecodeCompilationEnabled(true);
+    PreparedTemplateBundle prepared = bundle.prepare();
+
+    DataBundle one23 = DataBundle.fromJsonFile(
+        "one23.json", CharSource.wrap("{ \"xs\": [1, 2, 3], \"k\": 5 }"));
+    DataBundle four01 = DataBundle.fromJsonFile(
+        "four01.json", CharSource.wrap("{ \"xs\": [4, 0, 1], \"k\": 6 }"));
+
+    assertEquals(
+        Joiner.on('\n').join(
+            "package foo;",
+            "class C {",
+            "  void f() { n += 1; n += 2; n += 3; n *= 10; }",
+            "  int n;",
+            "  public C() {}",
+            "}"),
+        PassTestHelpers.serializeNodes(prepared.apply(one23), null));
+    // The loop series, the local initializer, and the two interpolated
+    // expressions, regardless of how many copies of the loop body there are.
+    assertEquals(4, prepared.compiledInstructionCount());
+
+    assertEquals(
+        Joiner.on('\n').join(
+            "package foo;",
+            "class C {",
+            "  void f() { n += 4; n += 0; n += 1; n *= 12; }",
+            "  int n;",
+            "  public C() {}",
+            "}"),
+        PassTestHelpers.serializeNodes(prepared.apply(four01), null));
+    assertEquals(4, prepared.compiledInstructionCount());
+  }
+
+  @Test
+  public void testProfiledRenderInterpretsInstructions() throws Exception {
+    TemplateBundle bundle = loopBundle();
+    bundle.setBytecodeCompilationEnabled(true);
+    InterpreterProfiler profiler = new InterpreterProfiler();
+    bundle.setProfiler(profiler);
+    PreparedTemplateBundle prepared = bundle.prepare();
+
+    prepared.apply(DataBundle.fromJsonFile(
+        "input.json", CharSource.wrap("{ \"xs\": [1, 2, 3], \"k\": 5 }")));
+    assertEquals(0, prepared.compiledInstructionCount());
+    // The multiplication in the local initializer is still attributed to
+    // the template source.
+    boolean sawInitializer = false;
+    for (InterpreterProfiler.HotSpot hs
+         : profiler.getHotSpotsBySourcePosition()) {
+      if (hs.key.startsWith("C.java:11+")) {
+        sawInitializer = true;
+        assertEquals(hs.key, 1, hs.count);
+      }
+    }
+    assertTrue(sawInitializer);
+  }
+
+  @Test
+  public void testConstantConditionsPruned() throws Exception {
+    TemplateBundle bundle = new TemplateBundle(Logger.getAnonymousLogger());
+    bundle.addCompilationUnit(
+        Input.builder()
+        .source("C.java")
+        .code(Joiner.on('\n').join(
+            "package foo;",
+            "",
+            "import static com.mikesamuel.cil.HereBe._TEMPLATES_;",
+            "",
+            "class C {",
+            "  %%if (1 + 1 == 3) {",
+            "    int a;",
+            "  %%}",
+            "  %%if (flag) {",
+            "    int b;",
+            "  %%}",
+            "  %%if (Integer.MAX_VALUE > 0) {",
+            "    int c;",
+            "  %%}",
+            "}"))
+        .allowNonStandardProductions(true)
+        .build());
+    bundle.setBytecodeCompilationEnabled(true);
+    PreparedTemplateBundle prepared = bundle.prepare();
+
+    for (boolean flag : new boolean[] { false, true }) {
+      assertEquals(
+          flag
+          ? "package foo; class C { int b; int c; public C() {} }"
+          : "package foo; class C { int c; public C() {} }",
+          PassTestHelpers.serializeNodes(
+              prepared.apply(DataBundle.fromJsonFile(
+                  "input.json",
+                  CharSource.wrap("{ \"flag\": " + flag + " }"))),
+              null));
+    }
+    // Only the condition that depends on the input is evaluated.
+    assertEquals(1, prepared.compiledInstructionCount());
+  }
+
+  @Test
+  public void testConcurrentApplication() throws Exception {
+    PreparedTemplateBundle prepared = fibBundle().prepare();
+    int n = 8;
+    List<String> want = new ArrayList<>();
+    for (int i = 0; i < n; ++i) {
+      want.add(render(prepared, i));
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<String>> got = new ArrayList<>();
+      for (int j = 0; j < 4 * n; ++j) {
+        int fibLength = j % n;
+        got.add(executor.submit(new Callable<String>() {
+          @Override
+          public String call() throws Exception {
+            return render(prepared, fibLength);
+          }
+        }));
+      }
+      for (int j = 0; j < got.size(); ++j) {
+        assertEquals(want.get(j % n), got.get(j).get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static final int N_INPUTS = 24;
+
+  private static Iterator<DataBundle> inputs(int n, int[] nRead) {
+    return new Iterator<DataBundle>() {
+      @Override
+      public boolean hasNext() {
+        return nRead[0] < n;
+      }
+
+      @Override
+      public DataBundle next() {
+        try {
+          return input(nRead[0]++ % 8);
+        } catch (IOException ex) {
+          throw new AssertionError(ex);
+        }
+      }
+    };
+  }
+
+  private static List<String> applyAll(
+      PreparedTemplateBundle prepared, int maxInFlight, boolean inOrder,
+      List<Integer> indices)
+  throws Exception {
+    int[] nRead = new int[1];
+    String[] got = new String[N_INPUTS];
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      prepared.applyAll(
+          inputs(N_INPUTS, nRead), executor, maxInFlight, inOrder,
+          new PreparedTemplateBundle.RenderReceiver() {
+            @Override
+            public void rendered(
+                int index, ImmutableList<CompilationUnitNode> output) {
+              // Inputs are not read faster than outputs are received.
+              assertTrue(nRead[0] - indices.size() <= maxInFlight);
+              indices.add(index);
+              try {
+                got[index] = PassTestHelpers.serializeNodes(output, null);
+              } catch (UnparseVerificationException ex) {
+                throw new AssertionError(ex);
+              }
+            }
+          });
+    } finally {
+      executor.shutdown();
+    }
+    return Arrays.asList(got);
+  }
+
+  @Test
+  public void testApplyAllInOrder() throws Exception {
+    PreparedTemplateBundle prepared = fibBundle().prepare();
+    List<String> want = new ArrayList<>();
+    List<Integer> wantIndices = new ArrayList<>();
+    for (int i = 0; i < N_INPUTS; ++i) {
+      want.add(render(prepared, i % 8));
+      wantIndices.add(i);
+    }
+
+    List<Integer> indices = new ArrayList<>();
+    assertEquals(want, applyAll(prepared, 3, true, indices));
+    assertEquals(wantIndices, indices);
+  }
+
+  @Test
+  public void testApplyAllAsCompleted() throws Exception {
+    PreparedTemplateBundle prepared = fibBundle().prepare();
+    List<String> want = new ArrayList<>();
+    for (int i = 0; i < N_INPUTS; ++i) {
+      want.add(render(prepared, i % 8));
+    }
+
+    List<Integer> indices = new ArrayList<>();
+    assertEquals(want, applyAll(prepared, 3, false, indices));
+    Collections.sort(indices);
+    assertEquals(ContiguousSet.create(
+        Range.closedOpen(0, N_INPUTS), DiscreteDomain.integers()).asList(),
+        indices);
+  }
+
+  @Test
+  public void testApplyAllWithProfiler() throws Exception {
+    TemplateBundle bundle = fibBundle();
+    bundle.setProfiler(new InterpreterProfiler());
+    PreparedTemplateBundle prepared = bundle.prepare();
+    try {
+      applyAll(prepared, 2, true, new ArrayList<Integer>());
+      fail();
+    } catch (IllegalStateException ex) {
+      // Profilers are not thread-safe.
+    }
+    List<Integer> indices = new ArrayList<>();
+    applyAll(prepared, 1, true, indices);
+    assertEquals(N_INPUTS, indices.size());
+  }
+
+  @Test
+  public void testStreamingToWriter() throws Exception {
+    TemplateBundle bundle = fibBundle();
+    bundle.addCompilationUnit(
+        Input.builder()
+        .source("D.java")
+        .code("package foo;\nclass D {}")
+        .allowNonStandardProductions(true)
+        .build());
+    PreparedTemplateBundle prepared = bundle.prepare();
+
+    List<String> units = new ArrayList<>();
+    prepared.apply(input(4), new OutputSink() {
+      @Override
+      public void accept(CompilationUnitNode unit) throws IOException {
+        try {
+          units.add(PassTestHelpers.serializeNodes(
+              ImmutableList.of(unit), null));
+        } catch (UnparseVerificationException ex) {
+          throw new IOException(ex);
+        }
+      }
+    });
+    assertEquals(2, units.size());
+    assertTrue(units.get(0), units.get(0).contains("{ 1, 1, 2, 3, 5, }"));
+    assertTrue(units.get(1), units.get(1).contains("class D"));
+
+    StringWriter out = new StringWriter();
+    prepared.apply(input(4), OutputSink.Sinks.writingTo(out));
+    String written = out.toString();
+    assertTrue(written, written.contains("{ 1, 1, 2, 3, 5, }"));
+    assertTrue(
+        written, written.indexOf("class C") < written.indexOf("class D"));
+  }
+
+  @Test
+  public void testSinkFailure() throws Exception {
+    PreparedTemplateBundle prepared = fibBundle().prepare();
+    IOException failure = new IOException("disk full");
+    try {
+      prepared.apply(input(4), new OutputSink() {
+        @Override
+        public void accept(CompilationUnitNode unit) throws IOException {
+          throw failure;
+        }
+      });
+      fail();
+    } catch (IOException ex) {
+      assertSame(failure, ex);
+    }
+  }
+}
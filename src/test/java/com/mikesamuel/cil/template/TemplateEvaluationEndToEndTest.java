@@ -60,7 +60,9 @@ public final class TemplateEvaluationEndToEndTest extends TestCase {
           boolean foundOne = false;
           for (File f : testsDirFiles) {
             if (f.isDirectory()) {
-              EndToEndTestCase.addToTestSuite(f, suite);
+              EndToEndTestCase.addToTestSuite(f, suite, false);
+              // Compiled instructions must behave like interpreted ones.
+              EndToEndTestCase.addToTestSuite(f, suite, true);
               foundOne = true;
             }
           }
@@ -75,7 +77,8 @@ public final class TemplateEvaluationEndToEndTest extends TestCase {
 
   private static class EndToEndTestCase extends TestCase {
 
-    static void addToTestSuite(File testRoot, TestSuite suite)
+    static void addToTestSuite(
+        File testRoot, TestSuite suite, boolean compileToBytecode)
     throws IOException {
       final Set<File> javaFiles = Sets.newTreeSet();
       final Map<String, File> prefixToInput = Maps.newTreeMap();
@@ -127,6 +130,7 @@ public final class TemplateEvaluationEndToEndTest extends TestCase {
       Logger logger = Logger.getAnonymousLogger();
       logger.addHandler(maxLogLevel);
       TemplateBundle bundle = new TemplateBundle(logger);
+      bundle.setBytecodeCompilationEnabled(compileToBytecode);
       for (File javaFile : javaFiles) {
         Input inp = Input.builder()
             .source(testRoot.getName() + "/" + javaFile.getName())
@@ -143,7 +147,8 @@ public final class TemplateEvaluationEndToEndTest extends TestCase {
         File output = prefixToOutput.get(prefix);
         @Nullable File log = prefixToLog.get(prefix);
 
-        String name = testRoot.getName() + "$" + prefix;
+        String name = testRoot.getName() + "$" + prefix
+            + (compileToBytecode ? "$compiled" : "");
         suite.addTest(new EndToEndTestCase(
             name, prefix, bundle, input, output, log));
       }
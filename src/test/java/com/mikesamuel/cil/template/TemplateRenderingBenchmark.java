@@ -0,0 +1,179 @@
+package com.mikesamuel.cil.template;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import com.mikesamuel.cil.ast.j8.CompilationUnitNode;
+import com.mikesamuel.cil.ast.passes.PassTestHelpers;
+import com.mikesamuel.cil.parser.Input;
+import com.mikesamuel.cil.parser.Unparse.UnparseVerificationException;
+
+import junit.framework.TestCase;
+
+/**
+ * Measures template rendering throughput by applying the bundles under
+ * {@code src/test/resources/template-tests} to their inputs many times, first
+ * one at a time and then via {@link PreparedTemplateBundle#applyAll}, and
+ * checks that every render matches the first.
+ * <p>
+ * Not run as part of the default test suite.  Run via
+ * <pre>
+ * mvn test -Pbenchmarks -Dtest=TemplateRenderingBenchmark \
+ *   [-Dbenchmark.scale=200] [-Dbenchmark.parallelism=4]
+ * </pre>
+ */
+@SuppressWarnings("javadoc")
+public final class TemplateRenderingBenchmark extends TestCase {
+
+  private static final class Case {
+    final String name;
+    final PreparedTemplateBundle prepared;
+    final ImmutableList<DataBundle> inputs;
+
+    Case(String name, PreparedTemplateBundle prepared,
+         ImmutableList<DataBundle> inputs) {
+      this.name = name;
+      this.prepared = prepared;
+      this.inputs = inputs;
+    }
+  }
+
+  @Test
+  public void testRenderingThroughput() throws Exception {
+    int scale = Integer.getInteger("benchmark.scale", 200);
+    int parallelism = Integer.getInteger(
+        "benchmark.parallelism", Runtime.getRuntime().availableProcessors());
+
+    Logger logger = Logger.getAnonymousLogger();
+    Logger quietLogger = Logger.getAnonymousLogger();
+    // Some test cases log errors on purpose.
+    quietLogger.setLevel(Level.OFF);
+
+    List<Case> cases = loadCases(
+        new File(new File(new File(new File("src"), "test"), "resources"),
+                 "template-tests"),
+        quietLogger);
+
+    // Warm up.
+    for (Case c : cases) {
+      renderSequentially(c, Math.max(1, scale / 10));
+      renderInParallel(c, Math.max(1, scale / 10), parallelism);
+    }
+
+    for (Case c : cases) {
+      List<String> want = new ArrayList<>();
+      for (DataBundle input : c.inputs) {
+        want.add(serialize(c.prepared.apply(input)));
+      }
+
+      int n = scale * c.inputs.size();
+      long t0 = System.nanoTime();
+      List<ImmutableList<CompilationUnitNode>> sequential =
+          renderSequentially(c, scale);
+      long t1 = System.nanoTime();
+      List<ImmutableList<CompilationUnitNode>> parallel =
+          renderInParallel(c, scale, parallelism);
+      long t2 = System.nanoTime();
+
+      assertEquals(n, sequential.size());
+      assertEquals(n, parallel.size());
+      for (int i = 0; i < n; ++i) {
+        String wantOne = want.get(i % want.size());
+        assertEquals(c.name, wantOne, serialize(sequential.get(i)));
+        assertEquals(c.name, wantOne, serialize(parallel.get(i)));
+      }
+
+      logger.log(
+          Level.INFO,
+          "{0}: {1} renders, {2}/s sequential, {3}/s parallel({4})",
+          new Object[] {
+              c.name, String.valueOf(n),
+              String.format("%.1f", n * 1e9 / (t1 - t0)),
+              String.format("%.1f", n * 1e9 / (t2 - t1)),
+              String.valueOf(parallelism) });
+    }
+  }
+
+  private static List<Case> loadCases(File testsDir, Logger logger)
+  throws IOException {
+    File[] dirs = testsDir.listFiles();
+    if (dirs == null) {
+      throw new IOException("No such dir " + testsDir);
+    }
+    List<Case> cases = new ArrayList<>();
+    for (File dir : dirs) {
+      File[] files = dir.listFiles();
+      if (files == null) { continue; }
+      TemplateBundle bundle = new TemplateBundle(logger);
+      ImmutableList.Builder<DataBundle> inputs = ImmutableList.builder();
+      for (File f : files) {
+        String name = f.getName();
+        if (name.endsWith(".java")) {
+          bundle.addCompilationUnit(
+              Input.builder()
+              .source(dir.getName() + "/" + name)
+              .code(Files.toString(f, UTF_8))
+              .allowNonStandardProductions(true)
+              .build());
+        } else if (name.endsWith(".json")) {
+          inputs.add(DataBundle.fromJsonFile(
+              f.getPath(), Files.asCharSource(f, UTF_8)));
+        }
+      }
+      cases.add(new Case(dir.getName(), bundle.prepare(), inputs.build()));
+    }
+    return cases;
+  }
+
+  private static String serialize(ImmutableList<CompilationUnitNode> output)
+  throws UnparseVerificationException {
+    return PassTestHelpers.serializeNodes(output, null);
+  }
+
+  private static List<ImmutableList<CompilationUnitNode>> renderSequentially(
+      Case c, int scale) {
+    List<ImmutableList<CompilationUnitNode>> outputs = new ArrayList<>();
+    for (int i = 0; i < scale; ++i) {
+      for (DataBundle input : c.inputs) {
+        outputs.add(c.prepared.apply(input));
+      }
+    }
+    return outputs;
+  }
+
+  private static List<ImmutableList<CompilationUnitNode>> renderInParallel(
+      Case c, int scale, int parallelism)
+  throws InterruptedException {
+    List<DataBundle> inputs = new ArrayList<>();
+    for (int i = 0; i < scale; ++i) {
+      inputs.addAll(c.inputs);
+    }
+    AtomicReferenceArray<ImmutableList<CompilationUnitNode>> outputs =
+        new AtomicReferenceArray<>(inputs.size());
+    c.prepared.applyAll(
+        inputs.iterator(), parallelism, false,
+        new PreparedTemplateBundle.RenderReceiver() {
+          @Override
+          public void rendered(
+              int index, ImmutableList<CompilationUnitNode> output) {
+            outputs.set(index, output);
+          }
+        });
+    List<ImmutableList<CompilationUnitNode>> outputList = new ArrayList<>();
+    for (int i = 0, n = outputs.length(); i < n; ++i) {
+      outputList.add(outputs.get(i));
+    }
+    return outputList;
+  }
+}